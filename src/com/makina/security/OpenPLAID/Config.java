@@ -20,6 +20,19 @@ public class Config {
 	// 384 - ROUND UP (NEXT MULTIPLE OF 32 FOR EEPROM ALLOCATION)
 	public static final short LENGTH_COMMAND_BUFFER	= (short)384;
 
+	// The length of the response buffer (always in RAM), which holds the remainder of a response
+	// that is longer than the Le of the command until it is collected with GET RESPONSE.
+	// NOTE:
+	// The longest response is an RSA-2048 block (GET DATA or INITIAL AUTHENTICATE), so the
+	// remainder is always less than 256 bytes. Responses are cut to Le (256 if absent) and chained,
+	// even on platforms that would accept a longer response.
+	public static final short LENGTH_RESPONSE_BUFFER	= (short)256;
+
+	// The number of logical channels (basic channel included) the applet may be selected on
+	// NOTE: Each channel costs 10 bytes of RAM for its command and response chaining state (see
+	//		 ApduIO). Commands on a channel number at or above this value are refused.
+	public static final short MAX_CHANNELS	= (short)4;
+
 	// The length of the RSA Initial Authenticate key in bits
 	// NOTE: Changing this value is not tested in this release!
 	public static final short LENGTH_IA_KEY_BITS 	= KeyBuilder.LENGTH_RSA_2048;	
@@ -96,6 +109,11 @@ public class Config {
 	// fully personalise a card without having the administrative private key part.
 	public static final boolean FEATURE_ACTIVATE_ON_ADMIN_KEY_CHANGE = true;
 
+	// If enabled, SET DATA commands may use the AES-CMAC envelope (encrypt-then-MAC under a key
+	// derived from the session key) instead of the truncated SHA-256 envelope. The MAC is checked
+	// before decryption, so forged or corrupted commands are rejected before any further processing.
+	public static final boolean FEATURE_ENVELOPE_CMAC = true;
+
 	/*
 	 * DEFAULT KEY INFORMATION
 	 */
@@ -2,6 +2,7 @@ package com.makina.security.OpenPLAID;
 
 import javacard.framework.*;
 import javacardx.apdu.ExtendedLength;
+import com.makina.security.OpenPLAIDCore.*;
 
 // IMPLEMENTATION NOTES
 // - For personalisation (SET DATA), requires ICCD support for Extended Length apdu
@@ -13,6 +14,8 @@ public class OpenPLAID extends Applet implements ExtendedLength
 	 * TRANSIENT applet variables (RAM)
 	 */
 	private byte[] commandBuffer;	
+	private ApduIO apduIO;
+	private short[] schemaResults;
 	
 	/*
 	 * PERSISTENT applet variables (EEPROM)
@@ -56,6 +59,45 @@ public class OpenPLAID extends Applet implements ExtendedLength
 	private static final short LENGTH_BYTE 	= (short)1;
 	private static final short LENGTH_SHORT = (short)2;
 
+	//
+	// SET DATA parameter schemas (see TlvSchema)
+	// Each entry is TAG, FLAGS (with the tag class), MIN LENGTH (2), MAX LENGTH (2)
+	//
+
+	// Every parameter has an APPLICATION class tag
+	private static final byte REQUIRED			= (byte)(TlvSchema.CLASS_APPLICATION | TlvSchema.FLAG_REQUIRED);
+	private static final byte REQUIRED_EVEN		= (byte)(TlvSchema.CLASS_APPLICATION | TlvSchema.FLAG_REQUIRED | TlvSchema.FLAG_EVEN_LENGTH);
+
+	private static final byte[] SCHEMA_KEY_CREATE = {
+		PLAIDProtocol.TAG_PARAM_ID,				REQUIRED,		0x00, 0x02, 0x00, 0x02,
+		PLAIDProtocol.TAG_PARAM_KEY,			REQUIRED,		0x00, 0x00, 0x7F, (byte)0xFF,
+		PLAIDProtocol.TAG_KEYSET_IAMODULUS,		REQUIRED,		(byte)(Config.LENGTH_IA_KEY >> 8), (byte)Config.LENGTH_IA_KEY, 
+																(byte)(Config.LENGTH_IA_KEY >> 8), (byte)Config.LENGTH_IA_KEY,
+		PLAIDProtocol.TAG_KEYSET_IAEXPONENT,	REQUIRED,		0x00, (byte)Config.LENGTH_IA_EXPONENT, 0x00, (byte)Config.LENGTH_IA_EXPONENT,
+		PLAIDProtocol.TAG_KEYSET_FAKEY,			REQUIRED,		0x00, (byte)Config.LENGTH_FA_KEY, 0x00, (byte)Config.LENGTH_FA_KEY,
+		PLAIDProtocol.TAG_PARAM_RULES,			REQUIRED_EVEN,	0x00, 0x02, 0x7F, (byte)0xFF // There must be at least 1 rule
+	};
+	private static final short KEY_CREATE_ID			= (short)0;
+	private static final short KEY_CREATE_IAMODULUS		= (short)2;
+	private static final short KEY_CREATE_IAEXPONENT	= (short)3;
+	private static final short KEY_CREATE_FAKEY			= (short)4;
+	private static final short KEY_CREATE_RULES			= (short)5;
+
+	private static final byte[] SCHEMA_ID = {
+		PLAIDProtocol.TAG_PARAM_ID,				REQUIRED,		0x00, 0x02, 0x00, 0x02
+	};
+	private static final short PARAM_ID					= (short)0;
+
+	private static final byte[] SCHEMA_ACSR_CREATE = {
+		PLAIDProtocol.TAG_PARAM_ID,				REQUIRED,		0x00, 0x02, 0x00, 0x02,
+		PLAIDProtocol.TAG_PARAM_DATA,			REQUIRED,		0x00, (byte)Config.LENGTH_ACSRECORD, 0x00, (byte)Config.LENGTH_ACSRECORD
+	};
+	private static final short ACSR_CREATE_ID			= (short)0;
+	private static final short ACSR_CREATE_DATA			= (short)1;
+
+	// The largest number of entries in any of the above schemas
+	private static final short MAX_SCHEMA_ENTRIES		= (short)6;
+
 	public OpenPLAID() {		
 
 		// Create our extended length command buffer
@@ -70,6 +112,20 @@ public class OpenPLAID extends Applet implements ExtendedLength
 			// Create it in EEPROM
 			commandBuffer = new byte[Config.LENGTH_COMMAND_BUFFER];
 		}
+
+		// Create our command receive / response send helper, with a RAM buffer for chained responses
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			apduIO = new ApduIO(commandBuffer, JCSystem.makeTransientByteArray(Config.LENGTH_RESPONSE_BUFFER, JCSystem.CLEAR_ON_RESET), Config.MAX_CHANNELS, JCSystem.CLEAR_ON_RESET);
+		} else {
+			apduIO = new ApduIO(commandBuffer, JCSystem.makeTransientByteArray(Config.LENGTH_RESPONSE_BUFFER, JCSystem.CLEAR_ON_DESELECT), Config.MAX_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+		}
+
+		// Create the schema validation results (value offset and length for each entry)
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			schemaResults = JCSystem.makeTransientShortArray((short)(MAX_SCHEMA_ENTRIES * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_RESET);
+		} else {
+			schemaResults = JCSystem.makeTransientShortArray((short)(MAX_SCHEMA_ENTRIES * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_DESELECT);
+		}
 		
 		// Create our persistent state
 		persistentState = new byte[LENGTH_PERSISTENT_STATE];
@@ -99,57 +155,13 @@ public class OpenPLAID extends Applet implements ExtendedLength
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
         }
         
-        /*
-         * Handle incoming extended APDU sizes
-         */
-
-		short recvBytes = apdu.setIncomingAndReceive();
-
-		byte[] buffer = apdu.getBuffer();
-		short length = apdu.getIncomingLength();
-		short offset = apdu.getOffsetCdata();
-
-		// If there is any data to receive
-		if (length != 0) {
-			
-			// Check to see if we have an extended APDU
-			if (recvBytes < length) {
-				
-				// Clear the command buffer to be safe
-				Util.arrayFillNonAtomic(commandBuffer, ZERO_SHORT, Config.LENGTH_COMMAND_BUFFER, ZERO_BYTE);
-
-				// Write the CAPDU header into our command buffer
-				Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, ZERO_SHORT, offset);
-
-				// Write the initially received bytes into our command buffer
-				Util.arrayCopyNonAtomic(buffer, offset, commandBuffer, offset, recvBytes);
-
-				// Offset to write to command buffer			
-				short recvOffset = (short)(recvBytes + offset);
-				short bytesRemaining = (short)(length - recvBytes);
-				
-				while (bytesRemaining != 0) {
-						
-					// Retrieve the next allocation of bytes
-					recvBytes = apdu.receiveBytes(ZERO_SHORT);
-
-					// Make sure we're not writing past our commandBuffer length
-					if ((short)(recvOffset + recvBytes) > Config.LENGTH_COMMAND_BUFFER) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-					
-					// Copy the bytes into our command buffer
-					Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, recvOffset, recvBytes);
-
-					// Move the offset forward
-					recvOffset += recvBytes;
-					bytesRemaining -= recvBytes;
-					
-				}
-				
-				// Point our buffer reference to the commandBuffer instead
-				buffer = commandBuffer;
-			}
-		}
-
+		// Receive the command data (extended length and chained commands are assembled in the command buffer)
+		byte[] buffer = apduIO.receive(apdu);
+		if (buffer == null) return; // A chained command segment or GET RESPONSE (already handled)
+		
+		short offset = apduIO.getOffset();
+		short length = apduIO.getLength();
+		
 		// Call the appropriate process method based on the INS       
 		switch (buffer[ISO7816.OFFSET_INS])
 		{                
@@ -166,14 +178,9 @@ public class OpenPLAID extends Applet implements ExtendedLength
 		}
 
 		// Send any outgoing data
-		// NOTES: 		
-		// - We are always sending as if sending an extended APDU response.
-		// - It is presumed here that the outgoing data is at the start of the apdu buffer
-		if (length > ZERO_SHORT) {
-			apdu.setOutgoing();
-			apdu.setOutgoingLength(length);
-			apdu.sendBytesLong(buffer, ZERO_SHORT, length);
-		}
+		// NOTE: It is presumed here that the outgoing data is at the start of the buffer. Responses
+		//       longer than the command's Le are chained (61xx / GET RESPONSE).
+		apduIO.send(apdu, buffer, ZERO_SHORT, length);
 	}
 
 
@@ -253,8 +260,11 @@ public class OpenPLAID extends Applet implements ExtendedLength
 		// PRE-CONDITION 4 - The PLAID authenticated keyset must be KEYSET_ADMIN
 		// NOTE: This is checked internally by the PLAID unwrapping process
 
-		// PRE-CONDITION 5 - The command must be unwrapped and pass validation		
-		offset = cspPLAID.unwrapCommand(buffer, offset, length, buffer, offset);
+		// PRE-CONDITION 5 - The command must be unwrapped and pass validation, using the envelope mode in P1		
+		offset = cspPLAID.unwrapCommand(buffer, offset, length, buffer, offset, buffer[ISO7816.OFFSET_P1]);
+
+		// The command parameters are parsed up to the end of the plaintext payload
+		short end = cspPLAID.getCommandEnd();
 
 		/*
 		 * EXECUTION STEPS
@@ -270,7 +280,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 		// EXECUTION STEP 2 - Execute the transaction based on the operation		
 		switch (operation) {
 
-		case PLAID.OP_ACTIVATE: {
+		case PLAIDProtocol.OP_ACTIVATE: {
 
 			//
 			// Command Execution
@@ -288,7 +298,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_BLOCK: {
+		case PLAIDProtocol.OP_BLOCK: {
 
 			//
 			// Command Execution
@@ -306,7 +316,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_UNBLOCK: {
+		case PLAIDProtocol.OP_UNBLOCK: {
 
 			//
 			// Command Execution
@@ -324,7 +334,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_TERMINATE: {
+		case PLAIDProtocol.OP_TERMINATE: {
 
 			//
 			// Command Execution
@@ -340,7 +350,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 			}
 		} break;
 
-		case PLAID.OP_FACTORY_RESET: {
+		case PLAIDProtocol.OP_FACTORY_RESET: {
 
 			//
 			// Command Execution
@@ -356,57 +366,21 @@ public class OpenPLAID extends Applet implements ExtendedLength
 			}
 		} break;
 
-		case PLAID.OP_KEY_CREATE: {
+		case PLAIDProtocol.OP_KEY_CREATE: {
 
 			//
 			// Data Validation
 			// 
 
-			// Id
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_ID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short id = TlvReader.toShort(buffer, offset);		
-
-			// Key (SEQUENCE)
-			offset = TlvReader.find(buffer, offset, PLAID.TAG_PARAM_KEY);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Key - iaModulus
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_KEYSET_IAMODULUS);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short iaModulusOffset = TlvReader.getDataOffset(buffer, offset);
-
-			// Validate the iaModulus length
-			if (TlvReader.getLength(buffer, offset) != 
-				Config.LENGTH_IA_KEY) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Key - iaExponent
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_KEYSET_IAEXPONENT);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);			
-			short iaExponentOffset = TlvReader.getDataOffset(buffer, offset);
-
-			// Validate the iaExponent length
-			if (TlvReader.getLength(buffer, offset) != 
-				Config.LENGTH_IA_EXPONENT) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Key - faKey			
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_KEYSET_FAKEY);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short faKeyOffset = TlvReader.getDataOffset(buffer, offset);	
-
-			// Validate the faKey length
-			if (TlvReader.getLength(buffer, offset) != 
-				Config.LENGTH_FA_KEY) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Access Rules (There must be at least 1)
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_RULES);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short ruleOffset = offset;
-
-			// Validate the Access Rules length (Must be a multiple of 2)
-			if ( (TlvReader.getLength(buffer, offset) == 0) ||
-				 (TlvReader.getLength(buffer, offset) % LENGTH_SHORT != 0)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-				 
+			if (!TlvSchema.validate(buffer, offset, end, SCHEMA_KEY_CREATE, schemaResults)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+
+			short id = Util.getShort(buffer, TlvSchema.getOffset(schemaResults, KEY_CREATE_ID));
+			short iaModulusOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_IAMODULUS);
+			short iaExponentOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_IAEXPONENT);
+			short faKeyOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_FAKEY);
+			short ruleOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_RULES);
+			short ruleLength = TlvSchema.getLength(schemaResults, KEY_CREATE_RULES);
+
 			// Rules are actually parsed inside the keyCreate method to avoid allocating any arrays here
 
 			//
@@ -415,7 +389,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 			try {
 				beginTransaction();				
-				cspPLAID.keyCreate(id, buffer, iaModulusOffset, iaExponentOffset, faKeyOffset, ruleOffset);
+				cspPLAID.keyCreate(id, buffer, iaModulusOffset, iaExponentOffset, faKeyOffset, ruleOffset, ruleLength);
 
 				// OPTIONALLY 
 				// - If FEATURE_ACTIVATE_ON_ADMIN_KEY_CHANGE is true; and
@@ -437,16 +411,14 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_KEY_DELETE: {
+		case PLAIDProtocol.OP_KEY_DELETE: {
 
 			//
 			// Data Validation
 			// 
 
-			// Id
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_ID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short id = TlvReader.toShort(buffer, offset);		
+			if (!TlvSchema.validate(buffer, offset, end, SCHEMA_ID, schemaResults)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+			short id = Util.getShort(buffer, TlvSchema.getOffset(schemaResults, PARAM_ID));
 
 			//
 			// Command Execution
@@ -464,7 +436,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_KEY_DELETE_ALL: {
+		case PLAIDProtocol.OP_KEY_DELETE_ALL: {
 
 			//
 			// Data Validation
@@ -489,27 +461,15 @@ public class OpenPLAID extends Applet implements ExtendedLength
 
 		} break;
 
-		case PLAID.OP_ACSR_CREATE: {
+		case PLAIDProtocol.OP_ACSR_CREATE: {
 
 			//
 			// Data Validation
 			// 
 
-			// Id
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_ID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short id = TlvReader.toShort(buffer, offset);		
-
-			// Data
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_DATA);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Validate the data length
-			if (TlvReader.getLength(buffer, offset) != 
-				Config.LENGTH_ACSRECORD) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// Move to the data offset
-			offset = TlvReader.getDataOffset(buffer, offset);
+			if (!TlvSchema.validate(buffer, offset, end, SCHEMA_ACSR_CREATE, schemaResults)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+			short id = Util.getShort(buffer, TlvSchema.getOffset(schemaResults, ACSR_CREATE_ID));
+			offset = TlvSchema.getOffset(schemaResults, ACSR_CREATE_DATA);
 			
 			//
 			// Command Execution
@@ -527,16 +487,14 @@ public class OpenPLAID extends Applet implements ExtendedLength
 			
 		} break;
 		
-		case PLAID.OP_ACSR_DELETE: {
+		case PLAIDProtocol.OP_ACSR_DELETE: {
 			
 			//
 			// Data Validation
 			// 
 			
-			// Id
-			offset = TlvReader.findNext(buffer, offset, PLAID.TAG_PARAM_ID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short id = TlvReader.toShort(buffer, offset);		
+			if (!TlvSchema.validate(buffer, offset, end, SCHEMA_ID, schemaResults)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+			short id = Util.getShort(buffer, TlvSchema.getOffset(schemaResults, PARAM_ID));
 
 			//
 			// Command Execution
@@ -554,7 +512,7 @@ public class OpenPLAID extends Applet implements ExtendedLength
 			
 		} break;
 		
-		case PLAID.OP_ACSR_DELETE_ALL: {
+		case PLAIDProtocol.OP_ACSR_DELETE_ALL: {
 			
 			//
 			// Data Validation
@@ -3,6 +3,7 @@ package com.makina.security.OpenPLAID;
 import javacard.framework.*;
 import javacard.security.*;
 import javacardx.crypto.*;
+import com.makina.security.OpenPLAIDCore.*;
 
 public class PLAID {
 
@@ -14,6 +15,7 @@ public class PLAID {
 	private Cipher cspRSA;
 	private Cipher cspAES;
 	private MessageDigest cspSHA;	
+	private AESCMAC128 cspCMAC;
 	private RandomData cspSRNG;
 	private RandomData cspPRNG;
 
@@ -38,6 +40,11 @@ public class PLAID {
 
 	// Session keys
 	private AESKey sessionKey;
+	private AESKey macKey; // Derived from sessionKey on demand (ENVELOPE_CMAC only)
+
+	// Scratch space for the MAC key derivation block and the command hash, so that neither is
+	// written past the end of the command data
+	private byte[] scratch;
 
 	//
 	// CONSTANTS
@@ -54,6 +61,7 @@ public class PLAID {
 	private static final short BOOL_FALSE	= (short)0xA5A5;
 
 	private static final short LENGTH_BLOCK_AES = (short)16;
+	private static final short LENGTH_HASH_SHA	= (short)32; // The SHA-256 output length
 	private static final short LENGTH_KEY_AES 	= Config.LENGTH_FA_KEY;
 	private static final short LENGTH_BLOCK_RSA = Config.LENGTH_IA_KEY;
 	private static final short LENGTH_KEY_RSA 	= Config.LENGTH_IA_KEY;
@@ -69,8 +77,10 @@ public class PLAID {
 	// PLAID protocol constants (ISO)
 	// 
 	private static final short LENGTH_PAYLOAD	= (short)0; // Optional Payloads feature not implemented
-	private static final short LENGTH_KEYSET_ID	= (short)2;	
-	private static final short LENGTH_OPMODE_ID = (short)2;
+	private static final short LENGTH_KEYSET_ID	= PLAIDProtocol.LENGTH_KEYSET_ID;
+	private static final short LENGTH_OPMODE_ID = PLAIDProtocol.LENGTH_OPMODE_ID;
+	private static final short LENGTH_OP_HASH	= PLAIDProtocol.LENGTH_OP_HASH;
+	private static final short LENGTH_MAC		= PLAIDProtocol.LENGTH_ENVELOPE_MAC;
 	private static final short LENGTH_ACSRECORD = Config.LENGTH_ACSRECORD;
 	private static final short LENGTH_KEYSHASH	= LENGTH_KEY_AES;
 	private static final short LENGTH_DIVDATA 	= LENGTH_BLOCK_AES;
@@ -80,44 +90,6 @@ public class PLAID {
 	private static final short LENGTH_STR2 		= (short)(LENGTH_OPMODE_ID + LENGTH_RND2 + LENGTH_PAYLOAD + LENGTH_KEYSHASH);
 	private static final short LENGTH_STR3 		= (short)(LENGTH_ACSRECORD + LENGTH_PAYLOAD + LENGTH_DIVDATA);
 
-	//
-	// PLAID administrative constants (non-ISO)
-	//	
-	
-	// Operations (Also serves as the Parameter tags)
-	public static final byte OP_ACTIVATE			= (byte)1;
-	public static final byte OP_BLOCK				= (byte)2;
-	public static final byte OP_UNBLOCK				= (byte)3;
-	public static final byte OP_TERMINATE			= (byte)4;
-	public static final byte OP_KEY_CREATE			= (byte)5;
-	public static final byte OP_KEY_DELETE			= (byte)6;
-	public static final byte OP_KEY_DELETE_ALL		= (byte)7;
-	public static final byte OP_ACSR_CREATE			= (byte)8;
-	public static final byte OP_ACSR_DELETE			= (byte)9;
-	public static final byte OP_ACSR_DELETE_ALL		= (byte)10;
-	public static final byte OP_PAYLOAD_CREATE		= (byte)11;
-	public static final byte OP_PAYLOAD_DELETE		= (byte)12;
-	public static final byte OP_PAYLOAD_DELETE_ALL 	= (byte)13;
-	public static final byte OP_FACTORY_RESET		= (byte)127;	
-
-	// Lengths
-	public static final short LENGTH_OP_HASH		= (short)16;
-	public static final short LENGTH_GETKEY_HASH	= (short)16;
-
-	// Tags - General
-	public static final byte TAG_SAMID = (byte)30;
-
-	// Tags - Keyset
-	public static final byte TAG_KEYSET_IAMODULUS = (byte)11;
-	public static final byte TAG_KEYSET_IAEXPONENT = (byte)12;
-	public static final byte TAG_KEYSET_FAKEY = (byte)13;
-
-	// Tags - Parameters
-	public static final byte TAG_PARAM_ID = (byte)1;
-	public static final byte TAG_PARAM_KEY = (byte)2;
-	public static final byte TAG_PARAM_DATA = (byte)2;
-	public static final byte TAG_PARAM_RULES = (byte)3;
-	
 	/*
 	 * Session state definitions
 	 */
@@ -133,11 +105,15 @@ public class PLAID {
 
 	// The value of RND1 between IA and FA
 	private static final short OFFSET_RND1		 		= (short)4;
+
+	// The end of the plaintext payload of the last command unwrapped by unwrapCommand()
+	private static final short OFFSET_COMMAND_END		= (short)(OFFSET_RND1 + LENGTH_RND1);
 	
 	private static final short LENGTH_SESSION_STATE 	= (short)(	LENGTH_BYTE + 		// AUTH_STATE
 																	LENGTH_KEYSET_ID + 	// KEYSET
 																	LENGTH_BYTE + 		// COUNTER
-																	LENGTH_RND1);		// RND1
+																	LENGTH_RND1 +		// RND1
+																	LENGTH_SHORT);		// COMMAND_END
 
 
 	/**
@@ -157,6 +133,7 @@ public class PLAID {
 		cspRSA = Cipher.getInstance(Cipher.ALG_RSA_NOPAD, false); 			
 		cspAES = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
 		cspSHA = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+		if (Config.FEATURE_ENVELOPE_CMAC) cspCMAC = new AESCMAC128();
 		cspSRNG = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM); // For nonces
 		cspPRNG = RandomData.getInstance(RandomData.ALG_PSEUDO_RANDOM); // For PKCS1.5 padding
 
@@ -167,15 +144,23 @@ public class PLAID {
 		if (Config.FEATURE_CLEAR_ON_RESET) {
 			// Create the session state buffer		
 			sessionState = JCSystem.makeTransientByteArray(LENGTH_SESSION_STATE, JCSystem.CLEAR_ON_RESET);
+			scratch = JCSystem.makeTransientByteArray(LENGTH_HASH_SHA, JCSystem.CLEAR_ON_RESET);
 
 			// Create the session keys
 			sessionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_FA_KEY_BITS, false);
+			if (Config.FEATURE_ENVELOPE_CMAC) {
+				macKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_FA_KEY_BITS, false);
+			}
 		} else {
 			// Create the session state buffer		
 			sessionState = JCSystem.makeTransientByteArray(LENGTH_SESSION_STATE, JCSystem.CLEAR_ON_DESELECT);
+			scratch = JCSystem.makeTransientByteArray(LENGTH_HASH_SHA, JCSystem.CLEAR_ON_DESELECT);
 
 			// Create the session keys
 			sessionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_FA_KEY_BITS, false);		
+			if (Config.FEATURE_ENVELOPE_CMAC) {
+				macKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_FA_KEY_BITS, false);
+			}
 		}
 		
 		//
@@ -327,11 +312,12 @@ public class PLAID {
 		short index = 0;		
 		
 		// Find the start of the keyset sequence
-		inOffset = TlvReader.find(inBuffer, inOffset, TlvReader.ASN1_SEQUENCE);
-		if (TlvReader.TAG_NOT_FOUND == inOffset) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+		short inEnd = (short)(inOffset + inLength);
+		inOffset = TlvReader.find(inBuffer, inOffset, inEnd, TlvReader.ASN1_SEQUENCE);
+		if (inOffset < 0) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 
 		// Loop through the terminal-requested keysets
-		while ( (inOffset = TlvReader.findNext(inBuffer, inOffset, TlvReader.ASN1_OCTET_STRING)) != TlvReader.TAG_NOT_FOUND ) {
+		while ( (inOffset = TlvReader.findNext(inBuffer, inOffset, inEnd, TlvReader.ASN1_OCTET_STRING)) >= 0 ) {
 			
 			// Loop through the stored keysets, skipping the shill key at 0
 			short requestedKeyset = TlvReader.toShort(inBuffer, inOffset);
@@ -485,7 +471,7 @@ public class PLAID {
 		// Remove the M2 padding, this also serves as a basic validation of the decryption
 		// as it will fail if it doesn't see the mandatory 0x80 padding byte as a minimum
 		if (Config.FEATURE_STRICT_ISO9797_M2_PADDING) {
-			inLength = iso9797M2Remove(outBuffer, outOffset, inLength);
+			inLength = Padding.iso9797M2Remove(outBuffer, outOffset, inLength);
 		}
 		
 		// Retrieve the opModeId
@@ -623,7 +609,7 @@ public class PLAID {
 		// NOTE: ISO9797-1 Padding Method 2 requires the 0x80 to be written, regardless of whether
 		// 	     the input data is block-aligned or not, so we ignore the 'if needed' statement above.		
 		short outLength = (short)(offset - outOffset); // Remove the initial outOffset to leave the length		
-		outLength = iso9797M2Add(outBuffer, outOffset, outLength);
+		outLength = Padding.iso9797M2Add(outBuffer, outOffset, outLength);
 
 		// d) The ICC calculates eSTR3 where eSTR3 = AESEncryptKeysHash (STR3). The cipher mode for 
 		//    this operation shall be CBC.
@@ -641,6 +627,7 @@ public class PLAID {
 				
 		// Reset the authentication state
 		sessionKey.clearKey();
+		if (Config.FEATURE_ENVELOPE_CMAC) macKey.clearKey();
 		
 		// NOTE: This will implicitly set the AUTH_STATE to STATE_NONE (which must always be 0)
 		Util.arrayFillNonAtomic(sessionState, ZERO_SHORT, LENGTH_SESSION_STATE, ZERO_BYTE);
@@ -673,10 +660,12 @@ public class PLAID {
 	 * @param inLength The length of the incoming APDU buffer
 	 * @param outBuffer The buffer to write to
 	 * @param outOffset The offset to start writing to in the output buffer
+	 * @param envelope The envelope mode (PLAIDProtocol.ENVELOPE_HASH or ENVELOPE_CMAC)
 	 *
-	 * @return The offset to the start of the outBuffer where the command begins
+	 * @return The offset to the start of the outBuffer where the command begins. The end of the
+	 *         plaintext payload is available from getCommandEnd().
 	 */
-	public short unwrapCommand(byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
+	public short unwrapCommand(byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset, byte envelope) {
 
 		// Ensure that we are authenticated
 		if (sessionState[OFFSET_AUTH_STATE] != AUTH_STATE_OK) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
@@ -688,32 +677,70 @@ public class PLAID {
 		// Framing
 		// 
 
-		// Make sure the payload length is block-aligned
-		if ((inLength == 0) || (inLength % LENGTH_BLOCK_AES != 0)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);	
+		short outEnd;
 
-		// Decrypt the payload using the authenticated session key
-		cspAES.init(sessionKey, Cipher.MODE_DECRYPT);
-		short length = cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);		
+		if (envelope == PLAIDProtocol.ENVELOPE_CMAC && Config.FEATURE_ENVELOPE_CMAC) {
 
-		// Remove the padding (ISO9797 Padding Method 2)
-		length = iso9797M2Remove(outBuffer, outOffset, length);
+			// The ciphertext is followed by the MAC
+			inLength -= LENGTH_MAC;
 
-		// Make sure the decrypted length is greater than our hash size
-		if (length <= LENGTH_OP_HASH) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-		
-		// Validate the trailing hash
-		cspSHA.reset();
-		cspSHA.doFinal(outBuffer, outOffset, (short)(length - LENGTH_OP_HASH), outBuffer, (short)(outOffset + length)); // Write to the end
-		if (0 != Util.arrayCompare(outBuffer, (short)(outOffset + length - LENGTH_OP_HASH), outBuffer, (short)(outOffset + length), LENGTH_OP_HASH)) {
-			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
-		}
+			// Make sure the ciphertext length is block-aligned
+			if ((inLength <= 0) || (inLength % LENGTH_BLOCK_AES != 0)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);	
 
-		//
-		// HACK: Because of the current TLV parser implementation, we erase the 
-		// hash value here so that the parser doesn't see it as a possible continuation
-		// of the data.
-		//
-		Util.arrayFillNonAtomic(outBuffer, (short)(outOffset + length - LENGTH_OP_HASH), LENGTH_OP_HASH, ZERO_BYTE);
+			// Derive the MAC key from the session key
+			// NOTE: The MAC key is derived on demand so that authentication itself pays nothing for it
+			Util.arrayFillNonAtomic(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+			scratch[(short)(LENGTH_BLOCK_AES - 1)] = PLAIDProtocol.DERIVE_MAC_KEY;
+			cspAES.init(sessionKey, Cipher.MODE_ENCRYPT);
+			cspAES.doFinal(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, scratch, ZERO_SHORT);
+			macKey.setKey(scratch, ZERO_SHORT);
+			Util.arrayFillNonAtomic(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+
+			// Validate the MAC over the ciphertext before doing anything else with it
+			cspCMAC.init(macKey, Signature.MODE_VERIFY);
+			boolean verified = cspCMAC.verify(inBuffer, inOffset, inLength, inBuffer, (short)(inOffset + inLength), LENGTH_MAC);
+			macKey.clearKey();
+			if (!verified) ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+
+			// Decrypt the payload using the authenticated session key
+			cspAES.init(sessionKey, Cipher.MODE_DECRYPT);
+			short length = cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);		
+
+			// Remove the padding (ISO9797 Padding Method 2)
+			short payloadLength = Padding.iso9797M2Remove(outBuffer, outOffset, length);
+
+			// The command payload ends where the padding begins
+			outEnd = (short)(outOffset + payloadLength);
+
+		} else if (envelope == PLAIDProtocol.ENVELOPE_HASH) {
+
+			// Make sure the payload length is block-aligned
+			if ((inLength == 0) || (inLength % LENGTH_BLOCK_AES != 0)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);	
+
+			// Decrypt the payload using the authenticated session key
+			cspAES.init(sessionKey, Cipher.MODE_DECRYPT);
+			short length = cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);		
+
+			// Remove the padding (ISO9797 Padding Method 2)
+			length = Padding.iso9797M2Remove(outBuffer, outOffset, length);
+
+			// Make sure the decrypted length is greater than our hash size
+			if (length <= LENGTH_OP_HASH) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+			
+			// Validate the trailing hash
+			cspSHA.reset();
+			cspSHA.doFinal(outBuffer, outOffset, (short)(length - LENGTH_OP_HASH), scratch, ZERO_SHORT);
+			if (0 != Util.arrayCompare(outBuffer, (short)(outOffset + length - LENGTH_OP_HASH), scratch, ZERO_SHORT, LENGTH_OP_HASH)) {
+				ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+			}
+
+			// The command payload ends where the hash begins
+			outEnd = (short)(outOffset + length - LENGTH_OP_HASH);
+
+		} else {
+			ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			return ZERO_SHORT; // Keeps the compiler happy
+		}
 		
 		// We now have an decrypted and authenticated command payload
 
@@ -722,12 +749,12 @@ public class PLAID {
 		// 
 
 		// Validate the SEQUENCE
-		outOffset = TlvReader.find(outBuffer, outOffset, TlvReader.ASN1_SEQUENCE);
-		if (TlvReader.TAG_NOT_FOUND == outOffset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		outOffset = TlvReader.find(outBuffer, outOffset, outEnd, TlvReader.ASN1_SEQUENCE);
+		if (outOffset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 
 		// Read and validate the counter
-		outOffset = TlvReader.findNext(outBuffer, outOffset, TlvReader.ASN1_INTEGER);
-		if (TlvReader.TAG_NOT_FOUND == outOffset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);				
+		outOffset = TlvReader.findNext(outBuffer, outOffset, outEnd, TlvReader.ASN1_INTEGER);
+		if (outOffset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);				
 
 		if (TlvReader.toByte(outBuffer, outOffset) != sessionState[OFFSET_AUTH_COUNTER]) {
 			// The counter does not match! Reset our authentication status and abort
@@ -745,8 +772,11 @@ public class PLAID {
 		}
 
 		// Move to the Operation field and return
-		outOffset = TlvReader.findNext(outBuffer, outOffset, TlvReader.ASN1_ENUMERATED);
-		if (TlvReader.TAG_NOT_FOUND == outOffset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		outOffset = TlvReader.findNext(outBuffer, outOffset, outEnd, TlvReader.ASN1_ENUMERATED);
+		if (outOffset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+
+		// Keep the end of the payload, so that the caller parses the command parameters against it
+		Util.setShort(sessionState, OFFSET_COMMAND_END, outEnd);
 		
 		// Return the new offset pointing to the start of the decrypted command
 		return outOffset;
@@ -761,9 +791,10 @@ public class PLAID {
 	 * @param modulusOffset The offset in the buffer for the RSA modulus
 	 * @param exponentOffset The offset in the buffer for the RSA public exponent
 	 * @param faOffset The offset for the Final Authenticate key
-	 * @param ruleOffset The offset for the access control rules
+	 * @param ruleOffset The value offset of the access control rules (a list of OCTET STRING opModes)
+	 * @param ruleLength The value length of the access control rules
 	 */
-	public void keyCreate(short id, byte[] buffer, short modulusOffset, short exponentOffset, short faOffset, short ruleOffset) {
+	public void keyCreate(short id, byte[] buffer, short modulusOffset, short exponentOffset, short faOffset, short ruleOffset, short ruleLength) {
 				
 		//
 		// Parameter validation
@@ -814,8 +845,9 @@ public class PLAID {
 		}
 		
 		// 4 - Set the new access rules (we know there is at least one)
-		while (TlvReader.TAG_NOT_FOUND != 
-				(ruleOffset = TlvReader.findNext(buffer, ruleOffset, TlvReader.ASN1_OCTET_STRING))) {
+		short ruleEnd = (short)(ruleOffset + ruleLength);
+		ruleOffset = TlvReader.find(buffer, ruleOffset, ruleEnd, TlvReader.ASN1_OCTET_STRING);
+		while (ruleOffset >= 0) {
 					
 			// Read the opMode
 			short opMode = TlvReader.toShort(buffer, ruleOffset);
@@ -845,7 +877,10 @@ public class PLAID {
 			
 			// Set the rule
 			accessRules[index].set(id, opMode);
-		};
+			
+			// Move to the next rule
+			ruleOffset = TlvReader.findNext(buffer, ruleOffset, ruleEnd, TlvReader.ASN1_OCTET_STRING);
+		}
 		
 		// 5 - If the updated keyset was KEYSET_ADMIN, reset our authentication
 		if (Config.KEYSET_ADMIN == id) {
@@ -1119,44 +1154,15 @@ public class PLAID {
 		return Util.getShort(sessionState, OFFSET_KEYSET);
 	}
 
-
-	private static short iso9797M2Add(byte[] buffer, short offset, short length) {
-		
-		final byte CONST_PAD = (byte)0x80;
-		
-		// Start at the end of the buffer
-		short pos = (short)(length + offset);
-		
-		// Add the padding constant
-		buffer[pos++] = CONST_PAD;
-		length++;
-		
-		// Keep adding zeroes until you get to a block length (an empty block will return 1 block)
-		while (length < LENGTH_BLOCK_AES || (length % LENGTH_BLOCK_AES != 0)) {
-			buffer[pos++] = (byte)0;
-			length++;
-		}
-		
-		return length;
+	/**
+	 * Returns the end offset of the plaintext payload of the last command unwrapped by
+	 * unwrapCommand() (the padding, hash or MAC that followed it is excluded)
+	 */
+	public short getCommandEnd() {
+		return Util.getShort(sessionState, OFFSET_COMMAND_END);
 	}
-	
-	private static short iso9797M2Remove(byte[] buffer, short offset, short length) {
 
-		final byte CONST_PAD = (byte)0x80;
 
-		// Start at the last byte of the buffer
-		short pos = (short)(length + offset - 1);
-		
-		// Remove the trailing zeroes
-		while ( (pos != offset) && buffer[pos] == (byte)0x00) { pos--; length--; }
-		
-		// Test for the padding constant
-		if (buffer[pos] != CONST_PAD ) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
-		length--; // Strip the padding byte		
-
-		return length;
-	}
-		
 	//
 	// PERSONALISATION DATA DEFINITIONS
 	//
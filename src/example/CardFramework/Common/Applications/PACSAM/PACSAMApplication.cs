@@ -158,6 +158,72 @@ namespace CardFramework.Applications.PACSAM
             return status;
         }
 
+        /// <summary>
+        /// Reads the SAM operation counters (GET STATUS, P2 = 0x01)
+        /// </summary>
+        public PACSAMTelemetry GetTelemetry()
+        {
+            const byte P2Telemetry = 0x01;
+            const byte TagGlobal = 0x80;
+            const byte TagKey = 0xA1;
+            const byte TagKeyId = 0x80;
+            const byte TagCounters = 0x81;
+
+            // Transceive
+            RApdu response = Transcieve(CLA, (byte)PACSAMCommand.GetStatus, p2: P2Telemetry);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "GetTelemetry");
+            }
+
+            // SEQUENCE { [0] global, [1] { [0] key id, [1] counters } ... }
+            byte[] data = response.Data;
+            int offset = 0;
+            int end = ReadTlvHeader(data, ref offset, 0x30);
+            end += offset;
+
+            PACSAMTelemetry telemetry = new PACSAMTelemetry();
+
+            int length = ReadTlvHeader(data, ref offset, TagGlobal);
+            telemetry.Global = new PACSAMCounters(data.Skip(offset).Take(length).ToArray());
+            offset += length;
+
+            while (offset < end)
+            {
+                ReadTlvHeader(data, ref offset, TagKey);
+
+                length = ReadTlvHeader(data, ref offset, TagKeyId);
+                short id = (short)((data[offset] << 8) | data[offset + 1]);
+                offset += length;
+
+                length = ReadTlvHeader(data, ref offset, TagCounters);
+                telemetry.Keys[id] = new PACSAMCounters(data.Skip(offset).Take(length).ToArray());
+                offset += length;
+            }
+
+            return telemetry;
+        }
+
+        private static int ReadTlvHeader(byte[] data, ref int offset, byte tag)
+        {
+            if (data[offset++] != tag) throw new InvalidDataException("Unexpected tag in SAM response");
+
+            int length = data[offset++];
+            if (length == 0x81)
+            {
+                length = data[offset++];
+            }
+            else if (length == 0x82)
+            {
+                length = (data[offset] << 8) | data[offset + 1];
+                offset += 2;
+            }
+
+            return length;
+        }
+
         private void ResetAuthentication()
         {
             try
@@ -372,14 +438,8 @@ namespace CardFramework.Applications.PACSAM
                 // PLAID
                 else if (typeof(PACSAMPlaidKeyRecord).IsAssignableFrom(r.GetType()))
                 {
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyPElement, r.PackRecord("IAKEY_P"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyQElement, r.PackRecord("IAKEY_Q"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyPQElement, r.PackRecord("IAKEY_PQ"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyDPElement, r.PackRecord("IAKEY_DP"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyDQElement, r.PackRecord("IAKEY_DQ"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyModulusElement, r.PackRecord("IAKEY_MODULUS"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.IAKeyExponentElement, r.PackRecord("IAKEY_EXPONENT"));
-                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.FAKeyElement, r.PackRecord("FAKEY"));
+                    // All elements in a single extended APDU
+                    LoadKey(PACSAMKeyType.PLAID, PACSAMPlaidKeyRecord.AllElements, r.PackRecord("ALL"));
                 }
             }
 
@@ -411,6 +471,49 @@ namespace CardFramework.Applications.PACSAM
             }
         }
 
+        /// <summary>
+        /// Loads many keys from a stream that has been encrypted and MACed under a transport KEK
+        /// (an AES key with the IMPORT_KEK attribute). Either all keys are loaded or none are.
+        /// The stream is sent as a chain of short APDU's (ISO7816-4 command chaining), so it may be
+        /// longer than the SAM command buffer.
+        /// </summary>
+        /// <param name="blob">KEK ID (2) | COUNT (2) | IV (16) | { CIPHERTEXT | CMAC (16) } * COUNT</param>
+        /// <returns>The number of keys loaded</returns>
+        public short ImportKeys(byte[] blob)
+        {
+            const int SegmentLength = 255;
+            const byte ClaChaining = 0x10;
+
+            RApdu response = null;
+
+            for (int offset = 0; offset < blob.Length; offset += SegmentLength)
+            {
+                int length = Math.Min(SegmentLength, blob.Length - offset);
+                bool last = (offset + length == blob.Length);
+
+                byte[] segment = new byte[length];
+                Array.Copy(blob, offset, segment, 0, length);
+
+                // Setup the command (every segment but the last has the chaining bit set)
+                CApdu command = new CApdu();
+                command.Cla = last ? CLA : (byte)(CLA | ClaChaining);
+                command.Ins = (byte)PACSAMCommand.ImportKeys;
+                command.Data = segment;
+                if (last) command.LE = 0x00;
+
+                // Transceive
+                response = Transcieve(command);
+
+                // Parse and test status code (the SAM discards the whole stream on any error)
+                if (response.IsError)
+                {
+                    throw new Iso7816Exception(response.SW12, "ImportKeys");
+                }
+            }
+
+            return (short)((response.Data[0] << 8) | response.Data[1]);
+        }
+
         public PACSAMKey ReadNextKey(short index)
         {
             byte[] indexBytes = BinaryParser.ConvertInt16(index, ByteEndianess.BigEndian);
@@ -431,6 +534,77 @@ namespace CardFramework.Applications.PACSAM
             return new PACSAMKey(response.Data);
         }
 
+        /// <summary>
+        /// Reads the headers of all initialised keys from the given index in as few commands as possible.
+        /// </summary>
+        /// <param name="index">The key index to start from</param>
+        /// <param name="next">The index to continue from, or -1 if there are no more keys</param>
+        public List<PACSAMKey> ReadKeyDirectory(short index, out short next)
+        {
+            const int EntryLength = 2 + 1 + 30; // INDEX | TYPE | HEADER
+
+            byte[] indexBytes = BinaryParser.ConvertInt16(index, ByteEndianess.BigEndian);
+
+            // Transceive
+            RApdu response = Transcieve(CLA, (byte)PACSAMCommand.ReadKeyDirectory, indexBytes[0], indexBytes[1]);
+
+            // Parse and test
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "ReadKeyDirectory");
+            }
+
+            BinaryParser parser = new BinaryParser(response.Data, ByteEndianess.BigEndian);
+            next = parser.ReadInt16();
+
+            List<PACSAMKey> keys = new List<PACSAMKey>();
+            for (int offset = 2; offset + EntryLength <= response.Data.Length; offset += EntryLength)
+            {
+                byte[] entry = new byte[EntryLength];
+                Array.Copy(response.Data, offset, entry, 0, EntryLength);
+                keys.Add(new PACSAMKey(entry));
+            }
+
+            return keys;
+        }
+
+        /// <summary>
+        /// Derives a site or reader AES key from a master key (which must have the DERIVE attribute),
+        /// using the SAM system diversifier and the supplied host diversifier (1 to 15 bytes).
+        /// </summary>
+        public byte[] DeriveKey(short keyIndex, byte[] hostDiversifier)
+        {
+            byte[] indexBytes = BinaryParser.ConvertInt16(keyIndex, ByteEndianess.BigEndian);
+
+            // Transceive
+            RApdu response = Transcieve(CLA, (byte)PACSAMCommand.DeriveKey, indexBytes[0], indexBytes[1], hostDiversifier);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "DeriveKey");
+            }
+
+            return response.Data;
+        }
+
+        /// <summary>
+        /// As DeriveKey, but addresses the master key by its identifier
+        /// </summary>
+        public byte[] DeriveKeyById(short keyId, byte[] hostDiversifier)
+        {
+            // Transceive
+            RApdu response = Transcieve(CLA, (byte)PACSAMCommand.DeriveKey, (byte)(KeyById >> 8), 0x00, PrependKeyId(keyId, hostDiversifier));
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "DeriveKeyById");
+            }
+
+            return response.Data;
+        }
+
         public void ClearKeys()
         {
             myKeys.Clear();
@@ -442,21 +616,14 @@ namespace CardFramework.Applications.PACSAM
 
             ClearKeys();
 
-            while (true)
+            while (index >= 0)
             {
-                // Read the next key
-                PACSAMKey key = ReadNextKey(index);
-
-                // If null, there are no more keys
-                if (key == null) return myKeys;
-
-                // Add to our list
-                myKeys.Add(key);
-
-                // Progress our index to the next one
-                index = (short)(key.Index + 1);
+                // Read the next page of keys (NEXT will be -1 when there are no more)
+                myKeys.AddRange(ReadKeyDirectory(index, out index));
             }
 
+            return myKeys;
+
         }
 
         /* 
@@ -709,13 +876,137 @@ namespace CardFramework.Applications.PACSAM
          * PLAID Commands
          */
 
-        public byte[] PlaidInitialAuthenticate(short keyIndex, byte[] estr1, short opMode)
+        /// <summary>
+        /// PLAID commands address one of several independent session contexts on the SAM
+        /// using the high nibble of P1. Session 0 is the default.
+        /// </summary>
+        private static byte SessionP1(byte session, short keyIndex = 0)
+        {
+            return (byte)(((session & 0x0F) << 4) | ((keyIndex >> 8) & 0x0F));
+        }
+
+        /// <summary>
+        /// When set in P1/P2 (with a zero key index), the command data is prefixed with the key identifier
+        /// </summary>
+        private const short KeyById = 0x0800;
+
+        /// <summary>
+        /// PLAID SET DATA P2 flags
+        /// </summary>
+        private const byte SetDataBatch = 0x01;
+        private const byte SetDataCmac = 0x02;
+
+        /// <summary>
+        /// PLAID INITIAL AUTH P2 flags (with KeyById)
+        /// </summary>
+        private const byte InitialAuthKeyList = 0x01;
+        private const byte InitialAuthConstantTime = 0x02;
+
+        private static byte[] PrependKeyId(short keyId, byte[] data)
+        {
+            byte[] result = new byte[data.Length + 2];
+            result[0] = (byte)((keyId >> 8) & 0xFF);
+            result[1] = (byte)(keyId & 0xFF);
+            data.CopyTo(result, 2);
+            return result;
+        }
+
+        public byte[] PlaidInitialAuthenticateById(short keyId, byte[] estr1, short opMode, byte session = 0)
         {
             // Setup the command
             CApdu command = new CApdu();
             command.Cla = CLA;
             command.Ins = (byte)PACSAMCommand.PlaidInitialAuth;
-            command.P1 = (byte)((keyIndex >> 8) & 0xFF); // Key index MSB
+            command.P1 = SessionP1(session, KeyById);
+            command.P2 = 0x00;
+
+            // Generate the full APDU data
+            byte[] data = new byte[estr1.Length + 2];
+            data[0] = (byte)((opMode >> 8) & 0xFF);
+            data[1] = (byte)(opMode & 0xFF);
+            estr1.CopyTo(data, 2);
+            command.Data = PrependKeyId(keyId, data);
+
+            // Transceive
+            RApdu response = Transcieve(command);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "PlaidInitialAuthenticateById");
+            }
+
+            return response.Data;
+        }
+
+        /// <summary>
+        /// Executes the PLAID Initial Authenticate against a list of candidate keysets in one command.
+        /// The SAM returns eSTR2 for the first keyset that decrypts eSTR1. If constantTime is set, the SAM
+        /// tries every keyset regardless of when the first one succeeds (ISO 25185-1 6.4 c).
+        /// </summary>
+        public byte[] PlaidInitialAuthenticateList(IList<short> keyIds, byte[] estr1, short opMode, byte session = 0, bool constantTime = true)
+        {
+            if (keyIds.Count == 0 || keyIds.Count > 255) throw new ArgumentException(@"There must be between 1 and 255 candidate keysets", @"keyIds");
+
+            // Setup the command
+            CApdu command = new CApdu();
+            command.Cla = CLA;
+            command.Ins = (byte)PACSAMCommand.PlaidInitialAuth;
+            command.P1 = SessionP1(session, KeyById);
+            command.P2 = (byte)(InitialAuthKeyList | (constantTime ? InitialAuthConstantTime : 0x00));
+
+            // Generate the full APDU data
+            MemoryStream data = new MemoryStream();
+            data.WriteByte((byte)keyIds.Count);
+            foreach (short keyId in keyIds)
+            {
+                data.WriteByte((byte)((keyId >> 8) & 0xFF));
+                data.WriteByte((byte)(keyId & 0xFF));
+            }
+            data.WriteByte((byte)((opMode >> 8) & 0xFF));
+            data.WriteByte((byte)(opMode & 0xFF));
+            data.Write(estr1, 0, estr1.Length);
+            command.Data = data.ToArray();
+
+            // Transceive
+            RApdu response = Transcieve(command);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "PlaidInitialAuthenticateList");
+            }
+
+            return response.Data;
+        }
+
+        public void PlaidLoadFAKeyById(short keyId, byte[] cryptogram, byte session = 0)
+        {
+            // Setup the command
+            CApdu command = new CApdu();
+            command.Cla = CLA;
+            command.Ins = (byte)PACSAMCommand.PlaidLoadFAKey;
+            command.P1 = SessionP1(session, KeyById);
+            command.P2 = 0x00;
+            command.Data = PrependKeyId(keyId, cryptogram);
+
+            // Transceive
+            RApdu response = Transcieve(command);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "PlaidLoadFAKeyById");
+            }
+        }
+
+        public byte[] PlaidInitialAuthenticate(short keyIndex, byte[] estr1, short opMode, byte session = 0)
+        {
+            // Setup the command
+            CApdu command = new CApdu();
+            command.Cla = CLA;
+            command.Ins = (byte)PACSAMCommand.PlaidInitialAuth;
+            command.P1 = SessionP1(session, keyIndex);   // Session handle | Key index MSB
             command.P2 = (byte)(keyIndex & 0xFF);        // Key index LSB
 
             // Generate the full APDU data
@@ -738,13 +1029,13 @@ namespace CardFramework.Applications.PACSAM
             return response.Data;
         }
 
-        public byte[] PlaidFinalAuthenticate(byte[] estr3)
+        public byte[] PlaidFinalAuthenticate(byte[] estr3, byte session = 0)
         {
             // Setup the command
             CApdu command = new CApdu();
             command.Cla = CLA;
             command.Ins = (byte)PACSAMCommand.PlaidFinalAuth;
-            command.P1 = 0x00;
+            command.P1 = SessionP1(session);
             command.P2 = 0x00;
             command.Data = estr3;
             command.LE = 0x00;
@@ -761,14 +1052,14 @@ namespace CardFramework.Applications.PACSAM
             return response.Data;
         }
 
-        public byte[] PlaidSetData(byte[] commandObject)
+        public byte[] PlaidSetData(byte[] commandObject, byte session = 0, bool cmac = false)
         {
             // Setup the command
             CApdu command = new CApdu();
             command.Cla = CLA;
             command.Ins = (byte)PACSAMCommand.PlaidSetData;
-            command.P1 = 0x00;
-            command.P2 = 0x00;
+            command.P1 = SessionP1(session);
+            command.P2 = (byte)(cmac ? SetDataCmac : 0x00);
             command.Data = commandObject;
             //command.LE = 0x00;
 
@@ -784,13 +1075,99 @@ namespace CardFramework.Applications.PACSAM
             return response.Data;
         }
 
-        public void PlaidLoadFAKey(short keyIndex, byte[] cryptogram)
+        /// <summary>
+        /// Generates the cryptograms for several SET DATA command objects in one command.
+        /// The cryptograms are returned in order, with consecutive counter values.
+        /// If cmac is set, the cryptograms use the AES-CMAC envelope (see PlaidApplication.ENVELOPE_CMAC).
+        /// </summary>
+        public List<byte[]> PlaidSetDataBatch(IEnumerable<byte[]> commandObjects, byte session = 0, bool cmac = false)
+        {
+            // Setup the command
+            CApdu command = new CApdu();
+            command.Cla = CLA;
+            command.Ins = (byte)PACSAMCommand.PlaidSetData;
+            command.P1 = SessionP1(session);
+            command.P2 = (byte)(SetDataBatch | (cmac ? SetDataCmac : 0x00));
+
+            MemoryStream data = new MemoryStream();
+            foreach (byte[] commandObject in commandObjects) data.Write(commandObject, 0, commandObject.Length);
+            command.Data = data.ToArray();
+
+            // Transceive
+            RApdu response = Transcieve(command);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "PlaidSetDataBatch");
+            }
+
+            // The response is one OCTET STRING per command object
+            List<byte[]> cryptograms = new List<byte[]>();
+            byte[] r = response.Data;
+            int offset = 0;
+            while (offset < r.Length)
+            {
+                offset++; // Tag
+                int length = r[offset++];
+                if (length == 0x81)
+                {
+                    length = r[offset++];
+                }
+                else if (length == 0x82)
+                {
+                    length = (r[offset] << 8) | r[offset + 1];
+                    offset += 2;
+                }
+
+                byte[] cryptogram = new byte[length];
+                Array.Copy(r, offset, cryptogram, 0, length);
+                cryptograms.Add(cryptogram);
+                offset += length;
+            }
+
+            return cryptograms;
+        }
+
+        /// <summary>
+        /// Loads the transport FA key cryptogram and performs the Initial Authenticate in one command.
+        /// </summary>
+        public byte[] PlaidTransportAuthenticate(short keyIndex, byte[] cryptogram, byte[] estr1, short opMode, byte session = 0)
+        {
+            // Setup the command
+            CApdu command = new CApdu();
+            command.Cla = CLA;
+            command.Ins = (byte)PACSAMCommand.PlaidTransportAuth;
+            command.P1 = SessionP1(session, keyIndex);   // Session handle | Key index MSB
+            command.P2 = (byte)(keyIndex & 0xFF);        // Key index LSB
+
+            // Generate the full APDU data (FAKEY CRYPTOGRAM | OPMODE | eSTR1)
+            MemoryStream data = new MemoryStream();
+            data.Write(cryptogram, 0, cryptogram.Length);
+            data.WriteByte((byte)((opMode >> 8) & 0xFF));
+            data.WriteByte((byte)(opMode & 0xFF));
+            data.Write(estr1, 0, estr1.Length);
+            command.Data = data.ToArray();
+
+            // Transceive
+            RApdu response = Transcieve(command);
+
+            // Parse and test status code
+            if (response.IsError)
+            {
+                throw new Iso7816Exception(response.SW12, "PlaidTransportAuthenticate");
+            }
+
+            return response.Data;
+        }
+
+        public void PlaidLoadFAKey(short keyIndex, byte[] cryptogram, byte session = 0)
         {
             // Setup the command
             CApdu command = new CApdu();
             command.Cla = CLA;
             command.Ins = (byte)PACSAMCommand.PlaidLoadFAKey;
-            command.P1 = (byte)((keyIndex >> 8) & 0xFF); // Key index MSB
+            command.P1 = SessionP1(session, keyIndex);   // Session handle | Key index MSB
             command.P2 = (byte)(keyIndex & 0xFF);        // Key index LSB
             command.Data = cryptogram;
 
@@ -17,6 +17,9 @@ namespace CardFramework.Applications.PACSAM
         Terminate = 0x15,
         LoadKey = 0x16,
         ReadNextKey = 0x17,
+        ReadKeyDirectory = 0x18,
+        DeriveKey = 0x19,
+        ImportKeys = 0x1A,
 
         // Applet commands - DESFire EV-1
         EV1Auth0 = 0x21,
@@ -33,6 +36,7 @@ namespace CardFramework.Applications.PACSAM
         PlaidLoadFAKey = 0x81,
         PlaidSetData = 0x82,
         PlaidInitialAuth = 0x87,
-        PlaidFinalAuth = 0x86
+        PlaidFinalAuth = 0x86,
+        PlaidTransportAuth = 0x88
     }
 }
@@ -38,5 +38,15 @@ namespace CardFramework.Applications.PACSAM
         // This key must be diversified before use
         DF_DIV_KEY = (ushort)(1 << 7),
 
+        /*
+         * Key attributes (General)
+         */
+
+        // This key is permitted to be used as a master key for DERIVE KEY
+        DERIVE = (ushort)(1 << 8),
+
+        // This key is permitted to be used as the transport KEK for IMPORT KEYS
+        IMPORT_KEK = (ushort)(1 << 9),
+
     }
 }
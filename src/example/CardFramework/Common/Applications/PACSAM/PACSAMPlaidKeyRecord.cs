@@ -26,6 +26,7 @@ namespace CardFramework.Applications.PACSAM
         public const byte IAKeyModulusElement = 5;
         public const byte IAKeyExponentElement = 6;
         public const byte FAKeyElement = 7;
+        public const byte AllElements = 0xFF;
 
         public RSAKey IAKey;
 
@@ -117,6 +118,24 @@ namespace CardFramework.Applications.PACSAM
                     record.WriteBytes(FAKey);
                     break;
 
+                case "ALL":
+                    // SEQUENCE { [ELEMENT + 1] value, ... }
+                    BinaryParser elements = new BinaryParser(ByteEndianess.BigEndian);
+                    WriteElement(elements, IAKeyPElement, IAKey.P);
+                    WriteElement(elements, IAKeyQElement, IAKey.Q);
+                    WriteElement(elements, IAKeyPQElement, IAKey.PQ);
+                    WriteElement(elements, IAKeyDPElement, IAKey.DP);
+                    WriteElement(elements, IAKeyDQElement, IAKey.DQ);
+                    WriteElement(elements, IAKeyModulusElement, IAKey.Modulus);
+                    WriteElement(elements, IAKeyExponentElement, IAKey.Exponent);
+                    WriteElement(elements, FAKeyElement, FAKey);
+
+                    byte[] container = elements.ToArray();
+                    record.WriteUInt8(0x30); // SEQUENCE
+                    WriteLength(record, container.Length);
+                    record.WriteBytes(container);
+                    break;
+
                 default:
                     throw new ArgumentException("Invalid key element");
 
@@ -126,6 +145,31 @@ namespace CardFramework.Applications.PACSAM
             return record.ToArray();
         }
 
+        private static void WriteElement(BinaryParser parser, byte element, byte[] value)
+        {
+            parser.WriteUInt8((byte)(0x80 | (element + 1))); // Context-specific, primitive
+            WriteLength(parser, value.Length);
+            parser.WriteBytes(value);
+        }
+
+        private static void WriteLength(BinaryParser parser, int length)
+        {
+            if (length > 0xFF)
+            {
+                parser.WriteUInt8(0x82);
+                parser.WriteUInt16((ushort)length);
+            }
+            else if (length > 0x7F)
+            {
+                parser.WriteUInt8(0x81);
+                parser.WriteUInt8((byte)length);
+            }
+            else
+            {
+                parser.WriteUInt8((byte)length);
+            }
+        }
+
         public override byte[] GetHashInputData()
         {
             var data = new BinaryParser();
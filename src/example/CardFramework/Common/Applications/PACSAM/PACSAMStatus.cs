@@ -3,6 +3,7 @@ using System.Collections.Generic;
 using System.Linq;
 using System.Text;
 using System.Threading.Tasks;
+using CardFramework.Helpers;
 
 namespace CardFramework.Applications.PACSAM
 {
@@ -20,6 +21,38 @@ namespace CardFramework.Applications.PACSAM
         public bool PINStatus;
     }
 
+    /// <summary>
+    /// The operation counters returned by GET STATUS (P2 = 0x01)
+    /// </summary>
+    public class PACSAMTelemetry
+    {
+        public PACSAMCounters Global;
+        public Dictionary<short, PACSAMCounters> Keys = new Dictionary<short, PACSAMCounters>();
+    }
+
+    public class PACSAMCounters
+    {
+        public const int Length = 12;
+
+        public ushort InitialAuthOK;
+        public ushort InitialAuthFail;
+        public ushort FinalAuthOK;
+        public ushort FinalAuthFail;
+        public ushort SetDataOK;
+        public ushort SetDataFail;
+
+        public PACSAMCounters(byte[] data)
+        {
+            BinaryParser parser = new BinaryParser(data, ByteEndianess.BigEndian);
+            InitialAuthOK = parser.ReadUInt16();
+            InitialAuthFail = parser.ReadUInt16();
+            FinalAuthOK = parser.ReadUInt16();
+            FinalAuthFail = parser.ReadUInt16();
+            SetDataOK = parser.ReadUInt16();
+            SetDataFail = parser.ReadUInt16();
+        }
+    }
+
     public enum DESFireAuthStatus
     {
         AUTH_STATE_NONE = 0,
@@ -191,7 +191,11 @@ namespace CardFramework.Applications.Plaid
         }
 
 
-        public void SetData(byte[] cryptogram)
+        /// <summary>
+        /// Sends a SET DATA cryptogram generated by the SAM. The envelope must match the one the SAM
+        /// was asked to use (ENVELOPE_HASH or ENVELOPE_CMAC).
+        /// </summary>
+        public void SetData(byte[] cryptogram, byte envelope = ENVELOPE_HASH)
         {
             Iso7816Protocol protocol = Card.GetProtocol<Iso7816Protocol>();
 
@@ -199,7 +203,7 @@ namespace CardFramework.Applications.Plaid
             CApdu command = new CApdu();
             command.Cla = CLA;
             command.Ins = INS_SET_DATA;
-            command.P1 = 0x00;
+            command.P1 = envelope;
             command.P2 = 0x00;
             command.Data = cryptogram;
             RApdu response = protocol.Transceive(command);
@@ -532,6 +536,12 @@ namespace CardFramework.Applications.Plaid
         public const byte AUTH_STATE_OK = 2;
         public const byte AUTH_STATE_SHILL = 3;
 
+        //
+        // SET DATA envelope modes (P1)
+        //
+        public const byte ENVELOPE_HASH = 0; // AES-CBC over (Payload || truncated SHA-256)
+        public const byte ENVELOPE_CMAC = 1; // AES-CBC over Payload, then AES-CMAC over the ciphertext
+
         public const short LENGTH_BLOCK_AES = 16;
         public const short LENGTH_KEY_AES = 16;
         public const short LENGTH_BLOCK_RSA = 256;
@@ -0,0 +1,254 @@
+package com.makina.security.OpenPLAIDCore;
+
+import javacard.framework.*;
+import javacard.security.*;
+
+/**
+ * Signature algorithm ALG_AES_CMAC_128 generates a 16-byte Cipher-based MAC (CMAC) 
+ * using AES with blocksize 128 in CBC mode with ISO9797_M2 padding scheme.
+ */
+public class AESCMAC128 extends Signature  {
+
+	// Algorithm constant (Matches the Javacard 3.x value)
+	public static final byte ALG_AES_CMAC_128 	= (byte)49;
+
+	// Cryptographic Service Providers
+	private Signature cspAESMAC;
+
+	private static final short ZERO 			= (short)0;
+	public static final short LENGTH_BLOCK_AES 	= (short)16;
+	public static final short LENGTH_KEY_AES 	= (short)16;
+	public static final short LENGTH_CMAC 		= (short)16; // We return the entire CMAC 
+
+	// Constant XOR value according to AES-CMAC-128 for subkey generation
+	private static final byte CONST_RB 			= (byte)0x87;		
+	private static final byte CONST_PAD 		= (byte)0x80;
+
+	// A temporary working space
+	private byte[] buffer;
+	
+	// Holds the subkeys K1 and K2, which are derived once in init()
+	private static final short OFFSET_K1		= (short)0;
+	private static final short OFFSET_K2		= (short)(OFFSET_K1 + LENGTH_BLOCK_AES);
+
+	// Holds back the last (possibly partial) block of input between calls to update(), as it
+	// can't be processed until we know whether it is the final block. This is also where the
+	// final block is prepared and the CMAC calculated.
+	private static final short OFFSET_CMAC 		= (short)(OFFSET_K2 + LENGTH_BLOCK_AES);
+
+	// The number of bytes held in the CMAC block (0 to LENGTH_BLOCK_AES)
+	private static final short OFFSET_PENDING	= (short)(OFFSET_CMAC + LENGTH_BLOCK_AES);
+
+	private static final short LENGTH_BUFFER 	= (short)(OFFSET_PENDING + 1);
+	
+	public AESCMAC128() {		
+		
+		// Create the cryptographic service providers
+		cspAESMAC = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);		
+		buffer = JCSystem.makeTransientByteArray(LENGTH_BUFFER, JCSystem.CLEAR_ON_RESET);
+	}
+	
+	public byte getAlgorithm() {
+		return ALG_AES_CMAC_128;
+	}
+	
+	public short getLength() {
+		return LENGTH_CMAC;
+	}
+	
+	public void init(Key theKey, byte theMode)  {
+		init(theKey, theMode, null, ZERO, ZERO);
+	}
+
+	public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen)  {
+
+		// Reset our entire buffer
+		Util.arrayFillNonAtomic(buffer, ZERO, LENGTH_BUFFER, (byte)0x00);
+
+		/*
+		 * SUBKEY GENERATION
+		 */
+		 
+		// Step 1.  L := AES-128(K, const_Zero);  
+		// In step 1, AES-128 with key K is applied to an all-zero input block.
+		// NOTE: The IV is always zero for this step as it is not the actual CMAC calculation
+		cspAESMAC.init(theKey, Signature.MODE_SIGN);
+		cspAESMAC.sign(buffer, OFFSET_K1, LENGTH_BLOCK_AES, buffer, OFFSET_K1);		
+		
+		// Step 2. K1 is derived from L
+		generateSubkey(buffer, OFFSET_K1);
+
+		// Step 3. K2 is derived from K1
+		Util.arrayCopyNonAtomic(buffer, OFFSET_K1, buffer, OFFSET_K2, LENGTH_BLOCK_AES);
+		generateSubkey(buffer, OFFSET_K2);
+		
+		// Now we initialise cspAES with theKey and our IV (if supplied), for the actual CMAC operation
+		if (bArray != null) {
+			cspAESMAC.init(theKey, theMode, bArray, bOff, bLen);
+		} else {
+			cspAESMAC.init(theKey, theMode);			
+		}		
+	}
+	
+	public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset)  {
+
+		// Process everything up to (but not including) the last block
+		update(inBuff, inOffset, inLength);
+		
+		// We now know that we are dealing with the last block
+		processFinalBlock();
+
+		// We now know that buffer[OFFSET_CMAC] contains the final block to process
+
+		// Perform the final CBC encipherment on the last block, writing it back to the same location
+		cspAESMAC.sign(buffer, OFFSET_CMAC, LENGTH_BLOCK_AES, buffer, OFFSET_CMAC);
+		
+		// buffer[OFFSET_CMAC] now contains the CMAC (untrimmed)
+		
+		// Write the trimmed CMAC value to the outBuffer
+		Util.arrayCopyNonAtomic(buffer, OFFSET_CMAC, sigBuff, sigOffset, LENGTH_CMAC);
+
+		// Reset the final block (the subkeys are retained for the next operation with this key)
+		resetFinalBlock();
+		
+		// Return the length of the CMAC
+		return LENGTH_CMAC;
+	}
+
+	public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) {
+
+		/*
+		 * We allow the applet to compare the first 1 < sigLength < LENGTH_CMAC bytes
+		 * because it is common to truncate the result of a CMAC and this is certainly
+		 * true of the DESFire, where it uses the first 8 bytes
+		 */
+
+		// Is the supplied length less than 1 or greater than a full CMAC? If not, instant fail
+		if (sigLength <= 0 || sigLength > LENGTH_CMAC) return false;
+
+		// Process everything up to (but not including) the last block
+		update(inBuff, inOffset, inLength);
+		
+		// We now know that we are dealing with the last block
+		processFinalBlock();
+
+		// We now know that buffer[OFFSET_CMAC] contains the final block to process
+
+		// Perform the final CBC encipherment on the last block, writing it back to the same location
+		boolean result = cspAESMAC.verify(buffer, OFFSET_CMAC, LENGTH_BLOCK_AES, sigBuff, sigOffset, sigLength);
+
+		// Reset the final block (the subkeys are retained for the next operation with this key)
+		resetFinalBlock();
+
+		// Compare the result against the supplied signature
+		return result;
+	}
+
+	public void update(byte[] inBuff, short inOffset, short inLength) {
+		
+		// NOTE: Any length is accepted. Up to one block is held back in case it turns out to be the last.
+		if (inLength <= 0) return;
+		
+		short pending = buffer[OFFSET_PENDING];
+		
+		// If everything fits in the held-back block, just add it and wait for more
+		if (inLength <= (short)(LENGTH_BLOCK_AES - pending)) {
+			Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, (short)(OFFSET_CMAC + pending), inLength);
+			buffer[OFFSET_PENDING] = (byte)(pending + inLength);
+			return;
+		}
+		
+		// Otherwise, complete the held-back block (if any) and process it, as more data follows
+		if (pending != ZERO) {
+			short fill = (short)(LENGTH_BLOCK_AES - pending);
+			Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, (short)(OFFSET_CMAC + pending), fill);
+			cspAESMAC.update(buffer, OFFSET_CMAC, LENGTH_BLOCK_AES);
+			inOffset += fill;
+			inLength -= fill;
+		}
+		
+		// Process all remaining whole blocks in one call, except the last (which may be partial or full)
+		short run = (short)((short)((short)(inLength - 1) / LENGTH_BLOCK_AES) * LENGTH_BLOCK_AES);
+		if (run != ZERO) {
+			cspAESMAC.update(inBuff, inOffset, run);
+			inOffset += run;
+			inLength -= run;
+		}
+		
+		// Hold back the last block
+		Util.arrayCopyNonAtomic(inBuff, inOffset, buffer, OFFSET_CMAC, inLength);
+		buffer[OFFSET_PENDING] = (byte)inLength;
+	}
+                        	
+	/*
+	 * Private helper methods
+	 */
+
+
+	/**
+	 * This method performs the steps associated with the final (held-back) message block, including
+	 * message length checking, padding and final subkey XOR'ing
+	 */
+	private void processFinalBlock() {
+
+		short inLength = buffer[OFFSET_PENDING];
+		
+		// In step 3, the length of the input message is checked.  
+		// If the input length is 0 (null), the number of blocks to be processed shall be 1, and 
+		// 	the flag shall be marked as not-complete-block (false).	
+		// Otherwise, if the last block length is 128 bits, the flag is marked as complete-block 
+		// 	(true); else mark the flag as not-complete-block (false).
+		
+		// In step 4, M_last is calculated by exclusive-OR'ing M_n and one of the previously calculated subkeys.  
+		// If the last block is a complete block (true), then M_last is the exclusive-OR of M_n and K1.
+		// Otherwise, M_last is the exclusive-OR of padding(M_n) and K2.
+		short subkey = OFFSET_K1;
+
+		if (inLength != LENGTH_BLOCK_AES) {
+
+			// Set the next byte to the padding constant and fill the rest with zeroes
+			// NOTE: This also handles the special case (from step 3) where the input length is zero
+			buffer[(short)(OFFSET_CMAC + inLength)] = CONST_PAD;
+			inLength++;
+			Util.arrayFillNonAtomic(buffer, (short)(OFFSET_CMAC + inLength), (short)(LENGTH_BLOCK_AES - inLength), (byte)0x00);
+			
+			subkey = OFFSET_K2;
+		}
+
+		for (short i = 0; i < LENGTH_BLOCK_AES; i++) {
+			buffer[(short)(OFFSET_CMAC + i)] ^= buffer[(short)(subkey + i)];
+		}			
+		
+		// buffer[OFFSET_CMAC] now contains M_last
+	}
+	
+	/**
+	 * Clears the held-back block after a sign() or verify()
+	 */
+	private void resetFinalBlock() {
+		Util.arrayFillNonAtomic(buffer, OFFSET_CMAC, (short)(LENGTH_BLOCK_AES + 1), (byte)0x00);
+	}
+	
+	// This method will generate subkey K1 from L (or K2 from K1), in place
+	private void generateSubkey(byte[] l, short offset) {				
+		// Step 1 has already been performed in the init() routine
+	
+		// In step 2, K1 is derived through the following operation:
+		
+		// If the most significant bit of L is equal to 0, K1 is the left-shift of L by 1 bit.
+		if ((l[offset] & 0x80) == 0x00) {
+			UtilEx.rollLeft(l, offset, LENGTH_BLOCK_AES);
+		}			
+		// Otherwise, K1 is the exclusive-OR of const_Rb and the left-shift of L by 1 bit.		
+		else {
+			UtilEx.rollLeft(l, offset, LENGTH_BLOCK_AES);
+			l[(short)(offset + LENGTH_BLOCK_AES - 1)] ^= CONST_RB;				
+		}
+
+		// In step 3, K2 is derived through the following operation:							
+		// If the most significant bit of K1 is equal to 0, K2 is the left-shift of K1 by 1 bit.
+		// Otherwise, K2 is the exclusive-OR of const_Rb and the left-shift of K1 by 1 bit.
+
+		// NOTE: This is just the same operation as for K1, so call it again on a copy of K1.
+	}
+}
@@ -0,0 +1,422 @@
+package com.makina.security.OpenPLAIDCore;
+
+import javacard.framework.*;
+
+/*
+ * Receives command data and sends response data for the OpenPLAID applets, so that both use the
+ * same I/O path.
+ *
+ * The command data is left in the APDU buffer when it arrives in one piece. Extended length
+ * commands (data larger than the first receive) and chained commands (ISO7816-4 5.1.1, CLA bit 5)
+ * are assembled in the command buffer, with the C-APDU header at offset 0.
+ *
+ * A streamed command (see receiveStream) is not assembled. Its data is handed to the applet as it
+ * arrives, a segment at a time, so a chain can be longer than the command buffer.
+ *
+ * Responses longer than the Le of the command (256 bytes if absent) are sent in parts with
+ * ISO7816-4 response chaining. The first part is sent with SW 61xx and the remainder is kept in
+ * the (transient) response buffer until it is collected with GET RESPONSE. Any other command
+ * on the same channel discards it. The response buffer is separate from the command buffer, which may be in EEPROM.
+ *
+ * Chains and chained responses are tracked for each logical channel, so a command on another
+ * channel neither aborts a chain nor discards a pending response. The two buffers are shared,
+ * however:
+ *
+ *  - A channel that needs the command buffer (to assemble an extended length or chained command,
+ *    or for a streamed command) takes it over from a chain in progress on another channel. That
+ *    chain is then lost and its next segment is refused with SW 6883.
+ *  - A channel that needs the response buffer takes it over from a response that is waiting on
+ *    another channel, whose GET RESPONSE is then refused with SW 6985.
+ */
+public class ApduIO {
+
+	// The command and response buffers, supplied by the applet
+	private final byte[] commandBuffer;
+	private final byte[] responseBuffer;
+
+	// The number of logical channels with their own chain and response state
+	private final short channels;
+
+	// I/O state for the command being processed (transient)
+	private final short[] state;
+
+	private static final short STATE_OFFSET		= (short)0; // The offset of the command data
+	private static final short STATE_LENGTH		= (short)1; // The length of the command data
+	private static final short LENGTH_STATE		= (short)2;
+
+	// Chain and response state for each logical channel (transient)
+	private final short[] channelState;
+
+	private static final short CHANNEL_CHAIN		= (short)0; // The command buffer position of a chained command, NO_CHAIN, CHAIN_LOST or CHAIN_STREAM
+	private static final short CHANNEL_CHAIN_INS	= (short)1; // The INS of a chained command
+	private static final short CHANNEL_CHAIN_DATA	= (short)2; // The command buffer offset of the data of a chained command
+	private static final short CHANNEL_RESPONSE		= (short)3; // The response buffer position of the remaining response data
+	private static final short CHANNEL_RESPONSE_LENGTH	= (short)4; // The length of the remaining response data, or zero
+	private static final short LENGTH_CHANNEL_STATE	= (short)5;
+
+	private static final short NO_CHAIN			= (short)0;
+	private static final short CHAIN_LOST		= (short)-1;
+	private static final short CHAIN_STREAM		= (short)-2;
+
+	// The segment flags returned by receiveStream()
+	public static final byte STREAM_FIRST		= (byte)0x01; // The first (or only) segment of the command
+	public static final byte STREAM_LAST		= (byte)0x02; // The last (or only) segment of the command
+
+	// The GET RESPONSE instruction (ISO7816-4 7.6.1)
+	private static final byte INS_GET_RESPONSE	= (byte)0xC0;
+
+	// The response length used when the command has no Le field
+	private static final short LENGTH_SHORT_RESPONSE	= (short)256;
+	private static final short ZERO_SHORT		= (short)0;
+	private static final byte ZERO_BYTE			= (byte)0;
+
+	/*
+	 * Creates the I/O helper around a command buffer, which must be large enough for the longest
+	 * command (header included), and a transient response buffer, which must be large enough for
+	 * the remainder of the longest response. Commands on logical channel numbers at or above
+	 * 'channels' are refused. 'event' is the JCSystem clear event for the transient state.
+	 */
+	public ApduIO(byte[] commandBuffer, byte[] responseBuffer, short channels, byte event)
+	{
+		this.commandBuffer = commandBuffer;
+		this.responseBuffer = responseBuffer;
+		this.channels = channels;
+		state = JCSystem.makeTransientShortArray(LENGTH_STATE, event);
+		channelState = JCSystem.makeTransientShortArray((short)(channels * LENGTH_CHANNEL_STATE), event);
+	}
+
+	/*
+	 * Receives the command data and returns the buffer holding the whole command, which is the APDU
+	 * buffer if the data arrived in one piece, or otherwise the command buffer. The data offset and
+	 * length are then available from getOffset() and getLength().
+	 *
+	 * Returns null if this was a non-final segment of a chained command (which responds with 9000)
+	 * or a GET RESPONSE command (which has already been answered), in which case the applet should
+	 * return without processing it.
+	 */
+	public byte[] receive(APDU apdu)
+	{
+		byte[] buffer = apdu.getBuffer();
+		short channel = getChannelState();
+
+		// Continue a chained response
+		if (buffer[ISO7816.OFFSET_INS] == INS_GET_RESPONSE) {
+			getResponse(apdu, channel);
+			return null;
+		}
+
+		// Any other command on this channel discards the rest of its chained response
+		discardResponse(channel);
+
+		short recvBytes = apdu.setIncomingAndReceive();
+
+		short length = apdu.getIncomingLength();
+		short offset = apdu.getOffsetCdata();
+
+		short chain = channelState[(short)(channel + CHANNEL_CHAIN)];
+		byte ins = buffer[ISO7816.OFFSET_INS];
+		boolean chaining = apdu.isCommandChainingCLA();
+
+		// A chained command must be continued by the same command, and can't be continued at all if
+		// another channel has since taken over the command buffer
+		if (chain == CHAIN_LOST || (chain != NO_CHAIN && channelState[(short)(channel + CHANNEL_CHAIN_INS)] != ins)) {
+			channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+			ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+		}
+
+		// The common case - the whole command is already in the APDU buffer
+		if (chain == NO_CHAIN && !chaining && recvBytes == length) {
+			state[STATE_OFFSET] = offset;
+			state[STATE_LENGTH] = length;
+			return buffer;
+		}
+
+		// Otherwise, the command is assembled in the command buffer
+		if (chain == NO_CHAIN) {
+			// Take the command buffer over from any other channel
+			takeCommandBuffer(channel);
+
+			// Write the CAPDU header into our command buffer
+			Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, ZERO_SHORT, offset);
+			channelState[(short)(channel + CHANNEL_CHAIN_DATA)] = offset;
+			chain = offset;
+		} else {
+			// The CLA, INS, P1 and P2 are taken from the latest segment
+			Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, ZERO_SHORT, ISO7816.OFFSET_LC);
+		}
+
+		// Receive the data, appending it to anything from previous segments
+		short recvOffset = chain;
+		short bytesRemaining = length;
+
+		while (true) {
+
+			// Make sure we're not writing past our commandBuffer length
+			if ((short)(recvOffset + recvBytes) > (short)commandBuffer.length) {
+				channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+				ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			}
+
+			// Copy the bytes into our command buffer
+			Util.arrayCopyNonAtomic(buffer, offset, commandBuffer, recvOffset, recvBytes);
+			recvOffset += recvBytes;
+			bytesRemaining -= recvBytes;
+
+			if (bytesRemaining == ZERO_SHORT) break;
+
+			// Retrieve the next allocation of bytes
+			recvBytes = apdu.receiveBytes(ZERO_SHORT);
+			offset = ZERO_SHORT;
+		}
+
+		if (chaining) {
+			// Wait for the next segment
+			channelState[(short)(channel + CHANNEL_CHAIN)] = recvOffset;
+			channelState[(short)(channel + CHANNEL_CHAIN_INS)] = ins;
+			return null;
+		}
+
+		// This is the last (or only) segment
+		channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+		state[STATE_OFFSET] = channelState[(short)(channel + CHANNEL_CHAIN_DATA)];
+		state[STATE_LENGTH] = (short)(recvOffset - state[STATE_OFFSET]);
+
+		// Clear whatever is left in the command buffer from previous commands
+		// NOTE: Only the space after the data is cleared, as the rest has just been written
+		Util.arrayFillNonAtomic(commandBuffer, recvOffset, (short)(commandBuffer.length - recvOffset), ZERO_BYTE);
+
+		return commandBuffer;
+	}
+
+	/*
+	 * Receives one segment of a streamed command, whose data is handed to the applet as it arrives
+	 * instead of being assembled in the command buffer. The first part of the data is then in the
+	 * APDU buffer at getOffset() for getLength() bytes, and each further part is received at offset
+	 * 0 by receiveNext(). Returns STREAM_FIRST for the first segment of the command and STREAM_LAST
+	 * for its last (both for a command that isn't chained).
+	 *
+	 * NOTE: The applet may use the command buffer as working space until the last segment, so a
+	 *       streamed command takes it over from any other channel. If another channel then takes it
+	 *       over in turn, the next segment of the stream is refused with SW 6883.
+	 */
+	public byte receiveStream(APDU apdu)
+	{
+		byte[] buffer = apdu.getBuffer();
+		short channel = getChannelState();
+
+		// Any other command on this channel discards the rest of its chained response
+		discardResponse(channel);
+
+		short recvBytes = apdu.setIncomingAndReceive();
+
+		short chain = channelState[(short)(channel + CHANNEL_CHAIN)];
+		byte ins = buffer[ISO7816.OFFSET_INS];
+
+		// A stream must be continued by the same command, and can't be continued at all if another
+		// channel has since taken over the command buffer
+		if (chain == CHAIN_LOST || (chain != NO_CHAIN && (chain != CHAIN_STREAM || channelState[(short)(channel + CHANNEL_CHAIN_INS)] != ins))) {
+			channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+			ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+		}
+
+		byte flags = ZERO_BYTE;
+
+		if (chain == NO_CHAIN) {
+			takeCommandBuffer(channel);
+			flags |= STREAM_FIRST;
+		}
+
+		if (apdu.isCommandChainingCLA()) {
+			channelState[(short)(channel + CHANNEL_CHAIN)] = CHAIN_STREAM;
+			channelState[(short)(channel + CHANNEL_CHAIN_INS)] = ins;
+		} else {
+			channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+			flags |= STREAM_LAST;
+		}
+
+		state[STATE_OFFSET] = apdu.getOffsetCdata();
+		state[STATE_LENGTH] = recvBytes;
+
+		return flags;
+	}
+
+	/*
+	 * Receives the next part of the data of a streamed command segment at offset 0 of the APDU
+	 * buffer, and returns its length (zero once all of the segment has been received)
+	 */
+	public short receiveNext(APDU apdu)
+	{
+		short length = apdu.receiveBytes(ZERO_SHORT);
+
+		state[STATE_OFFSET] = ZERO_SHORT;
+		state[STATE_LENGTH] = length;
+
+		return length;
+	}
+
+	/*
+	 * Ends a streamed command that the applet has refused part way through, so that the next
+	 * segment on this channel starts a new command rather than continuing it
+	 */
+	public void endStream()
+	{
+		short channel = getChannelState();
+		if (channelState[(short)(channel + CHANNEL_CHAIN)] == CHAIN_STREAM) {
+			channelState[(short)(channel + CHANNEL_CHAIN)] = NO_CHAIN;
+		}
+	}
+
+	/*
+	 * Returns the offset of the command data in the buffer returned by receive()
+	 */
+	public short getOffset()
+	{
+		return state[STATE_OFFSET];
+	}
+
+	/*
+	 * Returns the length of the command data in the buffer returned by receive()
+	 */
+	public short getLength()
+	{
+		return state[STATE_LENGTH];
+	}
+
+	/*
+	 * Returns the response buffer, so that a long response can be built in it directly instead of
+	 * being copied into it by send(). This takes the buffer over from any other channel.
+	 */
+	public byte[] getResponseBuffer()
+	{
+		for (short i = ZERO_SHORT; i < (short)channelState.length; i += LENGTH_CHANNEL_STATE) {
+			channelState[(short)(i + CHANNEL_RESPONSE_LENGTH)] = ZERO_SHORT;
+		}
+		return responseBuffer;
+	}
+
+	/*
+	 * Sends 'length' bytes of response data from 'buffer' at 'offset'. If the response is longer
+	 * than the command allows, the first part is sent and the rest is kept for GET RESPONSE.
+	 *
+	 * NOTE: At most Le bytes (256 if absent) are sent in response to the command itself, even if
+	 *       the platform would accept more. The host collects the rest with GET RESPONSE.
+	 *
+	 * NOTE: This must be the last thing the applet does for the command, as a chained response
+	 *       completes by throwing the 61xx status word.
+	 */
+	public void send(APDU apdu, byte[] buffer, short offset, short length)
+	{
+		if (length <= ZERO_SHORT) return;
+
+		short le = apdu.setOutgoing();
+		if (le == ZERO_SHORT) le = LENGTH_SHORT_RESPONSE;
+
+		// The common case - the whole response fits
+		if (length <= le) {
+			apdu.setOutgoingLength(length);
+			apdu.sendBytesLong(buffer, offset, length);
+			return;
+		}
+
+		// Keep the remainder in the response buffer (if it isn't already there)
+		// NOTE: This is done before sending, as sending may overwrite the APDU buffer
+		short next = (short)(offset + le);
+		short remaining = (short)(length - le);
+
+		if (buffer != responseBuffer) {
+			if (remaining > (short)responseBuffer.length) ISOException.throwIt(ISO7816.SW_UNKNOWN);
+			Util.arrayCopyNonAtomic(buffer, next, responseBuffer, ZERO_SHORT, remaining);
+			next = ZERO_SHORT;
+		}
+
+		// Take the response buffer over from any other channel
+		short channel = getChannelState();
+		for (short i = ZERO_SHORT; i < (short)channelState.length; i += LENGTH_CHANNEL_STATE) {
+			channelState[(short)(i + CHANNEL_RESPONSE_LENGTH)] = ZERO_SHORT;
+		}
+
+		channelState[(short)(channel + CHANNEL_RESPONSE)] = next;
+		channelState[(short)(channel + CHANNEL_RESPONSE_LENGTH)] = remaining;
+
+		apdu.setOutgoingLength(le);
+		apdu.sendBytesLong(buffer, offset, le);
+
+		throwBytesRemaining(remaining);
+	}
+
+	/*
+	 * Sends the next part of a chained response
+	 */
+	private void getResponse(APDU apdu, short channel)
+	{
+		byte[] buffer = apdu.getBuffer();
+
+		short remaining = channelState[(short)(channel + CHANNEL_RESPONSE_LENGTH)];
+
+		// There must be a response waiting on this channel
+		if (remaining == ZERO_SHORT) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		if (Util.getShort(buffer, ISO7816.OFFSET_P1) != ZERO_SHORT) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+
+		short le = apdu.setOutgoing();
+		if (le == ZERO_SHORT) le = LENGTH_SHORT_RESPONSE;
+		if (le > remaining) le = remaining;
+
+		short offset = channelState[(short)(channel + CHANNEL_RESPONSE)];
+		remaining -= le;
+
+		channelState[(short)(channel + CHANNEL_RESPONSE)] = (short)(offset + le);
+		channelState[(short)(channel + CHANNEL_RESPONSE_LENGTH)] = remaining;
+
+		apdu.setOutgoingLength(le);
+		apdu.sendBytesLong(responseBuffer, offset, le);
+
+		if (remaining != ZERO_SHORT) throwBytesRemaining(remaining);
+
+		// Clear the response data now that it has all been sent
+		Util.arrayFillNonAtomic(responseBuffer, ZERO_SHORT, (short)(offset + le), ZERO_BYTE);
+	}
+
+	/*
+	 * Discards any chained response waiting on the given channel
+	 */
+	private void discardResponse(short channel)
+	{
+		if (channelState[(short)(channel + CHANNEL_RESPONSE_LENGTH)] != ZERO_SHORT) {
+			channelState[(short)(channel + CHANNEL_RESPONSE_LENGTH)] = ZERO_SHORT;
+			Util.arrayFillNonAtomic(responseBuffer, ZERO_SHORT, (short)responseBuffer.length, ZERO_BYTE);
+		}
+	}
+
+	/*
+	 * Takes the command buffer over for the given channel, so that a chain in progress on any other
+	 * channel is lost
+	 */
+	private void takeCommandBuffer(short channel)
+	{
+		for (short i = ZERO_SHORT; i < (short)channelState.length; i += LENGTH_CHANNEL_STATE) {
+			if (i != channel && channelState[(short)(i + CHANNEL_CHAIN)] != NO_CHAIN) {
+				channelState[(short)(i + CHANNEL_CHAIN)] = CHAIN_LOST;
+			}
+		}
+	}
+
+	/*
+	 * Returns the offset of the state for the logical channel of the command in channelState
+	 */
+	private short getChannelState()
+	{
+		short channel = APDU.getCLAChannel();
+		if (channel >= channels) ISOException.throwIt(ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+		return (short)(channel * LENGTH_CHANNEL_STATE);
+	}
+
+	/*
+	 * Throws SW 61xx, where xx is the number of bytes remaining (00 for 256 or more)
+	 */
+	private static void throwBytesRemaining(short remaining)
+	{
+		if (remaining > (short)0xFF) remaining = ZERO_SHORT;
+		ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | remaining));
+	}
+}
@@ -0,0 +1,63 @@
+package com.makina.security.OpenPLAIDCore;
+
+/**
+ * PLAID constants shared by the ICC (OpenPLAID) and SAM (OpenPLAIDSAM) applets.
+ */
+public class PLAIDProtocol {
+
+	//
+	// PLAID protocol constants (ISO)
+	//
+	public static final short LENGTH_KEYSET_ID	= (short)2;
+	public static final short LENGTH_OPMODE_ID	= (short)2;
+
+	//
+	// PLAID administrative constants (non-ISO)
+	//
+
+	// Operations (Also serves as the Parameter tags)
+	public static final byte OP_ACTIVATE			= (byte)1;
+	public static final byte OP_BLOCK				= (byte)2;
+	public static final byte OP_UNBLOCK				= (byte)3;
+	public static final byte OP_TERMINATE			= (byte)4;
+	public static final byte OP_KEY_CREATE			= (byte)5;
+	public static final byte OP_KEY_DELETE			= (byte)6;
+	public static final byte OP_KEY_DELETE_ALL		= (byte)7;
+	public static final byte OP_ACSR_CREATE			= (byte)8;
+	public static final byte OP_ACSR_DELETE			= (byte)9;
+	public static final byte OP_ACSR_DELETE_ALL		= (byte)10;
+	public static final byte OP_PAYLOAD_CREATE		= (byte)11;
+	public static final byte OP_PAYLOAD_DELETE		= (byte)12;
+	public static final byte OP_PAYLOAD_DELETE_ALL 	= (byte)13;
+	public static final byte OP_FACTORY_RESET		= (byte)127;
+
+	// Lengths
+	public static final short LENGTH_OP_HASH		= (short)16;
+	public static final short LENGTH_GETKEY_HASH	= (short)16;
+	public static final short LENGTH_ENVELOPE_MAC	= (short)16;
+
+	// SET DATA envelope modes (sent in P1 of the ICC SET DATA command)
+	// ENVELOPE_HASH: AES-CBC(KeysHash) over (Payload || truncated SHA-256(Payload))
+	// ENVELOPE_CMAC: AES-CBC(KeysHash) over Payload, followed by AES-CMAC(MACKey) over the ciphertext
+	public static final byte ENVELOPE_HASH			= (byte)0;
+	public static final byte ENVELOPE_CMAC			= (byte)1;
+
+	// The MAC key for ENVELOPE_CMAC is derived from the session key as
+	// MACKey = AES(KeysHash, 0x00 .. 0x00 || DERIVE_MAC_KEY), so it is never the encryption key
+	public static final byte DERIVE_MAC_KEY			= (byte)0x4D;
+
+	// Tags - General
+	public static final byte TAG_SAMID = (byte)30;
+
+	// Tags - Keyset
+	public static final byte TAG_KEYSET_IAMODULUS = (byte)11;
+	public static final byte TAG_KEYSET_IAEXPONENT = (byte)12;
+	public static final byte TAG_KEYSET_FAKEY = (byte)13;
+
+	// Tags - Parameters
+	// NOTE: Duplicates are ok here because they are unique to each command
+	public static final byte TAG_PARAM_ID = (byte)1;
+	public static final byte TAG_PARAM_KEY = (byte)2;
+	public static final byte TAG_PARAM_DATA = (byte)2;
+	public static final byte TAG_PARAM_RULES = (byte)3;
+}
@@ -1,8 +1,11 @@
-package com.makina.security.OpenPLAIDSAM;
+package com.makina.security.OpenPLAIDCore;
 
 import javacard.framework.*;
 
 public class Padding {
+
+	// The padding block length (AES)
+	public static final short LENGTH_BLOCK = (short)16;
 	
 	public static short iso9797M2Add(byte[] buffer, short offset, short length) {
 		
@@ -16,7 +19,7 @@ public class Padding {
 		length++;
 		
 		// Keep adding zeroes until you get to a block length (an empty block will return 1 block)
-		while (length < UtilEx.LENGTH_BLOCK_AES || (length % UtilEx.LENGTH_BLOCK_AES != 0)) {
+		while (length < LENGTH_BLOCK || (length % LENGTH_BLOCK != 0)) {
 			buffer[pos++] = (byte)0;
 			length++;
 		}
@@ -0,0 +1,37 @@
+package com.makina.security.OpenPLAIDCore;
+
+import javacard.framework.CardRuntimeException;
+
+public class TlvException extends CardRuntimeException
+{
+  //
+  // NOTE: Like ISOException, this is thrown through one shared instance (see throwIt()), so that
+  //       throwing it never allocates. A library package can't own objects, so the instance is
+  //       created on the first throw and belongs to that applet's context. On a device hosting
+  //       both the card and the SAM, the other applet would get a SecurityException from the
+  //       firewall instead. The bounded TlvReader methods report malformed data by return value,
+  //       so this only affects the unchecked getters.
+  //
+  private static TlvException instance;
+
+  private TlvException(short reason)
+  {
+      super(reason);
+  }
+
+  /**
+   * Throws the shared TlvException instance with the given reason
+   */
+  public static void throwIt(short reason) throws TlvException
+  {
+      if (instance == null) instance = new TlvException(reason);
+      instance.setReason(reason);
+      throw instance;
+  }
+
+  public static final short TAG_NOT_FOUND = (short)0x5000;
+  public static final short TAG_NUMBER_EXCEEDS_MAX = (short)0x5001;
+  public static final short TAG_LENGTH_EXCEEDS_MAX = (short)0x5002;
+  public static final short INVALID_LENGTH = (short)0x5003;
+  public static final short INVALID_DATA = (short)0x5074;
+}
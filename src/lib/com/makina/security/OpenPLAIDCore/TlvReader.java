@@ -1,4 +1,4 @@
-package com.makina.security.OpenPLAIDSAM;
+package com.makina.security.OpenPLAIDCore;
 
 import javacard.framework.*;
 
@@ -35,68 +35,108 @@ public class TlvReader {
 	public static final byte ASN1_T61_STRING 	= (byte)0x14;
 	public static final byte ASN1_IA5_STRING 	= (byte)0x16;
 	public static final byte ASN1_UTC_TIME 		= (byte)0x17;
-
-	public static final byte TAG_NOT_FOUND		= (byte)-1;
 	
-	public static short find(byte[] data, short offset, short tag)
+	public static final byte TAG_NOT_FOUND		= (byte)-1;
+	public static final byte TAG_INVALID		= (byte)-2;
+
+	/*
+	 * Searches for the first occurrence of 'tag' between 'offset' and 'end', descending into
+	 * constructed objects. Every header is validated against 'end' before it is used, so this
+	 * method never reads past the end of the data and never throws. Returns the offset of the
+	 * matching object, TAG_NOT_FOUND if the end was reached, or TAG_INVALID if the data is
+	 * malformed. Callers can test for either error with (result < 0).
+	 */
+	public static short find(byte[] data, short offset, short end, byte tag)
 	{
-	  while (offset < data.length)
-	  {
-		// Is this our tag number?
-		if (tag == getTagNumber(data, offset))
-		{
-		  // We've found it!
-		  return offset;
-		}
+		// Never trust the caller's end beyond the physical buffer
+		if (end > (short)data.length) end = (short)data.length;
 
-		// Is this a constructed object?
-		if (getIsConstructed(data, offset))
-		{
-		  // Skip to the first child element
-		  offset = getDataOffset(data, offset);
-		}
-		else
+		while (offset < end)
 		{
-		  // Skip to the next
-		  short length = getLength(data, offset);
-		  offset = getDataOffset(data, offset);
-		  offset += length;
+			// Validate the T and L elements
+			short dataOffset = checkHeader(data, offset, end);
+			if (dataOffset < 0) return TAG_INVALID;
+
+			// The header is now known to be in bounds, so the plain accessors are safe
+			// Is this our tag number?
+			if (tag == getTagNumber(data, offset)) return offset;
+
+			// Skip to the first child element (constructed) or the next element (primitive)
+			if (getIsConstructed(data, offset)) {
+				offset = dataOffset;
+			} else {
+				offset = (short)(dataOffset + getLength(data, offset));
+			}
 		}
-	  }
 
-	  // We didn't find the requested tag;
-	  return TAG_NOT_FOUND;
+		// We didn't find the requested tag;
+		return TAG_NOT_FOUND;
 	}
 
-	public static short findNext(byte[] data, short offset, short tag)
+	/*
+	 * Same as find(), but starts at the object following the one at 'offset' (or its first 
+	 * child, if it is constructed).
+	 */
+	public static short findNext(byte[] data, short offset, short end, byte tag)
 	{
-	  // First move to the next object
+		if (end > (short)data.length) end = (short)data.length;
+		if (offset >= end) return TAG_NOT_FOUND;
+		
+		short dataOffset = checkHeader(data, offset, end);
+		if (dataOffset < 0) return TAG_INVALID;
 
-	  // Is this a constructed object?
-	  if (getIsConstructed(data, offset))
-	  {
-		// Skip to the first child element
-		offset = getDataOffset(data, offset);
-	  }
-	  else
-	  {
-		// Skip to the next
-		short length = getLength(data, offset);
-		offset = getDataOffset(data, offset);
-		offset += length;
-	  }
+		if (getIsConstructed(data, offset)) {
+			offset = dataOffset;
+		} else {
+			offset = (short)(dataOffset + getLength(data, offset));
+		}
 
-	  // Now find as normal
-	  return find(data, offset, tag);
+		return find(data, offset, end, tag);
 	}
 
-	public static boolean exists(byte[] data, short offset, short tag) {
-		return (TAG_NOT_FOUND != find(data, offset, tag));
-	}
-	public static boolean existsNext(byte[] data, short offset, short tag) {
-		return (TAG_NOT_FOUND != findNext(data, offset, tag));		
+	/*
+	 * Validates the T and L elements of the object at 'offset', and that its value does not 
+	 * extend past 'end'. Returns the offset of the V element, or TAG_INVALID.
+	 */
+	public static short checkHeader(byte[] data, short offset, short end)
+	{
+		if (offset < 0 || offset >= end) return TAG_INVALID;
+
+		// T(ag) - High-tag-number form only supports tags up to 127
+		if ((data[offset++] & MASK_LOW_TAG_NUMBER) == MASK_LOW_TAG_NUMBER) {
+			if (offset >= end) return TAG_INVALID;
+			if ((data[offset++] & MASK_HIGH_TAG_MOREDATA) == MASK_HIGH_TAG_MOREDATA) return TAG_INVALID;
+		}
+
+		// L(ength) - Short form, or long form of 1 or 2 bytes
+		if (offset >= end) return TAG_INVALID;
+		short length = (short)(data[offset++] & (short)0xFF);
+		if ((byte)(length & MASK_LONG_LENGTH) == MASK_LONG_LENGTH) {
+			length &= MASK_LENGTH;
+			if ((short)(end - offset) < length) return TAG_INVALID;
+			if ((short)1 == length) {
+				length = (short)(data[offset++] & (short)0xFF);
+			} else if ((short)2 == length) {
+				length = Util.getShort(data, offset);
+				offset += 2;
+			} else {
+				return TAG_INVALID;
+			}
+		}
+		
+		// V(alue) - Negative lengths (> 32767) are rejected here too
+		if (length < 0 || length > (short)(end - offset)) return TAG_INVALID;
+		
+		return offset;
 	}
 	
+	public static boolean exists(byte[] data, short offset, short end, byte tag) {
+		return (find(data, offset, end, tag) >= 0);
+	}
+	public static boolean existsNext(byte[] data, short offset, short end, byte tag) {
+		return (findNext(data, offset, end, tag) >= 0);
+	}
+
 
 	/*
 	 * Returns whether the TLV data element at the current position is
@@ -219,7 +259,7 @@ public class TlvReader {
 		if ((short)1 == length) {
 			return data[offset];
 		} else if ((short)2 == length) {
-			return (short)((short)((data[offset++] << (short)8)) + (short)data[offset]);			
+			return Util.getShort(data, offset);
 		} else {
 			TlvException.throwIt(TlvException.TAG_LENGTH_EXCEEDS_MAX);
 			return (short)0; // Dummy
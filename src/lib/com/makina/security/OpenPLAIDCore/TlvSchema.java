@@ -0,0 +1,174 @@
+package com.makina.security.OpenPLAIDCore;
+
+import javacard.framework.*;
+
+/*
+ * Validates a command payload against a compact schema in a single walk of the data.
+ *
+ * A schema is a byte array of fixed-size entries, each of which describes one expected
+ * TLV object:
+ *
+ *   TAG (1)      The tag number to match (the constructed flag is ignored)
+ *   FLAGS (1)    The tag class (CLASS_*, in the same bits as the identifier octet), along with
+ *                FLAG_REQUIRED, FLAG_EVEN_LENGTH
+ *   MIN (2)      The minimum value length
+ *   MAX (2)      The maximum value length (equal to MIN for an exact length)
+ *
+ * The walk descends into constructed objects, and each child must lie within the value of its
+ * parent. Entries are listed in the order their objects appear in the walk. Each object is
+ * matched to the next entry with the same tag class and number, and an object that matches an
+ * earlier entry (out of order, or repeated) makes the data invalid. Objects that don't match any
+ * entry are ignored. For each entry, the results array receives the value offset and length
+ * (2 shorts per entry, in schema order), or (-1, 0) if an optional entry was not present.
+ */
+public class TlvSchema {
+
+	// Entry layout
+	public static final short OFFSET_TAG	= (short)0;
+	public static final short OFFSET_FLAGS	= (short)1;
+	public static final short OFFSET_MIN	= (short)2;
+	public static final short OFFSET_MAX	= (short)4;
+	public static final short LENGTH_ENTRY	= (short)6;
+
+	// The number of results array elements per entry
+	public static final short LENGTH_RESULT	= (short)2;
+
+	// Entry flags
+	public static final byte FLAG_REQUIRED		= (byte)0x01; // The object must be present
+	public static final byte FLAG_EVEN_LENGTH	= (byte)0x02; // The value length must be a multiple of 2
+
+	// Entry tag classes (held in the FLAGS byte)
+	public static final byte CLASS_UNIVERSAL	= (byte)0x00;
+	public static final byte CLASS_APPLICATION	= (byte)0x40;
+	public static final byte CLASS_CONTEXT		= (byte)0x80;
+	public static final byte CLASS_PRIVATE		= (byte)0xC0;
+	public static final byte MASK_CLASS			= (byte)0xC0;
+
+	// The deepest level of nested objects that is walked (the objects after the start are level 1)
+	public static final short MAX_DEPTH			= (short)4;
+
+	// Indicates an optional entry that was not present
+	public static final short NOT_PRESENT = (short)-1;
+
+	// Returned by walk() for invalid data
+	private static final short INVALID = (short)-1;
+
+	/*
+	 * Validates the objects that follow the one at 'offset' (normally the operation), up to 'end'.
+	 * Returns true if the data is well-formed, all lengths are within range and all required
+	 * entries are present; otherwise false. Never throws for malformed data.
+	 */
+	public static boolean validate(byte[] data, short offset, short end, byte[] schema, short[] results)
+	{
+		short count = (short)(schema.length / LENGTH_ENTRY);
+
+		// Reset the results
+		for (short i = 0; i < count; i++) {
+			results[(short)(i * LENGTH_RESULT)] = NOT_PRESENT;
+			results[(short)(i * LENGTH_RESULT + 1)] = (short)0;
+		}
+
+		if (end > (short)data.length) end = (short)data.length;
+
+		// Skip the object at the start offset (walking its children, if it is constructed)
+		short dataOffset = TlvReader.checkHeader(data, offset, end);
+		if (dataOffset < 0) return false;
+		short valueEnd = (short)(dataOffset + TlvReader.getLength(data, offset));
+
+		short next = (short)0;
+		if (TlvReader.getIsConstructed(data, offset)) {
+			next = walk(data, dataOffset, valueEnd, schema, results, next, (short)1);
+			if (next == INVALID) return false;
+		}
+
+		// Walk the remaining objects
+		if (walk(data, valueEnd, end, schema, results, next, (short)1) == INVALID) return false;
+
+		// Make sure all required entries were present
+		for (short i = 0; i < count; i++) {
+			if (((schema[(short)(i * LENGTH_ENTRY + OFFSET_FLAGS)] & FLAG_REQUIRED) != 0) &&
+				(results[(short)(i * LENGTH_RESULT)] == NOT_PRESENT)) return false;
+		}
+
+		return true;
+	}
+
+	/*
+	 * Matches the objects from 'offset' to 'end' (and their children) against the schema entries
+	 * from 'next' onwards. Returns the index of the entry after the last one matched, or -1 if the
+	 * data is malformed, an object is out of order or a length is out of range.
+	 */
+	private static short walk(byte[] data, short offset, short end, byte[] schema, short[] results, short next, short depth)
+	{
+		short count = (short)(schema.length / LENGTH_ENTRY);
+
+		while (offset < end)
+		{
+			// The header must be valid and the value must lie within the parent
+			short dataOffset = TlvReader.checkHeader(data, offset, end);
+			if (dataOffset < 0) return INVALID;
+
+			byte number = TlvReader.getTagNumber(data, offset);
+			byte tagClass = (byte)(data[offset] & MASK_CLASS);
+			short length = TlvReader.getLength(data, offset);
+
+			// Match this object to the next entry with this tag
+			boolean passed = false;
+			boolean matched = false;
+			for (short i = 0; i < count; i++) {
+				short entry = (short)(i * LENGTH_ENTRY);
+				if (schema[(short)(entry + OFFSET_TAG)] != number) continue;
+				if ((byte)(schema[(short)(entry + OFFSET_FLAGS)] & MASK_CLASS) != tagClass) continue;
+
+				// Entries before the next one have already been matched or passed
+				if (i < next) {
+					passed = true;
+					continue;
+				}
+
+				// Validate the length
+				if (length < Util.getShort(schema, (short)(entry + OFFSET_MIN))) return INVALID;
+				if (length > Util.getShort(schema, (short)(entry + OFFSET_MAX))) return INVALID;
+				if (((schema[(short)(entry + OFFSET_FLAGS)] & FLAG_EVEN_LENGTH) != 0) && ((length & 1) != 0)) return INVALID;
+
+				short result = (short)(i * LENGTH_RESULT);
+				results[result] = dataOffset;
+				results[(short)(result + 1)] = length;
+				next = (short)(i + 1);
+				matched = true;
+				break;
+			}
+
+			// An object for an earlier entry is out of order (or repeated)
+			if (passed && !matched) return INVALID;
+
+			// Walk the children of a constructed object, within its value
+			if (TlvReader.getIsConstructed(data, offset)) {
+				if (depth >= MAX_DEPTH) return INVALID;
+				next = walk(data, dataOffset, (short)(dataOffset + length), schema, results, next, (short)(depth + 1));
+				if (next == INVALID) return INVALID;
+			}
+
+			// Move to the next object
+			offset = (short)(dataOffset + length);
+		}
+
+		return next;
+	}
+
+	/*
+	 * Returns the value offset recorded for entry 'index' by validate().
+	 */
+	public static short getOffset(short[] results, short index)
+	{
+		return results[(short)(index * LENGTH_RESULT)];
+	}
+
+	/*
+	 * Returns the value length recorded for entry 'index' by validate().
+	 */
+	public static short getLength(short[] results, short index)
+	{
+		return results[(short)(index * LENGTH_RESULT + 1)];
+	}
+}
@@ -0,0 +1,146 @@
+package com.makina.security.OpenPLAIDCore;
+
+import javacard.framework.*;
+
+/*
+ * Writes BER-TLV objects directly into a caller-supplied buffer (typically the APDU buffer).
+ * All methods take the offset to write at and return the offset immediately following what
+ * was written, so calls can be chained without any temporary buffers.
+ *
+ * Constructed objects are written by calling begin(), writing the children, and then calling
+ * end() to back-patch the length. begin() reserves a single length byte, so end() only needs
+ * to move the contents when the final length requires the long form (128 bytes or more).
+ *
+ * This is for structured (BER-TLV) responses, such as the SAM telemetry status and batch SET
+ * DATA results. The fixed-layout responses (GET STATUS, key headers) are not TLV encoded and
+ * are still written directly, as hosts parse them by offset.
+ */
+public class TlvWriter {
+
+	/*
+	 * CONSTANTS
+	 */
+
+	private static final byte LENGTH_LONG_1		= (byte)0x81;
+	private static final byte LENGTH_LONG_2		= (byte)0x82;
+	private static final short MAX_SHORT_LENGTH	= (short)127;
+	private static final short MAX_LONG_1_LENGTH	= (short)255;
+
+	/*
+	 * Builds a single-byte identifier from its class, constructed flag and tag number (0 to 30).
+	 */
+	public static byte makeTag(byte tagClass, boolean constructed, byte number)
+	{
+		byte tag = (byte)((tagClass << 6) | (number & TlvReader.MASK_LOW_TAG_NUMBER));
+		if (constructed) tag |= TlvReader.MASK_CONSTRUCTED;
+		return tag;
+	}
+
+	/*
+	 * Writes an identifier. Tag numbers of 31 and above are written in the high-tag-number form
+	 * (up to 127, which is the limit supported by TlvReader).
+	 */
+	public static short writeTag(byte[] buffer, short offset, byte tagClass, boolean constructed, byte number)
+	{
+		if (number < TlvReader.MASK_LOW_TAG_NUMBER) {
+			buffer[offset++] = makeTag(tagClass, constructed, number);
+		} else {
+			buffer[offset++] = makeTag(tagClass, constructed, TlvReader.MASK_LOW_TAG_NUMBER);
+			buffer[offset++] = (byte)(number & TlvReader.MASK_HIGH_TAG_NUMBER);
+		}
+		return offset;
+	}
+
+	/*
+	 * Returns the number of bytes required to encode 'length' in its minimal form.
+	 */
+	public static short getLengthSize(short length)
+	{
+		if (length <= MAX_SHORT_LENGTH) return (short)1;
+		if (length <= MAX_LONG_1_LENGTH) return (short)2;
+		return (short)3;
+	}
+
+	/*
+	 * Writes 'length' using the minimal (DER) form.
+	 */
+	public static short writeLength(byte[] buffer, short offset, short length)
+	{
+		if (length <= MAX_SHORT_LENGTH) {
+			buffer[offset++] = (byte)length;
+		} else if (length <= MAX_LONG_1_LENGTH) {
+			buffer[offset++] = LENGTH_LONG_1;
+			buffer[offset++] = (byte)length;
+		} else {
+			buffer[offset++] = LENGTH_LONG_2;
+			offset = Util.setShort(buffer, offset, length);
+		}
+		return offset;
+	}
+
+	/*
+	 * Writes a primitive object whose value is copied from 'value'.
+	 * NOTE: 'value' may be the same array as 'buffer' provided the ranges do not overlap.
+	 */
+	public static short write(byte[] buffer, short offset, byte tag, byte[] value, short valueOffset, short valueLength)
+	{
+		buffer[offset++] = tag;
+		offset = writeLength(buffer, offset, valueLength);
+		return Util.arrayCopyNonAtomic(value, valueOffset, buffer, offset, valueLength);
+	}
+
+	/*
+	 * Writes a primitive object with a single byte value.
+	 */
+	public static short writeByte(byte[] buffer, short offset, byte tag, byte value)
+	{
+		buffer[offset++] = tag;
+		buffer[offset++] = (byte)1;
+		buffer[offset++] = value;
+		return offset;
+	}
+
+	/*
+	 * Writes a primitive object with a 2-byte (big-endian) value.
+	 */
+	public static short writeShort(byte[] buffer, short offset, byte tag, short value)
+	{
+		buffer[offset++] = tag;
+		buffer[offset++] = (byte)2;
+		return Util.setShort(buffer, offset, value);
+	}
+
+	/*
+	 * Starts a constructed object by writing its identifier and reserving a single length byte.
+	 * Returns the offset of the first child, which must be passed to end().
+	 */
+	public static short begin(byte[] buffer, short offset, byte tag)
+	{
+		buffer[offset++] = tag;
+		buffer[offset++] = (byte)0; // Back-patched by end()
+		return offset;
+	}
+
+	/*
+	 * Completes a constructed object started with begin(), where 'valueOffset' is the value
+	 * returned by begin() and 'endOffset' is the offset following the last child. If the
+	 * contents are too long for the short length form, they are moved up in place to make room.
+	 * Returns the new end offset. Throws SW_FILE_FULL if the moved contents would not fit in
+	 * the buffer, without modifying it.
+	 */
+	public static short end(byte[] buffer, short valueOffset, short endOffset)
+	{
+		short length = (short)(endOffset - valueOffset);
+		short extra = (short)(getLengthSize(length) - 1);
+
+		if ((length < 0) || ((short)(endOffset + extra) > (short)buffer.length)) ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		if (extra != 0) {
+			// NOTE: arrayCopyNonAtomic handles overlapping ranges within the same array
+			Util.arrayCopyNonAtomic(buffer, valueOffset, buffer, (short)(valueOffset + extra), length);
+		}
+
+		writeLength(buffer, (short)(valueOffset - 1), length);
+		return (short)(endOffset + extra);
+	}
+}
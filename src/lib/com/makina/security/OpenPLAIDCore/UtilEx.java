@@ -1,4 +1,4 @@
-package com.makina.security.OpenPLAIDSAM;
+package com.makina.security.OpenPLAIDCore;
 
 import javacard.framework.Util;
 
@@ -8,24 +8,119 @@ public class Config {
 	 * Applet Configuration Parameters
 	 */
 
-	// The length of the extended APDU buffer (used for SET DATA only)
+	// The length of the extended APDU buffer (used for SET DATA and LOAD KEY, and as the working
+	// space for IMPORT KEYS)
 	// NOTE:
-	// This length allows for the largest size we expect from the SetData command.
+	// This length allows for the largest size we expect, which is a LOAD KEY command containing
+	// all elements of a PLAID key.
 	// Estimations:
 	//  10 - EXTENDED APDU (CLA|INS|P1|P2|LC0-2|LE0-2)
-	// 339 - COMMAND (HEADER|COUNTER|OPERATION|ID|IA MODULUS|IA EXPONENT|FA KEY|8 ACCESS RULES|HASH)
-	//  32 - EXTRA HASH (For calculation, need 32 even though we only use 16)	
+	//  30 - KEY HEADER
+	//   4 - ELEMENT CONTAINER (SEQUENCE)
+	// 655 - IAKEY P, Q, PQ, DP, DQ (5 x (TAG|LEN0-1|128))
+	// 260 - IAKEY MODULUS (TAG|LEN0-2|256)
+	//   5 - IAKEY EXPONENT (TAG|LEN|3)
+	//  18 - FAKEY (TAG|LEN|16)
 	// --------------------------------
-	// 381 - TOTAL EXTENDED APDU BUFFER
-	// 384 - ROUND UP (NEXT MULTIPLE OF 32)
-	public static final short LENGTH_COMMAND_BUFFER	= (short)384;
+	// 982 - TOTAL EXTENDED APDU BUFFER
+	// 992 - ROUND UP (NEXT MULTIPLE OF 32)
+	//
+	// IMPORT KEYS is streamed (see CryptoImport), so this only has to hold one decrypted entry at
+	// a time, which for a PLAID key is 3 + 972 bytes padded to 976. One IMPORT KEYS stream can
+	// therefore carry any number of keys of any type.
+	public static final short LENGTH_COMMAND_BUFFER	= (short)992;
+
+	// The length of the response buffer (always in RAM), which holds the remainder of a response
+	// that is longer than the Le of the command until it is collected with GET RESPONSE.
+	// NOTE:
+	// The longest response is a SET DATA batch, whose cryptograms can fill the command buffer, so
+	// this holds all of it but the first 256 bytes. Responses are cut to Le (256 if absent) and
+	// chained, even on platforms that would accept a longer response, and a batch whose output
+	// would not fit is refused before any cryptogram is made (see CryptoPLAID.setDataBatch).
+	// A READ KEY DIRECTORY page is built in this buffer, so it holds (736 - 2) / 33 = 22 keys.
+	public static final short LENGTH_RESPONSE_BUFFER	= (short)(LENGTH_COMMAND_BUFFER - 256);
 		 
-	// The maximum number of keys in the PLAID key container
+	// The number of PLAID key slots in the key container
+	// NOTE: The number of slots of each type can be set by the install parameters (see OpenPLAIDSAM),
+	//		 in which case these are only the defaults. Slots only consume EEPROM for their header and
+	//		 key objects once they are first loaded.
 	public static final short MAX_KEYS_PLAID = (short)8;
 
+	// The number of AES-128 key slots in the key container
+	// NOTE: Symmetric keys have their own slot pools, so they don't consume PLAID (RSA-sized) slots.
+	public static final short MAX_KEYS_AES = (short)4;
+
+	// The number of 2-key TDEA key slots in the key container
+	public static final short MAX_KEYS_TDEA = (short)4;
+
+	// The largest total number of key slots (all types) that the install parameters may ask for.
+	// NOTE: Installation fails with SW_WRONG_DATA above this. It must not exceed 2048, the number of
+	//		 slots P1-P2 can address. Each slot costs a KeyRecord object plus 4 to 8 bytes of EEPROM in the
+	//		 key identifier index (KeyIndex) even while unused.
+	public static final short MAX_KEYS_TOTAL = (short)256;
+
+	// The number of independent PLAID session contexts (addressed by the high nibble of P1)
+	// NOTE: Each session consumes 37 bytes of RAM plus a transient AES key, for each of the
+	//		 MAX_CHANNELS channels (see the RAM budget below). The maximum is 16.
+	public static final short COUNT_SESSIONS = (short)2;
+
+	// The number of logical channels this applet may be selected on (basic channel included)
+	// NOTE: Each channel has its own PIN validation status, COUNT_SESSIONS session contexts and
+	//		 10 bytes of command and response chaining state (see ApduIO).
+	//		 Selection on a channel number at or above this value is refused.
+	public static final short MAX_CHANNELS = (short)2;
+
+	// The number of diversified FA keys to cache (see FEATURE_CACHE_FAKEY_DIV)
+	// NOTE: Each entry consumes 35 bytes of RAM.
+	public static final short COUNT_FAKEY_CACHE = (short)4;
+
+	// The number of derived keys to cache (see FEATURE_CACHE_KDF)
+	// NOTE: Each entry consumes 35 bytes of RAM.
+	public static final short COUNT_KDF_CACHE = (short)4;
+
+	// The number of RSA ciphers in the pool (see FEATURE_RSA_CIPHER_POOL)
+	// NOTE: Each cipher consumes platform RAM for its 2048-bit CRT context, so keep this small.
+	public static final short COUNT_RSA_CIPHERS = (short)2;
+
+	// The number of operations between telemetry checkpoints (see FEATURE_TELEMETRY_CHECKPOINT)
+	public static final short TELEMETRY_CHECKPOINT_INTERVAL = (short)256;
+
+	// The number of PLAID key slots with their own operation counters (see Telemetry)
+	// NOTE: Each tracked slot consumes 12 bytes of RAM (and 12 bytes of EEPROM with
+	//		 FEATURE_TELEMETRY_CHECKPOINT). Operations on PLAID slots beyond the first
+	//		 COUNT_TELEMETRY_KEYS are only counted in the global totals.
+	public static final short COUNT_TELEMETRY_KEYS = (short)16;
+
+	// RAM BUDGET
+	// The transient (RAM) allocations with the defaults above, as a check before changing them.
+	// Platform overheads (object headers, the RSA cipher contexts and the transient key objects
+	// themselves) come on top of this.
+	//
+	//  992 - COMMAND BUFFER (LENGTH_COMMAND_BUFFER, only with FEATURE_EXTENDED_APDU_IN_RAM)
+	//  736 - RESPONSE BUFFER (LENGTH_RESPONSE_BUFFER)
+	//  148 - SESSION STATE (37 x COUNT_SESSIONS x MAX_CHANNELS)
+	//   64 - TRANSPORT KEYS (16 x COUNT_SESSIONS x MAX_CHANNELS)
+	//   48 - PLAID SESSION KEY AND IMPORT KEYS (3 x 16)
+	//   26 - CHANNEL STATE (ApduIO 4 + 10 x MAX_CHANNELS, PIN status 1 x MAX_CHANNELS)
+	//   60 - SCHEMA RESULTS (LOAD KEY 32, PLAID 28)
+	//  140 - FAKEY CACHE (35 x COUNT_FAKEY_CACHE)
+	//  140 - KDF CACHE (35 x COUNT_KDF_CACHE)
+	//    6 - RSA CIPHER POOL USE COUNTERS (2 x (COUNT_RSA_CIPHERS + 1))
+	//  110 - TELEMETRY (12 x (min(MAX_KEYS_PLAID, COUNT_TELEMETRY_KEYS) + 1) + 2)
+	//  147 - CMAC STATE (3 x 49 for AESCMAC128)
+	//   42 - IMPORT STREAM (CryptoImport 2 x 16 + 5 x 2)
+	// --------------------------------
+	// 2659 - TOTAL (1667 WITH THE COMMAND BUFFER IN EEPROM)
+	//
+	// The session contexts and transport keys scale with COUNT_SESSIONS x MAX_CHANNELS, so raise
+	// these only on platforms with RAM to spare (4 x 4 costs a further 636 bytes).
+
 	// The length of the AES key in bits
 	public static final short LENGTH_AES_KEY_BITS = KeyBuilder.LENGTH_AES_128;
 
+	// The length of the TDEA key in bits
+	public static final short LENGTH_TDEA_KEY_BITS = KeyBuilder.LENGTH_DES3_2KEY;
+
 	// The length of the RSA key in bits
 	public static final short LENGTH_RSA_KEY_BITS = KeyBuilder.LENGTH_RSA_2048;	
 
@@ -83,6 +178,27 @@ public class Config {
 	// If enabled, will prevent the 'system diversifier' from being returned to the host.
 	public static final boolean FEATURE_HIDE_DIV_SYSTEM = true;
 	
+	// If enabled, the most recently used FAKey(Div) values are kept in RAM, so that repeated
+	// authentications of the same ICC don't need to re-diversify the FA key.
+	// The cache is cleared on reset, RESET AUTH, deselection on the last channel and termination.
+	public static final boolean FEATURE_CACHE_FAKEY_DIV = true;
+
+	// If enabled, the most recently derived keys (see DERIVE KEY) are kept in RAM, so that repeated
+	// requests for the same site or reader key don't need to re-run the KDF.
+	// The cache is cleared on reset, RESET AUTH, deselection on the last channel and termination.
+	public static final boolean FEATURE_CACHE_KDF = true;
+
+	// If enabled, the SAM keeps a pool of COUNT_RSA_CIPHERS ciphers, each left initialised with the
+	// IA private key it was last used with. The least recently used cipher is re-assigned when a new
+	// key is needed, so a station that authenticates against the same keysets skips the RSA key setup.
+	// If disabled, a single cipher is initialised with the key for every operation.
+	public static final boolean FEATURE_RSA_CIPHER_POOL = true;
+
+	// If enabled, the operation counters reported by GET STATUS (see Telemetry) are added to a
+	// persistent copy every TELEMETRY_CHECKPOINT_INTERVAL operations, so they survive a reset.
+	// If disabled, the counters are kept in RAM only.
+	public static final boolean FEATURE_TELEMETRY_CHECKPOINT = true;
+
 	// If enabled, transient objects will clear on RESET instead of DESELECT
 	public static final boolean FEATURE_CLEAR_ON_RESET = true;
 	
@@ -0,0 +1,346 @@
+package com.makina.security.OpenPLAIDSAM;
+
+import javacard.framework.*;
+import javacard.security.*;
+import javacardx.crypto.*;
+import com.makina.security.OpenPLAIDCore.*;
+
+/**
+ * Unwraps a protected bulk key import stream (see IMPORT KEYS).
+ *
+ * The stream is protected with encrypt-then-MAC under a transport KEK, which is an AES key record
+ * with the ATTR_IMPORT_KEK attribute. Separate encryption and MAC keys are derived from the KEK:
+ *
+ *   KENC = AES(KEK, 0...0 || DERIVE_ENC_KEY)
+ *   KMAC = AES(KEK, 0...0 || DERIVE_MAC_KEY)
+ *
+ * The stream is formatted as:
+ *
+ *   KEK ID (2) || COUNT (2) || IV (16) || { CIPHERTEXT (n * 16) || MAC (16) } * COUNT
+ *
+ * where each ciphertext is the AES-CBC encryption under KENC of one entry, padded with ISO9797
+ * Method 2. The CBC chain runs on from one entry to the next (the first uses IV). Each entry has
+ * its own MAC, chained to the one before so that entries can't be dropped or reordered:
+ *
+ *   MAC (1) = CMAC(KMAC, KEK ID || COUNT || IV || CIPHERTEXT (1))
+ *   MAC (i) = CMAC(KMAC, MAC (i - 1) || CIPHERTEXT (i))
+ *
+ * The stream is passed to update() in parts of any length as it arrives. Each entry is decrypted
+ * to the start of the output buffer and is only made available once its MAC has been verified, so
+ * the output buffer needs to hold one entry rather than the whole stream.
+ */
+public class CryptoImport {
+
+	//
+	// PERSISTENT OBJECTS
+	//
+
+	// Cryptographic Service Providers
+	private AESCMAC128 cspCMAC;
+	private Cipher cspAES;
+
+	//
+	// TRANSIENT OBJECTS
+	//
+
+	// The derived encryption and MAC keys (only set while a stream is in progress)
+	private AESKey encKey;
+	private AESKey macKey;
+
+	// The last ciphertext block, which is the IV for the next part of the CBC chain
+	private byte[] chain;
+
+	// Key derivation working space, then the part of a ciphertext block or MAC received so far
+	private byte[] scratch;
+
+	// The stream state
+	private short[] state;
+
+	private static final short STATE_PHASE		= (short)0; // One of the PHASE_* values below
+	private static final short STATE_REMAINING	= (short)1; // The number of entries still to come (including the current one)
+	private static final short STATE_POSITION	= (short)2; // The length of the current entry decrypted so far
+	private static final short STATE_LENGTH		= (short)3; // The padded length of the current entry (0 until its first block), then its length
+	private static final short STATE_PENDING	= (short)4; // The number of bytes held in scratch
+	private static final short LENGTH_STATE		= (short)5;
+
+	private static final short PHASE_IDLE		= (short)0; // No stream is in progress
+	private static final short PHASE_ENTRY		= (short)1; // Receiving the ciphertext of an entry
+	private static final short PHASE_MAC		= (short)2; // Receiving the MAC of an entry
+	private static final short PHASE_READY		= (short)3; // An entry has been verified and is waiting in the output buffer
+	private static final short PHASE_DONE		= (short)4; // Every entry has been received
+
+	//
+	// CONSTANTS
+	//
+
+	// Helper constants
+	private static final byte ZERO_BYTE		= (byte)0;
+	private static final short ZERO_SHORT	= (short)0;
+
+	private static final short LENGTH_BLOCK_AES	= (short)16;
+	private static final short LENGTH_MAC		= (short)16;
+
+	// Key derivation constants
+	private static final byte DERIVE_ENC_KEY	= (byte)0x45;
+	private static final byte DERIVE_MAC_KEY	= (byte)0x4D;
+
+	// Stream header layout
+	public static final short OFFSET_KEK_ID		= (short)0;
+	public static final short OFFSET_COUNT		= (short)2;
+	public static final short OFFSET_IV			= (short)4;
+	public static final short LENGTH_HEADER		= (short)(OFFSET_IV + LENGTH_BLOCK_AES);
+
+	// Entry layout (TYPE || LENGTH || RECORD)
+	public static final short OFFSET_ENTRY_TYPE		= (short)0;
+	public static final short OFFSET_ENTRY_LENGTH	= (short)1;
+	public static final short LENGTH_ENTRY_HEADER	= (short)3;
+
+	public CryptoImport() {
+
+		// Create the cryptographic service providers
+		cspCMAC = new AESCMAC128();
+		cspAES = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			encKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_AES_KEY_BITS, false);
+			macKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_AES_KEY_BITS, false);
+			chain = JCSystem.makeTransientByteArray(LENGTH_BLOCK_AES, JCSystem.CLEAR_ON_RESET);
+			scratch = JCSystem.makeTransientByteArray(LENGTH_BLOCK_AES, JCSystem.CLEAR_ON_RESET);
+			state = JCSystem.makeTransientShortArray(LENGTH_STATE, JCSystem.CLEAR_ON_RESET);
+		} else {
+			encKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_AES_KEY_BITS, false);
+			macKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_AES_KEY_BITS, false);
+			chain = JCSystem.makeTransientByteArray(LENGTH_BLOCK_AES, JCSystem.CLEAR_ON_DESELECT);
+			scratch = JCSystem.makeTransientByteArray(LENGTH_BLOCK_AES, JCSystem.CLEAR_ON_DESELECT);
+			state = JCSystem.makeTransientShortArray(LENGTH_STATE, JCSystem.CLEAR_ON_DESELECT);
+		}
+	}
+
+	/**
+	 * Starts a new stream from its header, discarding any stream that was in progress.
+	 *
+	 * @param kek The transport KEK record (must be an AES key with the ATTR_IMPORT_KEK attribute)
+	 * @param buffer The buffer holding the header
+	 * @param offset The offset of the header (LENGTH_HEADER bytes)
+	 */
+	public void begin(KeyRecord kek, byte[] buffer, short offset) {
+
+		reset();
+
+		// Make sure the KEK has the IMPORT_KEK attribute and is an AES key
+		if (!kek.getAttrImportKEK()) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+		if (kek.getType() != KeyBuilder.TYPE_AES) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+		// There must be at least one entry
+		short count = Util.getShort(buffer, (short)(offset + OFFSET_COUNT));
+		if (count <= ZERO_SHORT) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+		// The first MAC covers the header
+		deriveKey((AESKey)kek.value, DERIVE_MAC_KEY, macKey);
+		cspCMAC.init(macKey, Signature.MODE_VERIFY);
+		cspCMAC.update(buffer, offset, LENGTH_HEADER);
+
+		deriveKey((AESKey)kek.value, DERIVE_ENC_KEY, encKey);
+		Util.arrayCopyNonAtomic(buffer, (short)(offset + OFFSET_IV), chain, ZERO_SHORT, LENGTH_BLOCK_AES);
+
+		state[STATE_REMAINING] = count;
+		state[STATE_PHASE] = PHASE_ENTRY;
+	}
+
+	/**
+	 * Processes the next part of the stream, decrypting the current entry to the start of
+	 * 'outBuffer'. This stops at the end of the entry, so if fewer than 'inLength' bytes are
+	 * used, an entry is ready (see getEntryLength) or the stream is complete.
+	 *
+	 * NOTE: An entry is only ready once its MAC has been verified. Until then, the decrypted data in
+	 * 		 'outBuffer' must not be used.
+	 *
+	 * @param inBuffer The buffer holding the next part of the stream
+	 * @param inOffset The offset of the next part of the stream
+	 * @param inLength The length of the next part of the stream
+	 * @param outBuffer The buffer to decrypt the entry to (at offset 0)
+	 *
+	 * @return The number of bytes used
+	 */
+	public short update(byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer) {
+
+		short start = inOffset;
+		short end = (short)(inOffset + inLength);
+
+		while (inOffset < end) {
+
+			short phase = state[STATE_PHASE];
+			short pending = state[STATE_PENDING];
+			short available = (short)(end - inOffset);
+
+			if (phase == PHASE_MAC) {
+
+				// Collect the MAC in scratch, then verify it
+				short fill = (short)(LENGTH_MAC - pending);
+				if (fill > available) fill = available;
+				Util.arrayCopyNonAtomic(inBuffer, inOffset, scratch, pending, fill);
+				inOffset += fill;
+				state[STATE_PENDING] = (short)(pending + fill);
+
+				if (state[STATE_PENDING] == LENGTH_MAC) verifyEntry(outBuffer);
+
+			} else if (phase == PHASE_ENTRY) {
+
+				if (pending != ZERO_SHORT || available < LENGTH_BLOCK_AES) {
+
+					// Collect a block that arrived in parts in scratch
+					short fill = (short)(LENGTH_BLOCK_AES - pending);
+					if (fill > available) fill = available;
+					Util.arrayCopyNonAtomic(inBuffer, inOffset, scratch, pending, fill);
+					inOffset += fill;
+					state[STATE_PENDING] = (short)(pending + fill);
+
+					if (state[STATE_PENDING] == LENGTH_BLOCK_AES) {
+						state[STATE_PENDING] = ZERO_SHORT;
+						decrypt(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, outBuffer);
+					}
+
+				} else {
+
+					// Decrypt whole blocks straight from the input, up to the end of the entry. The
+					// first block is decrypted on its own, as it holds the entry length.
+					short run = LENGTH_BLOCK_AES;
+					short length = state[STATE_LENGTH];
+					if (length != ZERO_SHORT) {
+						run = (short)(available - (short)(available % LENGTH_BLOCK_AES));
+						short remaining = (short)(length - state[STATE_POSITION]);
+						if (run > remaining) run = remaining;
+					}
+
+					decrypt(inBuffer, inOffset, run, outBuffer);
+					inOffset += run;
+				}
+
+			} else {
+				// An entry is waiting to be used, or the stream is complete
+				break;
+			}
+		}
+
+		return (short)(inOffset - start);
+	}
+
+	/**
+	 * Returns the length of the verified entry at the start of the output buffer, or zero if no
+	 * entry is ready
+	 */
+	public short getEntryLength() {
+		return (state[STATE_PHASE] == PHASE_READY) ? state[STATE_LENGTH] : ZERO_SHORT;
+	}
+
+	/**
+	 * Moves on from a ready entry (once the caller has used it and cleared it from the output buffer)
+	 */
+	public void nextEntry() {
+
+		if (state[STATE_PHASE] != PHASE_READY) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		state[STATE_POSITION] = ZERO_SHORT;
+		state[STATE_LENGTH] = ZERO_SHORT;
+		state[STATE_REMAINING]--;
+		state[STATE_PHASE] = (state[STATE_REMAINING] == ZERO_SHORT) ? PHASE_DONE : PHASE_ENTRY;
+	}
+
+	/**
+	 * Returns true if a stream has been started and has neither completed nor been reset
+	 */
+	public boolean isActive() {
+		return (state[STATE_PHASE] != PHASE_IDLE && state[STATE_PHASE] != PHASE_DONE);
+	}
+
+	/**
+	 * Returns true if every entry of the stream has been received and used
+	 */
+	public boolean isComplete() {
+		return (state[STATE_PHASE] == PHASE_DONE);
+	}
+
+	/**
+	 * Ends any stream in progress and clears the derived keys and working state
+	 */
+	public void reset() {
+
+		encKey.clearKey();
+		macKey.clearKey();
+		Util.arrayFillNonAtomic(chain, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+		Util.arrayFillNonAtomic(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+
+		for (short i = ZERO_SHORT; i < LENGTH_STATE; i++) state[i] = ZERO_SHORT;
+	}
+
+	/**
+	 * Adds whole blocks of the current entry to its MAC and decrypts them to the output buffer.
+	 * NOTE: The entry length is taken from its first block, and the data is bounded by the output
+	 *		 buffer before anything is written to it.
+	 */
+	private void decrypt(byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer) {
+
+		short position = state[STATE_POSITION];
+
+		cspCMAC.update(inBuffer, inOffset, inLength);
+
+		// Continue the CBC chain, keeping the last ciphertext block for the next part
+		cspAES.init(encKey, Cipher.MODE_DECRYPT, chain, ZERO_SHORT, LENGTH_BLOCK_AES);
+		Util.arrayCopyNonAtomic(inBuffer, (short)(inOffset + inLength - LENGTH_BLOCK_AES), chain, ZERO_SHORT, LENGTH_BLOCK_AES);
+		cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, position);
+		position += inLength;
+
+		// Read the entry length from its first block and work out its padded length
+		if (state[STATE_LENGTH] == ZERO_SHORT) {
+			short length = Util.getShort(outBuffer, OFFSET_ENTRY_LENGTH);
+			if (length < ZERO_SHORT || length > (short)((short)outBuffer.length - LENGTH_BLOCK_AES)) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+			length += LENGTH_ENTRY_HEADER;
+			length = (short)((short)(length / LENGTH_BLOCK_AES + 1) * LENGTH_BLOCK_AES);
+			if (length > (short)outBuffer.length) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+			state[STATE_LENGTH] = length;
+		}
+
+		state[STATE_POSITION] = position;
+		if (position == state[STATE_LENGTH]) state[STATE_PHASE] = PHASE_MAC;
+	}
+
+	/**
+	 * Verifies the MAC of the current entry (held in scratch) and removes its padding
+	 */
+	private void verifyEntry(byte[] outBuffer) {
+
+		if (!cspCMAC.verify(scratch, ZERO_SHORT, ZERO_SHORT, scratch, ZERO_SHORT, LENGTH_MAC)) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+
+		// The MAC of the next entry follows on from this one
+		cspCMAC.init(macKey, Signature.MODE_VERIFY);
+		cspCMAC.update(scratch, ZERO_SHORT, LENGTH_MAC);
+		state[STATE_PENDING] = ZERO_SHORT;
+
+		// Remove the padding (ISO9797 Padding Method 2), which must end the entry exactly
+		short length = Padding.iso9797M2Remove(outBuffer, ZERO_SHORT, state[STATE_LENGTH]);
+		if (length != (short)(Util.getShort(outBuffer, OFFSET_ENTRY_LENGTH) + LENGTH_ENTRY_HEADER)) {
+			ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+		}
+
+		state[STATE_LENGTH] = length;
+		state[STATE_PHASE] = PHASE_READY;
+	}
+
+	/**
+	 * Derives KENC or KMAC from the KEK into the given key
+	 * NOTE: A single block with the default (zero) IV is equivalent to ECB.
+	 */
+	private void deriveKey(AESKey kek, byte constant, AESKey key) {
+
+		Util.arrayFillNonAtomic(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+		scratch[(short)(LENGTH_BLOCK_AES - 1)] = constant;
+
+		cspAES.init(kek, Cipher.MODE_ENCRYPT);
+		cspAES.doFinal(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, scratch, ZERO_SHORT);
+		key.setKey(scratch, ZERO_SHORT);
+		Util.arrayFillNonAtomic(scratch, ZERO_SHORT, LENGTH_BLOCK_AES, ZERO_BYTE);
+	}
+}
@@ -0,0 +1,204 @@
+package com.makina.security.OpenPLAIDSAM;
+
+import javacard.framework.*;
+import javacard.security.*;
+import com.makina.security.OpenPLAIDCore.*;
+
+/**
+ * Derives per-site or per-reader AES keys from a master key record, using the SAM System
+ * Diversifier and a host-supplied diversifier.
+ *
+ * The derivation is the NIST SP800-108 KDF in counter mode with AES-CMAC as the PRF, producing
+ * a single 128-bit block:
+ *
+ *   KEY = CMAC(MASTER, [i]1 || LABEL || 0x00 || SYSTEM DIV || HOST DIV || [L]2)
+ *
+ * where i = 1 and L = 128. Recent derivations are kept in a small transient cache.
+ */
+public class CryptoKDF {
+
+	//
+	// PERSISTENT OBJECTS
+	//
+
+	// Cryptographic Service Providers
+	private AESCMAC128 cspCMAC;
+
+	//
+	// TRANSIENT OBJECTS
+	//
+
+	// Derived key cache (most recently used entry first, see FEATURE_CACHE_KDF)
+	private byte[] cache;
+
+	//
+	// CONSTANTS
+	//
+
+	// Helper constants
+	private static final byte ZERO_BYTE		= (byte)0;
+	private static final short ZERO_SHORT	= (short)0;
+
+	private static final short LENGTH_KEY_AES 	= (short)(Config.LENGTH_AES_KEY_BITS / 8);
+
+	// The longest host diversifier value (the length byte is not stored)
+	public static final short MAX_HOST_DIV		= (short)(Config.LENGTH_DIV_HOST - 1);
+
+	// SP800-108 fixed input data
+	// NOTE: The counter is always 1, as only one block is produced
+	private static final byte[] KDF_PREFIX = {
+		(byte)0x01,											// [i]1
+		(byte)'P', (byte)'L', (byte)'A', (byte)'I', (byte)'D',	// LABEL
+		(byte)0x00 											// Separator
+	};
+	private static final byte[] KDF_SUFFIX = {
+		(byte)0x00, (byte)0x80 								// [L]2 (128 bits)
+	};
+
+	//
+	// Derived key cache entry
+	//
+	private static final short OFFSET_CACHE_VALID	= (short)0;
+	private static final short OFFSET_CACHE_KEYID	= (short)1;
+	private static final short OFFSET_CACHE_DIVLEN	= (short)3;
+	private static final short OFFSET_CACHE_DIV		= (short)4;
+	private static final short OFFSET_CACHE_KEY		= (short)(OFFSET_CACHE_DIV + MAX_HOST_DIV);
+	private static final short LENGTH_CACHE_ENTRY	= (short)(OFFSET_CACHE_KEY + LENGTH_KEY_AES);
+
+	public CryptoKDF() {
+
+		// Create the cryptographic service providers
+		cspCMAC = new AESCMAC128();
+
+		if (Config.FEATURE_CACHE_KDF) {
+			if (Config.FEATURE_CLEAR_ON_RESET) {
+				cache = JCSystem.makeTransientByteArray((short)(LENGTH_CACHE_ENTRY * Config.COUNT_KDF_CACHE), JCSystem.CLEAR_ON_RESET);
+			} else {
+				cache = JCSystem.makeTransientByteArray((short)(LENGTH_CACHE_ENTRY * Config.COUNT_KDF_CACHE), JCSystem.CLEAR_ON_DESELECT);
+			}
+		}
+	}
+
+	/**
+	 * Derives a key from the master key record and writes it to 'outBuffer'.
+	 *
+	 * @param key The master key record (must have the ATTR_DERIVE attribute)
+	 * @param systemDiv The buffer holding the System Diversifier (length byte followed by the value)
+	 * @param systemDivOffset The offset of the System Diversifier length byte
+	 * @param divBuffer The buffer holding the host diversifier
+	 * @param divOffset The offset of the host diversifier
+	 * @param divLength The length of the host diversifier (1 to MAX_HOST_DIV)
+	 * @param outBuffer The buffer to write the derived key to (must not overlap the host diversifier)
+	 * @param outOffset The offset to write the derived key at
+	 *
+	 * @return The length of the derived key
+	 */
+	public short deriveKey(KeyRecord key, byte[] systemDiv, short systemDivOffset,
+						   byte[] divBuffer, short divOffset, short divLength,
+						   byte[] outBuffer, short outOffset) {
+
+		// Make sure the requested key has the DERIVE attribute
+		if (!key.getAttrDerive()) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+		// Validate the host diversifier length
+		if (divLength < 1 || divLength > MAX_HOST_DIV) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		// Get the master key
+		AESKey master = getMasterKey(key);
+		if (master == null || !master.isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+
+		short id = key.getId();
+
+		// Check the cache first
+		if (getCachedKey(id, divBuffer, divOffset, divLength, outBuffer, outOffset)) return LENGTH_KEY_AES;
+
+		// Calculate the derived key, streaming each component of the fixed input data
+		cspCMAC.init(master, Signature.MODE_SIGN);
+		cspCMAC.update(KDF_PREFIX, ZERO_SHORT, (short)KDF_PREFIX.length);
+		cspCMAC.update(systemDiv, (short)(systemDivOffset + 1), (short)(systemDiv[systemDivOffset] & 0xFF));
+		cspCMAC.update(divBuffer, divOffset, divLength);
+		cspCMAC.sign(KDF_SUFFIX, ZERO_SHORT, (short)KDF_SUFFIX.length, outBuffer, outOffset);
+
+		// Add it to the cache (evicting the least recently used entry)
+		putCachedKey(id, divBuffer, divOffset, divLength, outBuffer, outOffset, (short)(Config.COUNT_KDF_CACHE - 1));
+
+		return LENGTH_KEY_AES;
+	}
+
+	/**
+	 * Clears all cached derived keys
+	 */
+	public void clearCache() {
+
+		if (Config.FEATURE_CACHE_KDF) {
+			Util.arrayFillNonAtomic(cache, ZERO_SHORT, (short)cache.length, ZERO_BYTE);
+		}
+	}
+
+	/**
+	 * Returns the AES key material of a master key record, or null if the record type has none
+	 */
+	private static AESKey getMasterKey(KeyRecord key) {
+
+		// The slot has never been loaded
+		if (key.value == null) return null;
+
+		switch (key.getType()) {
+
+		case PLAIDKey.TYPE_PLAID:
+			return ((PLAIDKey)key.value).faKey;
+
+		case KeyBuilder.TYPE_AES:
+			return (AESKey)key.value;
+
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Looks for a cached key for the given key identifier and host diversifier. If found, the key is
+	 * written to 'out' and the entry is moved to the front of the cache.
+	 */
+	private boolean getCachedKey(short id, byte[] div, short divOffset, short divLength, byte[] out, short outOffset) {
+
+		if (!Config.FEATURE_CACHE_KDF) return false;
+
+		short entry = ZERO_SHORT;
+		for (short i = 0; i < Config.COUNT_KDF_CACHE; i++) {
+			if (cache[(short)(entry + OFFSET_CACHE_VALID)] != ZERO_BYTE &&
+				Util.getShort(cache, (short)(entry + OFFSET_CACHE_KEYID)) == id &&
+				cache[(short)(entry + OFFSET_CACHE_DIVLEN)] == (byte)divLength &&
+				Util.arrayCompare(cache, (short)(entry + OFFSET_CACHE_DIV), div, divOffset, divLength) == 0) {
+
+				Util.arrayCopyNonAtomic(cache, (short)(entry + OFFSET_CACHE_KEY), out, outOffset, LENGTH_KEY_AES);
+
+				// Move the entries in front of this one back, then re-write this one at the front
+				putCachedKey(id, div, divOffset, divLength, out, outOffset, i);
+				return true;
+			}
+			entry += LENGTH_CACHE_ENTRY;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Writes a derived key to the front of the cache, after moving the first 'count' entries back by one.
+	 * A count of COUNT_KDF_CACHE - 1 evicts the least recently used entry.
+	 */
+	private void putCachedKey(short id, byte[] div, short divOffset, short divLength, byte[] key, short keyOffset, short count) {
+
+		if (!Config.FEATURE_CACHE_KDF) return;
+
+		// NOTE: arrayCopyNonAtomic handles overlapping ranges within the same array
+		Util.arrayCopyNonAtomic(cache, ZERO_SHORT, cache, LENGTH_CACHE_ENTRY, (short)(count * LENGTH_CACHE_ENTRY));
+
+		cache[OFFSET_CACHE_VALID] = (byte)0x01;
+		Util.setShort(cache, OFFSET_CACHE_KEYID, id);
+		cache[OFFSET_CACHE_DIVLEN] = (byte)divLength;
+		Util.arrayFillNonAtomic(cache, OFFSET_CACHE_DIV, MAX_HOST_DIV, ZERO_BYTE);
+		Util.arrayCopyNonAtomic(div, divOffset, cache, OFFSET_CACHE_DIV, divLength);
+		Util.arrayCopyNonAtomic(key, keyOffset, cache, OFFSET_CACHE_KEY, LENGTH_KEY_AES);
+	}
+}
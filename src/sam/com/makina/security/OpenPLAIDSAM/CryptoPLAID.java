@@ -3,6 +3,7 @@ package com.makina.security.OpenPLAIDSAM;
 import javacard.framework.*;
 import javacard.security.*;
 import javacardx.crypto.*;
+import com.makina.security.OpenPLAIDCore.*;
 
 public class CryptoPLAID {
 
@@ -10,14 +11,28 @@ public class CryptoPLAID {
 	private Cipher cspRSA;
 	private Cipher cspAES;
 	private MessageDigest cspSHA;	
+	private AESCMAC128 cspCMAC;
 	private RandomData cspRNG;	
 
+	// RSA cipher pool (see FEATURE_RSA_CIPHER_POOL)
+	// NOTE: The key bound to each cipher and the last use of each are transient, so after a reset
+	//		 every cipher is treated as unassigned and will be initialised again on first use.
+	private Cipher[] rsaCiphers;
+	private Object[] rsaCipherKeys;
+	private short[] rsaCipherUse;	// The last use of each cipher, followed by the use counter
+
 	// Session keys
-	private AESKey sessionKey;		// General PLAID session key
-	private AESKey transportKey;	// Transport FA key (loaded by a call to loadFAKey)
+	private AESKey sessionKey;		// General PLAID session key (loaded from the session context on demand)
+	private AESKey[] transportKeys;	// Transport FA key for each session (loaded by a call to loadFAKey)
 
-	// Session state
+	// Session state (one context of LENGTH_STATE bytes for each session on each logical channel)
 	private byte[] sessionState;
+
+	// Diversified FA key cache (most recently used entry first, see FEATURE_CACHE_FAKEY_DIV)
+	private byte[] faKeyCache;
+
+	// SET DATA schema validation results (value offset and length for each entry)
+	private short[] schemaResults;
 	
 
 	//
@@ -38,15 +53,17 @@ public class CryptoPLAID {
 	private static final short LENGTH_BLOCK_AES = (short)(Config.LENGTH_AES_KEY_BITS / 8);
 	private static final short LENGTH_KEY_AES 	= (short)(Config.LENGTH_AES_KEY_BITS / 8);
 
-	private static final short LENGTH_BLOCK_RSA = (short)(Config.LENGTH_RSA_KEY_BITS / 8);
+	public static final short LENGTH_BLOCK_RSA = (short)(Config.LENGTH_RSA_KEY_BITS / 8);
 	private static final short LENGTH_KEY_RSA 	= (short)(Config.LENGTH_RSA_KEY_BITS / 8);
 
 	//
 	// PLAID protocol constants
 	// 
 	private static final short LENGTH_PAYLOAD	= (short)0; // Optional Payloads feature not implemented
-	private static final short LENGTH_KEYSET_ID	= (short)2;	
-	private static final short LENGTH_OPMODE_ID = (short)2;
+	private static final short LENGTH_KEYSET_ID	= PLAIDProtocol.LENGTH_KEYSET_ID;
+	private static final short LENGTH_OPMODE_ID = PLAIDProtocol.LENGTH_OPMODE_ID;
+	private static final short LENGTH_OP_HASH	= PLAIDProtocol.LENGTH_OP_HASH;
+	private static final short LENGTH_MAC		= PLAIDProtocol.LENGTH_ENVELOPE_MAC;
 	private static final short LENGTH_ACSRECORD	= (short)16;
 	private static final short LENGTH_SHA256	= (short)32;
 	private static final short LENGTH_KEYSHASH	= LENGTH_KEY_AES;	
@@ -57,44 +74,6 @@ public class CryptoPLAID {
 	private static final short LENGTH_STR2 		= (short)(LENGTH_OPMODE_ID + LENGTH_RND2 + LENGTH_PAYLOAD + LENGTH_KEYSHASH);
 	private static final short LENGTH_STR3 		= (short)(LENGTH_ACSRECORD + LENGTH_PAYLOAD + LENGTH_DIVDATA);
 		
-	//
-	// PLAID administrative constants (non-ISO)
-	//	
-	
-	// Operations (Also serves as the Parameter tags)
-	public static final short OP_ACTIVATE			= (short)1;
-	public static final short OP_BLOCK				= (short)2;
-	public static final short OP_UNBLOCK			= (short)3;
-	public static final short OP_TERMINATE			= (short)4;
-	public static final short OP_KEY_CREATE			= (short)5;
-	public static final short OP_KEY_DELETE			= (short)6;
-	public static final short OP_KEY_DELETE_ALL		= (short)7;
-	public static final short OP_ACSR_CREATE		= (short)8;
-	public static final short OP_ACSR_DELETE		= (short)9;
-	public static final short OP_ACSR_DELETE_ALL	= (short)10;
-	//public static final short OP_PAYLOAD_CREATE		= (short)11;
-	//public static final short OP_PAYLOAD_DELETE		= (short)12;
-	//public static final short OP_PAYLOAD_DELETE_ALL = (short)13;
-
-	// Lengths
-	public static final short LENGTH_OP_HASH		= (short)16;
-	public static final short LENGTH_GETKEY_HASH	= (short)16;
-
-	// Tags - General
-	public static final byte TAG_SAMID = (byte)30;
-
-	// Tags - Keyset
-	public static final byte TAG_KEYSET_IAMODULUS = (byte)11;
-	public static final byte TAG_KEYSET_IAEXPONENT = (byte)12;
-	public static final byte TAG_KEYSET_FAKEY = (byte)13;
-
-	// Tags - Parameters
-	// NOTE: Duplicates are ok here because they are unique to each command
-	public static final byte TAG_PARAM_ID = (byte)1;
-	public static final byte TAG_PARAM_KEY = (byte)2;
-	public static final byte TAG_PARAM_DATA = (byte)2;
-	public static final byte TAG_PARAM_RULES = (byte)3;
-
 	//
 	// Session Variables
 	// 
@@ -115,9 +94,8 @@ public class CryptoPLAID {
 	private static final short OFFSET_DIVDATA	 	= (short)5;	
 	
 	// The KEYSHASH value from the ICC, which is used for the session key
-	// NOTE: The length allocated for this is LENGTH_SHA256 because the SHA CSP 
-	//		 requires the full untruncated length.
-	// TODO: Review whether this can be ditched
+	// NOTE: Only the truncated length is stored. The full SHA256 output is written to
+	//		 scratch space in the output buffer and the first LENGTH_KEYSHASH bytes copied here.
 	private static final short OFFSET_KEYSHASH	 	= (short)(OFFSET_DIVDATA + LENGTH_DIVDATA);
 
 	private static final short LENGTH_STATE 	 	= (short)(	LENGTH_BYTE + 
@@ -125,69 +103,306 @@ public class CryptoPLAID {
 																LENGTH_BYTE +
 																LENGTH_BYTE +
 																LENGTH_DIVDATA + 
-																LENGTH_SHA256);
+																LENGTH_KEYSHASH);
+
+	//
+	// Diversified FA key cache entry
+	// 
+	private static final short OFFSET_CACHE_VALID	= (short)0;
+	private static final short OFFSET_CACHE_KEYID	= (short)1;
+	private static final short OFFSET_CACHE_DIVDATA	= (short)3;
+	private static final short OFFSET_CACHE_FAKEY	= (short)(OFFSET_CACHE_DIVDATA + LENGTH_DIVDATA);
+	private static final short LENGTH_CACHE_ENTRY	= (short)(OFFSET_CACHE_FAKEY + LENGTH_KEY_AES);
+
+	//
+	// SET DATA parameter schemas (see TlvSchema)
+	// Each entry is TAG, FLAGS (with the tag class), MIN LENGTH (2), MAX LENGTH (2)
+	//
+
+	private static final byte REQUIRED_APP		= (byte)(TlvSchema.CLASS_APPLICATION | TlvSchema.FLAG_REQUIRED);
+	private static final byte REQUIRED_CONTEXT	= (byte)(TlvSchema.CLASS_CONTEXT | TlvSchema.FLAG_REQUIRED);
+
+	private static final byte[] SCHEMA_KEY_CREATE = {
+		PLAIDProtocol.OP_KEY_CREATE,			REQUIRED_CONTEXT,	0x00, 0x00, 0x7F, (byte)0xFF, // Parameters (CHOICE - Tag is the same as the OP code)
+		PLAIDProtocol.TAG_PARAM_ID,				REQUIRED_APP,		0x00, 0x02, 0x00, 0x02,
+		PLAIDProtocol.TAG_PARAM_KEY,			REQUIRED_APP,		0x00, 0x00, 0x7F, (byte)0xFF,
+		PLAIDProtocol.TAG_KEYSET_IAMODULUS,		REQUIRED_APP,		(byte)(LENGTH_KEY_RSA >> 8), (byte)LENGTH_KEY_RSA, (byte)(LENGTH_KEY_RSA >> 8), (byte)LENGTH_KEY_RSA,
+		PLAIDProtocol.TAG_KEYSET_IAEXPONENT,	REQUIRED_APP,		0x00, (byte)Config.LENGTH_RSA_PUBLIC_EXPONENT, 0x00, (byte)Config.LENGTH_RSA_PUBLIC_EXPONENT,
+		PLAIDProtocol.TAG_KEYSET_FAKEY,			REQUIRED_APP,		0x00, (byte)LENGTH_KEY_AES, 0x00, (byte)LENGTH_KEY_AES,
+		PLAIDProtocol.TAG_SAMID,				REQUIRED_APP,		0x00, 0x02, 0x00, 0x02
+	};
+	private static final short KEY_CREATE_IAMODULUS		= (short)3;
+	private static final short KEY_CREATE_IAEXPONENT	= (short)4;
+	private static final short KEY_CREATE_FAKEY			= (short)5;
+	private static final short KEY_CREATE_SAMID			= (short)6;
+
+	// The total number of session contexts (COUNT_SESSIONS for each logical channel)
+	public static final short COUNT_CONTEXTS			= (short)(Config.COUNT_SESSIONS * Config.MAX_CHANNELS);
+
+	// The most that a SET DATA cryptogram can grow by in a batch (see setDataBatch)
+	// NOTE: OCTET STRING header (4) + HASH or MAC (the same length) + PADDING (up to one block)
+	private static final short LENGTH_BATCH_OVERHEAD	= (short)(4 + LENGTH_OP_HASH + LENGTH_BLOCK_AES);
+
+	// The longest SET DATA batch response that can be sent (the first 256 bytes, then the response
+	// buffer through GET RESPONSE)
+	private static final short LENGTH_BATCH_RESPONSE	= (short)(256 + Config.LENGTH_RESPONSE_BUFFER);
+
+	// The largest number of entries in any of the above schemas
+	private static final short MAX_SCHEMA_ENTRIES		= (short)7;
 
 	public CryptoPLAID() {
 
 		// Create the cryptographic service providers
-		cspRSA = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+		if (Config.FEATURE_RSA_CIPHER_POOL) {
+			rsaCiphers = new Cipher[Config.COUNT_RSA_CIPHERS];
+			for (short i = 0; i < Config.COUNT_RSA_CIPHERS; i++) {
+				rsaCiphers[i] = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+			}
+		} else {
+			cspRSA = Cipher.getInstance(Cipher.ALG_RSA_PKCS1, false);
+		}
 		cspAES = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
 		cspSHA = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+		cspCMAC = new AESCMAC128();
 		cspRNG = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
 		
 		if (Config.FEATURE_CLEAR_ON_RESET) {
 			// Create the state buffer		
-			sessionState = JCSystem.makeTransientByteArray(LENGTH_STATE, JCSystem.CLEAR_ON_RESET);
+			sessionState = JCSystem.makeTransientByteArray((short)(LENGTH_STATE * COUNT_CONTEXTS), JCSystem.CLEAR_ON_RESET);
+			schemaResults = JCSystem.makeTransientShortArray((short)(MAX_SCHEMA_ENTRIES * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_RESET);
+			if (Config.FEATURE_RSA_CIPHER_POOL) {
+				rsaCipherKeys = JCSystem.makeTransientObjectArray(Config.COUNT_RSA_CIPHERS, JCSystem.CLEAR_ON_RESET);
+				rsaCipherUse = JCSystem.makeTransientShortArray((short)(Config.COUNT_RSA_CIPHERS + 1), JCSystem.CLEAR_ON_RESET);
+			}
+			if (Config.FEATURE_CACHE_FAKEY_DIV) {
+				faKeyCache = JCSystem.makeTransientByteArray((short)(LENGTH_CACHE_ENTRY * Config.COUNT_FAKEY_CACHE), JCSystem.CLEAR_ON_RESET);
+			}
 
 			// Create the session keys
 			sessionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_AES_KEY_BITS, false);
-			transportKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_AES_KEY_BITS, false);
+			transportKeys = new AESKey[COUNT_CONTEXTS];
+			for (short i = 0; i < COUNT_CONTEXTS; i++) {
+				transportKeys[i] = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_RESET, Config.LENGTH_AES_KEY_BITS, false);
+			}
 		} else {
 			// Create the state buffer		
-			sessionState = JCSystem.makeTransientByteArray(LENGTH_STATE, JCSystem.CLEAR_ON_DESELECT);
+			sessionState = JCSystem.makeTransientByteArray((short)(LENGTH_STATE * COUNT_CONTEXTS), JCSystem.CLEAR_ON_DESELECT);
+			schemaResults = JCSystem.makeTransientShortArray((short)(MAX_SCHEMA_ENTRIES * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_DESELECT);
+			if (Config.FEATURE_RSA_CIPHER_POOL) {
+				rsaCipherKeys = JCSystem.makeTransientObjectArray(Config.COUNT_RSA_CIPHERS, JCSystem.CLEAR_ON_DESELECT);
+				rsaCipherUse = JCSystem.makeTransientShortArray((short)(Config.COUNT_RSA_CIPHERS + 1), JCSystem.CLEAR_ON_DESELECT);
+			}
+			if (Config.FEATURE_CACHE_FAKEY_DIV) {
+				faKeyCache = JCSystem.makeTransientByteArray((short)(LENGTH_CACHE_ENTRY * Config.COUNT_FAKEY_CACHE), JCSystem.CLEAR_ON_DESELECT);
+			}
 
 			// Create the session keys
 			sessionKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_AES_KEY_BITS, false);
-			transportKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_AES_KEY_BITS, false);
+			transportKeys = new AESKey[COUNT_CONTEXTS];
+			for (short i = 0; i < COUNT_CONTEXTS; i++) {
+				transportKeys[i] = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, Config.LENGTH_AES_KEY_BITS, false);
+			}
 		}
 	}
 	
+	/*
+	 * Session contexts
+	 * 
+	 * Each session (0 to COUNT_CONTEXTS - 1) addresses an independent PLAID authentication
+	 * context, so that the host can interleave INITIAL AUTH, FINAL AUTH and SET DATA for several
+	 * ICC's. The applet maps its logical channel and session handle to a session number and is
+	 * responsible for validating it.
+	 */
+	 
+	private static short getContext(short session) {
+		return (short)(session * LENGTH_STATE);
+	}
+
+	/**
+	 * Resets the authentication context for all sessions, including any loaded transport keys
+	 */
 	public void resetAuthentication() {
 
 		// Reset the session key
 		sessionKey.clearKey();
+
+		// Reset the transport keys
+		for (short i = 0; i < COUNT_CONTEXTS; i++) {
+			transportKeys[i].clearKey();
+		}
 		
 		// NOTE: This will implicitly set the AUTH_STATE to STATE_NONE (which must always be 0)
-		Util.arrayFillNonAtomic(sessionState, (short)0, LENGTH_STATE, (byte)0);		
+		Util.arrayFillNonAtomic(sessionState, ZERO_SHORT, (short)sessionState.length, ZERO_BYTE);		
+
+		// Reset the diversified key cache
+		clearCache();
+
+		// Release the RSA ciphers, as the keys they hold may be about to change
+		releaseRSACiphers();
+	}
+
+	/**
+	 * Returns an RSA cipher initialised for decryption with the given key.
+	 * 
+	 * With FEATURE_RSA_CIPHER_POOL, a cipher already holding this key is returned as-is. Otherwise the
+	 * least recently used cipher is initialised with it. A cipher returns to its initialised state after
+	 * doFinal, so it stays ready for the next operation with the same key.
+	 */
+	private Cipher getRSACipher(Key key) {
+
+		if (!Config.FEATURE_RSA_CIPHER_POOL) {
+			cspRSA.init(key, Cipher.MODE_DECRYPT);
+			return cspRSA;
+		}
+
+		// Find the cipher holding this key, or else the least recently used one
+		short slot = ZERO_SHORT;
+		boolean found = false;
+		for (short i = 0; i < Config.COUNT_RSA_CIPHERS; i++) {
+			if (rsaCipherKeys[i] == key) {
+				slot = i;
+				found = true;
+				break;
+			}
+			if (rsaCipherUse[i] < rsaCipherUse[slot]) slot = i;
+		}
+
+		if (!found) {
+			// Release the binding first, in case the initialisation fails
+			rsaCipherKeys[slot] = null;
+			rsaCiphers[slot].init(key, Cipher.MODE_DECRYPT);
+			rsaCipherKeys[slot] = key;
+		}
+
+		// Record the use, restarting the counter (and all uses) before it overflows
+		short counter = Config.COUNT_RSA_CIPHERS;
+		if (rsaCipherUse[counter] == Short.MAX_VALUE) {
+			for (short i = 0; i <= Config.COUNT_RSA_CIPHERS; i++) rsaCipherUse[i] = ZERO_SHORT;
+		}
+		rsaCipherUse[slot] = ++rsaCipherUse[counter];
+
+		return rsaCiphers[slot];
+	}
+
+	/**
+	 * Releases the RSA cipher bound to the given key (if any), so it will be initialised again on
+	 * next use. The other ciphers in the pool keep their keys.
+	 */
+	private void releaseRSACipher(Key key) {
+
+		if (!Config.FEATURE_RSA_CIPHER_POOL) return;
+
+		for (short i = 0; i < Config.COUNT_RSA_CIPHERS; i++) {
+			if (rsaCipherKeys[i] == key) rsaCipherKeys[i] = null;
+		}
+	}
+
+	/**
+	 * Releases all RSA ciphers in the pool, so they will be initialised again on next use
+	 */
+	private void releaseRSACiphers() {
+
+		if (!Config.FEATURE_RSA_CIPHER_POOL) return;
+
+		for (short i = 0; i < Config.COUNT_RSA_CIPHERS; i++) {
+			rsaCipherKeys[i] = null;
+		}
+	}
+
+	/**
+	 * Clears all cached FAKey(Div) values
+	 */
+	public void clearCache() {
 		
+		if (Config.FEATURE_CACHE_FAKEY_DIV) {
+			Util.arrayFillNonAtomic(faKeyCache, ZERO_SHORT, (short)faKeyCache.length, ZERO_BYTE);
+		}
+	}
+
+	/**
+	 * Looks for a cached FAKey(Div) for the given key identifier and DivData. If found, the key is written
+	 * to 'out' and the entry is moved to the front of the cache.
+	 */
+	private boolean getCachedFAKey(short id, byte[] divData, short divOffset, byte[] out, short outOffset) {
+
+		if (!Config.FEATURE_CACHE_FAKEY_DIV) return false;
+
+		short entry = ZERO_SHORT;
+		for (short i = 0; i < Config.COUNT_FAKEY_CACHE; i++) {
+			if (faKeyCache[(short)(entry + OFFSET_CACHE_VALID)] != ZERO_BYTE &&
+				Util.getShort(faKeyCache, (short)(entry + OFFSET_CACHE_KEYID)) == id &&
+				Util.arrayCompare(faKeyCache, (short)(entry + OFFSET_CACHE_DIVDATA), divData, divOffset, LENGTH_DIVDATA) == 0) {
+
+				Util.arrayCopyNonAtomic(faKeyCache, (short)(entry + OFFSET_CACHE_FAKEY), out, outOffset, LENGTH_KEY_AES);
+				
+				// Move the entries in front of this one back, then re-write this one at the front
+				putCachedFAKey(id, divData, divOffset, out, outOffset, i);
+				return true;
+			}
+			entry += LENGTH_CACHE_ENTRY;
+		}
+		
+		return false;
+	}
+
+	/**
+	 * Writes a FAKey(Div) to the front of the cache, after moving the first 'count' entries back by one.
+	 * A count of COUNT_FAKEY_CACHE - 1 evicts the least recently used entry.
+	 */
+	private void putCachedFAKey(short id, byte[] divData, short divOffset, byte[] key, short keyOffset, short count) {
+
+		if (!Config.FEATURE_CACHE_FAKEY_DIV) return;
+
+		// NOTE: arrayCopyNonAtomic handles overlapping ranges within the same array
+		Util.arrayCopyNonAtomic(faKeyCache, ZERO_SHORT, faKeyCache, LENGTH_CACHE_ENTRY, (short)(count * LENGTH_CACHE_ENTRY));
+
+		faKeyCache[OFFSET_CACHE_VALID] = (byte)0x01;
+		Util.setShort(faKeyCache, OFFSET_CACHE_KEYID, id);
+		Util.arrayCopyNonAtomic(divData, divOffset, faKeyCache, OFFSET_CACHE_DIVDATA, LENGTH_DIVDATA);
+		Util.arrayCopyNonAtomic(key, keyOffset, faKeyCache, OFFSET_CACHE_FAKEY, LENGTH_KEY_AES);
+	}
+	
+	/**
+	 * Resets the authentication context for a single session
+	 * NOTE: This does not clear a transport key loaded for this session
+	 */
+	public void resetAuthentication(short session) {
+
+		// Reset the session key
+		sessionKey.clearKey();
+		
+		// NOTE: This will implicitly set the AUTH_STATE to STATE_NONE (which must always be 0)
+		Util.arrayFillNonAtomic(sessionState, getContext(session), LENGTH_STATE, ZERO_BYTE);		
 	}
 	
-	public boolean getAuthKEK() {
-		return (sessionState[OFFSET_AUTH_KEK] != 0);
+	/**
+	 * Resets the authentication context for a single session, including any loaded transport key
+	 */
+	public void resetSession(short session) {
+		
+		resetAuthentication(session);
+		transportKeys[session].clearKey();
+	}
+	
+	public boolean getAuthKEK(short session) {
+		return (sessionState[(short)(getContext(session) + OFFSET_AUTH_KEK)] != 0);
 	}
 	
-	public byte getAuthState() {
-		return sessionState[OFFSET_AUTH_STATE];
+	public byte getAuthState(short session) {
+		return sessionState[(short)(getContext(session) + OFFSET_AUTH_STATE)];
 	}
 
-	public short getAuthKeyset() {
-		return Util.getShort(sessionState, OFFSET_AUTH_KEYSET);
+	public short getAuthKeyset(short session) {
+		return Util.getShort(sessionState, (short)(getContext(session) + OFFSET_AUTH_KEYSET));
 	}
 
-	public short initialAuthenticate(KeyRecord key, byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
+	public short initialAuthenticate(short session, KeyRecord key, byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
 		
         // Clear any existing authentication state
-		resetAuthentication();
-
-		// Check that we have been given the correct key type
-		if (key.value.getType() != PLAIDKey.TYPE_PLAID) {
-			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
-		}
-
-		// Check whether this key is permitted to perform an authentication
-		if (!key.getAttrPlaidAuth()) {
-			ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
-		}
+		resetAuthentication(session);
+		
+		// Check that we have been given a key that can perform an authentication
+		checkAuthKey(key);
 
 		//
 		// NOTE: 
@@ -210,11 +425,12 @@ public class CryptoPLAID {
 		// a) The IFD receives string eSTR1 and calculates STR1 where STR1 = RSADecryptIAKey 
 		//	  (eSTR1) using the KeySetID values identified in the list.
 		try {			
-			cspRSA.init(plaidKey.iaKeyPrivate, Cipher.MODE_DECRYPT);
-			cspRSA.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);
+			getRSACipher(plaidKey.iaKeyPrivate).doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);
 		} catch (CryptoException ex) {
 			// The most likely reason for this exception is that the key was wrong
 			// and so the padding validation failed post-decryption.
+			// NOTE: The cipher state after a failure is platform-dependent, so its binding is released.
+			releaseRSACipher(plaidKey.iaKeyPrivate);
 			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
 		}
 		
@@ -235,8 +451,156 @@ public class CryptoPLAID {
 		//    implementations.
 
 		// IMPLEMENTATION NOTE:
-		// PACSAM doesn't currently need to be concerned with timing attacks, since it is only
-		// used during the personalisation stage. We only test the keyset supplied by the host
+		// This form only tests the keyset supplied by the host. See initialAuthenticateList for
+		// the traversal of a list of candidate keysets.
+
+		return completeInitialAuthenticate(session, key, opModeId, outBuffer, outOffset);
+	}
+
+	/**
+	 * Executes the PLAID Initial Authenticate against a list of candidate keysets, as per ISO 25185-1
+	 * section 6.4 a) to e), and completes the authentication with the first keyset for which eSTR1
+	 * decrypts successfully.
+	 * 
+	 * The expected buffer contents at 'inOffset' are:
+	 * [COUNT (1)] || [KEY ID (2)] * COUNT || [OPMODE] || [eSTR1]
+	 * 
+	 * The trial decryptions are written after the input, so the buffer must have room for two RSA
+	 * blocks following it. The response (eSTR2) is written at 'outOffset', which may overlap the input.
+	 * 
+	 * @param constantTime If true, every candidate is tried regardless of when the first successful
+	 * 					   decryption occurs (6.4 c), and each one takes the same path: the cipher is
+	 * 					   initialised with its key, eSTR1 is decrypted and STR1 is checked and copied.
+	 * 					   The RSA cipher pool is not used inside the traversal, as a pool hit would
+	 * 					   skip the key setup for some candidates, so the position of the matching
+	 * 					   candidate in the list doesn't affect the response time. The RSA operation
+	 * 					   itself is not constant time, as that depends on the platform.
+	 */
+	public short initialAuthenticateList(short session, KeyIndex keys, byte[] buffer, short inOffset, short inLength, short outOffset, boolean constantTime) {
+
+        // Clear any existing authentication state
+		resetAuthentication(session);
+
+		// Read the candidate list
+		if (inLength < 1) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		short count = (short)(buffer[inOffset] & 0xFF);
+		short list = (short)(inOffset + 1);
+		short listLength = (short)(1 + count * LENGTH_KEYSET_ID);
+		if (count == ZERO_SHORT || (short)(inLength - listLength) <= LENGTH_OPMODE_ID) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		inOffset += listLength;
+		inLength -= listLength;
+
+		// Validate every candidate up front, so that the traversal below takes the same path for each
+		for (short i = 0; i < count; i++) {
+			KeyRecord key = keys.find(Util.getShort(buffer, (short)(list + i * LENGTH_KEYSET_ID)));
+			if (key == null || !key.isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+			checkAuthKey(key);
+		}
+
+		// Just store and skip the OpMode for now. We'll use it later in the construction of STR2
+		short opModeId = Util.getShort(buffer, inOffset);
+		inOffset += LENGTH_OPMODE_ID; // Move to the start of STR1
+		inLength -= LENGTH_OPMODE_ID;
+
+		// The trial decryption area, followed by the STR1 of the first successful decryption
+		short trial = (short)(inOffset + inLength);
+		short match = (short)(trial + LENGTH_BLOCK_RSA);
+		if ((short)(match + LENGTH_STR1) > (short)buffer.length) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		/*
+		 * Response Evaluation (From ISO 25185-1 6.4)
+		 */
+
+		KeyRecord matched = null;
+
+		// For the constant time traversal, take the first cipher out of the pool for the whole list
+		Cipher trialCipher = cspRSA;
+		if (constantTime && Config.FEATURE_RSA_CIPHER_POOL) {
+			rsaCipherKeys[0] = null;
+			trialCipher = rsaCiphers[0];
+		}
+
+		for (short i = 0; i < count; i++) {
+
+			KeyRecord key = keys.find(Util.getShort(buffer, (short)(list + i * LENGTH_KEYSET_ID)));
+			Key iaKey = ((PLAIDKey)key.value).iaKeyPrivate;
+
+			// a) The IFD receives string eSTR1 and calculates STR1 where STR1 = RSADecryptIAKey 
+			//	  (eSTR1) using the KeySetID values identified in the list.
+			short length;
+			try {
+				if (constantTime) {
+					trialCipher.init(iaKey, Cipher.MODE_DECRYPT);
+					length = trialCipher.doFinal(buffer, inOffset, inLength, buffer, trial);
+				} else {
+					length = getRSACipher(iaKey).doFinal(buffer, inOffset, inLength, buffer, trial);
+				}
+			} catch (CryptoException ex) {
+				// The padding validation failed, so this isn't the keyset
+				// NOTE: The cipher state after a failure is platform-dependent, so its binding is released.
+				if (!constantTime) releaseRSACipher(iaKey);
+				length = ZERO_SHORT;
+			}
+
+			// b) The IFD compares the two copies of RND1 for each value to confirm that 
+			//    decryption was successful.
+			// NOTE: Both tests are always evaluated (no short-circuit).
+			boolean ok = (length == LENGTH_STR1) &
+						 (0 == Util.arrayCompare(	buffer, (short)(trial + LENGTH_KEYSET_ID + LENGTH_DIVDATA),
+													buffer, (short)(trial + LENGTH_KEYSET_ID + LENGTH_DIVDATA + LENGTH_RND1),
+													LENGTH_RND1));
+
+			// c) The IFD should traverse the entire list of KeySetID values irrespective of when 
+			//    the first successful decryption is performed and store the successful KeySetID 
+			//    values. This serves to prevent potential timing attacks.
+			// e) ... from the first successful STR1 decryption.
+			// NOTE: Every candidate copies STR1, either to the match area (first match) or onto itself.
+			boolean first = ok & (matched == null);
+			if (first) matched = key;
+			Util.arrayCopyNonAtomic(buffer, trial, buffer, first ? match : trial, LENGTH_STR1);
+			if (first && !constantTime) break;
+		}
+
+		// Clear the trial decryption area
+		Util.arrayFillNonAtomic(buffer, trial, LENGTH_BLOCK_RSA, ZERO_BYTE);
+
+		// d) Authentication fails if all KeySetID values have been used and decryption fails. 
+		if (matched == null) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		// Move the successful STR1 to the output
+		Util.arrayCopyNonAtomic(buffer, match, buffer, outOffset, LENGTH_STR1);
+		Util.arrayFillNonAtomic(buffer, match, LENGTH_STR1, ZERO_BYTE);
+
+		return completeInitialAuthenticate(session, matched, opModeId, buffer, outOffset);
+	}
+
+	/**
+	 * Checks that the key is a PLAID key that is permitted to perform an authentication
+	 */
+	private static void checkAuthKey(KeyRecord key) {
+
+		// Check that we have been given the correct key type
+		if (key.getType() != PLAIDKey.TYPE_PLAID) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+
+		// Check whether this key is permitted to perform an authentication
+		if (!key.getAttrPlaidAuth()) {
+			ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+		}
+	}
+
+	/**
+	 * Completes the PLAID Initial Authenticate from ISO 25185-1 section 6.4 e), given the successfully
+	 * decrypted STR1 at 'outOffset', and writes eSTR2 to the same position.
+	 */
+	private short completeInitialAuthenticate(short session, KeyRecord key, short opModeId, byte[] outBuffer, short outOffset) {
+
+		short context = getContext(session);
+		AESKey transportKey = transportKeys[session];
+
+		// Provide a strong reference to our PLAID keyset
+		PLAIDKey plaidKey = (PLAIDKey)key.value;
 
 		// e) The IFD extracts the ICC diversification seed data DivData and KeySetID value 
 		//    from the first successful STR1 decryption.
@@ -245,13 +609,13 @@ public class CryptoPLAID {
 		short keysetId = Util.getShort(outBuffer, outOffset);
 
 		// Record which Keyset Id we are authenticating with, as well as whether it can act as a KEK
-		Util.arrayCopyNonAtomic(outBuffer, outOffset, sessionState, OFFSET_AUTH_KEYSET, LENGTH_KEYSET_ID);
+		Util.arrayCopyNonAtomic(outBuffer, outOffset, sessionState, (short)(context + OFFSET_AUTH_KEYSET), LENGTH_KEYSET_ID);
 		if (key.getAttrPlaidKEK()) {
-			sessionState[OFFSET_AUTH_KEK] = (byte)0x01;
+			sessionState[(short)(context + OFFSET_AUTH_KEK)] = (byte)0x01;
 		}
 
 		// DivData
-		Util.arrayCopyNonAtomic(outBuffer, (short)(outOffset + LENGTH_KEYSET_ID), sessionState, OFFSET_DIVDATA, LENGTH_DIVDATA);		
+		Util.arrayCopyNonAtomic(outBuffer, (short)(outOffset + LENGTH_KEYSET_ID), sessionState, (short)(context + OFFSET_DIVDATA), LENGTH_DIVDATA);		
 
 		/*
 		 * Command processing (From ISO 25185-1 6.5)
@@ -280,9 +644,11 @@ public class CryptoPLAID {
 
 		
 		// b) The IFD calculates SHA-256 [RND1||RND2]; the result is denoted as KeysHash.
+		// NOTE: The full digest is written to the output buffer immediately after STR1 and then truncated
 		cspSHA.reset();
 		cspSHA.doFinal(outBuffer, (short)(outOffset + LENGTH_KEYSET_ID + LENGTH_DIVDATA), (short)(LENGTH_RND1 + LENGTH_RND2),
-					   sessionState, OFFSET_KEYSHASH);
+					   outBuffer, (short)(outOffset + LENGTH_STR1));
+		Util.arrayCopyNonAtomic(outBuffer, (short)(outOffset + LENGTH_STR1), sessionState, (short)(context + OFFSET_KEYSHASH), LENGTH_KEYSHASH);
 
 		// c) The IFD uses the diversification data (DivData) and calculates the diversified final 
 		//	  authenticate key where FAKey(Div) = AESEncryptFAKey (DivData). The FAKey to be used is 
@@ -300,16 +666,18 @@ public class CryptoPLAID {
 			}
 			
 			// There is no need to diversify this key as it is implicitly ICC-unique
+			// NOTE: Transport keys are never cached
 			cspAES.init(transportKey, Cipher.MODE_ENCRYPT);			
-		} else {
-			// This is not a transport authentication, load the normal FA Key and diversify
+			cspAES.doFinal(sessionState, (short)(context + OFFSET_DIVDATA), LENGTH_DIVDATA, outBuffer, outOffset);
+			transportKey.clearKey(); // Clear the key immediately so it will be ignored on subsequent calls						
+		} else if (!getCachedFAKey(key.getId(), sessionState, (short)(context + OFFSET_DIVDATA), outBuffer, outOffset)) {
+			// This is not a transport authentication and we haven't seen this ICC recently, so load the 
+			// normal FA Key and diversify
 			cspAES.init(plaidKey.faKey, Cipher.MODE_ENCRYPT);			
+			cspAES.doFinal(sessionState, (short)(context + OFFSET_DIVDATA), LENGTH_DIVDATA, outBuffer, outOffset);
+			putCachedFAKey(key.getId(), sessionState, (short)(context + OFFSET_DIVDATA), outBuffer, outOffset, (short)(Config.COUNT_FAKEY_CACHE - 1));
 		}
 
-		// Generate FAKey(Div)
-		cspAES.doFinal(sessionState, OFFSET_DIVDATA, LENGTH_DIVDATA, outBuffer, outOffset);
-		transportKey.clearKey(); // Clear the key immediately so it will be ignored on subsequent calls						
-
 		// NOTE: We temporarily use the sessionKey to store the intermediate FAKey(Div) result
 		sessionKey.setKey(outBuffer, outOffset); // This will be overwritten shortly
 		cspAES.init(sessionKey, Cipher.MODE_ENCRYPT);
@@ -333,7 +701,7 @@ public class CryptoPLAID {
 		offset += LENGTH_PAYLOAD;
 		
 		// KeysHash
-		Util.arrayCopyNonAtomic(sessionState, OFFSET_KEYSHASH, outBuffer, offset, LENGTH_KEYSHASH);
+		Util.arrayCopyNonAtomic(sessionState, (short)(context + OFFSET_KEYSHASH), outBuffer, offset, LENGTH_KEYSHASH);
 		
 		// e) If needed, padding shall consist of one mandatory byte set to 0x80 followed, if required, 
 		//	  by 0 to k1 bytes set to 0x00, until the respective data block is filled up to k bytes, 
@@ -353,19 +721,21 @@ public class CryptoPLAID {
 		sessionKey.clearKey();
 		
 		// Set our internal authentication state to AUTH_STATE_IAKEY
-		sessionState[OFFSET_AUTH_STATE] = AUTH_STATE_IAKEY;
+		sessionState[(short)(context + OFFSET_AUTH_STATE)] = AUTH_STATE_IAKEY;
 		
 		// g) The IFD transmits the Final Authenticate string eSTR2 to the ICC			
 		return length;
 	}
 	
-	public short finalAuthenticate(byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
+	public short finalAuthenticate(short session, byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
 	
+		short context = getContext(session);
+
 		// Temporarily reset our authentication state, so any error makes us start again
-		sessionState[OFFSET_AUTH_STATE] = AUTH_STATE_NONE;
+		sessionState[(short)(context + OFFSET_AUTH_STATE)] = AUTH_STATE_NONE;
 
 		// Load our session key
-		sessionKey.setKey(sessionState, OFFSET_KEYSHASH);		
+		sessionKey.setKey(sessionState, (short)(context + OFFSET_KEYSHASH));		
 		cspAES.init(sessionKey, Cipher.MODE_DECRYPT);
 
 		/*
@@ -376,15 +746,16 @@ public class CryptoPLAID {
 						
 		// The input is block-length so we can write back in itself
 		cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset); 
+		sessionKey.clearKey();
 		
 		// b) The IFD compares the transmitted DivData with the IFD copy received in the IA Response. 
 		//	  Authentication fails if they do not match.
-		if (0 != Util.arrayCompare(sessionState, OFFSET_DIVDATA, 
+		if (0 != Util.arrayCompare(sessionState, (short)(context + OFFSET_DIVDATA), 
 								   outBuffer, (short)(outOffset + LENGTH_ACSRECORD + LENGTH_PAYLOAD), 
 								   LENGTH_DIVDATA))
 		{
 			// Clear the authentication state
-			resetAuthentication();
+			resetAuthentication(session);
 			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		}
 		
@@ -394,41 +765,54 @@ public class CryptoPLAID {
 		// NOTE: Optional Payload functionality not implemented
 
 		// Done! Set our new authentication state
-		sessionState[OFFSET_AUTH_STATE] = AUTH_STATE_OK;
+		sessionState[(short)(context + OFFSET_AUTH_STATE)] = AUTH_STATE_OK;
 		
 		// Return the length of the ACSRecord (Which is already at the start of our buffer)
 		return LENGTH_ACSRECORD;
 	}
 	
-	public short setData(KeyRecord[] keys, byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset) {
+	/**
+	 * Generates the SET DATA cryptogram for a single command object.
+	 * 
+	 * With ENVELOPE_HASH, the cryptogram is AES-CBC(KeysHash) over (Payload || truncated SHA-256).
+	 * With ENVELOPE_CMAC, it is AES-CBC(KeysHash) over Payload followed by an AES-CMAC of the 
+	 * ciphertext under a MAC key derived from KeysHash (see PLAIDProtocol.DERIVE_MAC_KEY).
+	 */
+	public short setData(short session, KeyIndex keys, byte[] inBuffer, short inOffset, short inLength, byte[] outBuffer, short outOffset, byte envelope) {
+
+		// Make sure the envelope mode is supported
+		if (envelope != PLAIDProtocol.ENVELOPE_HASH && envelope != PLAIDProtocol.ENVELOPE_CMAC) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
 		// Ensure that we are authenticated with KEYSET_ADMIN
-		if (getAuthState() != AUTH_STATE_OK) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (getAuthState(session) != AUTH_STATE_OK) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
 		// Make sure the currently authenticated keyset has PLAID_KEK attribute
-		if (!getAuthKEK()) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+		if (!getAuthKEK(session)) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+		short context = getContext(session);
 
 		//
 		// Validate and populate the common fields
 		//
 		
 		short offset = inOffset;
+		short end = (short)(inOffset + inLength);
 		
 		// HEADER (SEQUENCE tag)
-		offset = TlvReader.find(inBuffer, offset, TlvReader.ASN1_SEQUENCE);
-		if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		offset = TlvReader.find(inBuffer, offset, end, TlvReader.ASN1_SEQUENCE);
+		if (offset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 		
 		// COUNTER (INTEGER (1..127) - Should always occupy 1 byte)
-		offset = TlvReader.find(outBuffer, offset, TlvReader.ASN1_INTEGER);
-		if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		offset = TlvReader.find(outBuffer, offset, end, TlvReader.ASN1_INTEGER);
+		if (offset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 		if (TlvReader.getLength(outBuffer, offset) != 1) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 
 		// Set the counter value
-		outBuffer[TlvReader.getDataOffset(outBuffer, offset)] = sessionState[OFFSET_AUTH_COUNTER];
+		outBuffer[TlvReader.getDataOffset(outBuffer, offset)] = sessionState[(short)(context + OFFSET_AUTH_COUNTER)];
 		
 		// OPERATION (ENUMERATED - Should always occupy 1 byte)
-		offset = TlvReader.find(outBuffer, offset, TlvReader.ASN1_ENUMERATED);
-		if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		offset = TlvReader.find(outBuffer, offset, end, TlvReader.ASN1_ENUMERATED);
+		if (offset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 		if (TlvReader.getLength(outBuffer, offset) != 1) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 		byte operation = TlvReader.toByte(outBuffer, offset);
 		
@@ -437,69 +821,25 @@ public class CryptoPLAID {
 		//
 		
 		// keyCreate
-		if (OP_KEY_CREATE == operation) {
-			
-			// Parameters (CHOICE - Tag is the same as the OP code)
-			offset = TlvReader.find(outBuffer, offset, OP_KEY_CREATE);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+		if (PLAIDProtocol.OP_KEY_CREATE == operation) {
 			
-			// ID (OCTET STRING (SIZE (2))
-			offset = TlvReader.find(outBuffer, offset, TAG_PARAM_ID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			if (TlvReader.getLength(outBuffer, offset) != LENGTH_KEYSET_ID) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short id = TlvReader.toShort(outBuffer, offset);
-			
-			//
-			// Populate the key values
-			//
-
-			// keyCreateParameters (SEQUENCE)
-			offset = TlvReader.find(outBuffer, offset, TAG_PARAM_KEY);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-
-			// PARAMETER iaModulus (OCTET STRING)
-			offset = TlvReader.find(outBuffer, offset, TAG_KEYSET_IAMODULUS);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			if (TlvReader.getLength(outBuffer, offset) != LENGTH_KEY_RSA) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short iaModulusOffset = TlvReader.getDataOffset(outBuffer, offset);
-
-			// PARAMETER iaExponent (OCTET STRING)
-			offset = TlvReader.findNext(outBuffer, offset, TAG_KEYSET_IAEXPONENT);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			if (TlvReader.getLength(outBuffer, offset) != Config.LENGTH_RSA_PUBLIC_EXPONENT) 
-				ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short iaExponentOffset = TlvReader.getDataOffset(outBuffer, offset);
+			if (!TlvSchema.validate(outBuffer, offset, end, SCHEMA_KEY_CREATE, schemaResults)) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
 
-			
-			// PARAMETER faKey (OCTET STRING)		
-			offset = TlvReader.findNext(outBuffer, offset, TAG_KEYSET_FAKEY);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			if (TlvReader.getLength(outBuffer, offset) != LENGTH_KEY_AES) 
-				ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short faKeyOffset = TlvReader.getDataOffset(outBuffer, offset);			
-
-			// Sam Id
-			offset = TlvReader.findNext(outBuffer, offset, TAG_SAMID);
-			if (TlvReader.TAG_NOT_FOUND == offset) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			if (TlvReader.getLength(outBuffer, offset) != LENGTH_KEYSET_ID) 
-				ISOException.throwIt(ISO7816.SW_FILE_INVALID);
-			short samId = TlvReader.toShort(outBuffer, offset);			
+			short iaModulusOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_IAMODULUS);
+			short iaExponentOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_IAEXPONENT);
+			short faKeyOffset = TlvSchema.getOffset(schemaResults, KEY_CREATE_FAKEY);
+			short samId = Util.getShort(outBuffer, TlvSchema.getOffset(schemaResults, KEY_CREATE_SAMID));
 
 			// NOTE:
 			// The Sam Id isn't necessary to transmit to the ICC, but we leave it here anyway 
 			// because it saves us having to update the lengths of the parent constructed tags.
 
-			// Look for the requested keyset id
-			PLAIDKey key = null;
-			for (short i = 0; i < (short)keys.length; i++) {
-				if (keys[i].value.getType() != PLAIDKey.TYPE_PLAID) continue;
-				if (!keys[i].value.isInitialized()) continue;
-				if (keys[i].getId() == samId) {
-					key = (PLAIDKey)keys[i].value;
-					break;
-				}
+			// Look up the requested keyset id
+			KeyRecord record = keys.find(samId);
+			if (record == null || record.getType() != PLAIDKey.TYPE_PLAID || !record.isInitialized()) {
+				ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
 			}
-			if (key == null) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+			PLAIDKey key = (PLAIDKey)record.value;
 
 			// Write the key elements to their respective offsets
 			key.iaKeyPublic.getModulus(outBuffer, iaModulusOffset);
@@ -507,7 +847,7 @@ public class CryptoPLAID {
 			
 			// Diversify the FA key according to ISO25185-1 section 10.
 			cspAES.init(key.faKey, Cipher.MODE_ENCRYPT);
-			cspAES.doFinal(sessionState, OFFSET_DIVDATA, LENGTH_DIVDATA, outBuffer, faKeyOffset);
+			cspAES.doFinal(sessionState, (short)(context + OFFSET_DIVDATA), LENGTH_DIVDATA, outBuffer, faKeyOffset);
 		}		
 
 		//
@@ -515,34 +855,122 @@ public class CryptoPLAID {
 		// 
 		
 		// Generate the HASH element (write to the end of the inBuffer)
-		cspSHA.reset();
-		cspSHA.doFinal(inBuffer, inOffset, inLength, inBuffer, (short)(inOffset + inLength));
-		inLength += LENGTH_OP_HASH;
+		if (envelope == PLAIDProtocol.ENVELOPE_HASH) {
+			cspSHA.reset();
+			cspSHA.doFinal(inBuffer, inOffset, inLength, inBuffer, (short)(inOffset + inLength));
+			inLength += LENGTH_OP_HASH;
+		}
 		
 		// Pad the bytes
 		inLength = Padding.iso9797M2Add(inBuffer, inOffset, inLength);
 
 		// Encrypt the entire object
+		sessionKey.setKey(sessionState, (short)(context + OFFSET_KEYSHASH));
 		cspAES.init(sessionKey, Cipher.MODE_ENCRYPT);
 		cspAES.doFinal(inBuffer, inOffset, inLength, outBuffer, outOffset);
+
+		// Generate the MAC over the ciphertext (encrypt-then-MAC)
+		if (envelope == PLAIDProtocol.ENVELOPE_CMAC) {
+		
+			// Derive the MAC key from the session key (using the MAC position as scratch)
+			short macOffset = (short)(outOffset + inLength);
+			Util.arrayFillNonAtomic(outBuffer, macOffset, LENGTH_BLOCK_AES, ZERO_BYTE);
+			outBuffer[(short)(macOffset + LENGTH_BLOCK_AES - 1)] = PLAIDProtocol.DERIVE_MAC_KEY;
+			cspAES.doFinal(outBuffer, macOffset, LENGTH_BLOCK_AES, outBuffer, macOffset);
+			sessionKey.setKey(outBuffer, macOffset);
+			
+			// The MAC overwrites the derived key
+			cspCMAC.init(sessionKey, Signature.MODE_SIGN);
+			cspCMAC.sign(outBuffer, outOffset, inLength, outBuffer, macOffset);
+			inLength += LENGTH_MAC;
+		}
+		sessionKey.clearKey();
 		
 		// Increment the command counter (we do this last in case we aborted somewhere earlier)
-		sessionState[OFFSET_AUTH_COUNTER]++;
+		sessionState[(short)(context + OFFSET_AUTH_COUNTER)]++;
 		
 		// See if we have exceeded our per-session command counter
-		if (sessionState[OFFSET_AUTH_COUNTER] >= Config.MAX_COUNTER) {
-			resetAuthentication();		
+		if (sessionState[(short)(context + OFFSET_AUTH_COUNTER)] >= Config.MAX_COUNTER) {
+			resetAuthentication(session);		
 			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		}
 		
 		// Return the number of bytes in the cryptogram
 		return inLength;
 	}
+
+	/**
+	 * Generates the SET DATA cryptograms for a batch of command objects in one call.
+	 * 
+	 * The input is one or more SET DATA command objects, back to back. The output, written to 'buffer'
+	 * at 'outOffset', is one OCTET STRING per command object holding its cryptogram, in the same order
+	 * and with consecutive COUNTER values.
+	 * 
+	 * NOTE: The input and output share the same buffer. The input is first moved to the end of the 
+	 * 		 buffer and each object is then copied forward and encrypted in place, so the buffer must
+	 * 		 have LENGTH_BATCH_OVERHEAD bytes free for each object, plus one.
+	 * 
+	 * NOTE: The output must also fit in LENGTH_BATCH_RESPONSE, allowing LENGTH_BATCH_OVERHEAD for each
+	 * 		 object. Both are checked before the session is used, so a batch that is too long is
+	 * 		 refused without using up any COUNTER values.
+	 */
+	public short setDataBatch(short session, KeyIndex keys, byte[] buffer, short inOffset, short inLength, short outOffset, byte envelope) {
+		
+		short end = (short)(inOffset + inLength);
+
+		// Count the command objects and make sure they exactly fill the input
+		short count = ZERO_SHORT;
+		short offset = inOffset;
+		while (offset < end) {
+			short dataOffset = TlvReader.checkHeader(buffer, offset, end);
+			if (dataOffset < 0) ISOException.throwIt(ISO7816.SW_FILE_INVALID);
+			offset = (short)(dataOffset + TlvReader.getLength(buffer, offset));
+			count++;
+		}
+		if (count == ZERO_SHORT) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		
+		// Make sure the output can be sent in full (it is collected with GET RESPONSE)
+		if (inLength > LENGTH_BATCH_RESPONSE) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		if ((short)(LENGTH_BATCH_RESPONSE - inLength) < (short)(count * LENGTH_BATCH_OVERHEAD)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		
+		// Move the input to the end of the buffer, leaving room for the output to grow
+		short readOffset = (short)((short)buffer.length - inLength);
+		if ((short)(readOffset - outOffset) < (short)((short)(count + 1) * LENGTH_BATCH_OVERHEAD)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		Util.arrayCopyNonAtomic(buffer, inOffset, buffer, readOffset, inLength);
+		
+		short writeOffset = outOffset;
+		boolean complete = false;
+		
+		try {
+			while (count != ZERO_SHORT) {
+			
+				short objectLength = (short)(TlvReader.getDataOffset(buffer, readOffset) - readOffset + TlvReader.getLength(buffer, readOffset));
+				
+				// Copy the object forward to its output position and generate the cryptogram in place
+				short valueOffset = TlvWriter.begin(buffer, writeOffset, TlvReader.ASN1_OCTET_STRING);
+				Util.arrayCopyNonAtomic(buffer, readOffset, buffer, valueOffset, objectLength);
+				readOffset += objectLength;
+				
+				short length = setData(session, keys, buffer, valueOffset, objectLength, buffer, valueOffset, envelope);
+				writeOffset = TlvWriter.end(buffer, valueOffset, (short)(valueOffset + length));
+				count--;
+			}
+			complete = true;
+		} finally {
+			// On any failure, the ICC counter can no longer be matched, so this session must re-authenticate
+			if (!complete) resetAuthentication(session);
+		}
+		
+		return (short)(writeOffset - outOffset);
+	}
 		
-	public void loadFAKey(KeyRecord key, byte[] buffer, short offset, short length) {
+	public void loadFAKey(short session, KeyRecord key, byte[] buffer, short offset, short length) {
 
 		// Make sure the requested keyset has the PLAID_KEK attribute
 		if (!key.getAttrPlaidKEK()) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+
+		// Check that we have been given the correct key type
+		if (key.getType() != PLAIDKey.TYPE_PLAID) ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
 	
 		// Validate that the length is an RSA block
 		if (length != LENGTH_BLOCK_RSA) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
@@ -551,11 +979,12 @@ public class CryptoPLAID {
 		PLAIDKey plaidKey = (PLAIDKey)key.value;
 		
 		try {
-			cspRSA.init(plaidKey.iaKeyPrivate, Cipher.MODE_DECRYPT);
-			cspRSA.doFinal(buffer, offset, length, buffer, offset);			
+			getRSACipher(plaidKey.iaKeyPrivate).doFinal(buffer, offset, length, buffer, offset);			
 		} catch (CryptoException ex) {
 			// The most likely reason for this exception is that the key was wrong
 			// and so the padding validation failed post-decryption.
+			// NOTE: The cipher state after a failure is platform-dependent, so its binding is released.
+			releaseRSACipher(plaidKey.iaKeyPrivate);
 			ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 		}
 		
@@ -571,7 +1000,7 @@ public class CryptoPLAID {
 			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		}
 
-		// Set our internal transport key
-		transportKey.setKey(buffer, offset);		
+		// Set the transport key for this session
+		transportKeys[session].setKey(buffer, offset);		
 	}
 }
@@ -0,0 +1,92 @@
+package com.makina.security.OpenPLAIDSAM;
+
+/**
+ * A persistent key identifier to key slot index for the SAM key container.
+ *
+ * This is an open-addressed hash table (linear probing) holding slot + 1 for each indexed key,
+ * where 0 marks an empty bucket. The table is twice the size of the key container (rounded up
+ * to a power of 2), so lookups normally complete in one or two probes regardless of the number
+ * of keys.
+ *
+ * NOTE: Entries are only ever added (when a key header is first written) and the whole index is
+ * 		 cleared with the key container, so no deletion markers are required.
+ */
+public final class KeyIndex {
+
+	// The key container being indexed
+	private final KeyRecord[] keys;
+
+	// The hash table (slot + 1, or 0 if empty)
+	private final short[] table;
+	private final short mask;
+
+	// Returned when a key identifier is not in the index
+	public static final short NOT_FOUND = (short)-1;
+
+	public KeyIndex(KeyRecord[] keys) {
+
+		this.keys = keys;
+
+		// Size the table to the next power of 2 that is at least twice the container size
+		short size = (short)2;
+		while (size < (short)(keys.length * 2)) size <<= 1;
+
+		table = new short[size];
+		mask = (short)(size - 1);
+	}
+
+	/**
+	 * Returns the key slot for the given key identifier, or NOT_FOUND
+	 */
+	public short findSlot(short id) {
+
+		short bucket = hash(id);
+
+		for (short i = 0; i < (short)table.length; i++) {
+			short slot = (short)(table[bucket] - 1);
+			if (slot < 0) return NOT_FOUND;
+			if (keys[slot].getId() == id) return slot;
+			bucket = (short)((bucket + 1) & mask);
+		}
+
+		return NOT_FOUND;
+	}
+
+	/**
+	 * Returns the key record for the given key identifier, or null
+	 */
+	public KeyRecord find(short id) {
+
+		short slot = findSlot(id);
+		return (slot == NOT_FOUND) ? null : keys[slot];
+	}
+
+	/**
+	 * Adds the key in the given slot to the index, using the identifier from its header
+	 * NOTE: The caller is responsible for ensuring the identifier is not already indexed
+	 */
+	public void add(short slot) {
+
+		short bucket = hash(keys[slot].getId());
+
+		// NOTE: The table can never be full, as it is larger than the key container
+		while (table[bucket] != 0) {
+			bucket = (short)((bucket + 1) & mask);
+		}
+
+		table[bucket] = (short)(slot + 1);
+	}
+
+	/**
+	 * Removes all entries from the index
+	 */
+	public void clear() {
+		for (short i = 0; i < (short)table.length; i++) {
+			table[i] = (short)0;
+		}
+	}
+
+	private short hash(short id) {
+		return (short)((id ^ (id >> 8)) & mask);
+	}
+}
@@ -2,6 +2,7 @@ package com.makina.security.OpenPLAIDSAM;
 
 import javacard.framework.*;
 import javacard.security.*;
+import com.makina.security.OpenPLAIDCore.*;
 
 /**
  *
@@ -30,6 +31,30 @@ public final class KeyRecord {
 	// The key descriptor
     public static final short OFFSET_NAME   = (short)5;
     public static final short LENGTH_NAME	= (short)25;
+
+    /*
+     * Key elements
+     */
+
+    // Indicates that all elements are supplied in a single container (see setRecordAll)
+    public static final byte ELEMENT_ALL		= (byte)0xFF;
+
+    // The largest number of elements for any key type
+    public static final short MAX_ELEMENTS		= (short)8;
+
+    // The single element of a symmetric (AES or TDEA) key, which is the raw key value
+    public static final byte ELEMENT_KEY		= (byte)0;
+
+	// The schemas for loading symmetric keys in one command (see setRecordAll)
+	private static final short LENGTH_AES		= (short)(Config.LENGTH_AES_KEY_BITS / 8);
+	private static final short LENGTH_TDEA		= (short)(Config.LENGTH_TDEA_KEY_BITS / 8);
+
+	private static final byte[] SCHEMA_AES = {
+		ELEMENT_KEY + 1, (byte)(TlvSchema.CLASS_CONTEXT | TlvSchema.FLAG_REQUIRED), 0x00, (byte)LENGTH_AES, 0x00, (byte)LENGTH_AES
+	};
+	private static final byte[] SCHEMA_TDEA = {
+		ELEMENT_KEY + 1, (byte)(TlvSchema.CLASS_CONTEXT | TlvSchema.FLAG_REQUIRED), 0x00, (byte)LENGTH_TDEA, 0x00, (byte)LENGTH_TDEA
+	};
 	
 	
     /*
@@ -41,31 +66,81 @@ public final class KeyRecord {
     
     // This key is permitted to encrypt PLAID key value
     public static final short ATTR_PLAID_KEK      	= (short)(1 << 1);
+
+    /*
+     * Key attributes (General)
+     */
+
+    // This key is permitted to be used as a master key for DERIVE KEY
+    public static final short ATTR_DERIVE      		= (short)(1 << 8);
+
+    // This key is permitted to be used as the transport KEK for IMPORT KEYS
+    public static final short ATTR_IMPORT_KEK  		= (short)(1 << 9);
         
     /*
      * Class variables
      */
-    public final byte[] header;
-    public final Key value;
+    
+    // NOTE: The header and key objects are only built when the slot is first loaded (see allocate),
+    //		 so that unused slots cost nothing but this object. Once built, they are kept and reused.
+    private byte[] header;
+    public Key value;
+    
+    private final byte type;
+    private final short length;
 
     public KeyRecord(byte type, short length) {   
- 
-        header = new byte[LENGTH_HEADER];
-
-        // Handle special TYPE_PLAID key        
-        if (type == PLAIDKey.TYPE_PLAID) {
-        	// Ignore the length value and get it from config
-	        value = new PLAIDKey(Config.LENGTH_RSA_KEY_BITS, Config.LENGTH_AES_KEY_BITS);
-        } else {
-			value = KeyBuilder.buildKey(type, length, false);        		        
-        }
-        
-      }
+    	this.type = type;
+    	this.length = length;
+    }
+    
+    /**
+     * Builds the header and key objects for this slot, if they haven't been already.
+     * 
+     * NOTE: Every object is assigned as soon as it is built, so a failure part way through (for
+     *		 example, running out of persistent memory while building a PLAID key) leaves nothing
+     *		 unreferenced. The next call resumes with the objects that are still missing.
+     */
+    private void allocate() {
+    	
+    	try {
+    		if (header == null) header = new byte[LENGTH_HEADER];
+
+	        // Handle special TYPE_PLAID key        
+	        if (type == PLAIDKey.TYPE_PLAID) {
+	        	// Ignore the length value and get it from config
+	        	if (value == null) value = new PLAIDKey(Config.LENGTH_RSA_KEY_BITS, Config.LENGTH_AES_KEY_BITS);
+	        	((PLAIDKey)value).build();
+	        } else if (value == null) {
+				value = KeyBuilder.buildKey(type, length, false);        		        
+	        }
+    	} catch (SystemException ex) {
+    		// There is not enough persistent memory left for this key
+    		ISOException.throwIt(ISO7816.SW_FILE_FULL);
+    	} catch (CryptoException ex) {
+    		// The platform doesn't support this key type
+    		ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+    	}
+    }
+    
+    /**
+     * Returns the key type of this slot
+     */
+    public byte getType() {
+    	return type;
+    }
+    
+    /**
+     * Returns true if the key objects have been built and all key material has been set
+     */
+    public boolean isInitialized() {
+    	return (value != null) && value.isInitialized();
+    }
     
     public short getHeader(byte[] buffer, short offset) {
     	    	
     	// Set the type byte
-    	buffer[offset++] = value.getType();
+    	buffer[offset++] = type;
     	
     	// Write the header
 	    Util.arrayCopyNonAtomic(header, (short)0, buffer, offset, LENGTH_HEADER);
@@ -75,13 +150,136 @@ public final class KeyRecord {
 	    
     }
     
+    /**
+     * Clears the key material and header.
+     * NOTE: This does not start a transaction. If one is in progress, the header is cleared as part of it.
+     */
     public void clearRecord() {
-	    value.clearKey();	    
-	    Util.arrayFillNonAtomic(header, (short)0, LENGTH_HEADER, (byte)0);
+    	if (value != null) value.clearKey();
+    	if (header != null) {
+    		for (short i = 0; i < LENGTH_HEADER; i++) header[i] = (byte)0;
+    	}
+    }
+    
+    /**
+     * Returns true if neither the header nor any key material has been written.
+     */
+    public boolean isEmpty() {
+    	return (getId() == 0) && !isInitialized();
+    }
+
+    /**
+     * Clears every record in the key table, for use by terminate and select.
+     * 
+     * The records are cleared under as few transactions as the platform commit capacity allows, with
+     * a new transaction started only when the unused capacity could not hold another record. Records
+     * that are already empty are skipped. If the caller is already inside a transaction, the records
+     * are cleared as part of it instead.
+     * 
+     * A record that would not fit in the commit buffer even on its own is cleared outside of any
+     * transaction. Each key object is still cleared atomically by the platform, and if the wipe is
+     * interrupted, the key table is cleared again on the next select (see OpenPLAIDSAM.select).
+     */
+    public static void clearAll(KeyRecord[] keys) {
+    	
+    	boolean owner = (JCSystem.getTransactionDepth() == 0);
+    	boolean pending = false;
+    	
+    	if (owner) JCSystem.beginTransaction();
+    	
+    	for (short i = 0; i < (short)keys.length; i++) {
+    		
+    		if (keys[i].isEmpty()) continue;
+    		
+    		short cost = keys[i].getCommitCost();
+    		
+    		// Clear a record that can never fit in the commit buffer without a transaction
+    		if (owner && (JCSystem.getMaxCommitCapacity() < cost)) {
+    			JCSystem.commitTransaction();
+    			keys[i].clearRecord();
+    			JCSystem.beginTransaction();
+    			pending = false;
+    			continue;
+    		}
+    		
+    		// Commit what we have so far if this record may not fit
+    		if (owner && pending && (JCSystem.getUnusedCommitCapacity() < cost)) {
+    			JCSystem.commitTransaction();
+    			JCSystem.beginTransaction();
+    		}
+    		
+    		keys[i].clearRecord();
+    		pending = true;
+    	}
+    	
+    	if (owner) JCSystem.commitTransaction();
+    }
+    
+    /**
+     * Returns an upper estimate of the commit buffer needed to clear this record
+     */
+    private short getCommitCost() {
+    	short cost = (type == PLAIDKey.TYPE_PLAID) ? PLAIDKey.LENGTH_MATERIAL : (short)(length / 8);
+    	return (short)(cost + LENGTH_HEADER);
     }
     
 	public void setRecord(byte[] buffer, short offset, short length, byte element) {
 		
+		// Build the key objects on first use
+		allocate();
+		
+		// Set (or match) the header
+		setHeader(buffer, offset);
+		
+		// Move past the header
+		offset += LENGTH_HEADER;
+		length -= LENGTH_HEADER;
+		
+		// Set the element
+		setElement(buffer, offset, length, element);
+	}
+
+	/**
+	 * Sets the header and every key element from a single container, in one transaction.
+	 * The expected format is HEADER || SEQUENCE { [ELEMENT + 1] value, ... }
+	 * 
+	 * NOTE: The platform commit capacity must be large enough to hold every element of the key.
+	 *		 If the caller is already inside a transaction, the record is set as part of it instead.
+	 * 
+	 * @param results A scratch array of at least (MAX_ELEMENTS * TlvSchema.LENGTH_RESULT) shorts
+	 */
+	public void setRecordAll(byte[] buffer, short offset, short length, short[] results) {
+
+		byte[] schema = getElementSchema();
+		if (schema == null) ISOException.throwIt(ISO7816.SW_FUNC_NOT_SUPPORTED);
+
+		short end = (short)(offset + length);
+		short container = (short)(offset + LENGTH_HEADER);
+		
+		// Validate the whole container before we touch the record
+		if (container >= end) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		if (TlvReader.getTagNumber(buffer, container) != TlvReader.ASN1_SEQUENCE) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+		if (!TlvSchema.validate(buffer, container, end, schema, results)) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+		// Build the key objects on first use
+		allocate();
+
+		boolean owner = (JCSystem.getTransactionDepth() == 0);
+		if (owner) JCSystem.beginTransaction();
+
+		setHeader(buffer, offset);
+		
+		short count = (short)(schema.length / TlvSchema.LENGTH_ENTRY);
+		for (short i = 0; i < count; i++) {
+			byte element = (byte)(schema[(short)(i * TlvSchema.LENGTH_ENTRY + TlvSchema.OFFSET_TAG)] - 1);
+			setElement(buffer, TlvSchema.getOffset(results, i), TlvSchema.getLength(results, i), element);
+		}
+		
+		if (owner) JCSystem.commitTransaction();
+	}
+	
+	private void setHeader(byte[] buffer, short offset) {
+
 		/*
 		 * HEADER
 		 *
@@ -99,20 +297,43 @@ public final class KeyRecord {
 			}
 		} else {
 			// Set the common header
-			Util.arrayCopyNonAtomic(buffer, offset, header, (short)0, LENGTH_HEADER);        			
+			// NOTE: This is an atomic copy, as it may be part of the transaction in setRecordAll
+			Util.arrayCopy(buffer, offset, header, (short)0, LENGTH_HEADER);        			
 		}
+	}
+
+	private byte[] getElementSchema() {
+
+		switch(type) {
 		
-		// Move past the header
-		offset += LENGTH_HEADER;
-		length -= LENGTH_HEADER;
+		case PLAIDKey.TYPE_PLAID:
+			return PLAIDKey.SCHEMA_ELEMENTS;
+
+		case KeyBuilder.TYPE_AES:
+			return SCHEMA_AES;
+
+		case KeyBuilder.TYPE_DES:
+			return SCHEMA_TDEA;
+			
+		default:
+			return null;
+		}
+	}
+	
+	private void setElement(byte[] buffer, short offset, short length, byte element) {
 		
 		// Call the appropriate record method
-		switch(value.getType()) {
+		switch(type) {
 			
 		case PLAIDKey.TYPE_PLAID:
 			setRecordTYPE_PLAID(buffer, offset, length, element);
 			break;
 
+		case KeyBuilder.TYPE_AES:
+		case KeyBuilder.TYPE_DES:
+			setRecordSymmetric(buffer, offset, length, element);
+			break;
+
 		default:
 			// This should never be reached and indicates that the applet constructor is generating keys of an unsupported type
 			ISOException.throwIt(ISO7816.SW_FILE_INVALID);
@@ -166,26 +387,52 @@ public final class KeyRecord {
 		}
 	}
 	
+	private void setRecordSymmetric(byte[] buffer, short offset, short length, byte element) {
+
+		// There is only the one element
+		if (element != ELEMENT_KEY) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+		// The value must be exactly the key length
+		if (length != (short)(value.getSize() / 8)) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		if (type == KeyBuilder.TYPE_AES) {
+			((AESKey)value).setKey(buffer, offset);
+		} else {
+			((DESKey)value).setKey(buffer, offset);
+		}
+	}
+	
     /*
      * Key header helper methods     
      */
 
     public short getId() {
-        return Util.getShort(header, OFFSET_ID);
+    	// NOTE: A slot that has never been loaded has no header, and so no identifier
+        return (header == null) ? (short)0 : Util.getShort(header, OFFSET_ID);
     }
 
     public byte getVersion() {
-        return header[OFFSET_VERSION];
+        return (header == null) ? (byte)0 : header[OFFSET_VERSION];
     }    
 
     public boolean getAttrPlaidAuth() {
-    	short attr = Util.getShort(header, OFFSET_KEY_ATTR);
-        return ( (attr & ATTR_PLAID_AUTH) != 0x00 );
+        return ( (getAttributes() & ATTR_PLAID_AUTH) != 0x00 );
     }
     
     public boolean getAttrPlaidKEK() {
-    	short attr = Util.getShort(header, OFFSET_KEY_ATTR);
-        return ( (attr & ATTR_PLAID_KEK) != 0x00 );
+        return ( (getAttributes() & ATTR_PLAID_KEK) != 0x00 );
+    }
+
+    public boolean getAttrDerive() {
+        return ( (getAttributes() & ATTR_DERIVE) != 0x00 );
+    }
+
+    public boolean getAttrImportKEK() {
+        return ( (getAttributes() & ATTR_IMPORT_KEK) != 0x00 );
+    }
+    
+    private short getAttributes() {
+    	return (header == null) ? (short)0 : Util.getShort(header, OFFSET_KEY_ATTR);
     }
     
 }
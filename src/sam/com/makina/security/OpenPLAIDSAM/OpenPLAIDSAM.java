@@ -1,12 +1,23 @@
 package com.makina.security.OpenPLAIDSAM;
 
 import javacard.framework.*;
+import javacard.security.*;
 import javacardx.apdu.ExtendedLength;
+import com.makina.security.OpenPLAIDCore.*;
  
-public class OpenPLAIDSAM extends Applet implements ExtendedLength
+public class OpenPLAIDSAM extends Applet implements ExtendedLength, MultiSelectable
 {
 	
 	private byte[] commandBuffer;	
+	private ApduIO apduIO;
+
+	// The PIN validation status for each logical channel
+	// NOTE: The OwnerPIN validated flag is shared by all channels, so it is only used transiently
+	//		 during a PIN check and the result is recorded here.
+	private boolean[] pinValidated;
+
+	// LOAD KEY element validation results (see KeyRecord.setRecordAll)
+	private short[] elementResults;
 	
 	/*
 	 * PERSISTENT applet variables (EEPROM)
@@ -15,7 +26,12 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 	private byte[] persistentState;
 	private OwnerPIN pin;
 	private KeyRecord[] keys;
+	private short[] keyPools;
+	private KeyIndex keyIndex;
 	private CryptoPLAID cspPLAID;	
+	private CryptoKDF cspKDF;
+	private CryptoImport cspImport;
+	private Telemetry telemetry;
 	
 	/*
 	 * Applet constants (Generally not required to change)
@@ -33,12 +49,16 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 	private static final byte INS_TERMINATE			= (byte)0x15;
 	private static final byte INS_LOAD_KEY	 		= (byte)0x16;
 	private static final byte INS_READ_NEXT_KEY		= (byte)0x17;
+	private static final byte INS_READ_KEY_DIRECTORY	= (byte)0x18;
+	private static final byte INS_DERIVE_KEY		= (byte)0x19;
+	private static final byte INS_IMPORT_KEYS		= (byte)0x1A;
 	
 	// Applet Commands - PLAID
 	private static final byte INS_PLAID_LOAD_FAKEY 	= (byte)0x81;	
 	private static final byte INS_PLAID_SET_DATA 	= (byte)0x82;
 	private static final byte INS_PLAID_INITIAL_AUTH= (byte)0x87;
 	private static final byte INS_PLAID_FINAL_AUTH  = (byte)0x86;
+	private static final byte INS_PLAID_TRANSPORT_AUTH = (byte)0x88;
 
 	//
 	// Persistent state definitions
@@ -69,6 +89,45 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 																	LENGTH_SYSTEM_DIV
 																	);
 	
+	// PLAID command P1/P2 layout
+	// NOTE: The high nibble of P1 addresses the session context (session 0 is the default).
+	//		 Where a key is required, the remaining 12 bits hold either the key index, or the
+	//		 P1_KEY_BY_ID flag with the index bits zero, in which case the command data is
+	//		 prefixed with the 2-byte key identifier.
+	private static final short MASK_P1P2_INDEX		= (short)0x07FF;
+	private static final byte P1_KEY_BY_ID			= (byte)0x08;
+
+	// PLAID INITIAL AUTH P2 flags (only with P1_KEY_BY_ID, in place of the zero index bits)
+	private static final byte P2_IA_KEY_LIST		= (byte)0x01; // The data is prefixed with a list of candidate key identifiers
+	private static final byte P2_IA_CONSTANT_TIME	= (byte)0x02; // Try every candidate, each with the same work, regardless of which one succeeds
+	private static final byte MASK_P2_IA			= (byte)(P2_IA_KEY_LIST | P2_IA_CONSTANT_TIME);
+
+	// PLAID SET DATA P2 flags
+	private static final byte P2_SET_DATA_BATCH		= (byte)0x01; // The data holds several command objects
+	private static final byte P2_SET_DATA_CMAC		= (byte)0x02; // Use the AES-CMAC envelope (PLAIDProtocol.ENVELOPE_CMAC)
+	private static final byte MASK_P2_SET_DATA		= (byte)(P2_SET_DATA_BATCH | P2_SET_DATA_CMAC);
+
+	// GET STATUS P2 values
+	private static final byte P2_STATUS_BASIC		= (byte)0x00;
+	private static final byte P2_STATUS_TELEMETRY	= (byte)0x01;
+
+	// GET STATUS telemetry response tags (context-specific)
+	private static final byte TAG_TELEMETRY_GLOBAL	= (byte)0;
+	private static final byte TAG_TELEMETRY_KEY		= (byte)1;
+	private static final byte TAG_TELEMETRY_KEY_ID	= (byte)0;
+	private static final byte TAG_TELEMETRY_COUNTS	= (byte)1;
+	private static final short LENGTH_TELEMETRY_KEY	= (short)(2 + 4 + 2 + Telemetry.LENGTH_ENCODED);
+
+	// Key container pools
+	// NOTE: Each key type has its own contiguous range of slots in the key container, in this order.
+	//		 The keyPools array holds the first slot of each pool, followed by the container length.
+	private static final byte[] POOL_TYPES = { PLAIDKey.TYPE_PLAID, KeyBuilder.TYPE_AES, KeyBuilder.TYPE_DES };
+
+	// READ KEY DIRECTORY response layout
+	// NOTE: The response is NEXT (2) followed by one INDEX (2) | TYPE (1) | HEADER entry per key.
+	private static final short LENGTH_DIRECTORY_ENTRY	= (short)(2 + 1 + KeyRecord.LENGTH_HEADER);
+	private static final short DIRECTORY_END			= (short)-1; // NEXT value when there are no more keys
+
 	// Application States
 	private static final byte STATE_SELECTABLE 			= (byte)0x00;
 	private static final byte STATE_PERSONALISED 		= (byte)0x01;	
@@ -81,7 +140,18 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 	private static final short LENGTH_SHORT = (short)2;
 
 	
-	public OpenPLAIDSAM() {
+	/**
+	 * Creates the applet instance.
+	 * 
+	 * The install parameters (applet data) may hold the number of key slots for each key type, as one
+	 * byte each in the order PLAID, AES, TDEA. Any count that isn't supplied uses the Config default.
+	 * The total may not exceed Config.MAX_KEYS_TOTAL, otherwise the installation fails.
+	 * 
+	 * @param bArray The buffer holding the applet data
+	 * @param bOffset The offset of the applet data
+	 * @param bLength The length of the applet data
+	 */
+	public OpenPLAIDSAM(byte[] bArray, short bOffset, short bLength) {
 
 		// Create our extended length command buffer
 		if (Config.FEATURE_EXTENDED_APDU_IN_RAM) {
@@ -96,6 +166,22 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 			// Create it in EEPROM
 			commandBuffer = new byte[Config.LENGTH_COMMAND_BUFFER];
 		}
+
+		// Create our command receive / response send helper, with a RAM buffer for chained responses
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			apduIO = new ApduIO(commandBuffer, JCSystem.makeTransientByteArray(Config.LENGTH_RESPONSE_BUFFER, JCSystem.CLEAR_ON_RESET), Config.MAX_CHANNELS, JCSystem.CLEAR_ON_RESET);
+		} else {
+			apduIO = new ApduIO(commandBuffer, JCSystem.makeTransientByteArray(Config.LENGTH_RESPONSE_BUFFER, JCSystem.CLEAR_ON_DESELECT), Config.MAX_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+		}
+
+		// Create our per-channel PIN validation status and LOAD KEY scratch space
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			pinValidated = JCSystem.makeTransientBooleanArray(Config.MAX_CHANNELS, JCSystem.CLEAR_ON_RESET);
+			elementResults = JCSystem.makeTransientShortArray((short)(KeyRecord.MAX_ELEMENTS * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_RESET);
+		} else {
+			pinValidated = JCSystem.makeTransientBooleanArray(Config.MAX_CHANNELS, JCSystem.CLEAR_ON_DESELECT);
+			elementResults = JCSystem.makeTransientShortArray((short)(KeyRecord.MAX_ELEMENTS * TlvSchema.LENGTH_RESULT), JCSystem.CLEAR_ON_DESELECT);
+		}
 		
 		// Create our persistent state
 		persistentState = new byte[LENGTH_PERSISTENT_STATE];
@@ -105,37 +191,89 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		
 		// Create our CSP's
 		cspPLAID = new CryptoPLAID();
+		cspKDF = new CryptoKDF();
+		cspImport = new CryptoImport();
 
 		// Create our operator PIN
 		pin = new OwnerPIN(Config.PIN_RETRIES_MAX, Config.LENGTH_PIN_MAX);	
 								   		
+		// Size each key pool from the install parameters (or the defaults)
+		short countPLAID = getInstallCount(bArray, bOffset, bLength, (short)0, Config.MAX_KEYS_PLAID);
+		short countAES = getInstallCount(bArray, bOffset, bLength, (short)1, Config.MAX_KEYS_AES);
+		short countTDEA = getInstallCount(bArray, bOffset, bLength, (short)2, Config.MAX_KEYS_TDEA);
+		if ((short)(countPLAID + countAES + countTDEA) > Config.MAX_KEYS_TOTAL) ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+
 		// Generate our key storage container
-		keys = new KeyRecord[Config.MAX_KEYS_PLAID];
+		// NOTE: The key objects themselves are built on the first LOAD KEY for each slot
+		keys = new KeyRecord[(short)(countPLAID + countAES + countTDEA)];
+		keyPools = new short[(short)(POOL_TYPES.length + 1)];
 
 		short index = 0;
 
-		// Pre-allocate the keys of type PLAID
-		for (short i = 0; i < Config.MAX_KEYS_PLAID; i++) {
+		// The slots of type PLAID
+		keyPools[0] = index;
+		for (short i = 0; i < countPLAID; i++) {
 			keys[index] = new KeyRecord(PLAIDKey.TYPE_PLAID, Config.LENGTH_RSA_KEY_BITS);
 			index++;	
 		}		
+
+		// The slots of type AES
+		keyPools[1] = index;
+		for (short i = 0; i < countAES; i++) {
+			keys[index] = new KeyRecord(KeyBuilder.TYPE_AES, Config.LENGTH_AES_KEY_BITS);
+			index++;	
+		}		
+
+		// The slots of type DES (2-key TDEA)
+		keyPools[2] = index;
+		for (short i = 0; i < countTDEA; i++) {
+			keys[index] = new KeyRecord(KeyBuilder.TYPE_DES, Config.LENGTH_TDEA_KEY_BITS);
+			index++;	
+		}		
+		keyPools[3] = index;
+
+		// Create the key identifier index
+		keyIndex = new KeyIndex(keys);
+
+		// Create the operation counters (for the PLAID slots, which are the first in the table)
+		telemetry = new Telemetry(countPLAID);
 	}
 
 	public static void install(byte[] bArray, short bOffset, byte bLength) 
 	{
-		new OpenPLAIDSAM().register(bArray, (short) (bOffset + 1), bArray[bOffset]);
+		// The install parameters are: [Li] [AID] [Lc] [Control info] [La] [Applet data]
+		short aidOffset = (short)(bOffset + 1);
+		byte aidLength = bArray[bOffset];
+		short offset = (short)(aidOffset + aidLength);
+		offset += (short)((bArray[offset] & 0xFF) + 1);
+		short dataLength = (short)(bArray[offset] & 0xFF);
+		
+		new OpenPLAIDSAM(bArray, (short)(offset + 1), dataLength).register(bArray, aidOffset, aidLength);
+	}
+
+	/**
+	 * Returns the key slot count at position 'index' of the install applet data, or the default
+	 * if the applet data is too short to hold it.
+	 */
+	private static short getInstallCount(byte[] bArray, short bOffset, short bLength, short index, short defaultCount) {
+		return (index < bLength) ? (short)(bArray[(short)(bOffset + index)] & 0xFF) : defaultCount;
 	}
 
 
 	public boolean select() {
+
+		// Refuse selection on a logical channel we have no context for
+		if (JCSystem.getAssignedChannel() >= Config.MAX_CHANNELS) return false;
+
+		// Start this channel with a clean authentication state
+		resetChannel();
 		
 		// Set the application state to TERMINATED
 		if (persistentState[OFFSET_APPLET_STATE] == STATE_TERMINATED) {
 			
 			// Delete all key material
-			for (short i = 0; i < keys.length; i++) {
-				keys[i].clearRecord();
-			}			
+			KeyRecord.clearAll(keys);
+			keyIndex.clear();
 			
 			// Prevent selection
 			if (Config.FEATURE_PREVENT_SELECT_IF_TERMINATED) {
@@ -146,6 +284,28 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		return true;		
 	}
 
+	public void deselect() {
+		deselect(false);
+	}
+
+	public boolean select(boolean appInstAlreadyActive) {
+		return select();
+	}
+
+	public void deselect(boolean appInstStillActive) {
+
+		// Clear the authentication state for the channel being closed
+		resetChannel();
+
+		// Clear the diversified and derived key caches once no channel has the applet selected
+		// NOTE: The caches are shared by all channels, so they are kept while another channel may
+		//		 still be using them. With FEATURE_CLEAR_ON_RESET, the platform doesn't clear them.
+		if (!appInstStillActive) {
+			cspPLAID.clearCache();
+			cspKDF.clearCache();
+		}
+	}
+
 	public void process(APDU apdu)
 	{
 		// Restrict the OpenPLAIDSAM to the contact interface
@@ -161,60 +321,22 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
             ISOException.throwIt(ISO7816.SW_CLA_NOT_SUPPORTED);
         }
         
-        /*
-         * Handle incoming extended APDU sizes
-         */
+		// IMPORT KEYS is streamed, so it receives its own data as it arrives
+		if (apdu.getBuffer()[ISO7816.OFFSET_INS] == INS_IMPORT_KEYS) {
+			apduIO.send(apdu, apdu.getBuffer(), ZERO_SHORT, processIMPORT_KEYS(apdu));
+			return;
+		}
 
-		short recvBytes = apdu.setIncomingAndReceive();
+		// Receive the command data (extended length and chained commands are assembled in the command buffer)
+		byte[] buffer = apduIO.receive(apdu);
+		if (buffer == null) return; // A chained command segment or GET RESPONSE (already handled)
 		
-		byte[] buffer = apdu.getBuffer();
-		short length = apdu.getIncomingLength();
-		short offset = apdu.getOffsetCdata();
-		
-		// If there is any data to receive
-		if (length != 0) {
-
-			// Check to see if we have an extended APDU
-			if (recvBytes < length) {
-				
-				// Clear the command buffer to be safe
-				Util.arrayFillNonAtomic(commandBuffer, ZERO_SHORT, Config.LENGTH_COMMAND_BUFFER, (byte)0x00);
-
-				// Write the CAPDU header into our command buffer
-				Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, ZERO_SHORT, offset);
+		short offset = apduIO.getOffset();
+		short length = apduIO.getLength();
 
-				// Write the initially received bytes into our command buffer
-				Util.arrayCopyNonAtomic(buffer, offset, commandBuffer, offset, recvBytes);
-
-				// Offset to write to command buffer			
-				short recvOffset = (short)(recvBytes + offset); 
-				short bytesRemaining = (short)(length - recvBytes);
-				
-				while (bytesRemaining != 0) {	
-						
-					// Retrieve the next allocation of bytes
-					recvBytes = apdu.receiveBytes(ZERO_SHORT);
-
-					// Make sure we're not writing past our commandBuffer length
-					if ((short)(recvOffset + recvBytes) > Config.LENGTH_COMMAND_BUFFER) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-					
-					// Copy the bytes into our command buffer
-					Util.arrayCopyNonAtomic(buffer, ZERO_SHORT, commandBuffer, recvOffset, recvBytes);					
-
-					// Move the offset forward
-					recvOffset += recvBytes; 										
-					bytesRemaining -= recvBytes;
-					
-				} 			
-				
-				// Point our buffer reference to the commandBuffer instead
-				buffer = commandBuffer;
-				//apdu.setOutgoing();
-				//apdu.setOutgoingLength((short)(length + offset));
-				//apdu.sendBytesLong(buffer, ZERO_SHORT, (short)(length + offset));
-				//return;
-			}
-		}
+		// The buffer holding the response (the command buffer, unless the command builds its
+		// response elsewhere)
+		byte[] response = buffer;
 		
 		// Call the appropriate process method based on the INS        
 		switch (buffer[ISO7816.OFFSET_INS])
@@ -228,6 +350,11 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		case INS_ACTIVATE: length = processACTIVATE(buffer, offset, length); break;
 		case INS_LOAD_KEY: length = processLOAD_KEY(buffer, offset, length); break;
 		case INS_READ_NEXT_KEY: length = processREAD_NEXT_KEY(buffer, offset, length); break;
+		case INS_READ_KEY_DIRECTORY:
+			response = apduIO.getResponseBuffer();
+			length = processREAD_KEY_DIRECTORY(buffer, response);
+			break;
+		case INS_DERIVE_KEY: length = processDERIVE_KEY(buffer, offset, length); break;
 		case INS_TERMINATE: length = processTERMINATE(buffer, offset, length); break;
 
 		// PLAID Commands
@@ -235,20 +362,16 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		case INS_PLAID_SET_DATA: length = processPLAID_SET_DATA(buffer, offset, length); break;
 		case INS_PLAID_INITIAL_AUTH: length = processPLAID_INITIAL_AUTH(buffer, offset, length); break;
 		case INS_PLAID_FINAL_AUTH: length = processPLAID_FINAL_AUTH(buffer, offset, length); break;
+		case INS_PLAID_TRANSPORT_AUTH: length = processPLAID_TRANSPORT_AUTH(buffer, offset, length); break;
 		
 		default:
 			ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 		}
 		
 		// Send any outgoing data
-		// NOTES: 		
-		// - We are always sending as if sending an extended APDU response.
-		// - It is presumed here that the outgoing data is at the start of the apdu buffer
-		if (length > 0) {
-			apdu.setOutgoing();
-			apdu.setOutgoingLength(length);
-			apdu.sendBytesLong(buffer, ZERO_SHORT, length);
-		}
+		// NOTE: It is presumed here that the outgoing data is at the start of the buffer. Responses
+		//       longer than the command's Le are chained (61xx / GET RESPONSE).
+		apduIO.send(apdu, response, ZERO_SHORT, length);
 	}
 
 	/**
@@ -311,7 +434,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 			// The reason we do this is because the OwnerPIN object doesn't provide any way to check if
 			// it has been set or not! By verifying, we set the PIN's validation status and we can
 			// check this when activating.
-			if (!pin.check(apdu, offset, (byte)length))
+			if (!checkPIN(apdu, offset, (byte)length))
 			{
 				// Just a sanity check. There's no reason we should ever get here.
 				ISOException.throwIt(ISO7816.SW_UNKNOWN);
@@ -380,6 +503,13 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// Reuse these as we don't care about the incoming data
 		offset = ZERO_SHORT;
 		length = ZERO_SHORT;
+
+		// If requested, return the operation counters instead
+		switch (apdu[ISO7816.OFFSET_P2]) {
+		case P2_STATUS_BASIC: break;
+		case P2_STATUS_TELEMETRY: return getTelemetry(apdu, offset);
+		default: ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		}
 		
 		// 1. Applet State + Profile + ESN
 		Util.arrayCopyNonAtomic(persistentState, ZERO_SHORT, apdu, ZERO_SHORT, LENGTH_PERSISTENT_STATE);
@@ -395,8 +525,8 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// 3. Reserved
 		apdu[offset++] = (byte)0x00;
 		
-		// 4. PLAID Authentication State
-		apdu[offset++] = cspPLAID.getAuthState();
+		// 4. PLAID Authentication State (for the session addressed by P1)
+		apdu[offset++] = cspPLAID.getAuthState(getSession(apdu));
 
 		// 5. PIN Authentication State
 		
@@ -404,13 +534,53 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 			// The PIN is blocked
 			apdu[offset++] = (byte)0xFF;			
 		} else {
-			apdu[offset++] = (pin.isValidated()) ? (byte)0x01 : (byte)0x00;						
+			apdu[offset++] = (isPINValidated()) ? (byte)0x01 : (byte)0x00;						
 		}
 
 		// Return the status bytes
 		return offset; // The offset variable holds the length of the status bytes
 	}
 
+	/**
+	 * Writes the operation counters (see Telemetry) in the form:
+	 * 
+	 * SEQUENCE {
+	 *   [0] OCTET STRING				-- Global counters
+	 *   [1] SEQUENCE {					-- For each tracked key slot that has a key identifier
+	 *     [0] OCTET STRING (2)			-- Key identifier
+	 *     [1] OCTET STRING				-- Key counters
+	 *   }
+	 * }
+	 * 
+	 * Each counter block holds an OK and FAIL count (2 bytes each) for INITIAL AUTH, FINAL AUTH and SET DATA.
+	 * Only the first Config.COUNT_TELEMETRY_KEYS PLAID slots have their own counters (see Telemetry).
+	 */
+	private short getTelemetry(byte[] apdu, short offset) {
+		
+		short start = offset;
+		short sequence = TlvWriter.begin(apdu, offset, TlvWriter.makeTag(TlvReader.TLV_CLASS_UNIVERSAL, true, TlvReader.ASN1_SEQUENCE));
+		
+		// Global
+		offset = TlvWriter.begin(apdu, sequence, TlvWriter.makeTag(TlvReader.TLV_CLASS_CONTEXT, false, TAG_TELEMETRY_GLOBAL));
+		offset = TlvWriter.end(apdu, offset, telemetry.write(Telemetry.NO_SLOT, apdu, offset));
+		
+		// Keys
+		// NOTE: Entries that would not fit in the buffer (allowing for the SEQUENCE length to grow) are omitted.
+		for (short i = 0; i < telemetry.getTrackedCount(); i++) {
+			if (keys[i].getId() == ZERO_SHORT) continue;
+			if ((short)(offset + LENGTH_TELEMETRY_KEY + 2) > (short)apdu.length) break;
+			
+			short key = TlvWriter.begin(apdu, offset, TlvWriter.makeTag(TlvReader.TLV_CLASS_CONTEXT, true, TAG_TELEMETRY_KEY));
+			offset = TlvWriter.writeShort(apdu, key, TlvWriter.makeTag(TlvReader.TLV_CLASS_CONTEXT, false, TAG_TELEMETRY_KEY_ID), keys[i].getId());
+			offset = TlvWriter.begin(apdu, offset, TlvWriter.makeTag(TlvReader.TLV_CLASS_CONTEXT, false, TAG_TELEMETRY_COUNTS));
+			offset = TlvWriter.end(apdu, offset, telemetry.write(i, apdu, offset));
+			offset = TlvWriter.end(apdu, key, offset);
+		}
+		
+		offset = TlvWriter.end(apdu, sequence, offset);
+		return (short)(offset - start);
+	}
+
 	/**
 	 * Resets the current state for all cryptographic service providers and the applet PIN.
 	 * 
@@ -431,11 +601,14 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 * EXECUTION STEPS
 		 */
 
-		// 2. Clear the PIN authentication status
-		pin.reset();
+		// 2. Clear the PIN authentication status and all authentication context values
+		// NOTE: This only applies to the current logical channel
+		resetChannel();
 
-		// 3. Clear all authentication context values
-		cspPLAID.resetAuthentication();
+		// 3. Clear the diversified and derived key caches
+		// NOTE: These are shared by all channels, so this also affects other channels' cache hits
+		cspPLAID.clearCache();
+		cspKDF.clearCache();
 
 		// No response
 		return ZERO_SHORT;
@@ -463,10 +636,10 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 */
 		 
 		// EXECUTION STEP 1 - Clear the previous validation (if any)
-		pin.reset();
+		pinValidated[JCSystem.getAssignedChannel()] = false;
 		
 		// EXECUTION STEP 2 - Verify the PIN	
-		boolean valid = pin.check(apdu, offset, (byte)length);
+		boolean valid = checkPIN(apdu, offset, (byte)length);
 		
 		if (!valid) {
 			
@@ -507,7 +680,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 
 		// PRE-CONDITION 3 - The PIN must be set	
 		// NOTE: The OwnerPIN was previously validated by the SET DATA command during PIN update (see notes in SET DATA)
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
 		// PRE-CONDITION 4 - The Profile Identifier must be set (non-zero)
 		if (arrayIsZero(persistentState, OFFSET_PROFILE, LENGTH_PROFILE)) {
@@ -523,11 +696,14 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 * EXECUTION STEPS 
 		 */
 
-		// EXECUTION STEP 1 - Set the application state to PERSONALISED
+		// EXECUTION STEP 1 - Erase any keys left over from an IMPORT KEYS stream that didn't complete
+		discardImport();
+
+		// EXECUTION STEP 2 - Set the application state to PERSONALISED
 		persistentState[OFFSET_APPLET_STATE] = STATE_PERSONALISED;
 
-		// EXECUTION STEP 2 - Clear the PIN authentication status
-		pin.reset();
+		// EXECUTION STEP 3 - Clear the PIN authentication status
+		pinValidated[JCSystem.getAssignedChannel()] = false;
 
 		// No response
 		return ZERO_SHORT;
@@ -552,7 +728,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// Considering a host can just supply a PIN wrong [n] times and the card will still terminate, there
 		// isn't much benefit in checking this except as a sanity check. Still, we retain it for down the track
 		// when we add PUK functionality.
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
 		/*
 		 * EXECUTION STEPS 
@@ -579,9 +755,9 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// PRE-CONDITION 1 - The application life-cycle state must be set to SELECTABLE
 		if (persistentState[OFFSET_APPLET_STATE] != STATE_SELECTABLE) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
-		// PRE-CONDITION 2 - P1 must be set to a valid key type
-		// NOTE: We don't worry about limiting this value to the list of actually supported key types
-		// 		 as the slot availability step will always fail if given an invalid key type.
+		// PRE-CONDITION 2 - P1 must be set to a key type that has a slot pool
+		short pool = getKeyPool(apdu[ISO7816.OFFSET_P1]);
+		if (pool < 0) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 
 		// PRE-CONDITION 3 - The APDU data must be at least the size of LENGTH_HEADER
 		// NOTE: The individual key type functions will check their required lengths
@@ -590,15 +766,16 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// PRE-CONDITION 4 - The record envelope must be valid
 		/*
 		 * IMPLEMENTATION NOTE:
-		 * It is not currently in scope to encrypt and/or MAC the key export records, as it assumed
-		 * it will be held in 3-part export format in a trusted high-security storage.
+		 * LOAD KEY records are neither encrypted nor MACed, as it is assumed they will be held in
+		 * 3-part export format in a trusted high-security storage.
 		 *
-		 * Nonetheless, it is noted here that this would be a reasonably straight-forward process to
-		 * implement.
+		 * For protected (and bulk) loading, see IMPORT KEYS.
 		 */
 
 		// PRE-CONDITION 5 - There must be no existing keys with this key identifier.
-		// TODO: Implement duplicate detection (by ID and Version)
+		// NOTE: This is evaluated against the selected slot in the execution steps below, as a
+		//		 multi-APDU LOAD KEY will find its own identifier in the index.
+		short existing = keyIndex.findSlot(Util.getShort(apdu, (short)(offset + KeyRecord.OFFSET_ID)));
 
 		// PRE-CONDITION 6 - There must be an available slot for this key type		
 		// NOTE: This is evaluated in the execution cases below.		
@@ -609,28 +786,244 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 * EXECUTION STEPS 
 		 */
 
-		short index = -1;				
-			
-		// EXECUTION STEP 1 - Find an available key slot of the type specified in P1
-		for (short i = 0; i < keys.length; i++) {
-			if ((keys[i].value.getType() == apdu[ISO7816.OFFSET_P1] ) && !keys[i].value.isInitialized() ) {
-				// We found an empty space of the appropriate type
-				index = i;
-				break;
-			}
-		}
+		// EXECUTION STEP 1 - Find an available key slot in the pool for the type specified in P1
+		short index = findFreeSlot(pool);
 
 		// No key slot was found
 		if (index < 0) ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		// The key identifier belongs to another key
+		if (existing != KeyIndex.NOT_FOUND && existing != index) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
 		
 		// EXECUTION STEP 2 - Set the key record
-		keys[index].setRecord(apdu, offset, length, apdu[ISO7816.OFFSET_P2]);
+		// NOTE: If P2 is ELEMENT_ALL, the data holds every element of the key in one container
+		if (apdu[ISO7816.OFFSET_P2] == KeyRecord.ELEMENT_ALL) {
+			keys[index].setRecordAll(apdu, offset, length, elementResults);
+		} else {
+			keys[index].setRecord(apdu, offset, length, apdu[ISO7816.OFFSET_P2]);
+		}
+
+		// EXECUTION STEP 3 - Add the key identifier to the index (if this is the first element)
+		if (existing == KeyIndex.NOT_FOUND) keyIndex.add(index);
 		
-		// EXECUTION STEP 3 - Return the index that was written to
+		// EXECUTION STEP 4 - Return the index that was written to
 		Util.setShort(apdu, ZERO_SHORT, index);
 		return LENGTH_SHORT;
 	}
 
+	/**
+	 * Loads many keys from a stream that is encrypted and MACed under a transport KEK (see
+	 * CryptoImport for the stream format).
+	 * 
+	 * Each decrypted entry holds one key in the form:
+	 * 
+	 *   TYPE (1) || LENGTH (2) || HEADER || SEQUENCE { [ELEMENT + 1] value, ... }
+	 * 
+	 * where LENGTH covers the header and element container (as for LOAD KEY with ELEMENT_ALL).
+	 * 
+	 * The stream may be sent as a chain of command segments (ISO7816-4 command chaining) of any
+	 * length, and is processed as it arrives rather than assembled first. Each entry is decrypted
+	 * into the command buffer, which only needs to hold one entry (up to one PLAID key), and is
+	 * written to a free slot once its MAC has been verified.
+	 * 
+	 * The keys are only added to the key index (so that they can be found by identifier) once the
+	 * last entry has been loaded, under one transaction. If the stream fails, or is abandoned, the
+	 * keys loaded from it so far are erased, so either all of the keys are loaded or none of them
+	 * are. Keys left over from a stream that was interrupted (for example by a reset) are erased by
+	 * the next IMPORT KEYS or by ACTIVATE.
+	 * 
+	 * NOTE: The first segment must hold at least the stream header.
+	 * 
+	 * The response to the last segment is the number of keys loaded. The other segments have no
+	 * response.
+	 * 
+	 * @param apdu The incoming APDU context
+	 */
+	private short processIMPORT_KEYS(APDU apdu)
+	{
+		/*
+		 * PRE-CONDITION STEPS
+		 */ 
+
+		// PRE-CONDITION 1 - The application life-cycle state must be set to SELECTABLE
+		if (persistentState[OFFSET_APPLET_STATE] != STATE_SELECTABLE) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		byte stream = apduIO.receiveStream(apdu);
+		byte[] buffer = apdu.getBuffer();
+		short offset = apduIO.getOffset();
+		short length = apduIO.getLength();
+
+		// PRE-CONDITION 2 - A segment after the first must continue a stream that hasn't failed
+		if ((stream & ApduIO.STREAM_FIRST) == 0 && !cspImport.isActive()) failImport(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		/*
+		 * EXECUTION STEPS 
+		 */
+
+		try {
+
+			// EXECUTION STEP 1 - Start the stream from its header
+			if ((stream & ApduIO.STREAM_FIRST) != 0) {
+
+				// Erase anything left of an earlier stream that didn't complete
+				discardImport();
+
+				// The first segment must hold the header
+				if (length < CryptoImport.LENGTH_HEADER) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+				// The transport KEK must be an initialised key
+				// NOTE: The KEK attribute and type are checked by the import CSP internally.
+				KeyRecord kek = keyIndex.find(Util.getShort(buffer, (short)(offset + CryptoImport.OFFSET_KEK_ID)));
+				if (kek == null || !kek.isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+
+				cspImport.begin(kek, buffer, offset);
+				offset += CryptoImport.LENGTH_HEADER;
+				length -= CryptoImport.LENGTH_HEADER;
+			}
+
+			// EXECUTION STEP 2 - Verify, decrypt and load each entry as it arrives
+			while (true) {
+
+				// Receive the next part of the segment once the last one has been used
+				if (length == ZERO_SHORT) {
+					offset = ZERO_SHORT;
+					length = apduIO.receiveNext(apdu);
+					if (length == ZERO_SHORT) break;
+				}
+
+				short used = cspImport.update(buffer, offset, length, commandBuffer);
+				offset += used;
+				length -= used;
+
+				short entryLength = cspImport.getEntryLength();
+				if (entryLength != ZERO_SHORT) {
+					importEntry(entryLength);
+					Util.arrayFillNonAtomic(commandBuffer, ZERO_SHORT, entryLength, ZERO_BYTE);
+					cspImport.nextEntry();
+				} else if (length != ZERO_SHORT) {
+					// There is data after the last entry
+					ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+				}
+			}
+
+			// Wait for the next segment
+			if ((stream & ApduIO.STREAM_LAST) == 0) return ZERO_SHORT;
+
+			// EXECUTION STEP 3 - Index the keys once every entry has been loaded
+			if (!cspImport.isComplete()) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			length = commitImport();
+
+		} catch (ISOException ex) {
+			failImport(ex.getReason());
+		} catch (TlvException ex) {
+			// A key record container that can't be parsed
+			failImport(ISO7816.SW_DATA_INVALID);
+		} catch (CryptoException ex) {
+			// A key element the platform refused
+			failImport(ISO7816.SW_DATA_INVALID);
+		} catch (TransactionException ex) {
+			// A key that needs more than the platform commit capacity allows
+			failImport(ISO7816.SW_FILE_FULL);
+		}
+
+		cspImport.reset();
+
+		// EXECUTION STEP 4 - Return the number of keys loaded
+		Util.setShort(buffer, ZERO_SHORT, length);
+		return LENGTH_SHORT;
+	}
+
+	/**
+	 * Loads the IMPORT KEYS entry at the start of the command buffer into a free slot, without
+	 * adding it to the key index (see commitImport)
+	 */
+	private void importEntry(short length)
+	{
+		// Read the entry header
+		// NOTE: The entry is at least LENGTH_ENTRY_HEADER long, as its LENGTH was checked against
+		//		 its padding when it was verified.
+		short pool = getKeyPool(commandBuffer[CryptoImport.OFFSET_ENTRY_TYPE]);
+		if (pool < 0) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+		// The record must hold at least a header
+		// NOTE: This is checked before anything is read from the record, so the key identifier at
+		//		 OFFSET_ID below is always within it.
+		short recordLength = (short)(length - CryptoImport.LENGTH_ENTRY_HEADER);
+		if (recordLength < KeyRecord.LENGTH_HEADER) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+		// There must be no other key with this identifier, whether indexed or loaded earlier in the stream
+		short id = Util.getShort(commandBuffer, (short)(CryptoImport.LENGTH_ENTRY_HEADER + KeyRecord.OFFSET_ID));
+		for (short i = ZERO_SHORT; i < (short)keys.length; i++) {
+			if (!keys[i].isEmpty() && keys[i].getId() == id) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+		}
+
+		// There must be an available slot for this key type
+		short index = findFreeSlot(pool);
+		if (index < 0) ISOException.throwIt(ISO7816.SW_FILE_FULL);
+
+		// Set the record (under its own transaction)
+		keys[index].setRecordAll(commandBuffer, CryptoImport.LENGTH_ENTRY_HEADER, recordLength, elementResults);
+	}
+
+	/**
+	 * Returns true if the key slot holds a key (or part of one) that is not in the key index, which
+	 * is the case for the keys of an IMPORT KEYS stream until it completes
+	 */
+	private boolean isUnindexed(short index)
+	{
+		return !keys[index].isEmpty() && keyIndex.findSlot(keys[index].getId()) != index;
+	}
+
+	/**
+	 * Adds the keys of a completed IMPORT KEYS stream to the key index, under one transaction, and
+	 * returns the number of keys added
+	 */
+	private short commitImport()
+	{
+		short count = ZERO_SHORT;
+		JCSystem.beginTransaction();
+
+		for (short i = ZERO_SHORT; i < (short)keys.length; i++) {
+			if (!isUnindexed(i)) continue;
+
+			// A key with this identifier may have been loaded by LOAD KEY while the stream was in progress
+			if (keyIndex.findSlot(keys[i].getId()) != KeyIndex.NOT_FOUND) ISOException.throwIt(ISO7816.SW_DATA_INVALID);
+
+			keyIndex.add(i);
+			count++;
+		}
+
+		JCSystem.commitTransaction();
+		return count;
+	}
+
+	/**
+	 * Ends an IMPORT KEYS stream that failed with the given status, discarding it so that the next
+	 * segment starts a new stream
+	 */
+	private void failImport(short sw)
+	{
+		discardImport();
+		apduIO.endStream();
+		ISOException.throwIt(sw);
+	}
+
+	/**
+	 * Discards an IMPORT KEYS stream, erasing any keys loaded from it along with its plaintext, so
+	 * that no part of it is left loaded or in the buffer
+	 */
+	private void discardImport()
+	{
+		if (JCSystem.getTransactionDepth() != 0) JCSystem.abortTransaction();
+
+		cspImport.reset();
+		Util.arrayFillNonAtomic(commandBuffer, ZERO_SHORT, (short)commandBuffer.length, ZERO_BYTE);
+
+		for (short i = ZERO_SHORT; i < (short)keys.length; i++) {
+			if (isUnindexed(i)) keys[i].clearRecord();
+		}
+	}
+
 	/**
 	 * This command interrogates the SAM key storage for the next available key, from the given key table index.
 	 * 
@@ -646,7 +1039,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		if ((persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED)) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
 		// PRE-CONDITION 2 - The PIN must be authenticated
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		
 		// PRE-CONDITION 3 - P1/P2 must point to a valid 16-bit key index
 		short index = Util.getShort(apdu, ISO7816.OFFSET_P1);
@@ -655,7 +1048,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// PRE-CONDITION 4 - There must be at least one initialised key from the specified key index
 		boolean found = false;
 		for (short i = index; i < keys.length; i++) {			
-			if (keys[i].value.isInitialized()) {
+			if (keys[i].isInitialized()) {
 				// We found a valid key!
 				found = true;
 				index = i; // Update the index
@@ -681,6 +1074,102 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		return responseLength;
 	}
 
+	/**
+	 * Derives a site or reader key from a master key, using the System Diversifier and the host
+	 * diversifier supplied in the command data (see CryptoKDF).
+	 * 
+	 * P1/P2 hold the master key index (or P1_KEY_BY_ID, with the key identifier prefixed to the data).
+	 * The response is the derived AES key.
+	 * 
+	 * @param apdu The incoming APDU context
+	 */
+	private short processDERIVE_KEY(byte[] apdu, short offset, short length)
+	{
+		/*
+		 * PRE-CONDITION STEPS
+		 */ 
+
+		// PRE-CONDITION 1 - The application life-cycle state must be set to PERSONALISED
+		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		// PRE-CONDITION 2 - The PIN must be authenticated
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		// PRE-CONDITION 3 - P1/P2 must hold a valid key index (or key identifier)
+		short index = getKeyIndex(apdu, offset, length);
+		if ((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) {
+			offset += LENGTH_SHORT;
+			length -= LENGTH_SHORT;
+		}
+
+		// PRE-CONDITION 4 - The master key must have the DERIVE attribute and the host diversifier must be valid
+		// NOTE: This is checked by the KDF CSP internally.
+
+		/*
+		 * EXECUTION STEPS 
+		 */
+
+		// STEP 1 - Derive the key, writing it after the command data, then move it to the start of the buffer
+		short outOffset = (short)(offset + length);
+		length = cspKDF.deriveKey(keys[index], persistentState, OFFSET_SYSTEM_DIV, apdu, offset, length, apdu, outOffset);
+		Util.arrayCopyNonAtomic(apdu, outOffset, apdu, ZERO_SHORT, length);
+		
+		return length;
+	}
+
+	/**
+	 * Returns the index and header of every initialised key, starting from the given key table index.
+	 * The response is built in the response buffer, which holds (Config.LENGTH_RESPONSE_BUFFER - 2) / 33
+	 * entries (22 with the defaults) whatever the APDU buffer or Le, and is chained (61xx / GET RESPONSE) if it is longer
+	 * than Le. If there are more keys than fit, NEXT holds the index to continue from, otherwise it is
+	 * DIRECTORY_END.
+	 * 
+	 * @param apdu The incoming APDU context
+	 * @param response The buffer to write the response to
+	 */
+	private short processREAD_KEY_DIRECTORY(byte[] apdu, byte[] response)
+	{
+		/*
+		 * PRE-CONDITION STEPS
+		 */ 
+
+		// PRE-CONDITION 1 - The application life-cycle state must be set to PERSONALISED
+		if ((persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED)) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		// PRE-CONDITION 2 - The PIN must be authenticated
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		
+		// PRE-CONDITION 3 - P1/P2 must point to a valid 16-bit key index
+		short index = Util.getShort(apdu, ISO7816.OFFSET_P1);
+		if (index < 0 || index >= keys.length) ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+
+		/*
+		 * EXECUTION STEPS 
+		 */
+
+		// EXECUTION STEP 1 - Write an entry for each initialised key, until the response buffer is full
+		short capacity = (short)response.length;
+		short next = DIRECTORY_END;
+		short responseLength = LENGTH_SHORT; // Skip NEXT
+
+		for (short i = index; i < keys.length; i++) {
+			if (!keys[i].isInitialized()) continue;
+			
+			if ((short)(responseLength + LENGTH_DIRECTORY_ENTRY) > capacity) {
+				next = i;
+				break;
+			}
+			
+			responseLength = Util.setShort(response, responseLength, i);
+			responseLength += keys[i].getHeader(response, responseLength);
+		}
+
+		// EXECUTION STEP 2 - Write the NEXT index and return the # of bytes to transmit
+		Util.setShort(response, ZERO_SHORT, next);
+
+		return responseLength;
+	}
+
 	private short processPLAID_LOAD_FAKEY(byte[] apdu, short offset, short length)
 	{
 		/*
@@ -691,17 +1180,21 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
 		// PRE-CONDITION 2 - The PIN must be authenticated
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
 		// PRE-CONDITION 3 - The data length must be greater than zero
 		if (length <= ZERO_SHORT) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-		// PRE-CONDITION 4 - P1/P2 must point to a valid 16-bit key index
-		short index = Util.getShort(apdu, ISO7816.OFFSET_P1);
-		if (index >= keys.length) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		// PRE-CONDITION 4 - P1/P2 must hold a valid session handle and key index (or key identifier)
+		short session = getSession(apdu);
+		short index = getKeyIndex(apdu, offset, length);
+		if ((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) {
+			offset += LENGTH_SHORT;
+			length -= LENGTH_SHORT;
+		}
 		
 		// PRE-CONDITION 5 - The supplied key index must be an initialised key
-		if (!keys[index].value.isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		if (!keys[index].isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
 
 		// PRE-CONDITION 6 - The supplied key must be of type TYPE_PLAID
 		// NOTE: This is checked by the PLAID CSP internally.
@@ -712,7 +1205,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 */
 		
 		// STEP 1 - Execute the loadFAKey command
-		cspPLAID.loadFAKey(keys[index], apdu, offset, length);
+		cspPLAID.loadFAKey(session, keys[index], apdu, offset, length);
 		
 		// No response
 		return ZERO_SHORT;
@@ -728,7 +1221,7 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
 		// PRE-CONDITION 2 - The PIN must be authenticated
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		
 		// PRE-CONDITION 3 - The PLAID authentication status must be AUTH_OK
 		// This is checked inside the CSP method
@@ -736,12 +1229,35 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// PRE-CONDITION 4 - The PLAID authentication keyset must have the PLAID_KEK attribute set
 		// This is checked inside the CSP method
 		
+		// PRE-CONDITION 5 - P1 must hold a valid session handle
+		short session = getSession(apdu);
+		
+		// PRE-CONDITION 6 - P2 must only contain the P2_SET_DATA_BATCH and P2_SET_DATA_CMAC flags
+		byte mode = apdu[ISO7816.OFFSET_P2];
+		if ((mode & ~MASK_P2_SET_DATA) != 0) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		byte envelope = ((mode & P2_SET_DATA_CMAC) != 0) ? PLAIDProtocol.ENVELOPE_CMAC : PLAIDProtocol.ENVELOPE_HASH;
+		
 		/*
 		 * EXECUTION STEPS 
 		 */
 		
 		// STEP 1 - Execute the PLAID setData command
-		short responseLength = cspPLAID.setData(keys, apdu, offset, length, apdu, ZERO_SHORT);
+		// NOTE: In batch mode, the data holds several command objects and the response holds an OCTET STRING
+		//		 with the cryptogram for each, in order. The batch is counted as one operation.
+		short slot = getAuthSlot(session);
+		short responseLength = ZERO_SHORT;
+		boolean success = false;
+		try {
+			if ((mode & P2_SET_DATA_BATCH) != 0) {
+				responseLength = cspPLAID.setDataBatch(session, keyIndex, apdu, offset, length, ZERO_SHORT, envelope);
+			} else {
+				responseLength = cspPLAID.setData(session, keyIndex, apdu, offset, length, apdu, ZERO_SHORT, envelope);
+			}
+			success = true;
+		} finally {
+			// Any failure is counted, not just those reported by status word
+			telemetry.record(Telemetry.OP_SET_DATA, slot, success);
+		}
 		
 		// Done
 		return responseLength;
@@ -750,6 +1266,10 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 	/***
 	 * Executes the PLAID 'Initial Authenticate' ICC algorithm
 	 * 
+	 * If P1 has P1_KEY_BY_ID set and P2 has P2_IA_KEY_LIST set, the command data is instead:
+	 * [COUNT (1)] || [KEY ID (2)] * COUNT || [OPMODE] || [eSTR1]
+	 * and the SAM tries each candidate keyset in turn (see CryptoPLAID.initialAuthenticateList).
+	 * 
 	 * @param apdu The buffer used for the incoming C-APDU and outgoing R-APDU
 	 * @param offset The starting position of the DATA apdu element
 	 * @param length The length of the DATA apdu element
@@ -764,17 +1284,27 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
 		// PRE-CONDITION 2 - The PIN must be authenticated
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 
 		// PRE-CONDITION 3 - The data length must be greater than zero
 		if (length <= ZERO_SHORT) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
 
-		// PRE-CONDITION 4 - P1/P2 must point to a valid 16-bit key index
-		short index = Util.getShort(apdu, ISO7816.OFFSET_P1);
-		if (index >= keys.length) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		// PRE-CONDITION 4 - P1/P2 must hold a valid session handle and key index (or key identifier)
+		short session = getSession(apdu);
+		
+		// If a candidate key list was supplied, this is handled separately
+		if (((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) && ((apdu[ISO7816.OFFSET_P2] & P2_IA_KEY_LIST) != 0)) {
+			return processPLAID_INITIAL_AUTH_LIST(apdu, offset, length, session);
+		}
+		
+		short index = getKeyIndex(apdu, offset, length);
+		if ((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) {
+			offset += LENGTH_SHORT;
+			length -= LENGTH_SHORT;
+		}
 		
 		// PRE-CONDITION 5 - The supplied key index must be an initialised key
-		if (!keys[index].value.isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		if (!keys[index].isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
 
 		// PRE-CONDITION 6 - The supplied key must be of type TYPE_PLAID
 		// NOTE: This is checked by the PLAID CSP internally.
@@ -784,12 +1314,123 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		 */
 		
 		// STEP 1 - Execute the PLAID Initial Authenticate
-		short responseLength = cspPLAID.initialAuthenticate(keys[index], apdu, offset, length, apdu, ZERO_SHORT);
+		short responseLength = ZERO_SHORT;
+		boolean success = false;
+		try {
+			responseLength = cspPLAID.initialAuthenticate(session, keys[index], apdu, offset, length, apdu, ZERO_SHORT);
+			success = true;
+		} finally {
+			telemetry.record(Telemetry.OP_INITIAL_AUTH, index, success);
+		}
 		
 		// No response
 		return responseLength;
 	}
 
+	/***
+	 * Executes the PLAID 'Initial Authenticate' ICC algorithm against a list of candidate keysets
+	 * (called from processPLAID_INITIAL_AUTH once the common pre-conditions have been checked)
+	 */
+	private short processPLAID_INITIAL_AUTH_LIST(byte[] apdu, short offset, short length, short session)
+	{
+		/*
+		 * PRE-CONDITION STEPS
+		 */ 
+
+		// PRE-CONDITION 1 - The P1 index bits must be zero and P2 must only hold the list flags
+		if ((apdu[ISO7816.OFFSET_P1] & (byte)(MASK_P1P2_INDEX >> 8)) != 0) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		if ((apdu[ISO7816.OFFSET_P2] & ~MASK_P2_IA) != 0) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+
+		// PRE-CONDITION 2 - Each candidate must be an initialised PLAID key with the PLAID_AUTH attribute
+		// NOTE: This is checked by the PLAID CSP internally.
+
+		/*
+		 * EXECUTION STEPS 
+		 */
+
+		// STEP 1 - Execute the PLAID Initial Authenticate for the candidate list
+		boolean constantTime = ((apdu[ISO7816.OFFSET_P2] & P2_IA_CONSTANT_TIME) != 0);
+		short responseLength = ZERO_SHORT;
+		boolean success = false;
+		try {
+			responseLength = cspPLAID.initialAuthenticateList(session, keyIndex, apdu, offset, length, ZERO_SHORT, constantTime);
+			success = true;
+		} finally {
+			telemetry.record(Telemetry.OP_INITIAL_AUTH, success ? getAuthSlot(session) : Telemetry.NO_SLOT, success);
+		}
+
+		return responseLength;
+	}
+
+	/***
+	 * Loads the transport FA key and executes the PLAID 'Initial Authenticate' ICC algorithm in
+	 * a single command (equivalent to PLAID LOAD FAKEY followed by PLAID INITIAL AUTH).
+	 * 
+	 * The expected command data is:
+	 * [FAKEY CRYPTOGRAM] || [OPMODE] || [eSTR1]
+	 * 
+	 * @param apdu The buffer used for the incoming C-APDU and outgoing R-APDU
+	 * @param offset The starting position of the DATA apdu element
+	 * @param length The length of the DATA apdu element
+	 */
+	private short processPLAID_TRANSPORT_AUTH(byte[] apdu, short offset, short length)
+	{
+		/*
+		 * PRE-CONDITION STEPS
+		 */ 
+
+		// PRE-CONDITION 1 - The application life-cycle state must be set to PERSONALISED
+		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		// PRE-CONDITION 2 - The PIN must be authenticated
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+
+		// PRE-CONDITION 3 - The data length must be greater than zero
+		if (length <= ZERO_SHORT) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+
+		// PRE-CONDITION 4 - P1/P2 must hold a valid session handle and key index (or key identifier)
+		short session = getSession(apdu);
+		short index = getKeyIndex(apdu, offset, length);
+		if ((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) {
+			offset += LENGTH_SHORT;
+			length -= LENGTH_SHORT;
+		}
+		
+		// PRE-CONDITION 5 - The data must contain the FAKEY cryptogram followed by the IA data
+		if (length <= CryptoPLAID.LENGTH_BLOCK_RSA) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		
+		// PRE-CONDITION 6 - The supplied key index must be an initialised key
+		if (!keys[index].isInitialized()) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+
+		// PRE-CONDITION 7 - The supplied key must be of type TYPE_PLAID with the PLAID_KEK attribute
+		// NOTE: This is checked by the PLAID CSP internally.
+		
+		/*
+		 * EXECUTION STEPS 
+		 */
+
+		short responseLength = ZERO_SHORT;
+		boolean success = false;
+		
+		try {
+			// STEP 1 - Decrypt and load the transport FA key for this session
+			cspPLAID.loadFAKey(session, keys[index], apdu, offset, CryptoPLAID.LENGTH_BLOCK_RSA);
+			offset += CryptoPLAID.LENGTH_BLOCK_RSA;
+			length -= CryptoPLAID.LENGTH_BLOCK_RSA;
+
+			// STEP 2 - Execute the PLAID Initial Authenticate (which consumes the transport key)
+			responseLength = cspPLAID.initialAuthenticate(session, keys[index], apdu, offset, length, apdu, ZERO_SHORT);
+			success = true;
+			
+		} finally {
+			// Make sure the transport key doesn't outlive a failed command
+			if (!success) cspPLAID.resetSession(session);
+			telemetry.record(Telemetry.OP_INITIAL_AUTH, index, success);
+		}
+		
+		return responseLength;
+	}
+
 	/***
 	 * Executes the PLAID 'Final Authenticate' ICC algorithm
 	 * 
@@ -806,21 +1447,32 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		// PRE-CONDITION 1 - The application life-cycle state must be set to PERSONALISED
 		if (persistentState[OFFSET_APPLET_STATE] != STATE_PERSONALISED) ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 
-		// PRE-CONDITION 2 - The PLAID authentication state must be set to AUTH_STATE_IAKEY
-		if (cspPLAID.getAuthState() != CryptoPLAID.AUTH_STATE_IAKEY) {
-			cspPLAID.resetAuthentication();
+		// PRE-CONDITION 2 - P1 must hold a valid session handle
+		short session = getSession(apdu);
+
+		// PRE-CONDITION 3 - The PLAID authentication state must be set to AUTH_STATE_IAKEY
+		if (cspPLAID.getAuthState(session) != CryptoPLAID.AUTH_STATE_IAKEY) {
+			cspPLAID.resetAuthentication(session);
 			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
 		}
 		
-		// PRE-CONDITION 3 - The PIN must be authenticated
-		if (!pin.isValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		// PRE-CONDITION 4 - The PIN must be authenticated
+		if (!isPINValidated()) ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
 		
 		/*
 		 * EXECUTION STEPS 
 		 */
 		
 		// STEP 1 - Execute the PLAID Final Authenticate
-		short responseLength = cspPLAID.finalAuthenticate(apdu, offset, length, apdu, ZERO_SHORT);
+		short slot = getAuthSlot(session);
+		short responseLength = ZERO_SHORT;
+		boolean success = false;
+		try {
+			responseLength = cspPLAID.finalAuthenticate(session, apdu, offset, length, apdu, ZERO_SHORT);
+			success = true;
+		} finally {
+			telemetry.record(Telemetry.OP_FINAL_AUTH, slot, success);
+		}
 		
 		// No response
 		return responseLength;
@@ -831,7 +1483,123 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 	/*
 	 * Helper methods
 	 */
+
+	/***
+	 * Returns the PLAID session handle from the high nibble of P1
+	 * 
+	 * @param apdu The buffer containing the C-APDU header
+	 */
+	private short getSession(byte[] apdu) {
+
+		short session = (short)((apdu[ISO7816.OFFSET_P1] >> 4) & 0x0F);
+		if (session >= Config.COUNT_SESSIONS) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+
+		// Map the handle to the session context for this logical channel
+		return (short)(JCSystem.getAssignedChannel() * Config.COUNT_SESSIONS + session);
+	}
+
+	/***
+	 * Returns the index of the first empty key slot in the given pool, or -1 if the pool is full
+	 * 
+	 * @param pool The pool number (see getKeyPool)
+	 */
+	private short findFreeSlot(short pool) {
+		for (short i = keyPools[pool]; i < keyPools[(short)(pool + 1)]; i++) {
+			if (!keys[i].isInitialized()) return i;
+		}
+		return (short)-1;
+	}
+
+	/***
+	 * Returns the pool number for the given key type, or -1 if the type has no pool
+	 * 
+	 * @param type The key type (PLAIDKey.TYPE_PLAID or a KeyBuilder type)
+	 */
+	private static short getKeyPool(byte type) {
+		for (short i = 0; i < (short)POOL_TYPES.length; i++) {
+			if (POOL_TYPES[i] == type) return i;
+		}
+		return (short)-1;
+	}
+
+	/***
+	 * Returns the key slot holding the keyset that the given session authenticated with (for telemetry),
+	 * or Telemetry.NO_SLOT
+	 * 
+	 * @param session The session context
+	 */
+	private short getAuthSlot(short session) {
+		short slot = keyIndex.findSlot(cspPLAID.getAuthKeyset(session));
+		return (slot == KeyIndex.NOT_FOUND) ? Telemetry.NO_SLOT : slot;
+	}
+
+	/***
+	 * Returns the key index from P1/P2 or, if P1_KEY_BY_ID is set, the index of the key whose
+	 * identifier is in the first 2 bytes of the command data
+	 * 
+	 * @param apdu The buffer containing the C-APDU
+	 * @param offset The starting position of the DATA apdu element
+	 * @param length The length of the DATA apdu element
+	 */
+	private short getKeyIndex(byte[] apdu, short offset, short length) {
+
+		short index = (short)(Util.getShort(apdu, ISO7816.OFFSET_P1) & MASK_P1P2_INDEX);
+
+		if ((apdu[ISO7816.OFFSET_P1] & P1_KEY_BY_ID) != 0) {
+			if (index != ZERO_SHORT) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+			if (length < LENGTH_SHORT) ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+			
+			index = keyIndex.findSlot(Util.getShort(apdu, offset));
+			if (index == KeyIndex.NOT_FOUND) ISOException.throwIt(ISO7816.SW_RECORD_NOT_FOUND);
+		}
+		
+		if (index >= keys.length) ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		return index;
+	}
 	 
+	/***
+	 * Verifies the operator PIN and records the result for the current logical channel
+	 * 
+	 * @param pinBuffer The buffer containing the PIN
+	 * @param pinOffset The starting position of the PIN
+	 * @param pinLength The length of the PIN
+	 */
+	private boolean checkPIN(byte[] pinBuffer, short pinOffset, byte pinLength) {
+
+		boolean valid = pin.check(pinBuffer, pinOffset, pinLength);
+		
+		// Record the result against this channel and clear the shared OwnerPIN validated flag
+		pinValidated[JCSystem.getAssignedChannel()] = valid;
+		pin.reset();
+
+		return valid;
+	}
+
+	/***
+	 * Returns true if the operator PIN has been validated on the current logical channel
+	 */
+	private boolean isPINValidated() {
+		return pinValidated[JCSystem.getAssignedChannel()];
+	}
+
+	/***
+	 * Clears the PIN validation status and PLAID session contexts for the current logical channel
+	 * 
+	 * NOTE: The diversified and derived key caches are shared by all channels, so they are not
+	 *       cleared here (which would happen on every SELECT and deselect). They are cleared on
+	 *       card reset, when the last channel is deselected, by RESET AUTH and by termination.
+	 */
+	private void resetChannel() {
+
+		short channel = JCSystem.getAssignedChannel();
+		pinValidated[channel] = false;
+
+		short session = (short)(channel * Config.COUNT_SESSIONS);
+		for (short i = 0; i < Config.COUNT_SESSIONS; i++) {
+			cspPLAID.resetSession(session++);
+		}
+	}
+
 	/***
 	 * Tests if the entire array is filled with zeroes
 	 * 
@@ -868,15 +1636,20 @@ public class OpenPLAIDSAM extends Applet implements ExtendedLength
 		persistentState[OFFSET_APPLET_STATE] = STATE_TERMINATED;	
 
 		// Delete all key material
-		for (short i = 0; i < keys.length; i++) {
-			keys[i].clearRecord();
-		}
+		KeyRecord.clearAll(keys);
+		keyIndex.clear();
 		 
-		// Clear the authentication context
+		// Clear the authentication context (for all channels)
 		cspPLAID.resetAuthentication();
+		cspKDF.clearCache();
+
+		// Clear the operation counters
+		telemetry.clear();
 				
-		// Clear the authentication status
+		// Clear the authentication status (for all channels)
 		pin.reset();
-		 
+		for (short i = 0; i < Config.MAX_CHANNELS; i++) {
+			pinValidated[i] = false;
+		}
 	}
 }
@@ -2,6 +2,7 @@ package com.makina.security.OpenPLAIDSAM;
 
 import javacard.framework.*;
 import javacard.security.*;
+import com.makina.security.OpenPLAIDCore.*;
 
 public class PLAIDKey implements Key {
 	
@@ -16,25 +17,65 @@ public class PLAIDKey implements Key {
 	public static final byte ELEMENT_IAKEY_MODULUS	= (byte)5;
 	public static final byte ELEMENT_IAKEY_EXPONENT	= (byte)6;	
 	public static final byte ELEMENT_FAKEY			= (byte)7;	
+
+	// The schema for loading all elements in one command (see KeyRecord.setRecordAll)
+	// NOTE: The tag of each element is [ELEMENT_* + 1] in the context class (tag 0 is reserved)
+	private static final byte REQUIRED = (byte)(TlvSchema.CLASS_CONTEXT | TlvSchema.FLAG_REQUIRED);
+	private static final short LENGTH_MODULUS = (short)(Config.LENGTH_RSA_KEY_BITS / 8);
+	private static final short LENGTH_PRIME = (short)(LENGTH_MODULUS / 2);
+	
+	static final byte[] SCHEMA_ELEMENTS = {
+		ELEMENT_IAKEY_P + 1,		REQUIRED,	0x00, 0x01, (byte)(LENGTH_PRIME >> 8), (byte)LENGTH_PRIME,
+		ELEMENT_IAKEY_Q + 1,		REQUIRED,	0x00, 0x01, (byte)(LENGTH_PRIME >> 8), (byte)LENGTH_PRIME,
+		ELEMENT_IAKEY_PQ + 1,		REQUIRED,	0x00, 0x01, (byte)(LENGTH_PRIME >> 8), (byte)LENGTH_PRIME,
+		ELEMENT_IAKEY_DP + 1,		REQUIRED,	0x00, 0x01, (byte)(LENGTH_PRIME >> 8), (byte)LENGTH_PRIME,
+		ELEMENT_IAKEY_DQ + 1,		REQUIRED,	0x00, 0x01, (byte)(LENGTH_PRIME >> 8), (byte)LENGTH_PRIME,
+		ELEMENT_IAKEY_MODULUS + 1,	REQUIRED,	0x00, 0x01, (byte)(LENGTH_MODULUS >> 8), (byte)LENGTH_MODULUS,
+		ELEMENT_IAKEY_EXPONENT + 1,	REQUIRED,	0x00, 0x01, 0x00, (byte)Config.LENGTH_RSA_PUBLIC_EXPONENT,
+		ELEMENT_FAKEY + 1,			REQUIRED,	0x00, (byte)(Config.LENGTH_AES_KEY_BITS / 8), 0x00, (byte)(Config.LENGTH_AES_KEY_BITS / 8)
+	};
+	
+	// The total length of all key elements (an estimate of the commit buffer needed to clear the key)
+	static final short LENGTH_MATERIAL = (short)(	(5 * LENGTH_PRIME) + LENGTH_MODULUS + 
+													Config.LENGTH_RSA_PUBLIC_EXPONENT + (Config.LENGTH_AES_KEY_BITS / 8));
 	
 	public RSAPrivateCrtKey iaKeyPrivate;
 	public RSAPublicKey iaKeyPublic;
 	public AESKey faKey;
 
+	private final short iaKeyLen;
+	private final short faKeyLen;
+
+	/**
+	 * Creates an empty PLAID key. The three key objects are created by build().
+	 */
 	public PLAIDKey(short iaKeyLen, short faKeyLen) {		
-		iaKeyPrivate = (RSAPrivateCrtKey)KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, iaKeyLen, false);
-		iaKeyPublic = (RSAPublicKey)KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, iaKeyLen, false);
-		faKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, faKeyLen, false);			
+		this.iaKeyLen = iaKeyLen;
+		this.faKeyLen = faKeyLen;
+	}
+
+	/**
+	 * Builds any of the three key objects that haven't been built yet.
+	 * 
+	 * NOTE: Each key object is kept as soon as it is built, so if the platform runs out of memory
+	 *		 (SystemException) part way through, the objects already built stay referenced and a
+	 *		 later call resumes from the first missing one instead of allocating them again.
+	 */
+	public void build() {
+		if (iaKeyPrivate == null) iaKeyPrivate = (RSAPrivateCrtKey)KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_CRT_PRIVATE, iaKeyLen, false);
+		if (iaKeyPublic == null) iaKeyPublic = (RSAPublicKey)KeyBuilder.buildKey(KeyBuilder.TYPE_RSA_PUBLIC, iaKeyLen, false);
+		if (faKey == null) faKey = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, faKeyLen, false);			
 	}
 	
+	/**
+	 * Clears all three keys (any that haven't been built are already clear).
+	 * NOTE: This does not start a transaction, so that a whole key table can be cleared under one
+	 * 		 (see KeyRecord.clearAll).
+	 */
 	public void clearKey() {
-		JCSystem.beginTransaction();
-		
-		iaKeyPrivate.clearKey();
-		iaKeyPublic.clearKey();
-		faKey.clearKey();
-					
-		JCSystem.commitTransaction();
+		if (iaKeyPrivate != null) iaKeyPrivate.clearKey();
+		if (iaKeyPublic != null) iaKeyPublic.clearKey();
+		if (faKey != null) faKey.clearKey();
 	}
 	
 	public short getSize() {
@@ -48,10 +89,10 @@ public class PLAIDKey implements Key {
 
 	public boolean isInitialized() {
 		
-		// All three keys must be initialised
-		return (iaKeyPrivate.isInitialized() && 
-				iaKeyPublic.isInitialized() &&
-				faKey.isInitialized());
+		// All three keys must be built and initialised
+		return (iaKeyPrivate != null && iaKeyPrivate.isInitialized() && 
+				iaKeyPublic != null && iaKeyPublic.isInitialized() &&
+				faKey != null && faKey.isInitialized());
 	}
 	
 }
@@ -0,0 +1,172 @@
+package com.makina.security.OpenPLAIDSAM;
+
+import javacard.framework.*;
+import com.makina.security.OpenPLAIDCore.*;
+
+/**
+ * Operation and failure counters, kept globally and for each tracked key slot.
+ *
+ * The operations counted all use PLAID keys, which occupy the first slots of the key table. So
+ * the tracked slots are the first Config.COUNT_TELEMETRY_KEYS slots (or all PLAID slots, if
+ * there are fewer). This bounds the RAM used however large the key table is. Operations on the
+ * other slots are only counted in the global totals.
+ *
+ * Counters are incremented in RAM. With FEATURE_TELEMETRY_CHECKPOINT, the RAM counters are added
+ * to a persistent copy every TELEMETRY_CHECKPOINT_INTERVAL operations (and on request), so that
+ * at most one interval of counts is lost on a reset. Counters saturate at 32767 rather than wrap.
+ *
+ * The counter block for the global totals and for each key is COUNT_OPS pairs of (OK, FAIL).
+ */
+public final class Telemetry {
+
+	// Operations
+	public static final short OP_INITIAL_AUTH	= (short)0;
+	public static final short OP_FINAL_AUTH		= (short)1;
+	public static final short OP_SET_DATA		= (short)2;
+	public static final short COUNT_OPS			= (short)3;
+
+	// The index used for operations that can't be attributed to a key slot
+	public static final short NO_SLOT			= (short)-1;
+
+	// Counter block layout
+	private static final short OFFSET_OK		= (short)0;
+	private static final short OFFSET_FAIL		= (short)1;
+	private static final short LENGTH_BLOCK		= (short)(COUNT_OPS * 2);
+
+	// The global block is first, followed by one block per key slot
+	private static final short OFFSET_GLOBAL	= (short)0;
+
+	// The encoded length of one counter block (big-endian shorts)
+	public static final short LENGTH_ENCODED	= (short)(LENGTH_BLOCK * 2);
+
+	private static final short ZERO_SHORT		= (short)0;
+	private static final short MAX_COUNT		= (short)0x7FFF;
+
+	// The number of key slots with their own counter block
+	private final short tracked;
+
+	// Counters since the last checkpoint (RAM)
+	private final short[] counters;
+
+	// Counters up to the last checkpoint (EEPROM, only with FEATURE_TELEMETRY_CHECKPOINT)
+	private final short[] checkpoint;
+
+	// The number of operations since the last checkpoint
+	private final short[] pending;
+
+	/**
+	 * @param keyCount The number of PLAID key slots (of which the first Config.COUNT_TELEMETRY_KEYS are tracked)
+	 */
+	public Telemetry(short keyCount) {
+
+		tracked = (keyCount < Config.COUNT_TELEMETRY_KEYS) ? keyCount : Config.COUNT_TELEMETRY_KEYS;
+		short length = (short)((short)(tracked + 1) * LENGTH_BLOCK);
+
+		if (Config.FEATURE_CLEAR_ON_RESET) {
+			counters = JCSystem.makeTransientShortArray(length, JCSystem.CLEAR_ON_RESET);
+			pending = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_RESET);
+		} else {
+			counters = JCSystem.makeTransientShortArray(length, JCSystem.CLEAR_ON_DESELECT);
+			pending = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+		}
+
+		checkpoint = (Config.FEATURE_TELEMETRY_CHECKPOINT) ? new short[length] : null;
+	}
+
+	/**
+	 * Returns the number of key slots with their own counters (slots 0 to getTrackedCount() - 1)
+	 */
+	public short getTrackedCount() {
+		return tracked;
+	}
+
+	/**
+	 * Records the outcome of an operation against the global counters and, if 'slot' is a
+	 * tracked key slot, against the counters for that key slot.
+	 */
+	public void record(short op, short slot, boolean ok) {
+
+		short offset = (short)(op * 2 + (ok ? OFFSET_OK : OFFSET_FAIL));
+
+		increment(counters, (short)(OFFSET_GLOBAL + offset), (short)1);
+		if (slot >= 0 && slot < tracked) increment(counters, (short)(getBlock(slot) + offset), (short)1);
+
+		if (Config.FEATURE_TELEMETRY_CHECKPOINT) {
+			if (++pending[0] >= Config.TELEMETRY_CHECKPOINT_INTERVAL) checkpoint();
+		}
+	}
+
+	/**
+	 * Adds the RAM counters to the persistent copy (in one transaction) and clears them.
+	 * 
+	 * NOTE: If a transaction is already open, nothing is done, as the caller could still abort it
+	 *		 after the RAM counters were cleared. The counts stay pending, so the checkpoint is made
+	 *		 by the next operation recorded outside a transaction (or by the caller, once its own
+	 *		 transaction is committed).
+	 */
+	public void checkpoint() {
+
+		if (!Config.FEATURE_TELEMETRY_CHECKPOINT) return;
+		if (JCSystem.getTransactionDepth() != 0) return;
+
+		JCSystem.beginTransaction();
+
+		for (short i = 0; i < (short)counters.length; i++) {
+			if (counters[i] != ZERO_SHORT) increment(checkpoint, i, counters[i]);
+		}
+
+		JCSystem.commitTransaction();
+
+		// Only clear the RAM counters once the checkpoint is committed
+		for (short i = 0; i < (short)counters.length; i++) counters[i] = ZERO_SHORT;
+		pending[0] = ZERO_SHORT;
+	}
+
+	/**
+	 * Clears all counters, including the persistent copy
+	 */
+	public void clear() {
+
+		for (short i = 0; i < (short)counters.length; i++) counters[i] = ZERO_SHORT;
+		pending[0] = ZERO_SHORT;
+
+		if (Config.FEATURE_TELEMETRY_CHECKPOINT) {
+
+			boolean owner = (JCSystem.getTransactionDepth() == 0);
+			if (owner) JCSystem.beginTransaction();
+
+			for (short i = 0; i < (short)checkpoint.length; i++) checkpoint[i] = ZERO_SHORT;
+
+			if (owner) JCSystem.commitTransaction();
+		}
+	}
+
+	/**
+	 * Writes the counter block for the global totals (if 'slot' is NO_SLOT) or a tracked key slot
+	 * as big-endian shorts, in the order (OK, FAIL) for each operation. Returns the new offset.
+	 */
+	public short write(short slot, byte[] buffer, short offset) {
+
+		short block = (slot == NO_SLOT) ? OFFSET_GLOBAL : getBlock(slot);
+
+		for (short i = 0; i < LENGTH_BLOCK; i++) {
+			short value = counters[(short)(block + i)];
+			if (Config.FEATURE_TELEMETRY_CHECKPOINT) {
+				short base = checkpoint[(short)(block + i)];
+				value = (value > (short)(MAX_COUNT - base)) ? MAX_COUNT : (short)(value + base);
+			}
+			offset = Util.setShort(buffer, offset, value);
+		}
+
+		return offset;
+	}
+
+	private static short getBlock(short slot) {
+		return (short)((short)(slot + 1) * LENGTH_BLOCK);
+	}
+
+	private static void increment(short[] array, short index, short amount) {
+		short value = array[index];
+		array[index] = (value > (short)(MAX_COUNT - amount)) ? MAX_COUNT : (short)(value + amount);
+	}
+}
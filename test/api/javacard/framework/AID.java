@@ -0,0 +1,33 @@
+package javacard.framework;
+
+public class AID {
+
+	private final byte[] aid;
+
+	public AID(byte[] bArray, short offset, byte length) {
+		if (length < 5 || length > 16) SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+		aid = new byte[length];
+		Util.arrayCopyNonAtomic(bArray, offset, aid, (short)0, length);
+	}
+
+	public final byte getBytes(byte[] dest, short offset) {
+		Util.arrayCopyNonAtomic(aid, (short)0, dest, offset, (short)aid.length);
+		return (byte)aid.length;
+	}
+
+	public final boolean equals(byte[] bArray, short offset, byte length) {
+		return (length == aid.length) && Util.arrayCompare(aid, (short)0, bArray, offset, length) == 0;
+	}
+
+	public final boolean partialEquals(byte[] bArray, short offset, byte length) {
+		return (length <= aid.length) && Util.arrayCompare(aid, (short)0, bArray, offset, length) == 0;
+	}
+
+	public final boolean equals(Object anObject) {
+		return (anObject instanceof AID) && ((AID)anObject).equals(aid, (short)0, (byte)aid.length);
+	}
+
+	public final int hashCode() {
+		return java.util.Arrays.hashCode(aid);
+	}
+}
@@ -0,0 +1,236 @@
+package javacard.framework;
+
+import java.io.ByteArrayOutputStream;
+
+import javacardx.apdu.ExtendedLength;
+
+/**
+ * The APDU object for one command.
+ *
+ * The APDU buffer is sized like a typical card (LENGTH_BUFFER), so command data longer than the
+ * buffer is delivered in parts by receiveBytes(), as it would be on a card.
+ */
+public final class APDU {
+
+	public static final byte STATE_INITIAL					= (byte)0;
+	public static final byte STATE_PARTIAL_INCOMING			= (byte)1;
+	public static final byte STATE_FULL_INCOMING			= (byte)2;
+	public static final byte STATE_OUTGOING					= (byte)3;
+	public static final byte STATE_OUTGOING_LENGTH_KNOWN	= (byte)4;
+	public static final byte STATE_PARTIAL_OUTGOING			= (byte)5;
+	public static final byte STATE_FULL_OUTGOING			= (byte)6;
+
+	public static final byte PROTOCOL_T0					= (byte)0x00;
+	public static final byte PROTOCOL_T1					= (byte)0x01;
+	public static final byte PROTOCOL_TYPE_MASK				= (byte)0x0F;
+	public static final byte PROTOCOL_MEDIA_MASK			= (byte)0xF0;
+	public static final byte PROTOCOL_MEDIA_DEFAULT			= (byte)0x00;
+	public static final byte PROTOCOL_MEDIA_CONTACTLESS_TYPE_A	= (byte)0x80;
+	public static final byte PROTOCOL_MEDIA_CONTACTLESS_TYPE_B	= (byte)0x90;
+	public static final byte PROTOCOL_MEDIA_USB				= (byte)0xA0;
+
+	// The APDU buffer length (header, Lc, 256 bytes of data)
+	static final short LENGTH_BUFFER = (short)261;
+
+	// The longest short response
+	private static final short LENGTH_SHORT_RESPONSE = (short)256;
+
+	private final byte[] buffer = new byte[LENGTH_BUFFER];
+
+	private final byte[] command;
+	private final boolean extended;
+	private final int dataOffset;		// The offset of the command data in 'command'
+	private final int nc;				// The command data length
+	private final int ne;				// The expected response length (-1 if there was no Le)
+
+	private int received;				// The number of command data bytes received so far
+	private int outgoingLength;			// The length set by setOutgoingLength()
+	private byte state = STATE_INITIAL;
+
+	private final boolean extendedApplet;
+	private final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+	APDU(byte[] command, Applet applet) {
+
+		if (command.length < 4) throw new IllegalArgumentException("The command is shorter than its header");
+
+		this.command = command.clone();
+		extendedApplet = (applet instanceof ExtendedLength);
+
+		int length = command.length;
+		System.arraycopy(command, 0, buffer, 0, 4);
+
+		if (length == 4) {
+			// Case 1
+			extended = false; dataOffset = 4; nc = 0; ne = -1;
+		} else if (length == 5) {
+			// Case 2S
+			extended = false; dataOffset = 5; nc = 0; ne = decodeLe(command[4] & 0xFF, LENGTH_SHORT_RESPONSE);
+			buffer[ISO7816.OFFSET_LC] = command[4];
+		} else if (command[4] != 0) {
+			// Case 3S or 4S
+			extended = false; dataOffset = 5; nc = command[4] & 0xFF;
+			if (length == 5 + nc) {
+				ne = -1;
+			} else if (length == 6 + nc) {
+				ne = decodeLe(command[length - 1] & 0xFF, LENGTH_SHORT_RESPONSE);
+			} else {
+				throw new IllegalArgumentException("The command length does not match Lc");
+			}
+			buffer[ISO7816.OFFSET_LC] = command[4];
+		} else if (length == 7) {
+			// Case 2E
+			extended = true; dataOffset = 7; nc = 0; ne = decodeLe(((command[5] & 0xFF) << 8) | (command[6] & 0xFF), 65536);
+			System.arraycopy(command, 4, buffer, 4, 3);
+		} else {
+			// Case 3E or 4E
+			extended = true; dataOffset = 7; nc = ((command[5] & 0xFF) << 8) | (command[6] & 0xFF);
+			if (nc == 0) throw new IllegalArgumentException("The extended Lc is zero");
+			if (length == 7 + nc) {
+				ne = -1;
+			} else if (length == 9 + nc) {
+				ne = decodeLe(((command[length - 2] & 0xFF) << 8) | (command[length - 1] & 0xFF), 65536);
+			} else {
+				throw new IllegalArgumentException("The command length does not match Lc");
+			}
+			System.arraycopy(command, 4, buffer, 4, 3);
+		}
+	}
+
+	private static int decodeLe(int le, int max) {
+		return (le == 0) ? max : le;
+	}
+
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	public static short getInBlockSize() {
+		return (short)(LENGTH_BUFFER - ISO7816.OFFSET_CDATA);
+	}
+
+	public static short getOutBlockSize() {
+		return LENGTH_SHORT_RESPONSE;
+	}
+
+	public static byte getProtocol() {
+		return JCRE.getProtocol();
+	}
+
+	public byte getNAD() {
+		return (byte)0;
+	}
+
+	public static APDU getCurrentAPDU() throws SecurityException {
+		return JCRE.getCurrentAPDU();
+	}
+
+	public static byte[] getCurrentAPDUBuffer() throws SecurityException {
+		return getCurrentAPDU().getBuffer();
+	}
+
+	public static byte getCLAChannel() {
+		APDU apdu = JCRE.getCurrentAPDU();
+		return (apdu == null) ? (byte)0 : JCRE.getChannel(apdu.command[ISO7816.OFFSET_CLA]);
+	}
+
+	public static void waitExtension() throws APDUException {
+	}
+
+	public byte getCurrentState() {
+		return state;
+	}
+
+	public boolean isCommandChainingCLA() {
+		return isISOInterindustryCLA() && (command[ISO7816.OFFSET_CLA] & 0x10) != 0;
+	}
+
+	public boolean isSecureMessagingCLA() {
+		byte cla = command[ISO7816.OFFSET_CLA];
+		return isISOInterindustryCLA() && (((cla & 0x40) == 0) ? (cla & 0x0C) != 0 : (cla & 0x20) != 0);
+	}
+
+	public boolean isISOInterindustryCLA() {
+		return (command[ISO7816.OFFSET_CLA] & 0x80) == 0;
+	}
+
+	public short getIncomingLength() {
+		return (short)nc;
+	}
+
+	public short getOffsetCdata() {
+		return (short)dataOffset;
+	}
+
+	public short setIncomingAndReceive() throws APDUException {
+		if (state != STATE_INITIAL) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		state = STATE_PARTIAL_INCOMING;
+		return receive(dataOffset);
+	}
+
+	public short receiveBytes(short bOff) throws APDUException {
+		if (state != STATE_PARTIAL_INCOMING && state != STATE_FULL_INCOMING) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		if (bOff < 0 || bOff >= LENGTH_BUFFER) APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+		return receive(bOff);
+	}
+
+	private short receive(int bOff) {
+		int count = Math.min(nc - received, LENGTH_BUFFER - bOff);
+		System.arraycopy(command, dataOffset + received, buffer, bOff, count);
+		received += count;
+		if (received == nc) state = STATE_FULL_INCOMING;
+		return (short)count;
+	}
+
+	public short setOutgoing() throws APDUException {
+		if (state >= STATE_OUTGOING) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		state = STATE_OUTGOING;
+		if (ne < 0) return (short)0;
+		return (short)Math.min(ne, Short.MAX_VALUE);
+	}
+
+	public short setOutgoingNoChaining() throws APDUException {
+		return setOutgoing();
+	}
+
+	/*
+	 * NOTE: Lengths over 256 are only accepted for extended length commands. A card would accept
+	 *       them for a short command too (with ExtendedLength), but a short-APDU reader would not.
+	 */
+	public void setOutgoingLength(short len) throws APDUException {
+		if (state != STATE_OUTGOING) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		if (len < 0) APDUException.throwIt(APDUException.BAD_LENGTH);
+		if (len > LENGTH_SHORT_RESPONSE && !(extendedApplet && extended)) APDUException.throwIt(APDUException.BAD_LENGTH);
+		outgoingLength = len;
+		state = STATE_OUTGOING_LENGTH_KNOWN;
+	}
+
+	public void sendBytes(short bOff, short len) throws APDUException {
+		if (bOff < 0 || len < 0 || bOff + len > LENGTH_BUFFER) APDUException.throwIt(APDUException.BUFFER_BOUNDS);
+		sendBytesLong(buffer, bOff, len);
+	}
+
+	public void sendBytesLong(byte[] outData, short bOff, short len) throws APDUException, SecurityException {
+		if (state != STATE_OUTGOING_LENGTH_KNOWN && state != STATE_PARTIAL_OUTGOING) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		if (response.size() + len > outgoingLength) APDUException.throwIt(APDUException.ILLEGAL_USE);
+		response.write(outData, bOff, len);
+		state = (response.size() == outgoingLength) ? STATE_FULL_OUTGOING : STATE_PARTIAL_OUTGOING;
+	}
+
+	public void setOutgoingAndSend(short bOff, short len) throws APDUException {
+		setOutgoing();
+		setOutgoingLength(len);
+		sendBytes(bOff, len);
+	}
+
+	/*
+	 * Returns the response data sent so far
+	 */
+	byte[] getResponse() {
+		return response.toByteArray();
+	}
+
+	byte getCLA() {
+		return command[ISO7816.OFFSET_CLA];
+	}
+}
@@ -0,0 +1,26 @@
+package javacard.framework;
+
+public class CardRuntimeException extends RuntimeException {
+
+	private short reason;
+
+	public CardRuntimeException(short reason) {
+		this.reason = reason;
+	}
+
+	public short getReason() {
+		return reason;
+	}
+
+	public void setReason(short reason) {
+		this.reason = reason;
+	}
+
+	public static void throwIt(short reason) throws CardRuntimeException {
+		throw new CardRuntimeException(reason);
+	}
+
+	public String getMessage() {
+		return getClass().getSimpleName() + String.format(" 0x%04X", reason & 0xFFFF);
+	}
+}
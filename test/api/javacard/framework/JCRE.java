@@ -0,0 +1,421 @@
+package javacard.framework;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+
+import javacard.security.Key;
+
+/**
+ * An in-process stand-in for the Java Card runtime environment, for running applets on the JVM.
+ *
+ * It installs applets, handles SELECT (by AID) and MANAGE CHANNEL, and dispatches every other
+ * command to the applet selected on the command's logical channel. Transient objects are cleared
+ * on reset() and deselection as they would be on a card.
+ *
+ * NOTE: This is NOT part of the Java Card API. There is no firewall or applet isolation, and
+ *       transactions are rolled back by copying the applets' persistent state (see JCSystem).
+ */
+public final class JCRE {
+
+	public static final short MAX_CHANNELS = (short)4;
+
+	private static final byte INS_SELECT			= ISO7816.INS_SELECT;
+	private static final byte INS_MANAGE_CHANNEL	= (byte)0x70;
+	private static final byte P1_SELECT_BY_NAME		= (byte)0x04;
+	private static final byte P1_CLOSE_CHANNEL		= (byte)0x80;
+
+	// An installed applet
+	private static final class Instance {
+		Applet applet;
+		AID aid;
+	}
+
+	// A transient object and the applet that created it
+	private static final class Transient {
+		Object object;
+		byte event;
+		Applet owner;		// null if created during install(), until the applet registers
+		boolean registered;
+	}
+
+	private static final ArrayList<Instance> instances = new ArrayList<Instance>();
+	private static final ArrayList<Transient> transients = new ArrayList<Transient>();
+
+	private static final Instance[] selected = new Instance[MAX_CHANNELS];
+	private static final boolean[] open = new boolean[MAX_CHANNELS];
+
+	private static Instance current;
+	private static AID installAID;
+	private static APDU currentAPDU;
+	private static byte currentChannel;
+	private static boolean selecting;
+	private static byte protocol = (byte)(APDU.PROTOCOL_MEDIA_DEFAULT | APDU.PROTOCOL_T1);
+	private static RuntimeException lastException;
+
+	private JCRE() {
+	}
+
+	/**
+	 * Removes all applets and transient objects, as if the card were new
+	 */
+	public static void powerUp() {
+		JCSystem.endTransaction();
+		JCSystem.setCommitCapacity(JCSystem.CAPACITY);
+		instances.clear();
+		transients.clear();
+		for (int i = 0; i < MAX_CHANNELS; i++) {
+			selected[i] = null;
+			open[i] = false;
+		}
+		open[0] = true;
+		current = null;
+		currentAPDU = null;
+		protocol = (byte)(APDU.PROTOCOL_MEDIA_DEFAULT | APDU.PROTOCOL_T1);
+		lastException = null;
+	}
+
+	/**
+	 * Resets the card, which clears all transient objects and closes all logical channels
+	 */
+	public static void reset() {
+		JCSystem.endTransaction();
+		for (int i = 0; i < MAX_CHANNELS; i++) {
+			selected[i] = null;
+			open[i] = false;
+		}
+		open[0] = true;
+		for (Transient t : transients) clear(t.object);
+	}
+
+	/**
+	 * Sets the commit capacity reported by JCSystem (Short.MAX_VALUE until the next powerUp()), to
+	 * simulate a platform with a small commit buffer
+	 */
+	public static void setCommitCapacity(short capacity) {
+		JCSystem.setCommitCapacity(capacity);
+	}
+
+	/**
+	 * Charges an update of a persistent object to the commit buffer (see JCSystem).
+	 * NOTE: This is public so that the javacard.security stand-in can charge key updates.
+	 */
+	public static void chargeCommit(Object object, int length) {
+		JCSystem.charge(object, length);
+	}
+
+	/**
+	 * Sets the protocol reported by APDU.getProtocol() (for example to simulate the contactless
+	 * interface)
+	 */
+	public static void setProtocol(byte value) {
+		protocol = value;
+	}
+
+	/**
+	 * Returns the exception that caused the last SW_UNKNOWN response, or null
+	 */
+	public static RuntimeException getLastException() {
+		return lastException;
+	}
+
+	/**
+	 * Installs an applet by calling its install() method with GlobalPlatform INSTALL parameters
+	 * (instance AID, empty privileges and 'appletData' as the application specific parameters)
+	 */
+	public static Applet install(Class<? extends Applet> appletClass, byte[] aid, byte[] appletData) {
+
+		if (appletData == null) appletData = new byte[0];
+
+		byte[] params = new byte[1 + aid.length + 2 + 1 + appletData.length];
+		int offset = 0;
+		params[offset++] = (byte)aid.length;
+		System.arraycopy(aid, 0, params, offset, aid.length);
+		offset += aid.length;
+		params[offset++] = 1;	// Lc
+		params[offset++] = 0;	// Control info (privileges)
+		params[offset++] = (byte)appletData.length;
+		System.arraycopy(appletData, 0, params, offset, appletData.length);
+
+		installAID = new AID(aid, (short)0, (byte)aid.length);
+		int count = instances.size();
+		try {
+			Method method = appletClass.getMethod("install", byte[].class, short.class, byte.class);
+			method.invoke(null, params, (short)0, (byte)params.length);
+		} catch (java.lang.reflect.InvocationTargetException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IllegalStateException(cause);
+		} catch (ReflectiveOperationException ex) {
+			throw new IllegalArgumentException(ex);
+		} finally {
+			installAID = null;
+			JCSystem.endTransaction();
+		}
+
+		if (instances.size() != count + 1) throw new IllegalStateException("The applet did not register");
+		return instances.get(count).applet;
+	}
+
+	/**
+	 * Selects an applet by AID on the basic channel and returns the response APDU
+	 */
+	public static byte[] select(byte[] aid) {
+		byte[] command = new byte[5 + aid.length + 1];
+		command[ISO7816.OFFSET_INS] = INS_SELECT;
+		command[ISO7816.OFFSET_P1] = P1_SELECT_BY_NAME;
+		command[ISO7816.OFFSET_LC] = (byte)aid.length;
+		System.arraycopy(aid, 0, command, ISO7816.OFFSET_CDATA, aid.length);
+		return transmit(command);
+	}
+
+	/**
+	 * Sends a command APDU and returns the response APDU (data followed by SW1 SW2)
+	 */
+	public static byte[] transmit(byte[] command) {
+
+		byte channel = getChannel(command[ISO7816.OFFSET_CLA]);
+		if (channel >= MAX_CHANNELS || !open[channel]) return status(ISO7816.SW_LOGICAL_CHANNEL_NOT_SUPPORTED);
+
+		byte ins = command[ISO7816.OFFSET_INS];
+		byte p1 = command[ISO7816.OFFSET_P1];
+
+		if (ins == INS_MANAGE_CHANNEL) return manageChannel(command, channel);
+
+		Instance target = selected[channel];
+		boolean select = (ins == INS_SELECT && p1 == P1_SELECT_BY_NAME);
+
+		if (select) {
+			Instance found = find(command);
+			if (found != null) {
+				deselect(channel);
+				if (!selectApplet(found, channel)) return status(ISO7816.SW_APPLET_SELECT_FAILED);
+				target = found;
+			} else if (target == null) {
+				return status(ISO7816.SW_FILE_NOT_FOUND);
+			} else {
+				select = false;
+			}
+		}
+
+		if (target == null) return status(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+
+		APDU apdu = new APDU(command, target.applet);
+		short sw = ISO7816.SW_NO_ERROR;
+
+		current = target;
+		currentAPDU = apdu;
+		currentChannel = channel;
+		selecting = select;
+		try {
+			target.applet.process(apdu);
+		} catch (ISOException ex) {
+			sw = ex.getReason();
+		} catch (RuntimeException ex) {
+			lastException = ex;
+			sw = ISO7816.SW_UNKNOWN;
+		} finally {
+			JCSystem.endTransaction();
+			current = null;
+			currentAPDU = null;
+			selecting = false;
+		}
+
+		byte[] data = apdu.getResponse();
+		byte[] response = new byte[data.length + 2];
+		System.arraycopy(data, 0, response, 0, data.length);
+		Util.setShort(response, (short)data.length, sw);
+		return response;
+	}
+
+	private static byte[] manageChannel(byte[] command, byte channel) {
+
+		if (command[ISO7816.OFFSET_P1] == P1_CLOSE_CHANNEL) {
+			byte target = command[ISO7816.OFFSET_P2];
+			if (target == 0 || target >= MAX_CHANNELS || !open[target]) return status(ISO7816.SW_INCORRECT_P1P2);
+			deselect(target);
+			open[target] = false;
+			return status(ISO7816.SW_NO_ERROR);
+		}
+
+		for (byte i = 1; i < MAX_CHANNELS; i++) {
+			if (!open[i]) {
+				open[i] = true;
+				// The new channel inherits the applet selected on the channel it was opened from
+				Instance instance = selected[channel];
+				if (instance != null && !selectApplet(instance, i)) {
+					open[i] = false;
+					return status(ISO7816.SW_APPLET_SELECT_FAILED);
+				}
+				return new byte[] { i, (byte)0x90, (byte)0x00 };
+			}
+		}
+		return status(ISO7816.SW_FUNC_NOT_SUPPORTED);
+	}
+
+	private static boolean selectApplet(Instance instance, byte channel) {
+
+		boolean active = isActive(instance);
+
+		current = instance;
+		currentChannel = channel;
+		try {
+			boolean result = (instance.applet instanceof MultiSelectable) ?
+				((MultiSelectable)instance.applet).select(active) : instance.applet.select();
+			if (result) selected[channel] = instance;
+			return result;
+		} catch (RuntimeException ex) {
+			lastException = ex;
+			return false;
+		} finally {
+			JCSystem.endTransaction();
+			current = null;
+		}
+	}
+
+	private static void deselect(byte channel) {
+
+		Instance instance = selected[channel];
+		if (instance == null) return;
+		selected[channel] = null;
+
+		boolean active = isActive(instance);
+
+		current = instance;
+		currentChannel = channel;
+		try {
+			if (instance.applet instanceof MultiSelectable) {
+				((MultiSelectable)instance.applet).deselect(active);
+			} else {
+				instance.applet.deselect();
+			}
+		} catch (RuntimeException ex) {
+			lastException = ex;
+		} finally {
+			JCSystem.endTransaction();
+			current = null;
+		}
+
+		// CLEAR_ON_DESELECT objects are cleared once the applet is no longer selected on any channel
+		if (!active) {
+			for (Transient t : transients) {
+				if (t.event == JCSystem.CLEAR_ON_DESELECT && t.owner == instance.applet) clear(t.object);
+			}
+		}
+	}
+
+	private static boolean isActive(Instance instance) {
+		for (int i = 0; i < MAX_CHANNELS; i++) {
+			if (selected[i] == instance) return true;
+		}
+		return false;
+	}
+
+	private static Instance find(byte[] command) {
+		short length = (short)(command[ISO7816.OFFSET_LC] & 0xFF);
+		for (Instance instance : instances) {
+			if (instance.aid.partialEquals(command, ISO7816.OFFSET_CDATA, (byte)length)) return instance;
+		}
+		return null;
+	}
+
+	private static byte[] status(short sw) {
+		return new byte[] { (byte)(sw >> 8), (byte)sw };
+	}
+
+	private static void clear(Object object) {
+		if (object instanceof byte[]) {
+			java.util.Arrays.fill((byte[])object, (byte)0);
+		} else if (object instanceof short[]) {
+			java.util.Arrays.fill((short[])object, (short)0);
+		} else if (object instanceof boolean[]) {
+			java.util.Arrays.fill((boolean[])object, false);
+		} else if (object instanceof Object[]) {
+			java.util.Arrays.fill((Object[])object, null);
+		} else if (object instanceof Key) {
+			((Key)object).clearKey();
+		}
+	}
+
+	//
+	// Used by the javacard.* stand-in classes
+	//
+
+	static void register(Applet applet, AID aid) {
+		if (aid == null) aid = installAID;
+		if (aid == null) SystemException.throwIt(SystemException.ILLEGAL_AID);
+		for (Instance instance : instances) {
+			if (instance.aid.equals(aid)) SystemException.throwIt(SystemException.ILLEGAL_AID);
+		}
+		Instance instance = new Instance();
+		instance.applet = applet;
+		instance.aid = aid;
+		instances.add(instance);
+
+		// Objects created by the applet's constructor belong to it
+		for (Transient t : transients) {
+			if (t.owner == null && !t.registered) {
+				t.owner = applet;
+				t.registered = true;
+			}
+		}
+	}
+
+	/**
+	 * Registers a transient object (array or key) to be cleared on the given event.
+	 * NOTE: This is public so that the javacard.security stand-in can register transient keys.
+	 */
+	public static Object addTransient(Object object, byte event) {
+		Transient t = new Transient();
+		t.object = object;
+		t.event = event;
+		t.owner = (current != null) ? current.applet : null;
+		t.registered = (current != null || installAID == null);
+		transients.add(t);
+		return object;
+	}
+
+	static byte getTransientEvent(Object object) {
+		for (Transient t : transients) {
+			if (t.object == object) return t.event;
+		}
+		return JCSystem.NOT_A_TRANSIENT_OBJECT;
+	}
+
+	static Iterable<Applet> getApplets() {
+		ArrayList<Applet> applets = new ArrayList<Applet>();
+		for (Instance instance : instances) applets.add(instance.applet);
+		return applets;
+	}
+
+	static boolean isSelectingApplet() {
+		return selecting;
+	}
+
+	static AID getCurrentAID() {
+		return (current != null) ? current.aid : installAID;
+	}
+
+	static AID lookupAID(byte[] buffer, short offset, byte length) {
+		for (Instance instance : instances) {
+			if (instance.aid.equals(buffer, offset, length)) return instance.aid;
+		}
+		return null;
+	}
+
+	static byte getCurrentChannel() {
+		return currentChannel;
+	}
+
+	static APDU getCurrentAPDU() {
+		return currentAPDU;
+	}
+
+	static byte getProtocol() {
+		return protocol;
+	}
+
+	static byte getChannel(byte cla) {
+		// First interindustry values carry channels 0-3, further interindustry values 4-19
+		return ((cla & 0x40) == 0) ? (byte)(cla & 0x03) : (byte)(4 + (cla & 0x0F));
+	}
+}
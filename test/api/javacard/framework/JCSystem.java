@@ -0,0 +1,148 @@
+package javacard.framework;
+
+public final class JCSystem {
+
+	public static final byte NOT_A_TRANSIENT_OBJECT	= (byte)0;
+	public static final byte CLEAR_ON_RESET			= (byte)1;
+	public static final byte CLEAR_ON_DESELECT		= (byte)2;
+
+	public static final byte MEMORY_TYPE_PERSISTENT			= (byte)0;
+	public static final byte MEMORY_TYPE_TRANSIENT_RESET	= (byte)1;
+	public static final byte MEMORY_TYPE_TRANSIENT_DESELECT	= (byte)2;
+
+	// Reported by getAvailableMemory(), and the default commit capacity
+	static final short CAPACITY = Short.MAX_VALUE;
+
+	private static byte transactionDepth;
+	private static TransactionSnapshot snapshot;
+
+	// The commit capacity, and how much of it the current transaction has used
+	private static short commitCapacity = CAPACITY;
+	private static short commitUsed;
+
+	private JCSystem() {
+	}
+
+	public static byte isTransient(Object theObj) {
+		return JCRE.getTransientEvent(theObj);
+	}
+
+	public static boolean[] makeTransientBooleanArray(short length, byte event) throws SystemException {
+		return (boolean[])JCRE.addTransient(new boolean[checkTransient(length, event)], event);
+	}
+
+	public static byte[] makeTransientByteArray(short length, byte event) throws SystemException {
+		return (byte[])JCRE.addTransient(new byte[checkTransient(length, event)], event);
+	}
+
+	public static short[] makeTransientShortArray(short length, byte event) throws SystemException {
+		return (short[])JCRE.addTransient(new short[checkTransient(length, event)], event);
+	}
+
+	public static Object[] makeTransientObjectArray(short length, byte event) throws SystemException {
+		return (Object[])JCRE.addTransient(new Object[checkTransient(length, event)], event);
+	}
+
+	private static short checkTransient(short length, byte event) {
+		if (event != CLEAR_ON_RESET && event != CLEAR_ON_DESELECT) SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+		if (length < 0) SystemException.throwIt(SystemException.ILLEGAL_VALUE);
+		return length;
+	}
+
+	public static short getVersion() {
+		return (short)0x0202;
+	}
+
+	public static AID getAID() {
+		return JCRE.getCurrentAID();
+	}
+
+	public static AID lookupAID(byte[] buffer, short offset, byte length) {
+		return JCRE.lookupAID(buffer, offset, length);
+	}
+
+	public static AID getPreviousContextAID() {
+		return null;
+	}
+
+	public static byte getAssignedChannel() {
+		return JCRE.getCurrentChannel();
+	}
+
+	/*
+	 * The persistent state of the installed applets is copied when a transaction begins and put
+	 * back by abortTransaction() (see TransactionSnapshot).
+	 *
+	 * The commit capacity is only charged for Util.arrayCopy() and key updates, as plain array
+	 * stores and field writes can't be seen. A charge beyond the capacity throws BUFFER_FULL and
+	 * leaves the transaction in progress, as on a card.
+	 */
+	public static void beginTransaction() throws TransactionException {
+		if (transactionDepth != 0) TransactionException.throwIt(TransactionException.IN_PROGRESS);
+		snapshot = new TransactionSnapshot(JCRE.getApplets());
+		commitUsed = 0;
+		transactionDepth = 1;
+	}
+
+	public static void abortTransaction() throws TransactionException {
+		if (transactionDepth == 0) TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+		snapshot.restore();
+		snapshot = null;
+		transactionDepth = 0;
+	}
+
+	public static void commitTransaction() throws TransactionException {
+		if (transactionDepth == 0) TransactionException.throwIt(TransactionException.NOT_IN_PROGRESS);
+		snapshot = null;
+		transactionDepth = 0;
+	}
+
+	public static byte getTransactionDepth() {
+		return transactionDepth;
+	}
+
+	public static short getUnusedCommitCapacity() {
+		return (short)(commitCapacity - commitUsed);
+	}
+
+	public static short getMaxCommitCapacity() {
+		return commitCapacity;
+	}
+
+	public static short getAvailableMemory(byte memoryType) throws SystemException {
+		return CAPACITY;
+	}
+
+	public static boolean isObjectDeletionSupported() {
+		return false;
+	}
+
+	public static void requestObjectDeletion() throws SystemException {
+		SystemException.throwIt(SystemException.ILLEGAL_USE);
+	}
+
+	public static Shareable getAppletShareableInterfaceObject(AID serverAID, byte parameter) {
+		return null;
+	}
+
+	/*
+	 * Aborts any transaction left open by an applet (the JCRE does this when process() returns)
+	 */
+	static void endTransaction() {
+		if (transactionDepth != 0) abortTransaction();
+	}
+
+	static void setCommitCapacity(short capacity) {
+		commitCapacity = capacity;
+	}
+
+	/*
+	 * Charges an update of 'length' bytes of 'object' to the commit buffer, if it is persistent and
+	 * a transaction is in progress
+	 */
+	static void charge(Object object, int length) {
+		if (transactionDepth == 0 || isTransient(object) != NOT_A_TRANSIENT_OBJECT) return;
+		if (commitUsed + length > commitCapacity) TransactionException.throwIt(TransactionException.BUFFER_FULL);
+		commitUsed += length;
+	}
+}
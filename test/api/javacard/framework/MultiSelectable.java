@@ -0,0 +1,8 @@
+package javacard.framework;
+
+public interface MultiSelectable {
+
+	public boolean select(boolean appInstAlreadyActive);
+
+	public void deselect(boolean appInstStillActive);
+}
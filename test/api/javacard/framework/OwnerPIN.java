@@ -0,0 +1,65 @@
+package javacard.framework;
+
+public class OwnerPIN implements PIN {
+
+	private final byte tryLimit;
+	private final byte maxPINSize;
+	private final byte[] pin;
+	private byte pinLength;
+	private byte triesRemaining;
+
+	// The validated flag is transient, as on a card
+	private final boolean[] validated;
+
+	public OwnerPIN(byte tryLimit, byte maxPINSize) throws PINException {
+		if (tryLimit < 1 || maxPINSize < 1) PINException.throwIt(PINException.ILLEGAL_VALUE);
+		this.tryLimit = tryLimit;
+		this.maxPINSize = maxPINSize;
+		pin = new byte[maxPINSize];
+		triesRemaining = tryLimit;
+		validated = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_RESET);
+	}
+
+	protected boolean getValidatedFlag() {
+		return validated[0];
+	}
+
+	protected void setValidatedFlag(boolean value) {
+		validated[0] = value;
+	}
+
+	public byte getTriesRemaining() {
+		return triesRemaining;
+	}
+
+	public boolean check(byte[] pin, short offset, byte length) throws ArrayIndexOutOfBoundsException, NullPointerException {
+		setValidatedFlag(false);
+		if (triesRemaining == 0) return false;
+		triesRemaining--;
+		if (length != pinLength || Util.arrayCompare(this.pin, (short)0, pin, offset, length) != 0) return false;
+		setValidatedFlag(true);
+		triesRemaining = tryLimit;
+		return true;
+	}
+
+	public boolean isValidated() {
+		return getValidatedFlag();
+	}
+
+	public void reset() {
+		if (isValidated()) resetAndUnblock();
+	}
+
+	public void update(byte[] pin, short offset, byte length) throws PINException {
+		if (length > maxPINSize) PINException.throwIt(PINException.ILLEGAL_VALUE);
+		Util.arrayCopy(pin, offset, this.pin, (short)0, length);
+		pinLength = length;
+		triesRemaining = tryLimit;
+		setValidatedFlag(false);
+	}
+
+	public void resetAndUnblock() {
+		triesRemaining = tryLimit;
+		setValidatedFlag(false);
+	}
+}
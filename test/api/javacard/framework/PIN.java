@@ -0,0 +1,12 @@
+package javacard.framework;
+
+public interface PIN {
+
+	public boolean check(byte[] pin, short offset, byte length) throws ArrayIndexOutOfBoundsException, NullPointerException;
+
+	public byte getTriesRemaining();
+
+	public boolean isValidated();
+
+	public void reset();
+}
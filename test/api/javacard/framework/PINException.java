@@ -0,0 +1,14 @@
+package javacard.framework;
+
+public class PINException extends CardRuntimeException {
+
+	public static final short ILLEGAL_VALUE = (short)1;
+
+	public PINException(short reason) {
+		super(reason);
+	}
+
+	public static void throwIt(short reason) throws PINException {
+		throw new PINException(reason);
+	}
+}
@@ -0,0 +1,131 @@
+package javacard.framework;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javacard.security.Key;
+
+/**
+ * A copy of the persistent state reachable from the installed applets, taken when a transaction
+ * begins so that abortTransaction() can put it back.
+ *
+ * Every persistent array is copied, as are the fields of applet objects (any class outside the
+ * java*.* packages) and of key objects. Transient objects are neither copied nor followed, and
+ * other platform objects (ciphers, signatures, OwnerPIN, ...) are left as they are, as their state
+ * is not transactional on a card either.
+ *
+ * NOTE: This restores more than a card would, as writes made with the NonAtomic Util methods are
+ *       rolled back too. Static fields are not restored.
+ */
+final class TransactionSnapshot {
+
+	private static final Map<Class<?>, Field[]> FIELDS = new HashMap<Class<?>, Field[]>();
+
+	private final Map<Object, Object> copies = new IdentityHashMap<Object, Object>();
+
+	TransactionSnapshot(Iterable<Applet> applets) {
+
+		ArrayDeque<Object> pending = new ArrayDeque<Object>();
+		for (Applet applet : applets) pending.push(applet);
+
+		while (!pending.isEmpty()) {
+
+			Object object = pending.pop();
+			if (copies.containsKey(object) || JCRE.getTransientEvent(object) != JCSystem.NOT_A_TRANSIENT_OBJECT) continue;
+
+			Class<?> type = object.getClass();
+			if (type.isArray()) {
+				int length = Array.getLength(object);
+				Object copy = Array.newInstance(type.getComponentType(), length);
+				System.arraycopy(object, 0, copy, 0, length);
+				copies.put(object, copy);
+
+				if (object instanceof Object[]) {
+					for (Object element : (Object[])object) {
+						if (element != null) pending.push(element);
+					}
+				}
+			} else if (isRestored(type)) {
+				Field[] fields = getFields(type);
+				Object[] values = new Object[fields.length];
+				for (int i = 0; i < fields.length; i++) {
+					values[i] = get(fields[i], object);
+					if (values[i] != null && !fields[i].getType().isPrimitive()) pending.push(values[i]);
+				}
+				copies.put(object, values);
+			}
+		}
+	}
+
+	/**
+	 * Puts back every array and field as it was when the snapshot was taken
+	 */
+	void restore() {
+
+		for (Map.Entry<Object, Object> entry : copies.entrySet()) {
+
+			Object object = entry.getKey();
+			if (object.getClass().isArray()) {
+				System.arraycopy(entry.getValue(), 0, object, 0, Array.getLength(object));
+				continue;
+			}
+
+			Field[] fields = getFields(object.getClass());
+			Object[] values = (Object[])entry.getValue();
+			for (int i = 0; i < fields.length; i++) {
+				// Final fields can't have changed (their contents are restored separately)
+				if (Modifier.isFinal(fields[i].getModifiers())) continue;
+				set(fields[i], object, values[i]);
+			}
+		}
+	}
+
+	private static boolean isRestored(Class<?> type) {
+		return Key.class.isAssignableFrom(type) || !type.getName().startsWith("java");
+	}
+
+	/**
+	 * Returns the instance fields of a class and of its superclasses that are restored
+	 */
+	private static Field[] getFields(Class<?> type) {
+
+		Field[] result = FIELDS.get(type);
+		if (result != null) return result;
+
+		ArrayList<Field> fields = new ArrayList<Field>();
+		for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+			if (!isRestored(c)) continue;
+			for (Field field : c.getDeclaredFields()) {
+				if (Modifier.isStatic(field.getModifiers())) continue;
+				field.setAccessible(true);
+				fields.add(field);
+			}
+		}
+
+		result = fields.toArray(new Field[fields.size()]);
+		FIELDS.put(type, result);
+		return result;
+	}
+
+	private static Object get(Field field, Object object) {
+		try {
+			return field.get(object);
+		} catch (IllegalAccessException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private static void set(Field field, Object object, Object value) {
+		try {
+			field.set(object, value);
+		} catch (IllegalAccessException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package javacard.framework;
+
+public class Util {
+
+	public static final short arrayCopy(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+		JCSystem.charge(dest, length);
+		return arrayCopyNonAtomic(src, srcOff, dest, destOff, length);
+	}
+
+	public static final short arrayCopyNonAtomic(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+		if (length < 0) throw new ArrayIndexOutOfBoundsException(length);
+		System.arraycopy(src, srcOff, dest, destOff, length);
+		return (short)(destOff + length);
+	}
+
+	public static final short arrayFillNonAtomic(byte[] bArray, short bOff, short bLen, byte bValue) {
+		if (bLen < 0 || bOff < 0 || bOff + bLen > bArray.length) throw new ArrayIndexOutOfBoundsException(bOff + bLen);
+		for (int i = 0; i < bLen; i++) bArray[bOff + i] = bValue;
+		return (short)(bOff + bLen);
+	}
+
+	public static final byte arrayCompare(byte[] src, short srcOff, byte[] dest, short destOff, short length) {
+		if (length < 0 || srcOff + length > src.length || destOff + length > dest.length) {
+			throw new ArrayIndexOutOfBoundsException(length);
+		}
+		for (int i = 0; i < length; i++) {
+			int a = src[srcOff + i] & 0xFF;
+			int b = dest[destOff + i] & 0xFF;
+			if (a != b) return (byte)((a < b) ? -1 : 1);
+		}
+		return (byte)0;
+	}
+
+	public static final short makeShort(byte b1, byte b2) {
+		return (short)(((b1 & 0xFF) << 8) | (b2 & 0xFF));
+	}
+
+	public static final short getShort(byte[] bArray, short bOff) {
+		return makeShort(bArray[bOff], bArray[bOff + 1]);
+	}
+
+	public static final short setShort(byte[] bArray, short bOff, short sValue) {
+		bArray[bOff] = (byte)(sValue >> 8);
+		bArray[bOff + 1] = (byte)sValue;
+		return (short)(bOff + 2);
+	}
+}
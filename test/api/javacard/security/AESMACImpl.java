@@ -0,0 +1,121 @@
+package javacard.security;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ALG_AES_MAC_128_NOPAD (AES CBC-MAC) using the JCA AES block cipher
+ */
+final class AESMACImpl extends Signature {
+
+	private static final int LENGTH_BLOCK = 16;
+
+	private Cipher cipher;
+	private byte mode;
+	private final byte[] iv = new byte[LENGTH_BLOCK];
+	private final byte[] chain = new byte[LENGTH_BLOCK];
+	private final byte[] pending = new byte[LENGTH_BLOCK];
+	private int pendingLength;
+
+	public byte getAlgorithm() {
+		return ALG_AES_MAC_128_NOPAD;
+	}
+
+	public short getLength() {
+		return (short)LENGTH_BLOCK;
+	}
+
+	public void init(Key theKey, byte theMode) {
+		init(theKey, theMode, new byte[LENGTH_BLOCK], (short)0, (short)LENGTH_BLOCK);
+	}
+
+	public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+
+		if (!(theKey instanceof AESKey)) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (theMode != MODE_SIGN && theMode != MODE_VERIFY) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (bLen != LENGTH_BLOCK) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (!theKey.isInitialized()) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+
+		AESKey key = (AESKey)theKey;
+		byte[] value = new byte[key.getSize() / 8];
+		key.getKey(value, (short)0);
+
+		try {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(value, "AES"));
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		mode = theMode;
+		System.arraycopy(bArray, bOff, iv, 0, LENGTH_BLOCK);
+		reset();
+	}
+
+	public void update(byte[] inBuff, short inOffset, short inLength) {
+
+		if (cipher == null) CryptoException.throwIt(CryptoException.INVALID_INIT);
+
+		for (int i = 0; i < inLength; i++) {
+			pending[pendingLength++] = inBuff[inOffset + i];
+			if (pendingLength == LENGTH_BLOCK) {
+				for (int j = 0; j < LENGTH_BLOCK; j++) chain[j] ^= pending[j];
+				encrypt(chain);
+				pendingLength = 0;
+			}
+		}
+	}
+
+	public short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) {
+
+		if (mode != MODE_SIGN) CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+		byte[] mac = finish(inBuff, inOffset, inLength);
+		System.arraycopy(mac, 0, sigBuff, sigOffset, LENGTH_BLOCK);
+		return (short)LENGTH_BLOCK;
+	}
+
+	public boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) {
+
+		if (mode != MODE_VERIFY) CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+		byte[] mac = finish(inBuff, inOffset, inLength);
+		if (sigLength != LENGTH_BLOCK) return false;
+
+		int diff = 0;
+		for (int i = 0; i < LENGTH_BLOCK; i++) diff |= mac[i] ^ sigBuff[sigOffset + i];
+		return (diff == 0);
+	}
+
+	private byte[] finish(byte[] inBuff, short inOffset, short inLength) {
+
+		// Copy the input first, as the output may overlap it
+		byte[] input = new byte[inLength];
+		System.arraycopy(inBuff, inOffset, input, 0, inLength);
+		update(input, (short)0, inLength);
+
+		if (pendingLength != 0) {
+			reset();
+			CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+		}
+
+		byte[] mac = chain.clone();
+		reset();
+		return mac;
+	}
+
+	private void reset() {
+		System.arraycopy(iv, 0, chain, 0, LENGTH_BLOCK);
+		pendingLength = 0;
+	}
+
+	private void encrypt(byte[] block) {
+		try {
+			cipher.doFinal(block, 0, LENGTH_BLOCK, block, 0);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package javacard.security;
+
+public interface DESKey extends SecretKey {
+
+	public byte getKey(byte[] keyData, short kOff) throws CryptoException;
+
+	public void setKey(byte[] keyData, short kOff) throws CryptoException, NullPointerException, ArrayIndexOutOfBoundsException;
+}
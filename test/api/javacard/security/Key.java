@@ -0,0 +1,12 @@
+package javacard.security;
+
+public interface Key {
+
+	public void clearKey();
+
+	public short getSize();
+
+	public byte getType();
+
+	public boolean isInitialized();
+}
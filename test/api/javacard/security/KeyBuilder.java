@@ -0,0 +1,66 @@
+package javacard.security;
+
+import javacard.framework.JCRE;
+import javacard.framework.JCSystem;
+
+public class KeyBuilder {
+
+	public static final byte TYPE_DES_TRANSIENT_RESET		= (byte)1;
+	public static final byte TYPE_DES_TRANSIENT_DESELECT	= (byte)2;
+	public static final byte TYPE_DES						= (byte)3;
+	public static final byte TYPE_RSA_PUBLIC				= (byte)4;
+	public static final byte TYPE_RSA_PRIVATE				= (byte)5;
+	public static final byte TYPE_RSA_CRT_PRIVATE			= (byte)6;
+	public static final byte TYPE_AES_TRANSIENT_RESET		= (byte)13;
+	public static final byte TYPE_AES_TRANSIENT_DESELECT	= (byte)14;
+	public static final byte TYPE_AES						= (byte)15;
+
+	public static final short LENGTH_DES		= (short)64;
+	public static final short LENGTH_DES3_2KEY	= (short)128;
+	public static final short LENGTH_DES3_3KEY	= (short)192;
+	public static final short LENGTH_RSA_512	= (short)512;
+	public static final short LENGTH_RSA_1024	= (short)1024;
+	public static final short LENGTH_RSA_2048	= (short)2048;
+	public static final short LENGTH_AES_128	= (short)128;
+	public static final short LENGTH_AES_192	= (short)192;
+	public static final short LENGTH_AES_256	= (short)256;
+
+	private KeyBuilder() {
+	}
+
+	public static Key buildKey(byte keyType, short keyLength, boolean keyEncryption) throws CryptoException {
+
+		switch (keyType) {
+
+		case TYPE_AES:
+		case TYPE_AES_TRANSIENT_RESET:
+		case TYPE_AES_TRANSIENT_DESELECT:
+			if (keyLength != LENGTH_AES_128 && keyLength != LENGTH_AES_192 && keyLength != LENGTH_AES_256) break;
+			return register(new SymmetricKeyImpl.AES(keyLength), keyType, TYPE_AES_TRANSIENT_RESET, TYPE_AES_TRANSIENT_DESELECT);
+
+		case TYPE_DES:
+		case TYPE_DES_TRANSIENT_RESET:
+		case TYPE_DES_TRANSIENT_DESELECT:
+			if (keyLength != LENGTH_DES && keyLength != LENGTH_DES3_2KEY && keyLength != LENGTH_DES3_3KEY) break;
+			return register(new SymmetricKeyImpl.DES(keyLength), keyType, TYPE_DES_TRANSIENT_RESET, TYPE_DES_TRANSIENT_DESELECT);
+
+		case TYPE_RSA_PUBLIC:
+			return new RSAKeyImpl.Public(keyLength);
+
+		case TYPE_RSA_PRIVATE:
+			return new RSAKeyImpl.Private(keyLength);
+
+		case TYPE_RSA_CRT_PRIVATE:
+			return new RSAKeyImpl.PrivateCrt(keyLength);
+		}
+
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	private static Key register(Key key, byte keyType, byte reset, byte deselect) {
+		if (keyType == reset) JCRE.addTransient(key, JCSystem.CLEAR_ON_RESET);
+		if (keyType == deselect) JCRE.addTransient(key, JCSystem.CLEAR_ON_DESELECT);
+		return key;
+	}
+}
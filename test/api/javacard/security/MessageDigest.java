@@ -0,0 +1,29 @@
+package javacard.security;
+
+public abstract class MessageDigest {
+
+	public static final byte ALG_SHA		= (byte)1;
+	public static final byte ALG_SHA_256	= (byte)4;
+
+	protected MessageDigest() {
+	}
+
+	public static final MessageDigest getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+		switch (algorithm) {
+		case ALG_SHA: return new MessageDigestImpl(algorithm, "SHA-1");
+		case ALG_SHA_256: return new MessageDigestImpl(algorithm, "SHA-256");
+		}
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	public abstract short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) throws CryptoException;
+
+	public abstract byte getAlgorithm();
+
+	public abstract byte getLength();
+
+	public abstract void reset();
+
+	public abstract void update(byte[] inBuff, short inOffset, short inLength) throws CryptoException;
+}
@@ -0,0 +1,44 @@
+package javacard.security;
+
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Message digests using the JCA
+ */
+final class MessageDigestImpl extends MessageDigest {
+
+	private final byte algorithm;
+	private final java.security.MessageDigest digest;
+
+	MessageDigestImpl(byte algorithm, String name) {
+		this.algorithm = algorithm;
+		try {
+			digest = java.security.MessageDigest.getInstance(name);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		digest.update(inBuff, inOffset, inLength);
+		byte[] hash = digest.digest();
+		System.arraycopy(hash, 0, outBuff, outOffset, hash.length);
+		return (short)hash.length;
+	}
+
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+
+	public byte getLength() {
+		return (byte)digest.getDigestLength();
+	}
+
+	public void reset() {
+		digest.reset();
+	}
+
+	public void update(byte[] inBuff, short inOffset, short inLength) {
+		digest.update(inBuff, inOffset, inLength);
+	}
+}
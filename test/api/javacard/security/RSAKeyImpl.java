@@ -0,0 +1,107 @@
+package javacard.security;
+
+import javacard.framework.JCRE;
+
+/**
+ * RSA key storage. Each component is kept as the big-endian bytes it was set with.
+ */
+abstract class RSAKeyImpl implements Key {
+
+	private final short size;
+	private final byte type;
+	private final byte[][] components;
+
+	RSAKeyImpl(byte type, short size, int count) {
+		this.type = type;
+		this.size = size;
+		components = new byte[count][];
+	}
+
+	public void clearKey() {
+		JCRE.chargeCommit(this, getModulusLength());
+		for (int i = 0; i < components.length; i++) {
+			if (components[i] != null) java.util.Arrays.fill(components[i], (byte)0);
+			components[i] = null;
+		}
+	}
+
+	public short getSize() {
+		return size;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public boolean isInitialized() {
+		for (byte[] component : components) {
+			if (component == null) return false;
+		}
+		return true;
+	}
+
+	short get(int index, byte[] buffer, short offset) {
+		byte[] component = components[index];
+		if (component == null) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		System.arraycopy(component, 0, buffer, offset, component.length);
+		return (short)component.length;
+	}
+
+	void set(int index, byte[] buffer, short offset, short length, int maxLength) {
+		if (length <= 0 || length > maxLength) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		JCRE.chargeCommit(this, length);
+		byte[] component = new byte[length];
+		System.arraycopy(buffer, offset, component, 0, length);
+		components[index] = component;
+	}
+
+	short getModulusLength() {
+		return (short)(size / 8);
+	}
+
+	static final class Public extends RSAKeyImpl implements RSAPublicKey {
+
+		Public(short size) {
+			super(KeyBuilder.TYPE_RSA_PUBLIC, size, 2);
+		}
+
+		public short getModulus(byte[] buffer, short offset) { return get(0, buffer, offset); }
+		public short getExponent(byte[] buffer, short offset) { return get(1, buffer, offset); }
+		public void setModulus(byte[] buffer, short offset, short length) { set(0, buffer, offset, length, getModulusLength()); }
+		public void setExponent(byte[] buffer, short offset, short length) { set(1, buffer, offset, length, getModulusLength()); }
+	}
+
+	static final class Private extends RSAKeyImpl implements RSAPrivateKey {
+
+		Private(short size) {
+			super(KeyBuilder.TYPE_RSA_PRIVATE, size, 2);
+		}
+
+		public short getModulus(byte[] buffer, short offset) { return get(0, buffer, offset); }
+		public short getExponent(byte[] buffer, short offset) { return get(1, buffer, offset); }
+		public void setModulus(byte[] buffer, short offset, short length) { set(0, buffer, offset, length, getModulusLength()); }
+		public void setExponent(byte[] buffer, short offset, short length) { set(1, buffer, offset, length, getModulusLength()); }
+	}
+
+	static final class PrivateCrt extends RSAKeyImpl implements RSAPrivateCrtKey {
+
+		PrivateCrt(short size) {
+			super(KeyBuilder.TYPE_RSA_CRT_PRIVATE, size, 5);
+		}
+
+		public short getP(byte[] buffer, short offset) { return get(0, buffer, offset); }
+		public short getQ(byte[] buffer, short offset) { return get(1, buffer, offset); }
+		public short getDP1(byte[] buffer, short offset) { return get(2, buffer, offset); }
+		public short getDQ1(byte[] buffer, short offset) { return get(3, buffer, offset); }
+		public short getPQ(byte[] buffer, short offset) { return get(4, buffer, offset); }
+		public void setP(byte[] buffer, short offset, short length) { set(0, buffer, offset, length, getPrimeLength()); }
+		public void setQ(byte[] buffer, short offset, short length) { set(1, buffer, offset, length, getPrimeLength()); }
+		public void setDP1(byte[] buffer, short offset, short length) { set(2, buffer, offset, length, getPrimeLength()); }
+		public void setDQ1(byte[] buffer, short offset, short length) { set(3, buffer, offset, length, getPrimeLength()); }
+		public void setPQ(byte[] buffer, short offset, short length) { set(4, buffer, offset, length, getPrimeLength()); }
+
+		private short getPrimeLength() {
+			return (short)(getModulusLength() / 2);
+		}
+	}
+}
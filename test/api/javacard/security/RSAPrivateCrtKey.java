@@ -0,0 +1,24 @@
+package javacard.security;
+
+public interface RSAPrivateCrtKey extends PrivateKey {
+
+	public short getDP1(byte[] buffer, short offset);
+
+	public short getDQ1(byte[] buffer, short offset);
+
+	public short getP(byte[] buffer, short offset);
+
+	public short getPQ(byte[] buffer, short offset);
+
+	public short getQ(byte[] buffer, short offset);
+
+	public void setDP1(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public void setDQ1(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public void setP(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public void setPQ(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public void setQ(byte[] buffer, short offset, short length) throws CryptoException;
+}
@@ -0,0 +1,39 @@
+package javacard.security;
+
+import java.security.SecureRandom;
+
+public abstract class RandomData {
+
+	public static final byte ALG_PSEUDO_RANDOM	= (byte)1;
+	public static final byte ALG_SECURE_RANDOM	= (byte)2;
+
+	protected RandomData() {
+	}
+
+	public static final RandomData getInstance(byte algorithm) throws CryptoException {
+		if (algorithm != ALG_PSEUDO_RANDOM && algorithm != ALG_SECURE_RANDOM) {
+			CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		}
+
+		return new RandomData() {
+
+			private final SecureRandom random = new SecureRandom();
+
+			public void generateData(byte[] buffer, short offset, short length) {
+				byte[] data = new byte[length];
+				random.nextBytes(data);
+				System.arraycopy(data, 0, buffer, offset, length);
+			}
+
+			public void setSeed(byte[] buffer, short offset, short length) {
+				byte[] seed = new byte[length];
+				System.arraycopy(buffer, offset, seed, 0, length);
+				random.setSeed(seed);
+			}
+		};
+	}
+
+	public abstract void generateData(byte[] buffer, short offset, short length) throws CryptoException;
+
+	public abstract void setSeed(byte[] buffer, short offset, short length);
+}
@@ -0,0 +1,32 @@
+package javacard.security;
+
+public abstract class Signature {
+
+	public static final byte ALG_AES_MAC_128_NOPAD	= (byte)18;
+
+	public static final byte MODE_SIGN		= (byte)1;
+	public static final byte MODE_VERIFY	= (byte)2;
+
+	protected Signature() {
+	}
+
+	public static final Signature getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+		if (algorithm == ALG_AES_MAC_128_NOPAD) return new AESMACImpl();
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	public abstract byte getAlgorithm();
+
+	public abstract short getLength() throws CryptoException;
+
+	public abstract void init(Key theKey, byte theMode) throws CryptoException;
+
+	public abstract void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) throws CryptoException;
+
+	public abstract short sign(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset) throws CryptoException;
+
+	public abstract void update(byte[] inBuff, short inOffset, short inLength) throws CryptoException;
+
+	public abstract boolean verify(byte[] inBuff, short inOffset, short inLength, byte[] sigBuff, short sigOffset, short sigLength) throws CryptoException;
+}
@@ -0,0 +1,62 @@
+package javacard.security;
+
+import javacard.framework.JCRE;
+
+/**
+ * AES and DES key storage
+ */
+abstract class SymmetricKeyImpl implements SecretKey {
+
+	private final short size;
+	private final byte type;
+	private final byte[] value;
+	private boolean initialized;
+
+	SymmetricKeyImpl(byte type, short size) {
+		this.type = type;
+		this.size = size;
+		value = new byte[size / 8];
+	}
+
+	public void clearKey() {
+		JCRE.chargeCommit(this, value.length);
+		java.util.Arrays.fill(value, (byte)0);
+		initialized = false;
+	}
+
+	public short getSize() {
+		return size;
+	}
+
+	public byte getType() {
+		return type;
+	}
+
+	public boolean isInitialized() {
+		return initialized;
+	}
+
+	public byte getKey(byte[] keyData, short kOff) {
+		if (!initialized) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		System.arraycopy(value, 0, keyData, kOff, value.length);
+		return (byte)value.length;
+	}
+
+	public void setKey(byte[] keyData, short kOff) {
+		JCRE.chargeCommit(this, value.length);
+		System.arraycopy(keyData, kOff, value, 0, value.length);
+		initialized = true;
+	}
+
+	static final class AES extends SymmetricKeyImpl implements AESKey {
+		AES(short size) {
+			super(KeyBuilder.TYPE_AES, size);
+		}
+	}
+
+	static final class DES extends SymmetricKeyImpl implements DESKey {
+		DES(short size) {
+			super(KeyBuilder.TYPE_DES, size);
+		}
+	}
+}
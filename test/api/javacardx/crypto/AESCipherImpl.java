@@ -0,0 +1,90 @@
+package javacardx.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import javacard.security.AESKey;
+import javacard.security.CryptoException;
+import javacard.security.Key;
+
+/**
+ * AES block cipher modes (no padding) using the JCA
+ */
+final class AESCipherImpl extends Cipher {
+
+	private static final short LENGTH_BLOCK = (short)16;
+
+	private final byte algorithm;
+	private final javax.crypto.Cipher cipher;
+	private boolean initialized;
+
+	AESCipherImpl(byte algorithm, String transformation) {
+		this.algorithm = algorithm;
+		try {
+			cipher = javax.crypto.Cipher.getInstance(transformation);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+
+	public void init(Key theKey, byte theMode) {
+		init(theKey, theMode, new byte[LENGTH_BLOCK], (short)0, LENGTH_BLOCK);
+	}
+
+	public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+
+		if (!(theKey instanceof AESKey)) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (theMode != MODE_ENCRYPT && theMode != MODE_DECRYPT) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (bLen != LENGTH_BLOCK) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (!theKey.isInitialized()) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+
+		AESKey key = (AESKey)theKey;
+		byte[] value = new byte[key.getSize() / 8];
+		key.getKey(value, (short)0);
+
+		int mode = (theMode == MODE_ENCRYPT) ? javax.crypto.Cipher.ENCRYPT_MODE : javax.crypto.Cipher.DECRYPT_MODE;
+		try {
+			if (algorithm == ALG_AES_BLOCK_128_ECB_NOPAD) {
+				cipher.init(mode, new SecretKeySpec(value, "AES"));
+			} else {
+				cipher.init(mode, new SecretKeySpec(value, "AES"), new IvParameterSpec(bArray, bOff, bLen));
+			}
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		}
+		initialized = true;
+	}
+
+	public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		if (!initialized) CryptoException.throwIt(CryptoException.INVALID_INIT);
+		byte[] output = cipher.update(inBuff, inOffset, inLength);
+		return copy(output, outBuff, outOffset);
+	}
+
+	public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		if (!initialized) CryptoException.throwIt(CryptoException.INVALID_INIT);
+		try {
+			// NOTE: The JCA cipher returns to its initial state (key and IV) afterwards, as a card does
+			byte[] output = cipher.doFinal(inBuff, inOffset, inLength);
+			return copy(output, outBuff, outOffset);
+		} catch (IllegalBlockSizeException ex) {
+			CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+		} catch (GeneralSecurityException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return 0;
+	}
+
+	private static short copy(byte[] output, byte[] outBuff, short outOffset) {
+		if (output == null) return 0;
+		System.arraycopy(output, 0, outBuff, outOffset, output.length);
+		return (short)output.length;
+	}
+}
@@ -0,0 +1,39 @@
+package javacardx.crypto;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+
+public abstract class Cipher {
+
+	public static final byte ALG_RSA_PKCS1					= (byte)10;
+	public static final byte ALG_RSA_NOPAD					= (byte)12;
+	public static final byte ALG_AES_BLOCK_128_CBC_NOPAD	= (byte)13;
+	public static final byte ALG_AES_BLOCK_128_ECB_NOPAD	= (byte)14;
+
+	public static final byte MODE_DECRYPT	= (byte)1;
+	public static final byte MODE_ENCRYPT	= (byte)2;
+
+	protected Cipher() {
+	}
+
+	public static final Cipher getInstance(byte algorithm, boolean externalAccess) throws CryptoException {
+		switch (algorithm) {
+		case ALG_AES_BLOCK_128_CBC_NOPAD: return new AESCipherImpl(algorithm, "AES/CBC/NoPadding");
+		case ALG_AES_BLOCK_128_ECB_NOPAD: return new AESCipherImpl(algorithm, "AES/ECB/NoPadding");
+		case ALG_RSA_NOPAD:
+		case ALG_RSA_PKCS1: return new RSACipherImpl(algorithm);
+		}
+		CryptoException.throwIt(CryptoException.NO_SUCH_ALGORITHM);
+		return null;
+	}
+
+	public abstract short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) throws CryptoException;
+
+	public abstract byte getAlgorithm();
+
+	public abstract void init(Key theKey, byte theMode) throws CryptoException;
+
+	public abstract void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) throws CryptoException;
+
+	public abstract short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) throws CryptoException;
+}
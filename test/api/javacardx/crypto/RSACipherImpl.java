@@ -0,0 +1,163 @@
+package javacardx.crypto;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+
+import javacard.security.CryptoException;
+import javacard.security.Key;
+import javacard.security.RSAPrivateCrtKey;
+import javacard.security.RSAPrivateKey;
+import javacard.security.RSAPublicKey;
+
+/**
+ * RSA with no padding or PKCS#1 v1.5 padding (block type 2 for public key encryption, block
+ * type 1 for private key encryption), using BigInteger arithmetic so that CRT keys can be used
+ * without the private exponent.
+ */
+final class RSACipherImpl extends Cipher {
+
+	private final byte algorithm;
+	private final SecureRandom random = new SecureRandom();
+
+	private Key key;
+	private byte mode;
+
+	RSACipherImpl(byte algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	public byte getAlgorithm() {
+		return algorithm;
+	}
+
+	public void init(Key theKey, byte theMode) {
+		if (!(theKey instanceof RSAPublicKey || theKey instanceof RSAPrivateKey || theKey instanceof RSAPrivateCrtKey)) {
+			CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		}
+		if (theMode != MODE_ENCRYPT && theMode != MODE_DECRYPT) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		if (!theKey.isInitialized()) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+		key = theKey;
+		mode = theMode;
+	}
+
+	public void init(Key theKey, byte theMode, byte[] bArray, short bOff, short bLen) {
+		// RSA takes no initialisation data
+		CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+	}
+
+	public short update(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+		CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+		return 0;
+	}
+
+	public short doFinal(byte[] inBuff, short inOffset, short inLength, byte[] outBuff, short outOffset) {
+
+		if (key == null) CryptoException.throwIt(CryptoException.INVALID_INIT);
+		if (!key.isInitialized()) CryptoException.throwIt(CryptoException.UNINITIALIZED_KEY);
+
+		int k = key.getSize() / 8;
+		boolean publicKey = (key instanceof RSAPublicKey);
+
+		byte[] input = new byte[inLength];
+		System.arraycopy(inBuff, inOffset, input, 0, inLength);
+
+		byte[] block;
+		if (mode == MODE_ENCRYPT && algorithm == ALG_RSA_PKCS1) {
+			block = pad(input, k, publicKey ? 2 : 1);
+		} else {
+			if (inLength != k) CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+			block = input;
+		}
+
+		byte[] output = toBytes(apply(new BigInteger(1, block)), k);
+
+		if (mode == MODE_DECRYPT && algorithm == ALG_RSA_PKCS1) {
+			output = unpad(output, publicKey ? 1 : 2);
+		}
+
+		System.arraycopy(output, 0, outBuff, outOffset, output.length);
+		return (short)output.length;
+	}
+
+	private BigInteger apply(BigInteger value) {
+
+		if (key instanceof RSAPrivateCrtKey) {
+			RSAPrivateCrtKey crt = (RSAPrivateCrtKey)key;
+			BigInteger p = component(crt, 0);
+			BigInteger q = component(crt, 1);
+			BigInteger dp = component(crt, 2);
+			BigInteger dq = component(crt, 3);
+			BigInteger pq = component(crt, 4);
+			if (value.compareTo(p.multiply(q)) >= 0) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+
+			BigInteger m1 = value.mod(p).modPow(dp, p);
+			BigInteger m2 = value.mod(q).modPow(dq, q);
+			BigInteger h = pq.multiply(m1.subtract(m2)).mod(p);
+			return m2.add(h.multiply(q));
+		}
+
+		BigInteger n, e;
+		byte[] buffer = new byte[key.getSize() / 8];
+		if (key instanceof RSAPublicKey) {
+			RSAPublicKey rsa = (RSAPublicKey)key;
+			n = new BigInteger(1, java.util.Arrays.copyOf(buffer, rsa.getModulus(buffer, (short)0)));
+			e = new BigInteger(1, java.util.Arrays.copyOf(buffer, rsa.getExponent(buffer, (short)0)));
+		} else {
+			RSAPrivateKey rsa = (RSAPrivateKey)key;
+			n = new BigInteger(1, java.util.Arrays.copyOf(buffer, rsa.getModulus(buffer, (short)0)));
+			e = new BigInteger(1, java.util.Arrays.copyOf(buffer, rsa.getExponent(buffer, (short)0)));
+		}
+		if (value.compareTo(n) >= 0) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+		return value.modPow(e, n);
+	}
+
+	private static BigInteger component(RSAPrivateCrtKey key, int index) {
+		byte[] buffer = new byte[key.getSize() / 8];
+		short length = 0;
+		switch (index) {
+		case 0: length = key.getP(buffer, (short)0); break;
+		case 1: length = key.getQ(buffer, (short)0); break;
+		case 2: length = key.getDP1(buffer, (short)0); break;
+		case 3: length = key.getDQ1(buffer, (short)0); break;
+		case 4: length = key.getPQ(buffer, (short)0); break;
+		}
+		return new BigInteger(1, java.util.Arrays.copyOf(buffer, length));
+	}
+
+	private byte[] pad(byte[] data, int k, int blockType) {
+
+		if (data.length > k - 11) CryptoException.throwIt(CryptoException.ILLEGAL_USE);
+
+		byte[] block = new byte[k];
+		block[1] = (byte)blockType;
+		int psEnd = k - data.length - 1;
+		for (int i = 2; i < psEnd; i++) {
+			if (blockType == 1) {
+				block[i] = (byte)0xFF;
+			} else {
+				do { block[i] = (byte)random.nextInt(256); } while (block[i] == 0);
+			}
+		}
+		System.arraycopy(data, 0, block, psEnd + 1, data.length);
+		return block;
+	}
+
+	private static byte[] unpad(byte[] block, int blockType) {
+
+		if (block[0] != 0 || block[1] != (byte)blockType) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+
+		int i = 2;
+		while (i < block.length && block[i] != 0) i++;
+		if (i < 10 || i == block.length) CryptoException.throwIt(CryptoException.ILLEGAL_VALUE);
+
+		return java.util.Arrays.copyOfRange(block, i + 1, block.length);
+	}
+
+	private static byte[] toBytes(BigInteger value, int length) {
+		byte[] bytes = value.toByteArray();
+		byte[] result = new byte[length];
+		int copy = Math.min(bytes.length, length);
+		System.arraycopy(bytes, bytes.length - copy, result, length - copy, copy);
+		return result;
+	}
+}
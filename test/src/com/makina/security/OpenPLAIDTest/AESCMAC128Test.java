@@ -0,0 +1,98 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.security.AESKey;
+import javacard.security.KeyBuilder;
+import javacard.security.Signature;
+
+import com.makina.security.OpenPLAIDCore.AESCMAC128;
+
+/**
+ * Tests AESCMAC128 against the RFC 4493 (section 4) test vectors
+ */
+public class AESCMAC128Test extends TestCase {
+
+	private static final byte[] KEY = fromHex("2B7E151628AED2A6ABF7158809CF4F3C");
+
+	private static final byte[] MESSAGE = fromHex(
+			"6BC1BEE22E409F96E93D7E117393172A" +
+			"AE2D8A571E03AC9C9EB76FAC45AF8E51" +
+			"30C81C46A35CE411E5FBC1191A0A52EF" +
+			"F69F2445DF4F9B17AD2B417BE66C3710");
+
+	// The message lengths and their expected CMAC
+	private static final int[] LENGTHS = { 0, 16, 40, 64 };
+	private static final byte[][] EXPECTED = {
+		fromHex("BB1D6929E95937287FA37D129B756746"),
+		fromHex("070A16B46B4D4144F79BDD9DD04A287C"),
+		fromHex("DFA66747DE9AE63030CA32611497C827"),
+		fromHex("51F0BEBF7E3B9D92FC49741779363CFE")
+	};
+
+	private static Signature getSignature(byte mode) {
+
+		AESKey key = (AESKey)KeyBuilder.buildKey(KeyBuilder.TYPE_AES, KeyBuilder.LENGTH_AES_128, false);
+		key.setKey(KEY, (short)0);
+
+		Signature signature = new AESCMAC128();
+		signature.init(key, mode);
+		return signature;
+	}
+
+	public void testSign() {
+
+		Signature signature = getSignature(Signature.MODE_SIGN);
+
+		// The subkeys are kept between messages
+		for (int i = 0; i < LENGTHS.length; i++) {
+			byte[] mac = new byte[AESCMAC128.LENGTH_CMAC];
+			assertEquals("Length", AESCMAC128.LENGTH_CMAC, signature.sign(MESSAGE, (short)0, (short)LENGTHS[i], mac, (short)0));
+			assertArrayEquals("CMAC (" + LENGTHS[i] + " bytes)", EXPECTED[i], mac);
+		}
+	}
+
+	public void testSignInParts() {
+
+		Signature signature = getSignature(Signature.MODE_SIGN);
+
+		// Parts that end both on and off a block boundary, including an empty one
+		for (int part : new int[] { 1, 7, 16, 17 }) {
+
+			int offset = 0;
+			for (; offset + part < MESSAGE.length; offset += part) {
+				signature.update(MESSAGE, (short)offset, (short)part);
+			}
+			signature.update(MESSAGE, (short)offset, (short)0);
+
+			byte[] mac = new byte[AESCMAC128.LENGTH_CMAC];
+			signature.sign(MESSAGE, (short)offset, (short)(MESSAGE.length - offset), mac, (short)0);
+			assertArrayEquals("CMAC (parts of " + part + ")", EXPECTED[LENGTHS.length - 1], mac);
+		}
+	}
+
+	public void testVerify() {
+
+		Signature signature = getSignature(Signature.MODE_VERIFY);
+
+		for (int i = 0; i < LENGTHS.length; i++) {
+			assertTrue("Verify", signature.verify(MESSAGE, (short)0, (short)LENGTHS[i], EXPECTED[i], (short)0, AESCMAC128.LENGTH_CMAC));
+
+			byte[] tampered = EXPECTED[i].clone();
+			tampered[tampered.length - 1] ^= 0x01;
+			assertTrue("Verify tampered", !signature.verify(MESSAGE, (short)0, (short)LENGTHS[i], tampered, (short)0, AESCMAC128.LENGTH_CMAC));
+		}
+
+		// A signature length beyond a full CMAC is refused
+		byte[] padded = Arrays.copyOf(EXPECTED[1], AESCMAC128.LENGTH_CMAC + 1);
+		assertTrue("Verify too long", !signature.verify(MESSAGE, (short)0, (short)16, padded, (short)0, (short)padded.length));
+	}
+
+	public void testHostCMAC() throws Exception {
+
+		// The host implementation used to build test data gives the same results
+		for (int i = 0; i < LENGTHS.length; i++) {
+			assertArrayEquals("CMAC (" + LENGTHS[i] + " bytes)", EXPECTED[i], HostCrypto.cmac(KEY, Arrays.copyOf(MESSAGE, LENGTHS[i])));
+		}
+	}
+}
@@ -0,0 +1,169 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+/**
+ * Tests the extended length, command chaining and response chaining paths shared by both
+ * applets (see OpenPLAIDCore.ApduIO)
+ */
+public class ApduIOTest extends TestCase {
+
+	private static final int INS_GET_RESPONSE	= 0xC0;
+	private static final int INS_MANAGE_CHANNEL	= 0x70;
+	private static final int INS_SELECT			= 0xA4;
+
+	private static final int CLA_CHANNEL_1		= 0x01;
+
+	private static final int INS_SAM_READ_KEY_DIRECTORY	= 0x18;
+
+	// The largest segment of a chained command
+	private static final int LENGTH_SEGMENT		= 200;
+
+	public void testExtendedCommand() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		// A PLAID key record is longer than a short APDU
+		byte[] data = getKeyFile().getLoadKeyData(KEY_TRANSPORT);
+		assertTrue("The record should need an extended APDU", data.length > 255);
+
+		byte[] slot = send(INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, data);
+		assertArrayEquals("Slot", toShort(0), slot);
+	}
+
+	public void testChainedCommand() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		byte[] data = getKeyFile().getLoadKeyData(KEY_TRANSPORT);
+
+		// Each segment but the last is acknowledged with 9000 and no data
+		for (int offset = 0; offset < data.length; offset += LENGTH_SEGMENT) {
+
+			byte[] segment = Arrays.copyOfRange(data, offset, Math.min(offset + LENGTH_SEGMENT, data.length));
+			boolean last = (offset + LENGTH_SEGMENT >= data.length);
+
+			byte[] response = send(SW_OK, last ? 0x00 : CLA_CHAIN, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, segment, 0);
+			if (last) {
+				assertArrayEquals("Slot", toShort(0), response);
+			} else {
+				assertEquals("Segment response length", 0, response.length);
+			}
+		}
+
+		// The key was loaded, so its identifier can't be loaded again
+		send(SW_DATA_INVALID, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, data, 0);
+	}
+
+	public void testInterruptedChain() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		byte[] data = getKeyFile().getLoadKeyData(KEY_TRANSPORT);
+
+		send(SW_OK, CLA_CHAIN, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, Arrays.copyOf(data, LENGTH_SEGMENT), NO_LE);
+		send(SW_LAST_COMMAND_EXPECTED, 0x00, INS_SAM_GET_STATUS, 0, 0, null, 0);
+
+		// The chain was abandoned, so the next command is processed normally
+		send(INS_SAM_GET_STATUS, 0, 0, null);
+	}
+
+	/**
+	 * Selects the SAM on the basic channel and on logical channel 1
+	 */
+	private static void selectSamTwice() {
+
+		installSam();
+		select(AID_SAM);
+
+		send(SW_OK, 0x00, INS_MANAGE_CHANNEL, 0x00, 0x00, null, 1);
+		send(SW_OK, CLA_CHANNEL_1, INS_SELECT, 0x04, 0x00, AID_SAM, NO_LE);
+	}
+
+	public void testChainAcrossChannels() throws Exception {
+
+		selectSamTwice();
+
+		byte[] data = getKeyFile().getLoadKeyData(KEY_TRANSPORT);
+
+		// A command on another channel that fits the APDU buffer leaves the chain alone
+		send(SW_OK, CLA_CHAIN, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, Arrays.copyOf(data, LENGTH_SEGMENT), NO_LE);
+		send(SW_OK, CLA_CHANNEL_1, INS_SAM_GET_STATUS, 0, 0, null, 0);
+
+		byte[] slot = send(SW_OK, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, Arrays.copyOfRange(data, LENGTH_SEGMENT, data.length), 0);
+		assertArrayEquals("Slot", toShort(0), slot);
+	}
+
+	public void testChainLostToOtherChannel() throws Exception {
+
+		selectSamTwice();
+
+		byte[] data = getKeyFile().getLoadKeyData(KEY_TRANSPORT);
+		byte[] key = KeyFile.getSymmetricKeyData(0x7001, 0, new byte[16]);
+
+		// A chained command on another channel takes over the command buffer
+		send(SW_OK, CLA_CHAIN, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, Arrays.copyOf(data, LENGTH_SEGMENT), NO_LE);
+		send(SW_OK, CLA_CHAIN | CLA_CHANNEL_1, INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, Arrays.copyOf(key, 16), NO_LE);
+		send(SW_OK, CLA_CHANNEL_1, INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, Arrays.copyOfRange(key, 16, key.length), 0);
+
+		// So the first chain can't be completed, and must be sent again
+		send(SW_LAST_COMMAND_EXPECTED, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, Arrays.copyOfRange(data, LENGTH_SEGMENT, data.length), 0);
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, data);
+	}
+
+	public void testResponseAcrossChannels() throws Exception {
+
+		selectSamTwice();
+
+		// Fill more than a short response of key directory
+		for (int i = 0; i < 3; i++) {
+			send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001 + i, 0, new byte[16]));
+		}
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+		send(SW_OK, CLA_CHANNEL_1, INS_SAM_VERIFY_PIN, 0, 0, SAM_PIN, NO_LE);
+
+		byte[] first = send(SW_BYTES_REMAINING_00 | 0x06, 0x00, INS_SAM_READ_KEY_DIRECTORY, 0, 0, null, 0x80);
+		assertEquals("First part length", 0x80, first.length);
+
+		// A command on another channel that doesn't need the response buffer leaves it alone
+		send(SW_OK, CLA_CHANNEL_1, INS_SAM_GET_STATUS, 0, 0, null, 0);
+		assertEquals("Second part length", 6, send(SW_OK, 0x00, INS_GET_RESPONSE, 0, 0, null, 0).length);
+
+		// A long response on another channel takes it over
+		send(SW_BYTES_REMAINING_00 | 0x06, 0x00, INS_SAM_READ_KEY_DIRECTORY, 0, 0, null, 0x80);
+		send(SW_BYTES_REMAINING_00 | 0x06, CLA_CHANNEL_1, INS_SAM_READ_KEY_DIRECTORY, 0, 0, null, 0x80);
+		send(SW_CONDITIONS_NOT_SATISFIED, 0x00, INS_GET_RESPONSE, 0, 0, null, 0);
+		assertEquals("Second part length", 6, send(SW_OK, CLA_CHANNEL_1, INS_GET_RESPONSE, 0, 0, null, 0).length);
+	}
+
+	public void testResponseChaining() {
+
+		installCard();
+		select(AID_CARD);
+
+		// Ask for the transport key cryptogram in two parts
+		byte[] first = send(SW_BYTES_REMAINING_00 | 0x80, 0x00, INS_GET_DATA, 0, 0, null, 0x80);
+		assertEquals("First part length", 0x80, first.length);
+
+		byte[] second = send(SW_OK, 0x00, INS_GET_RESPONSE, 0, 0, null, 0);
+		assertEquals("Second part length", 0x80, second.length);
+
+		// Nothing is left
+		send(SW_CONDITIONS_NOT_SATISFIED, 0x00, INS_GET_RESPONSE, 0, 0, null, 0);
+	}
+
+	public void testResponseDiscarded() {
+
+		installCard();
+		select(AID_CARD);
+
+		send(SW_BYTES_REMAINING_00 | 0x80, 0x00, INS_GET_DATA, 0, 0, null, 0x80);
+
+		// Any other command discards the rest of the response
+		send(INS_GET_STATUS, 0, 0, null);
+		send(SW_CONDITIONS_NOT_SATISFIED, 0x00, INS_GET_RESPONSE, 0, 0, null, 0);
+	}
+}
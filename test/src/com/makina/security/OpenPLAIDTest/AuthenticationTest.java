@@ -0,0 +1,312 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests PLAID authentication and SET DATA between the SAM and the card.
+ *
+ * Both applets are installed in the same JCRE, with the SAM selected on the basic channel and
+ * the card on logical channel 1.
+ */
+public class AuthenticationTest extends TestCase {
+
+	private static final int CLA_SAM	= 0x00;
+	private static final int CLA_CARD	= 0x01;
+
+	private static final int INS_MANAGE_CHANNEL	= 0x70;
+	private static final int INS_SELECT			= 0xA4;
+	private static final int INS_GET_RESPONSE	= 0xC0;
+
+	private static final int LENGTH_ACSRECORD	= 16;
+
+	// SET DATA command objects (see PLAIDProtocol)
+	private static final int OP_ACSR_CREATE		= 8;
+	private static final int TAG_PARAM_ID		= 0x41;	// [APPLICATION 1]
+	private static final int TAG_PARAM_DATA		= 0x42;	// [APPLICATION 2]
+	private static final int TAG_UNUSED			= 0x45;	// Not part of any schema, so ignored
+
+	// The SAM P2 flags and card P1 value for the CMAC envelope
+	private static final int P2_SAM_SET_DATA_BATCH	= 0x01;
+	private static final int P2_SAM_SET_DATA_CMAC	= 0x02;
+	private static final int P1_CARD_ENVELOPE_CMAC	= 0x01;
+
+	private void setUp() throws Exception {
+
+		installSam();
+		installCard();
+
+		select(AID_SAM);
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+
+		byte[] channel = send(SW_OK, 0x00, INS_MANAGE_CHANNEL, 0x00, 0x00, null, 1);
+		assertArrayEquals("Channel", new byte[] { CLA_CARD }, channel);
+		send(SW_OK, CLA_CARD, INS_SELECT, 0x04, 0x00, AID_CARD, NO_LE);
+	}
+
+	/**
+	 * Authenticates the SAM to the card with the transport keyset and returns the ACSRecord
+	 */
+	private static byte[] authenticate(int opMode) {
+
+		// Load the transport FA key from the card cryptogram
+		byte[] cryptogram = send(SW_OK, CLA_CARD, INS_GET_DATA, 0, 0, null, 0);
+		send(SW_OK, CLA_SAM, INS_SAM_LOAD_FAKEY, P1_KEY_BY_ID, 0, concat(toShort(KEY_TRANSPORT), cryptogram), NO_LE);
+
+		// Initial Authenticate
+		byte[] keysets = tlv(0x30, tlv(0x04, toShort(KEYSET_ADMIN)));
+		byte[] estr1 = send(SW_OK, CLA_CARD, INS_INITIAL_AUTH, 0, 0, keysets, 0);
+		byte[] estr2 = send(SW_OK, CLA_SAM, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, concat(toShort(KEY_TRANSPORT), toShort(opMode), estr1), 0);
+
+		// Final Authenticate
+		byte[] estr3 = send(SW_OK, CLA_CARD, INS_FINAL_AUTH, 0, 0, estr2, 0);
+		return send(SW_OK, CLA_SAM, INS_FINAL_AUTH, 0, 0, estr3, 0);
+	}
+
+	/**
+	 * Returns an ACSR_CREATE command object
+	 */
+	private static byte[] acsrCreate(int id, byte[] record) {
+		return acsrCreate(id, record, new byte[0]);
+	}
+
+	/**
+	 * Returns an ACSR_CREATE command object followed by an object that the card ignores
+	 */
+	private static byte[] acsrCreate(int id, byte[] record, byte[] filler) {
+		return tlv(0x30,
+				   tlv(0x02, new byte[] { 0x00 }),					// COUNTER (set by the SAM)
+				   tlv(0x0A, new byte[] { OP_ACSR_CREATE }),		// OPERATION
+				   tlv(TAG_PARAM_ID, toShort(id)),
+				   tlv(TAG_PARAM_DATA, record),
+				   (filler.length == 0) ? filler : tlv(TAG_UNUSED, filler));
+	}
+
+	/**
+	 * Splits a SET DATA batch response into the cryptogram of each OCTET STRING
+	 */
+	private static byte[][] splitBatch(byte[] response) {
+
+		List<byte[]> cryptograms = new ArrayList<byte[]>();
+		int offset = 0;
+		while (offset < response.length) {
+
+			assertEquals("Tag", 0x04, response[offset++]);
+			int length = response[offset++] & 0xFF;
+			if (length > 0x80) {
+				int count = length & 0x7F;
+				length = 0;
+				for (int i = 0; i < count; i++) length = (length << 8) | (response[offset++] & 0xFF);
+			}
+
+			cryptograms.add(Arrays.copyOfRange(response, offset, offset + length));
+			offset += length;
+		}
+		return cryptograms.toArray(new byte[cryptograms.size()][]);
+	}
+
+	public void testTransportAuthentication() throws Exception {
+
+		setUp();
+
+		byte[] record = authenticate(0x0000);
+		assertEquals("ACSRecord length", LENGTH_ACSRECORD, record.length);
+	}
+
+	public void testUnknownKeyset() throws Exception {
+
+		setUp();
+
+		// Only KEYSET_ADMIN may authenticate before the card is activated
+		byte[] keysets = tlv(0x30, tlv(0x04, toShort(0x1234)));
+		send(SW_DATA_INVALID, CLA_CARD, INS_INITIAL_AUTH, 0, 0, keysets, 0);
+	}
+
+	public void testCorruptedInitialAuth() throws Exception {
+
+		setUp();
+
+		byte[] cryptogram = send(SW_OK, CLA_CARD, INS_GET_DATA, 0, 0, null, 0);
+		send(SW_OK, CLA_SAM, INS_SAM_LOAD_FAKEY, P1_KEY_BY_ID, 0, concat(toShort(KEY_TRANSPORT), cryptogram), NO_LE);
+
+		byte[] keysets = tlv(0x30, tlv(0x04, toShort(KEYSET_ADMIN)));
+		byte[] estr1 = send(SW_OK, CLA_CARD, INS_INITIAL_AUTH, 0, 0, keysets, 0);
+		estr1[estr1.length - 1] ^= 0x01;
+
+		byte[] response = transmit(CLA_SAM, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, concat(toShort(KEY_TRANSPORT), toShort(0), estr1), 0);
+		assertTrue("The SAM should reject a corrupted eSTR1", getSW(response) != SW_OK);
+
+		// The failed attempt leaves the session unauthenticated
+		send(SW_CONDITIONS_NOT_SATISFIED, CLA_SAM, INS_FINAL_AUTH, 0, 0, new byte[48], 0);
+	}
+
+	public void testCreateACSRecord() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record, (byte)0x11);
+
+		authenticate(0x0000);
+		byte[] command = send(SW_OK, CLA_SAM, INS_SET_DATA, 0, 0, acsrCreate(0x0001, record), 0);
+		send(SW_OK, CLA_CARD, INS_SET_DATA, 0, 0, command, NO_LE);
+
+		// The new record is returned for its OpMode
+		assertArrayEquals("ACSRecord", record, authenticate(0x0001));
+	}
+
+	public void testCreateACSRecordWithCMAC() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record, (byte)0x22);
+
+		authenticate(0x0000);
+		byte[] command = send(SW_OK, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_CMAC, acsrCreate(0x0002, record), 0);
+
+		// The card rejects a cryptogram that fails the MAC
+		byte[] tampered = command.clone();
+		tampered[0] ^= 0x01;
+		byte[] response = transmit(CLA_CARD, INS_SET_DATA, P1_CARD_ENVELOPE_CMAC, 0, tampered, NO_LE);
+		assertTrue("The card should reject a tampered cryptogram", getSW(response) != SW_OK);
+
+		// Authenticate again, as the failure resets the card session
+		authenticate(0x0000);
+		command = send(SW_OK, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_CMAC, acsrCreate(0x0002, record), 0);
+		send(SW_OK, CLA_CARD, INS_SET_DATA, P1_CARD_ENVELOPE_CMAC, 0, command, NO_LE);
+
+		assertArrayEquals("ACSRecord", record, authenticate(0x0002));
+	}
+
+	public void testSetDataBatch() throws Exception {
+
+		setUp();
+
+		byte[] record5 = new byte[LENGTH_ACSRECORD];
+		byte[] record6 = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record5, (byte)0x55);
+		Arrays.fill(record6, (byte)0x66);
+
+		// One cryptogram for each command object, in order, with and without the CMAC envelope
+		for (int p2 : new int[] { 0x00, P2_SAM_SET_DATA_CMAC }) {
+
+			authenticate(0x0000);
+			byte[] batch = concat(acsrCreate(0x0005, record5), acsrCreate(0x0006, record6));
+			byte[][] commands = splitBatch(send(SW_OK, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH | p2, batch, 0));
+			assertEquals("Cryptograms", 2, commands.length);
+
+			for (byte[] command : commands) {
+				send(SW_OK, CLA_CARD, INS_SET_DATA, (p2 == 0) ? 0 : P1_CARD_ENVELOPE_CMAC, 0, command, NO_LE);
+			}
+
+			assertArrayEquals("ACSRecord", record5, authenticate(0x0005));
+			assertArrayEquals("ACSRecord", record6, authenticate(0x0006));
+
+			// New contents for the same records with the next envelope
+			Arrays.fill(record5, (byte)(record5[0] + 1));
+			Arrays.fill(record6, (byte)(record6[0] + 1));
+		}
+	}
+
+	public void testSetDataBatchMalformed() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+
+		// A trailing byte that is not a command object is refused before any cryptogram is made,
+		// so the session can still be used
+		authenticate(0x0000);
+		byte[] batch = concat(acsrCreate(0x0007, record), new byte[] { 0x30 });
+		byte[] response = transmit(CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, batch, 0);
+		assertTrue("The SAM should reject a malformed batch", getSW(response) != SW_OK);
+		assertEquals("Response length", 0, getData(response).length);
+		send(SW_OK, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, acsrCreate(0x0007, record), 0);
+
+		// A command object that fails after the first cryptogram was made ends the session, as the
+		// card counter can no longer be matched
+		authenticate(0x0000);
+		batch = concat(acsrCreate(0x0007, record), tlv(0x30, tlv(0x02, new byte[] { 0x00 })));
+		response = transmit(CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, batch, 0);
+		assertTrue("The SAM should reject a command object without an operation", getSW(response) != SW_OK);
+		send(SW_SECURITY_STATUS_NOT_SATISFIED, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, acsrCreate(0x0007, record), 0);
+	}
+
+	public void testLongCommands() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record, (byte)0x33);
+
+		// Commands that fill the card command buffer, so nothing may be written after them
+		for (int p2 : new int[] { 0x00, P2_SAM_SET_DATA_CMAC }) {
+
+			authenticate(0x0000);
+			byte[] command = send(SW_OK, CLA_SAM, INS_SET_DATA, 0, p2, acsrCreate(0x0003, record, new byte[300]), 0x400);
+			assertTrue("The command should need an extended APDU", command.length > 255);
+			send(SW_OK, CLA_CARD, INS_SET_DATA, (p2 == 0) ? 0 : P1_CARD_ENVELOPE_CMAC, 0, command, NO_LE);
+		}
+
+		assertArrayEquals("ACSRecord", record, authenticate(0x0003));
+	}
+
+	public void testChainedResponse() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record, (byte)0x44);
+
+		// The SAM cuts the cryptogram to Le and keeps the rest for GET RESPONSE
+		authenticate(0x0000);
+		byte[] response = transmit(CLA_SAM, INS_SET_DATA, 0, 0, acsrCreate(0x0004, record, new byte[300]), 256);
+		assertEquals("SW", SW_BYTES_REMAINING_00, getSW(response) & 0xFF00);
+
+		byte[] command = getData(response);
+		assertEquals("First part length", 256, command.length);
+
+		byte[] rest = send(SW_OK, CLA_SAM, INS_GET_RESPONSE, 0, 0, null, getSW(response) & 0xFF);
+		assertEquals("Second part length", getSW(response) & 0xFF, rest.length);
+
+		send(SW_OK, CLA_CARD, INS_SET_DATA, 0, 0, concat(command, rest), NO_LE);
+		assertArrayEquals("ACSRecord", record, authenticate(0x0004));
+	}
+
+	public void testChainedBatchResponse() throws Exception {
+
+		setUp();
+
+		byte[] record = new byte[LENGTH_ACSRECORD];
+		Arrays.fill(record, (byte)0x77);
+
+		// A batch whose cryptograms come close to filling the command buffer, collected in parts
+		authenticate(0x0000);
+		byte[] batch = concat(acsrCreate(0x0008, record, new byte[240]), acsrCreate(0x0009, record, new byte[240]), acsrCreate(0x000A, record, new byte[240]));
+		byte[] response = transmit(CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, batch, 256);
+		byte[] data = getData(response);
+		assertEquals("First part length", 256, data.length);
+
+		while ((getSW(response) & 0xFF00) == SW_BYTES_REMAINING_00) {
+			response = transmit(CLA_SAM, INS_GET_RESPONSE, 0, 0, null, getSW(response) & 0xFF);
+			data = concat(data, getData(response));
+		}
+		assertSW(SW_OK, response);
+
+		byte[][] commands = splitBatch(data);
+		assertEquals("Cryptograms", 3, commands.length);
+		for (byte[] command : commands) {
+			send(SW_OK, CLA_CARD, INS_SET_DATA, 0, 0, command, NO_LE);
+		}
+		assertArrayEquals("ACSRecord", record, authenticate(0x000A));
+
+		// A batch whose output could be longer than that is refused before any cryptogram is made
+		authenticate(0x0000);
+		batch = concat(batch, acsrCreate(0x000B, record));
+		response = transmit(CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, batch, 256);
+		assertEquals("SW", SW_WRONG_LENGTH, getSW(response));
+		send(SW_OK, CLA_SAM, INS_SET_DATA, 0, P2_SAM_SET_DATA_BATCH, acsrCreate(0x000B, record), 0);
+	}
+}
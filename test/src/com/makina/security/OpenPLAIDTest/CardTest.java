@@ -0,0 +1,44 @@
+package com.makina.security.OpenPLAIDTest;
+
+/**
+ * Tests the OpenPLAID card applet on its own
+ */
+public class CardTest extends TestCase {
+
+	// The length of the transport key cryptogram (one RSA-2048 block)
+	private static final int LENGTH_CRYPTOGRAM = 256;
+
+	public void testGetStatus() {
+
+		installCard();
+		select(AID_CARD);
+
+		byte[] status = send(INS_GET_STATUS, 0, 0, null);
+
+		assertEquals("Status length", 2, status.length);
+		assertEquals("Applet state", 0x00, status[0]);		// SELECTABLE
+		assertEquals("Authentication state", 0x00, status[1]);	// NONE
+	}
+
+	public void testUnknownInstruction() {
+
+		installCard();
+		select(AID_CARD);
+
+		send(SW_INS_NOT_SUPPORTED, 0x00, 0x01, 0, 0, null, NO_LE);
+	}
+
+	public void testGetTransportKey() {
+
+		installCard();
+		select(AID_CARD);
+
+		byte[] first = send(INS_GET_DATA, 0, 0, null);
+		byte[] second = send(INS_GET_DATA, 0, 0, null);
+
+		assertEquals("Cryptogram length", LENGTH_CRYPTOGRAM, first.length);
+
+		// The transport key is fixed, but the RSA padding is random
+		assertTrue("Cryptograms should differ", !java.util.Arrays.equals(first, second));
+	}
+}
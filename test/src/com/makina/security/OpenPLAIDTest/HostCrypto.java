@@ -0,0 +1,112 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.math.BigInteger;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Host side AES helpers for building the protected objects the applets expect (for example an
+ * IMPORT KEYS blob) and for checking their MACs.
+ */
+public final class HostCrypto {
+
+	public static final int LENGTH_BLOCK	= 16;
+
+	private static final int CMAC_RB		= 0x87;
+
+	private HostCrypto() {
+	}
+
+	/**
+	 * Encrypts a single block with AES (ECB)
+	 */
+	public static byte[] encryptBlock(byte[] key, byte[] block) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		return cipher.doFinal(block);
+	}
+
+	/**
+	 * Encrypts block-aligned data with AES-CBC
+	 */
+	public static byte[] encryptCBC(byte[] key, byte[] iv, byte[] data) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(data);
+	}
+
+	/**
+	 * Decrypts block-aligned data with AES-CBC
+	 */
+	public static byte[] decryptCBC(byte[] key, byte[] iv, byte[] data) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+		return cipher.doFinal(data);
+	}
+
+	/**
+	 * Encrypts data with an RSA public key and PKCS#1 v1.5 padding
+	 */
+	public static byte[] encryptRSA(byte[] modulus, byte[] exponent, byte[] data) throws Exception {
+		RSAPublicKeySpec spec = new RSAPublicKeySpec(new BigInteger(1, modulus), new BigInteger(1, exponent));
+		Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+		cipher.init(Cipher.ENCRYPT_MODE, KeyFactory.getInstance("RSA").generatePublic(spec));
+		return cipher.doFinal(data);
+	}
+
+	/**
+	 * Returns the SHA-256 digest of the data
+	 */
+	public static byte[] sha256(byte[] data) throws Exception {
+		return MessageDigest.getInstance("SHA-256").digest(data);
+	}
+
+	/**
+	 * Pads data with ISO9797 Method 2 (0x80 then zeroes, to a multiple of the block length)
+	 */
+	public static byte[] padM2(byte[] data) {
+		byte[] result = Arrays.copyOf(data, (data.length / LENGTH_BLOCK + 1) * LENGTH_BLOCK);
+		result[data.length] = (byte)0x80;
+		return result;
+	}
+
+	/**
+	 * Returns the AES-CMAC of the data (NIST SP 800-38B, RFC 4493)
+	 */
+	public static byte[] cmac(byte[] key, byte[] data) throws Exception {
+
+		// The subkeys
+		byte[] k1 = doubleBlock(encryptBlock(key, new byte[LENGTH_BLOCK]));
+		byte[] k2 = doubleBlock(k1);
+
+		// The last block is XORed with K1 if it is complete, or padded and XORed with K2
+		int blocks = Math.max(1, (data.length + LENGTH_BLOCK - 1) / LENGTH_BLOCK);
+		boolean complete = data.length != 0 && (data.length % LENGTH_BLOCK) == 0;
+
+		byte[] last = Arrays.copyOfRange(data, (blocks - 1) * LENGTH_BLOCK, data.length);
+		if (!complete) last = padM2(last);
+		byte[] subkey = complete ? k1 : k2;
+		for (int i = 0; i < LENGTH_BLOCK; i++) last[i] ^= subkey[i];
+
+		byte[] message = TestCase.concat(Arrays.copyOf(data, (blocks - 1) * LENGTH_BLOCK), last);
+		byte[] ciphertext = encryptCBC(key, new byte[LENGTH_BLOCK], message);
+		return Arrays.copyOfRange(ciphertext, ciphertext.length - LENGTH_BLOCK, ciphertext.length);
+	}
+
+	private static byte[] doubleBlock(byte[] block) {
+
+		byte[] result = new byte[LENGTH_BLOCK];
+		for (int i = 0; i < LENGTH_BLOCK; i++) {
+			int next = (i + 1 < LENGTH_BLOCK) ? (block[i + 1] & 0xFF) >> 7 : 0;
+			result[i] = (byte)((block[i] << 1) | next);
+		}
+		if ((block[0] & 0x80) != 0) result[LENGTH_BLOCK - 1] ^= CMAC_RB;
+		return result;
+	}
+}
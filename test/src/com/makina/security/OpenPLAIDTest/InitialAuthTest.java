@@ -0,0 +1,228 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.JCRE;
+
+import com.makina.security.OpenPLAIDSAM.Config;
+import com.makina.security.OpenPLAIDSAM.OpenPLAIDSAM;
+
+/**
+ * Tests the SAM PLAID INITIAL AUTH key selection (by index, by identifier and from a candidate
+ * list) and the RSA cipher pool behind it.
+ *
+ * The eSTR1 values are built on the host with the public IA key of each keyset, and each eSTR2 is
+ * checked with its FA key, so the tests show which keyset the SAM authenticated with.
+ */
+public class InitialAuthTest extends TestCase {
+
+	private static final int SW_WRONG_DATA			= 0x6A80;
+	private static final int SW_RECORD_NOT_FOUND	= 0x6A83;
+
+	// PLAID INITIAL AUTH P2 flags (with P1_KEY_BY_ID)
+	private static final int P2_IA_KEY_LIST			= 0x01;
+	private static final int P2_IA_CONSTANT_TIME	= 0x02;
+
+	// The PLAID keysets loaded into the SAM, in slot order
+	private static final int[] KEYSETS = { KEY_TRANSPORT, 0x6000, 0x6011, 0x6022 };
+
+	// A keyset in the key file that is not loaded
+	private static final int KEY_NOT_LOADED			= 0x6033;
+
+	private static final int OPMODE					= 0x0001;
+	private static final byte[] DIVDATA				= fromHex("00112233445566778899AABBCCDDEEFF");
+
+	private static final int LENGTH_OPMODE			= 2;
+	private static final int LENGTH_RND				= HostCrypto.LENGTH_BLOCK;
+	private static final int LENGTH_KEYSHASH		= HostCrypto.LENGTH_BLOCK;
+
+	private static KeyFile keys;
+	private static Object sam;
+	private static int counter;
+
+	private static void setUp() throws Exception {
+
+		sam = JCRE.install(OpenPLAIDSAM.class, AID_SAM, null);
+		select(AID_SAM);
+
+		keys = getKeyFile();
+		personaliseSam(keys, KEYSETS);
+	}
+
+	/**
+	 * Returns a new RND1 value, so that each authentication is distinct
+	 */
+	private static byte[] nextRND1() {
+		byte[] rnd1 = new byte[LENGTH_RND];
+		Arrays.fill(rnd1, (byte)++counter);
+		return rnd1;
+	}
+
+	/**
+	 * Returns eSTR1 (KEYSETID || DIVDATA || RND1 || RND1 encrypted with the IA key of the keyset)
+	 */
+	private static byte[] getESTR1(int keyset, byte[] rnd1) throws Exception {
+		byte[] str1 = concat(toShort(keyset), DIVDATA, rnd1, rnd1);
+		return HostCrypto.encryptRSA(keys.getIAKey(keyset, "Modulus"), keys.getIAKey(keyset, "Exponent"), str1);
+	}
+
+	/**
+	 * Checks that eSTR2 was generated with the FA key of the keyset, for the given RND1
+	 */
+	private static void checkESTR2(int keyset, byte[] rnd1, byte[] estr2) throws Exception {
+		checkESTR2(HostCrypto.encryptBlock(keys.getFAKey(keyset), DIVDATA), rnd1, estr2);
+	}
+
+	/**
+	 * Checks that eSTR2 was generated with the given FAKey(Div), for the given RND1
+	 */
+	private static void checkESTR2(byte[] faKeyDiv, byte[] rnd1, byte[] estr2) throws Exception {
+
+		byte[] str2 = HostCrypto.decryptCBC(faKeyDiv, new byte[HostCrypto.LENGTH_BLOCK], estr2);
+
+		// OPMODE || RND2 || KEYSHASH, where KEYSHASH is the first half of SHA-256(RND1 || RND2)
+		byte[] rnd2 = Arrays.copyOfRange(str2, LENGTH_OPMODE, LENGTH_OPMODE + LENGTH_RND);
+		byte[] keysHash = Arrays.copyOf(HostCrypto.sha256(concat(rnd1, rnd2)), LENGTH_KEYSHASH);
+
+		assertArrayEquals("OpMode", toShort(OPMODE), Arrays.copyOf(str2, LENGTH_OPMODE));
+		assertArrayEquals("KeysHash", keysHash, Arrays.copyOfRange(str2, LENGTH_OPMODE + LENGTH_RND, LENGTH_OPMODE + LENGTH_RND + LENGTH_KEYSHASH));
+	}
+
+	/**
+	 * Authenticates the keyset by its identifier in the given session and checks the result
+	 */
+	private static void authenticate(int session, int keyset) throws Exception {
+
+		byte[] rnd1 = nextRND1();
+		byte[] data = concat(toShort(keyset), toShort(OPMODE), getESTR1(keyset, rnd1));
+		checkESTR2(keyset, rnd1, send(SW_OK, 0x00, INS_INITIAL_AUTH, (session << 4) | P1_KEY_BY_ID, 0, data, 0));
+	}
+
+	/**
+	 * Returns the candidate list prefix (COUNT || KEYSETID * COUNT)
+	 */
+	private static byte[] candidates(int... keysets) {
+		byte[] list = new byte[] { (byte)keysets.length };
+		for (int keyset : keysets) list = concat(list, toShort(keyset));
+		return list;
+	}
+
+	public void testKeyByIndex() throws Exception {
+
+		setUp();
+
+		for (int slot = 0; slot < KEYSETS.length; slot++) {
+			byte[] rnd1 = nextRND1();
+			byte[] data = concat(toShort(OPMODE), getESTR1(KEYSETS[slot], rnd1));
+			checkESTR2(KEYSETS[slot], rnd1, send(SW_OK, 0x00, INS_INITIAL_AUTH, slot >> 8, slot, data, 0));
+		}
+
+		// An empty slot, and an index beyond the key table
+		byte[] data = concat(toShort(OPMODE), getESTR1(KEY_TRANSPORT, nextRND1()));
+		send(SW_RECORD_NOT_FOUND, 0x00, INS_INITIAL_AUTH, 0, KEYSETS.length, data, 0);
+		send(SW_INCORRECT_P1P2, 0x00, INS_INITIAL_AUTH, 0x07, 0xFF, data, 0);
+	}
+
+	public void testKeyById() throws Exception {
+
+		setUp();
+
+		for (int keyset : KEYSETS) authenticate(0, keyset);
+
+		// The identifier must be loaded, and the P1/P2 index bits must be zero
+		byte[] estr1 = getESTR1(KEY_NOT_LOADED, nextRND1());
+		send(SW_RECORD_NOT_FOUND, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, concat(toShort(KEY_NOT_LOADED), toShort(OPMODE), estr1), 0);
+
+		estr1 = getESTR1(KEY_TRANSPORT, nextRND1());
+		send(SW_INCORRECT_P1P2, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID | 0x01, 0, concat(toShort(KEY_TRANSPORT), toShort(OPMODE), estr1), 0);
+
+		// eSTR1 for another keyset is refused
+		byte[] response = transmit(0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, concat(toShort(0x6000), toShort(OPMODE), estr1), 0);
+		assertTrue("The SAM should reject eSTR1 for another keyset", getSW(response) != SW_OK);
+	}
+
+	public void testCandidateList() throws Exception {
+
+		setUp();
+
+		// The matching keyset may be anywhere in the list, with or without the constant time traversal
+		for (int p2 : new int[] { P2_IA_KEY_LIST, P2_IA_KEY_LIST | P2_IA_CONSTANT_TIME }) {
+			for (int keyset : new int[] { 0x6000, 0x6011, 0x6022 }) {
+
+				byte[] rnd1 = nextRND1();
+				byte[] data = concat(candidates(0x6000, 0x6011, 0x6022), toShort(OPMODE), getESTR1(keyset, rnd1));
+				checkESTR2(keyset, rnd1, send(SW_OK, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, p2, data, 0));
+			}
+		}
+	}
+
+	public void testCandidateListRejected() throws Exception {
+
+		setUp();
+
+		byte[] estr1 = getESTR1(KEY_TRANSPORT, nextRND1());
+
+		// No candidate matches
+		send(SW_SECURITY_STATUS_NOT_SATISFIED, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, P2_IA_KEY_LIST,
+			 concat(candidates(0x6000, 0x6011), toShort(OPMODE), estr1), 0);
+
+		// Every candidate must be loaded, even if an earlier one matches
+		send(SW_RECORD_NOT_FOUND, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, P2_IA_KEY_LIST,
+			 concat(candidates(KEY_TRANSPORT, KEY_NOT_LOADED), toShort(OPMODE), estr1), 0);
+
+		// An empty list, and unknown P2 flags
+		send(SW_WRONG_LENGTH, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, P2_IA_KEY_LIST, concat(candidates(), toShort(OPMODE), estr1), 0);
+		send(SW_INCORRECT_P1P2, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, P2_IA_KEY_LIST | 0x04,
+			 concat(candidates(KEY_TRANSPORT), toShort(OPMODE), estr1), 0);
+	}
+
+	public void testFAKeyCacheOnDeselect() throws Exception {
+
+		installCard();
+		setUp();
+		authenticate(0, 0x6000);
+
+		// Replace the cached FAKey(Div) (the last field of the first entry), so that a cache hit shows
+		byte[] cache = (byte[])getField(getField(sam, "cspPLAID"), "faKeyCache");
+		int entry = cache.length / Config.COUNT_FAKEY_CACHE;
+		byte[] marker = new byte[HostCrypto.LENGTH_BLOCK];
+		Arrays.fill(marker, (byte)0xA5);
+		System.arraycopy(marker, 0, cache, entry - marker.length, marker.length);
+
+		byte[] rnd1 = nextRND1();
+		byte[] data = concat(toShort(0x6000), toShort(OPMODE), getESTR1(0x6000, rnd1));
+		checkESTR2(marker, rnd1, send(SW_OK, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, data, 0));
+
+		// Deselecting the SAM on its last channel clears the cache, so the key is diversified again
+		select(AID_CARD);
+		assertArrayEquals("Cache", new byte[cache.length], cache);
+
+		select(AID_SAM);
+		send(INS_SAM_VERIFY_PIN, 0, 0, SAM_PIN);
+		authenticate(0, 0x6000);
+	}
+
+	public void testRSACipherPool() throws Exception {
+
+		setUp();
+
+		// More keysets than ciphers in the pool, in both sessions, so ciphers are taken over in turn
+		for (int round = 0; round < 3; round++) {
+			for (int keyset : KEYSETS) authenticate(round & 1, keyset);
+		}
+
+		// A failed decryption releases the cipher, which is then initialised again
+		byte[] estr1 = getESTR1(0x6000, nextRND1());
+		byte[] response = transmit(0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, 0, concat(toShort(0x6011), toShort(OPMODE), estr1), 0);
+		assertTrue("The SAM should reject eSTR1 for another keyset", getSW(response) == SW_WRONG_DATA || getSW(response) == SW_SECURITY_STATUS_NOT_SATISFIED);
+		authenticate(0, 0x6011);
+		authenticate(0, 0x6000);
+
+		// The constant time traversal borrows the first cipher, which is bound again on next use
+		authenticate(0, KEY_TRANSPORT);
+		byte[] rnd1 = nextRND1();
+		byte[] data = concat(candidates(0x6022, KEY_TRANSPORT), toShort(OPMODE), getESTR1(0x6022, rnd1));
+		checkESTR2(0x6022, rnd1, send(SW_OK, 0x00, INS_INITIAL_AUTH, P1_KEY_BY_ID, P2_IA_KEY_LIST | P2_IA_CONSTANT_TIME, data, 0));
+		for (int keyset : KEYSETS) authenticate(1, keyset);
+	}
+}
@@ -0,0 +1,132 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Reads PLAID key records from a host key file (see src/example/OpenPLAIDExample/PLAID_KEYS.xml)
+ * and formats them for the SAM LOAD KEY command.
+ */
+public final class KeyFile {
+
+	// The SAM key types (see PLAIDKey.TYPE_PLAID and KeyBuilder)
+	public static final int TYPE_PLAID		= 0x90;
+	public static final int TYPE_AES		= 0x0F;
+	public static final int TYPE_TDEA		= 0x03;
+
+	// The SAM key attributes (see KeyRecord)
+	private static final int ATTR_PLAID_AUTH	= 1 << 0;
+	private static final int ATTR_PLAID_KEK		= 1 << 1;
+	public static final int ATTR_DERIVE			= 1 << 8;
+	public static final int ATTR_IMPORT_KEK		= 1 << 9;
+
+	private static final int LENGTH_NAME		= 25;
+
+	// The PLAID key elements, in ELEMENT_* order (see PLAIDKey)
+	private static final String[] IAKEY_ELEMENTS = { "P", "Q", "PQ", "DP", "DQ", "Modulus", "Exponent" };
+
+	private final Element root;
+
+	public KeyFile(File file) throws Exception {
+		Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+		root = document.getDocumentElement();
+	}
+
+	/**
+	 * Returns the System Diversifier of the key file
+	 */
+	public byte[] getSystemDiversifier() {
+		return TestCase.fromHex(getText(root, "SystemDiversifier"));
+	}
+
+	/**
+	 * Returns the LOAD KEY command data for the given key, with all of its elements
+	 *
+	 * @param id The key identifier (e.g. 0x60FA)
+	 */
+	public byte[] getLoadKeyData(int id) {
+
+		Element record = getRecord(id);
+		Element iaKey = (Element)record.getElementsByTagName("IAKey").item(0);
+
+		// The element container
+		byte[] elements = new byte[0];
+		for (int i = 0; i < IAKEY_ELEMENTS.length; i++) {
+			elements = TestCase.concat(elements, TestCase.tlv(0x80 | (i + 1), TestCase.fromHex(getText(iaKey, IAKEY_ELEMENTS[i]))));
+		}
+		elements = TestCase.concat(elements, TestCase.tlv(0x80 | (IAKEY_ELEMENTS.length + 1), getFAKey(id)));
+
+		return TestCase.concat(	getHeader(id, Integer.parseInt(record.getAttribute("version")), getAttributes(record), record.getAttribute("name")),
+								TestCase.tlv(0x30, elements));
+	}
+
+	/**
+	 * Returns the LOAD KEY command data for an AES or TDEA key that is not in the key file
+	 *
+	 * @param id The key identifier
+	 * @param attributes The key attributes (ATTR_*)
+	 * @param key The key value
+	 */
+	public static byte[] getSymmetricKeyData(int id, int attributes, byte[] key) {
+		return TestCase.concat(getHeader(id, 1, attributes, "KEY " + Integer.toHexString(id)), TestCase.tlv(0x30, TestCase.tlv(0x81, key)));
+	}
+
+	/**
+	 * Returns a key record header (ID, VERSION, ATTRIBUTES and a space padded NAME)
+	 */
+	private static byte[] getHeader(int id, int version, int attributes, String label) {
+
+		byte[] name = new byte[LENGTH_NAME];
+		Arrays.fill(name, (byte)' ');
+		byte[] value = label.getBytes();
+		System.arraycopy(value, 0, name, 0, Math.min(value.length, LENGTH_NAME));
+
+		return TestCase.concat(TestCase.toShort(id), new byte[] { (byte)version }, TestCase.toShort(attributes), name);
+	}
+
+	/**
+	 * Returns the FA key of the given key
+	 */
+	public byte[] getFAKey(int id) {
+		return TestCase.fromHex(getText(getRecord(id), "FAKey"));
+	}
+
+	/**
+	 * Returns an element of the IA key of the given key (for example "Modulus" or "Exponent")
+	 */
+	public byte[] getIAKey(int id, String element) {
+		Element iaKey = (Element)getRecord(id).getElementsByTagName("IAKey").item(0);
+		return TestCase.fromHex(getText(iaKey, element));
+	}
+
+	private Element getRecord(int id) {
+
+		NodeList records = root.getElementsByTagName("KeyRecord");
+		for (int i = 0; i < records.getLength(); i++) {
+			Element record = (Element)records.item(i);
+			if (Integer.parseInt(record.getAttribute("id"), 16) == id) return record;
+		}
+
+		throw new IllegalArgumentException("Key " + Integer.toHexString(id) + " not found");
+	}
+
+	private static int getAttributes(Element record) {
+
+		int attributes = 0;
+		for (String name : getText(record, "Attributes").trim().split("\\s+")) {
+			if (name.equals("PLAID_AUTH")) attributes |= ATTR_PLAID_AUTH;
+			if (name.equals("PLAID_KEK")) attributes |= ATTR_PLAID_KEK;
+		}
+		return attributes;
+	}
+
+	private static String getText(Element parent, String name) {
+		return parent.getElementsByTagName(name).item(0).getTextContent().trim();
+	}
+}
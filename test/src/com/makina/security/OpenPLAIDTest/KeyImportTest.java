@@ -0,0 +1,283 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.JCRE;
+
+import com.makina.security.OpenPLAIDSAM.Config;
+
+/**
+ * Tests the SAM IMPORT KEYS command, which loads key records from a stream that is encrypted and
+ * MACed under a transport KEK (see OpenPLAIDSAM.CryptoImport)
+ */
+public class KeyImportTest extends TestCase {
+
+	private static final int INS_SAM_IMPORT_KEYS	= 0x1A;
+
+	private static final int SW_FILE_FULL			= 0x6A84;
+
+	// The transport KEK
+	private static final int KEY_KEK		= 0x7001;
+	private static final byte[] KEK			= fromHex("000102030405060708090A0B0C0D0E0F");
+
+	// The KEK derivation constants
+	private static final int DERIVE_ENC_KEY	= 0x45;
+	private static final int DERIVE_MAC_KEY	= 0x4D;
+
+	private static final byte[] IV			= fromHex("F0E0D0C0B0A090807060504030201000");
+
+	// The stream header (KEK ID || COUNT || IV) and the MAC after each entry
+	private static final int LENGTH_HEADER	= 20;
+	private static final int LENGTH_MAC		= 16;
+
+	// The longest short APDU segment
+	private static final int LENGTH_SEGMENT	= 255;
+
+	// PLAID keysets in the test key file
+	private static final int[] KEYSETS		= { KEY_TRANSPORT, 0x6000, 0x6011 };
+
+	/**
+	 * Installs the SAM and loads the transport KEK, leaving the SAM in the SELECTABLE state
+	 */
+	private static void setUp(int attributes) {
+
+		installSam();
+		select(AID_SAM);
+
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(KEY_KEK, attributes, KEK));
+	}
+
+	/**
+	 * Returns an import entry (TYPE || LENGTH || RECORD)
+	 */
+	static byte[] entry(int type, byte[] record) {
+		return concat(new byte[] { (byte)type }, toShort(record.length), record);
+	}
+
+	/**
+	 * Returns an IMPORT KEYS stream holding the given entries
+	 */
+	static byte[] blob(byte[]... entries) throws Exception {
+
+		byte[] kenc = HostCrypto.encryptBlock(KEK, derivation(DERIVE_ENC_KEY));
+		byte[] kmac = HostCrypto.encryptBlock(KEK, derivation(DERIVE_MAC_KEY));
+
+		byte[] stream = concat(toShort(KEY_KEK), toShort(entries.length), IV);
+
+		// The CBC chain runs on across the entries, and each MAC follows on from the one before
+		byte[] chain = IV;
+		byte[] previous = stream;
+		for (byte[] entry : entries) {
+			byte[] ciphertext = HostCrypto.encryptCBC(kenc, chain, HostCrypto.padM2(entry));
+			byte[] mac = HostCrypto.cmac(kmac, concat(previous, ciphertext));
+
+			stream = concat(stream, ciphertext, mac);
+			chain = Arrays.copyOfRange(ciphertext, ciphertext.length - HostCrypto.LENGTH_BLOCK, ciphertext.length);
+			previous = mac;
+		}
+
+		return stream;
+	}
+
+	/**
+	 * Sends the stream as a chain of segments of the given length, and returns the response to the
+	 * last segment sent (the chain stops at the first segment that fails)
+	 */
+	static byte[] importKeys(byte[] stream, int segment) {
+		return importKeys(stream, segment, segment);
+	}
+
+	/**
+	 * Sends the stream as a chain with a first segment of the given length, then segments of the
+	 * other length
+	 */
+	static byte[] importKeys(byte[] stream, int first, int segment) {
+
+		byte[] response = null;
+		for (int offset = 0, length = first; offset < stream.length; offset += length, length = segment) {
+
+			boolean last = (offset + length >= stream.length);
+			byte[] data = Arrays.copyOfRange(stream, offset, Math.min(offset + length, stream.length));
+
+			response = transmit(last ? 0x00 : CLA_CHAIN, INS_SAM_IMPORT_KEYS, 0, 0, data, last ? 0 : NO_LE);
+			if (getSW(response) != SW_OK) break;
+			if (!last) assertEquals("Segment response length", 0, getData(response).length);
+		}
+		return response;
+	}
+
+	private static byte[] derivation(int constant) {
+		byte[] block = new byte[HostCrypto.LENGTH_BLOCK];
+		block[HostCrypto.LENGTH_BLOCK - 1] = (byte)constant;
+		return block;
+	}
+
+	private static byte[] plaidEntries() throws Exception {
+		byte[][] entries = new byte[KEYSETS.length][];
+		for (int i = 0; i < KEYSETS.length; i++) entries[i] = entry(KeyFile.TYPE_PLAID, getKeyFile().getLoadKeyData(KEYSETS[i]));
+		return blob(entries);
+	}
+
+	private static byte[] aesKey(int fill) {
+		byte[] key = new byte[HostCrypto.LENGTH_BLOCK];
+		Arrays.fill(key, (byte)fill);
+		return key;
+	}
+
+	public void testImportPLAIDKeys() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		// Several PLAID keys in one chain of short segments, far longer than the command buffer
+		byte[] stream = plaidEntries();
+		assertTrue("The stream should be longer than the command buffer", stream.length > Config.LENGTH_COMMAND_BUFFER);
+
+		byte[] response = importKeys(stream, LENGTH_SEGMENT);
+		assertSW(SW_OK, response);
+		assertArrayEquals("Count", toShort(KEYSETS.length), getData(response));
+
+		// The keys were loaded, so their identifiers can't be loaded again
+		for (int keyset : KEYSETS) {
+			send(SW_DATA_INVALID, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, getKeyFile().getLoadKeyData(keyset), 0);
+		}
+	}
+
+	public void testImportExtended() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		// The same stream in one extended APDU, which is received in parts rather than assembled
+		assertArrayEquals("Count", toShort(KEYSETS.length), send(INS_SAM_IMPORT_KEYS, 0, 0, plaidEntries()));
+	}
+
+	public void testSegmentLengths() throws Exception {
+
+		byte[] stream = blob(	entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))),
+								entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7102, 0, aesKey(0x22))));
+
+		// Segments that split blocks, MACs and entries at every kind of position (the first segment
+		// holds the header, on its own or with part of the first entry)
+		for (int segment : new int[] { 1, 7, 16, 17, 50 }) {
+			for (int first : new int[] { LENGTH_HEADER, LENGTH_HEADER + segment }) {
+
+				// Start each import on a new card
+				JCRE.powerUp();
+				setUp(KeyFile.ATTR_IMPORT_KEK);
+
+				byte[] response = importKeys(stream, first, segment);
+				assertSW(SW_OK, response);
+				assertArrayEquals("Count (segments of " + segment + ")", toShort(2), getData(response));
+			}
+		}
+
+		// The first segment must hold the whole header
+		JCRE.powerUp();
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+		assertSW(SW_WRONG_LENGTH, importKeys(stream, LENGTH_HEADER - 1));
+	}
+
+	public void testImportSymmetricKeys() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		byte[] data = blob(	entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))),
+							entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7102, 0, aesKey(0x22))),
+							entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7103, 0, aesKey(0x33))));
+
+		assertArrayEquals("Count", toShort(3), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+
+		// The KEK and the imported keys fill the AES pool
+		send(SW_FILE_FULL, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7104, 0, aesKey(0x44)), 0);
+	}
+
+	public void testTamperedBlob() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		byte[] data = blob(	entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))),
+							entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7102, 0, aesKey(0x22))));
+
+		// The second entry is refused after the first was loaded
+		byte[] tampered = data.clone();
+		tampered[tampered.length - LENGTH_MAC - 1] ^= 0x01;
+		assertSW(SW_SECURITY_STATUS_NOT_SATISFIED, importKeys(tampered, 32));
+
+		// Nothing was kept, so the genuine stream can still be imported
+		assertArrayEquals("Count", toShort(2), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+	}
+
+	public void testTruncatedStream() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		byte[] first = entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11)));
+		byte[] second = entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7102, 0, aesKey(0x22)));
+		byte[] data = blob(first, second);
+		int firstLength = LENGTH_HEADER + HostCrypto.padM2(first).length + LENGTH_MAC;
+
+		// The stream ends before the last entry
+		assertSW(SW_WRONG_LENGTH, importKeys(Arrays.copyOf(data, firstLength), 32));
+
+		// An entry is dropped from the middle, which breaks the CBC and MAC chains
+		byte[] third = entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7103, 0, aesKey(0x33)));
+		byte[] longer = blob(first, second, third);
+		byte[] dropped = concat(Arrays.copyOf(longer, firstLength), Arrays.copyOfRange(longer, data.length, longer.length));
+		assertTrue("The SAM should reject a stream with an entry dropped", getSW(importKeys(dropped, 32)) != SW_OK);
+
+		assertArrayEquals("Count", toShort(3), send(INS_SAM_IMPORT_KEYS, 0, 0, longer));
+	}
+
+	public void testAbandonedStream() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		// Send the first PLAID key and part of the second, then break the chain with another command
+		byte[] stream = plaidEntries();
+		for (int offset = 0; offset < 5 * LENGTH_SEGMENT; offset += LENGTH_SEGMENT) {
+			send(SW_OK, CLA_CHAIN, INS_SAM_IMPORT_KEYS, 0, 0, Arrays.copyOfRange(stream, offset, offset + LENGTH_SEGMENT), NO_LE);
+		}
+		send(SW_LAST_COMMAND_EXPECTED, 0x00, INS_SAM_GET_STATUS, 0, 0, null, 0);
+
+		byte[] data = blob(entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))));
+		assertArrayEquals("Count", toShort(1), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+
+		// The key loaded from the abandoned stream was erased, so the whole stream can be imported
+		byte[] response = importKeys(stream, LENGTH_SEGMENT);
+		assertSW(SW_OK, response);
+		assertArrayEquals("Count", toShort(KEYSETS.length), getData(response));
+	}
+
+	public void testTrailingData() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		byte[] data = blob(entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))));
+		send(SW_DATA_INVALID, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, concat(data, new byte[1]), 0);
+
+		assertArrayEquals("Count", toShort(1), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+	}
+
+	public void testMalformedEntry() throws Exception {
+
+		setUp(KeyFile.ATTR_IMPORT_KEK);
+
+		byte[] record = KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11));
+
+		// The entry claims more data than it holds, or less than a key header
+		byte[] overrun = concat(new byte[] { KeyFile.TYPE_AES }, toShort(record.length + 1), record);
+		send(SW_DATA_INVALID, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, blob(overrun), 0);
+
+		byte[] truncated = concat(new byte[] { KeyFile.TYPE_AES }, toShort(2), toShort(0x7101));
+		send(SW_DATA_INVALID, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, blob(truncated), 0);
+
+		assertArrayEquals("Count", toShort(1), send(INS_SAM_IMPORT_KEYS, 0, 0, blob(entry(KeyFile.TYPE_AES, record))));
+	}
+
+	public void testKEKAttributeRequired() throws Exception {
+
+		setUp(0);
+
+		byte[] data = blob(entry(KeyFile.TYPE_AES, KeyFile.getSymmetricKeyData(0x7101, 0, aesKey(0x11))));
+		send(SW_COMMAND_NOT_ALLOWED, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, data, 0);
+	}
+}
@@ -0,0 +1,280 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.APDU;
+import javacard.framework.ISOException;
+import javacard.framework.JCRE;
+
+import com.makina.security.OpenPLAIDSAM.Config;
+import com.makina.security.OpenPLAIDSAM.OpenPLAIDSAM;
+
+/**
+ * Tests the OpenPLAIDSAM applet personalisation and administrative commands
+ */
+public class SamTest extends TestCase {
+
+	// GET STATUS (basic) layout
+	private static final int OFFSET_STATUS_STATE	= 0;
+	private static final int STATE_SELECTABLE		= 0x00;
+	private static final int STATE_PERSONALISED		= 0x01;
+
+	private static final int SW_PIN_TRIES_REMAINING	= 0x63C0;
+	private static final int SW_WRONG_DATA			= 0x6A80;
+	private static final int SW_RECORD_NOT_FOUND	= 0x6A83;
+	private static final int SW_FILE_FULL			= 0x6A84;
+
+	private static final int INS_SAM_READ_KEY_DIRECTORY	= 0x18;
+	private static final int INS_GET_RESPONSE			= 0xC0;
+	private static final int INS_SAM_DERIVE_KEY			= 0x19;
+	private static final int INS_MANAGE_CHANNEL			= 0x70;
+	private static final int INS_SELECT					= 0xA4;
+	private static final int P1_CLOSE_CHANNEL			= 0x80;
+	private static final int CLA_CHANNEL_1				= 0x01;
+
+	// READ KEY DIRECTORY layout (NEXT, then INDEX || TYPE || HEADER for each key)
+	private static final int LENGTH_DIRECTORY_ENTRY	= 2 + 1 + 30;
+	private static final int DIRECTORY_END			= 0xFFFF;
+	private static final int DIRECTORY_PAGE			= (Config.LENGTH_RESPONSE_BUFFER - 2) / LENGTH_DIRECTORY_ENTRY;
+
+	// The default key slot counts, and the most that may be installed in total
+	private static final int MAX_KEYS_PLAID			= 8;
+	private static final int MAX_KEYS_AES			= 4;
+	private static final int MAX_KEYS_TOTAL			= 256;
+
+	// DERIVE KEY fixed input data ([i]1 || LABEL || 0x00 before the diversifiers, [L]2 after them)
+	private static final byte[] KDF_PREFIX			= concat(new byte[] { 0x01 }, "PLAID".getBytes(), new byte[] { 0x00 });
+	private static final byte[] KDF_SUFFIX			= fromHex("0080");
+	private static final int MAX_HOST_DIV			= 15;
+
+	public void testPersonalise() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		byte[] status = send(INS_SAM_GET_STATUS, 0, 0, null);
+		assertEquals("Applet state", STATE_SELECTABLE, status[OFFSET_STATUS_STATE]);
+
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+
+		status = send(INS_SAM_GET_STATUS, 0, 0, null);
+		assertEquals("Applet state", STATE_PERSONALISED, status[OFFSET_STATUS_STATE]);
+		assertEquals("PIN state", 0x01, status[status.length - 1]);
+
+		// Personalisation commands are no longer accepted
+		send(SW_CONDITIONS_NOT_SATISFIED, 0x00, INS_SAM_SET_DATA, 1, 0, SAM_ESN, NO_LE);
+	}
+
+	public void testActivateRequiresPersonalisation() {
+
+		installSam();
+		select(AID_SAM);
+
+		// The ESN has not been set
+		send(INS_SAM_SET_DATA, 2, 0, SAM_PIN);
+		send(SW_DATA_INVALID, 0x00, INS_SAM_ACTIVATE, 0, 0, null, NO_LE);
+	}
+
+	public void testWrongPin() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+
+		byte[] response = transmit(0x00, INS_SAM_VERIFY_PIN, 0, 0, "654321".getBytes(), NO_LE);
+		assertEquals("SW", SW_PIN_TRIES_REMAINING, getSW(response) & 0xFFF0);
+
+		// The PIN is no longer verified
+		byte[] status = send(INS_SAM_GET_STATUS, 0, 0, null);
+		assertEquals("PIN state", 0x00, status[status.length - 1]);
+	}
+
+	/**
+	 * Reads a READ KEY DIRECTORY page from the given index, collecting a chained response
+	 */
+	private static byte[] readKeyDirectory(int index) {
+
+		byte[] response = transmit(0x00, INS_SAM_READ_KEY_DIRECTORY, index >> 8, index, null, 0);
+		byte[] data = getData(response);
+
+		while ((getSW(response) & 0xFF00) == SW_BYTES_REMAINING_00) {
+			response = transmit(0x00, INS_GET_RESPONSE, 0, 0, null, getSW(response) & 0xFF);
+			data = concat(data, getData(response));
+		}
+
+		assertSW(SW_OK, response);
+		return data;
+	}
+
+	private static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+
+	public void testReadKeyDirectory() throws Exception {
+
+		// One PLAID key and enough AES keys to spill two entries onto a second directory page
+		int aes = DIRECTORY_PAGE + 1;
+		installSam(1, aes, 0);
+		select(AID_SAM);
+
+		for (int i = 0; i < aes; i++) {
+			send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7000 + i, 0, new byte[16]));
+		}
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+
+		// The first page is longer than a short response, so it is chained
+		byte[] page = readKeyDirectory(0);
+		assertEquals("First page length", 2 + DIRECTORY_PAGE * LENGTH_DIRECTORY_ENTRY, page.length);
+		assertEquals("NEXT", DIRECTORY_PAGE, getShort(page, 0));
+		for (int i = 0; i < DIRECTORY_PAGE; i++) {
+			assertEquals("Index", i, getShort(page, 2 + i * LENGTH_DIRECTORY_ENTRY));
+		}
+
+		// The second page holds the rest
+		page = readKeyDirectory(DIRECTORY_PAGE);
+		assertEquals("Second page length", 2 + 2 * LENGTH_DIRECTORY_ENTRY, page.length);
+		assertEquals("NEXT", DIRECTORY_END, getShort(page, 0));
+		assertEquals("Key ID", 0x7000 + aes - 1, getShort(page, 2 + LENGTH_DIRECTORY_ENTRY + 3));
+	}
+
+	private static byte[] symmetricKey(int fill) {
+		byte[] key = new byte[16];
+		Arrays.fill(key, (byte)fill);
+		return key;
+	}
+
+	public void testKeyPools() throws Exception {
+
+		installSam(1, 2, 1);
+		select(AID_SAM);
+
+		KeyFile keys = getKeyFile();
+
+		// Each key type has its own pool of slots, in the order PLAID, AES, TDEA
+		assertArrayEquals("Slot", toShort(0), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, keys.getLoadKeyData(KEY_TRANSPORT)));
+		assertArrayEquals("Slot", toShort(1), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001, 0, symmetricKey(0x11))));
+		assertArrayEquals("Slot", toShort(2), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7002, 0, symmetricKey(0x22))));
+		assertArrayEquals("Slot", toShort(3), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_TDEA, 0xFF, KeyFile.getSymmetricKeyData(0x7101, 0, symmetricKey(0x33))));
+
+		// A full pool does not borrow from the others
+		send(SW_FILE_FULL, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, keys.getLoadKeyData(0x6000), 0);
+		send(SW_FILE_FULL, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7003, 0, symmetricKey(0x44)), 0);
+		send(SW_FILE_FULL, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_TDEA, 0xFF, KeyFile.getSymmetricKeyData(0x7102, 0, symmetricKey(0x55)), 0);
+
+		// A key type without a pool
+		send(SW_INCORRECT_P1P2, 0x00, INS_SAM_LOAD_KEY, 0x05, 0xFF, KeyFile.getSymmetricKeyData(0x7201, 0, symmetricKey(0x66)), 0);
+	}
+
+	public void testInstallTooManyKeys() {
+
+		try {
+			installSam(200, 50, 7);
+			throw new AssertionError("The installation should fail with more than " + MAX_KEYS_TOTAL + " keys");
+		} catch (ISOException ex) {
+			assertEquals("SW", SW_WRONG_DATA, ex.getReason() & 0xFFFF);
+		}
+
+		// The largest key table can be installed, with the AES pool after the PLAID pool
+		installSam(200, 50, 6);
+		select(AID_SAM);
+		assertArrayEquals("Slot", toShort(200), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001, 0, symmetricKey(0x11))));
+	}
+
+	public void testInstallDefaults() {
+
+		// Only the PLAID count is supplied, so the other pools use the defaults
+		JCRE.install(OpenPLAIDSAM.class, AID_SAM, new byte[] { 1 });
+		select(AID_SAM);
+
+		for (int i = 0; i < MAX_KEYS_AES; i++) {
+			assertArrayEquals("Slot", toShort(1 + i), send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001 + i, 0, symmetricKey(i))));
+		}
+		send(SW_FILE_FULL, 0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001 + MAX_KEYS_AES, 0, symmetricKey(0)), 0);
+	}
+
+	/**
+	 * Returns the expected DERIVE KEY result (SP800-108 counter mode KDF with AES-CMAC)
+	 */
+	private static byte[] deriveKey(byte[] master, byte[] systemDiv, byte[] hostDiv) throws Exception {
+		return HostCrypto.cmac(master, concat(KDF_PREFIX, systemDiv, hostDiv, KDF_SUFFIX));
+	}
+
+	public void testDeriveKey() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		KeyFile keys = getKeyFile();
+		byte[] master = symmetricKey(0x5A);
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001, KeyFile.ATTR_DERIVE, master));
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7002, 0, master));
+		personaliseSam(keys, KEY_TRANSPORT);
+
+		byte[] site1 = "SITE-0001".getBytes();
+		byte[] site2 = "SITE-0002".getBytes();
+		byte[] expected1 = deriveKey(master, keys.getSystemDiversifier(), site1);
+		byte[] expected2 = deriveKey(master, keys.getSystemDiversifier(), site2);
+
+		// By index (the first AES slot follows the PLAID pool) and by identifier, the second time from the cache
+		assertArrayEquals("Derived key", expected1, send(INS_SAM_DERIVE_KEY, 0, MAX_KEYS_PLAID, site1));
+		assertArrayEquals("Derived key", expected1, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7001), site1)));
+		assertArrayEquals("Derived key", expected2, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7001), site2)));
+
+		// The master key must have the DERIVE attribute, and must exist
+		send(SW_COMMAND_NOT_ALLOWED, 0x00, INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7002), site1), 0);
+		send(SW_COMMAND_NOT_ALLOWED, 0x00, INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(KEY_TRANSPORT), site1), 0);
+		send(SW_RECORD_NOT_FOUND, 0x00, INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7003), site1), 0);
+
+		// The host diversifier must be 1 to MAX_HOST_DIV bytes
+		send(SW_WRONG_LENGTH, 0x00, INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, toShort(0x7001), 0);
+		send(SW_WRONG_LENGTH, 0x00, INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7001), new byte[MAX_HOST_DIV + 1]), 0);
+		assertArrayEquals("Derived key", deriveKey(master, keys.getSystemDiversifier(), new byte[MAX_HOST_DIV]),
+						  send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, concat(toShort(0x7001), new byte[MAX_HOST_DIV])));
+	}
+
+	public void testDeriveKeyCacheOnDeselect() throws Exception {
+
+		Object sam = JCRE.install(OpenPLAIDSAM.class, AID_SAM, null);
+		installCard();
+		select(AID_SAM);
+
+		KeyFile keys = getKeyFile();
+		byte[] master = symmetricKey(0x5A);
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(0x7001, KeyFile.ATTR_DERIVE, master));
+		personaliseSam(keys, KEY_TRANSPORT);
+
+		byte[] site = "SITE-0001".getBytes();
+		byte[] data = concat(toShort(0x7001), site);
+		byte[] expected = deriveKey(master, keys.getSystemDiversifier(), site);
+		assertArrayEquals("Derived key", expected, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, data));
+
+		// Replace the cached key (the last field of the first entry), so that a cache hit shows
+		byte[] cache = (byte[])getField(getField(sam, "cspKDF"), "cache");
+		int entry = cache.length / Config.COUNT_KDF_CACHE;
+		byte[] marker = symmetricKey(0xA5);
+		System.arraycopy(marker, 0, cache, entry - marker.length, marker.length);
+		assertArrayEquals("Cached key", marker, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, data));
+
+		// Closing another channel the SAM is selected on keeps the cache
+		send(SW_OK, 0x00, INS_MANAGE_CHANNEL, 0x00, 0x00, null, 1);
+		send(SW_OK, CLA_CHANNEL_1, INS_SELECT, 0x04, 0x00, AID_SAM, NO_LE);
+		send(SW_OK, 0x00, INS_MANAGE_CHANNEL, P1_CLOSE_CHANNEL, CLA_CHANNEL_1, null, NO_LE);
+		assertArrayEquals("Cached key", marker, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, data));
+
+		// Deselecting the SAM on its last channel clears it, so the key is derived again
+		select(AID_CARD);
+		assertArrayEquals("Cache", new byte[cache.length], cache);
+
+		select(AID_SAM);
+		send(INS_SAM_VERIFY_PIN, 0, 0, SAM_PIN);
+		assertArrayEquals("Derived key", expected, send(INS_SAM_DERIVE_KEY, P1_KEY_BY_ID, 0, data));
+	}
+
+	public void testContactOnly() {
+
+		installSam();
+		JCRE.setProtocol((byte)(APDU.PROTOCOL_MEDIA_CONTACTLESS_TYPE_A | APDU.PROTOCOL_T1));
+
+		assertSW(SW_COMMAND_NOT_ALLOWED, JCRE.select(AID_SAM));
+	}
+}
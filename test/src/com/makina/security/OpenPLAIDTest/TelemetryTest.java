@@ -0,0 +1,140 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.Applet;
+import javacard.framework.JCRE;
+import javacard.framework.JCSystem;
+
+import com.makina.security.OpenPLAIDSAM.OpenPLAIDSAM;
+import com.makina.security.OpenPLAIDSAM.Telemetry;
+
+/**
+ * Tests the SAM operation counters reported by GET STATUS, and their checkpoint to persistent
+ * memory (see Telemetry)
+ */
+public class TelemetryTest extends TestCase {
+
+	private static final int P2_STATUS_TELEMETRY	= 0x01;
+
+	// The encoded counter block: (OK, FAIL) for INITIAL AUTH, FINAL AUTH and SET DATA
+	private static final int LENGTH_COUNTERS		= 12;
+
+	private static final int OPMODE					= 0x0001;
+	private static final byte[] DIVDATA				= fromHex("00112233445566778899AABBCCDDEEFF");
+
+	// A keyset in the key file that is not loaded, used to build an eSTR1 the SAM refuses
+	private static final int KEY_OTHER				= 0x6000;
+
+	private static KeyFile keys;
+	private static Applet sam;
+
+	private static void setUp() throws Exception {
+
+		sam = JCRE.install(OpenPLAIDSAM.class, AID_SAM, null);
+		select(AID_SAM);
+
+		keys = getKeyFile();
+		personaliseSam(keys, KEY_TRANSPORT);
+	}
+
+	/**
+	 * Runs INITIAL AUTH on the transport key slot with an eSTR1 built for the given keyset
+	 */
+	private static void initialAuth(int keyset, int expectedSW) throws Exception {
+
+		byte[] rnd1 = new byte[HostCrypto.LENGTH_BLOCK];
+		byte[] str1 = concat(toShort(keyset), DIVDATA, rnd1, rnd1);
+		byte[] estr1 = HostCrypto.encryptRSA(keys.getIAKey(keyset, "Modulus"), keys.getIAKey(keyset, "Exponent"), str1);
+
+		byte[] response = transmit(0x00, INS_INITIAL_AUTH, 0, 0, concat(toShort(OPMODE), estr1), 0);
+		if (expectedSW == SW_OK) {
+			assertSW(SW_OK, response);
+		} else {
+			assertTrue("The SAM should reject eSTR1 for another keyset", getSW(response) != SW_OK);
+		}
+	}
+
+	/**
+	 * Returns the global counters followed by those of the transport key slot, from GET STATUS
+	 */
+	private static byte[] getCounters() {
+
+		byte[] status = send(SW_OK, 0x00, INS_SAM_GET_STATUS, 0, P2_STATUS_TELEMETRY, null, 0);
+
+		// SEQUENCE { [0] global, [1] { [0] key identifier, [1] key counters } }
+		assertEquals("SEQUENCE", 0x30, status[0] & 0xFF);
+		assertEquals("Global", 0x80, status[2] & 0xFF);
+		assertEquals("Global length", LENGTH_COUNTERS, status[3]);
+		byte[] global = Arrays.copyOfRange(status, 4, 4 + LENGTH_COUNTERS);
+
+		int key = 4 + LENGTH_COUNTERS;
+		assertEquals("Key", 0xA1, status[key] & 0xFF);
+		assertArrayEquals("Key identifier", concat(new byte[] { (byte)0x80, 0x02 }, toShort(KEY_TRANSPORT)), Arrays.copyOfRange(status, key + 2, key + 6));
+		assertEquals("Key counters", 0x81, status[key + 6] & 0xFF);
+		byte[] counters = Arrays.copyOfRange(status, key + 8, key + 8 + LENGTH_COUNTERS);
+
+		assertEquals("Response length", key + 8 + LENGTH_COUNTERS, status.length);
+		return concat(global, counters);
+	}
+
+	/**
+	 * Returns the expected global and key counters for the given INITIAL AUTH counts
+	 */
+	private static byte[] expected(int ok, int fail) {
+		byte[] block = concat(toShort(ok), toShort(fail), new byte[LENGTH_COUNTERS - 4]);
+		return concat(block, block);
+	}
+
+	private static Telemetry getTelemetry() throws Exception {
+		return (Telemetry)getField(sam, "telemetry");
+	}
+
+	/**
+	 * Resets the card and selects the SAM again, verifying the PIN
+	 */
+	private static void reset() {
+		JCRE.reset();
+		select(AID_SAM);
+		send(INS_SAM_VERIFY_PIN, 0, 0, SAM_PIN);
+	}
+
+	public void testGetStatus() throws Exception {
+
+		setUp();
+		assertArrayEquals("Counters", expected(0, 0), getCounters());
+
+		initialAuth(KEY_TRANSPORT, SW_OK);
+		initialAuth(KEY_OTHER, 0);
+		initialAuth(KEY_TRANSPORT, SW_OK);
+		assertArrayEquals("Counters", expected(2, 1), getCounters());
+	}
+
+	public void testCheckpoint() throws Exception {
+
+		setUp();
+
+		// Counts that are not checkpointed are lost on a reset
+		initialAuth(KEY_TRANSPORT, SW_OK);
+		reset();
+		assertArrayEquals("Counters", expected(0, 0), getCounters());
+
+		// A checkpoint inside a transaction the SAM didn't open is left to the caller, so an abort
+		// loses nothing
+		initialAuth(KEY_TRANSPORT, SW_OK);
+		initialAuth(KEY_OTHER, 0);
+		JCSystem.beginTransaction();
+		getTelemetry().checkpoint();
+		JCSystem.abortTransaction();
+		assertArrayEquals("Counters", expected(1, 1), getCounters());
+
+		// A checkpoint of its own survives a reset, and later counts are added to it
+		getTelemetry().checkpoint();
+		assertArrayEquals("Counters", expected(1, 1), getCounters());
+		reset();
+		assertArrayEquals("Counters", expected(1, 1), getCounters());
+
+		initialAuth(KEY_TRANSPORT, SW_OK);
+		assertArrayEquals("Counters", expected(2, 1), getCounters());
+	}
+}
@@ -0,0 +1,285 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+import javacard.framework.JCRE;
+
+import com.makina.security.OpenPLAID.OpenPLAID;
+import com.makina.security.OpenPLAIDSAM.OpenPLAIDSAM;
+
+/**
+ * The base class for the applet tests, with helpers for building and sending APDUs.
+ *
+ * Every public void method whose name starts with 'test' is run by TestRunner, on a freshly
+ * powered-up JCRE.
+ */
+public abstract class TestCase {
+
+	// ISO7816 status words
+	public static final int SW_OK						= 0x9000;
+	public static final int SW_BYTES_REMAINING_00		= 0x6100;
+	public static final int SW_WRONG_LENGTH				= 0x6700;
+	public static final int SW_LAST_COMMAND_EXPECTED	= 0x6883;
+	public static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+	public static final int SW_CONDITIONS_NOT_SATISFIED	= 0x6985;
+	public static final int SW_COMMAND_NOT_ALLOWED		= 0x6986;
+	public static final int SW_DATA_INVALID				= 0x6984;
+	public static final int SW_INCORRECT_P1P2			= 0x6A86;
+	public static final int SW_INS_NOT_SUPPORTED		= 0x6D00;
+
+	// The Le value for 'no Le field'
+	public static final int NO_LE		= -1;
+
+	// The CLA bit for command chaining (ISO7816-4 5.1.1)
+	public static final int CLA_CHAIN	= 0x10;
+
+	private static final int MAX_SHORT_LC	= 255;
+	private static final int MAX_SHORT_LE	= 256;
+
+	// The applet AIDs (see build/build.xml)
+	public static final byte[] AID_CARD	= fromHex("E02881C46101");
+	public static final byte[] AID_SAM	= fromHex("E02881C4614B4F");
+
+	// The SAM personalisation values
+	public static final byte[] SAM_ESN		= fromHex("00000001");
+	public static final byte[] SAM_PIN		= "123456".getBytes();
+	public static final byte[] SAM_PROFILE	= fromHex("0001");
+
+	// The SAM administrative commands (see OpenPLAIDSAM)
+	public static final int INS_SAM_SET_DATA	= 0x10;
+	public static final int INS_SAM_GET_STATUS	= 0x11;
+	public static final int INS_SAM_VERIFY_PIN	= 0x12;
+	public static final int INS_SAM_ACTIVATE	= 0x14;
+	public static final int INS_SAM_LOAD_KEY	= 0x16;
+
+	// The PLAID commands (the same INS on the card and the SAM, except LOAD FAKEY)
+	public static final int INS_GET_DATA		= 0x81;
+	public static final int INS_SET_DATA		= 0x82;
+	public static final int INS_GET_STATUS		= 0x83;
+	public static final int INS_INITIAL_AUTH	= 0x87;
+	public static final int INS_FINAL_AUTH		= 0x86;
+	public static final int INS_SAM_LOAD_FAKEY	= 0x81;
+
+	// The SAM P1 flag for addressing a key by its identifier (prefixed to the data)
+	public static final int P1_KEY_BY_ID		= 0x08;
+
+	// The PLAID transport keyset on the SAM and the card KEYSET_ADMIN identifier
+	public static final int KEY_TRANSPORT		= 0x60FA;
+	public static final int KEYSET_ADMIN		= 0x0000;
+
+	/**
+	 * Sends a command and returns the whole response (data and status word). The command is
+	 * encoded as an extended length APDU if Lc or Le don't fit the short form.
+	 *
+	 * @param le The expected response length (0 for 256 in a short APDU), or NO_LE
+	 */
+	protected static byte[] transmit(int cla, int ins, int p1, int p2, byte[] data, int le) {
+
+		int lc = (data == null) ? 0 : data.length;
+		boolean extended = (lc > MAX_SHORT_LC) || (le > MAX_SHORT_LE);
+
+		ByteArrayOutputStream command = new ByteArrayOutputStream();
+		command.write(cla);
+		command.write(ins);
+		command.write(p1);
+		command.write(p2);
+
+		if (extended) command.write(0x00);
+
+		if (lc != 0) {
+			if (extended) command.write(lc >> 8);
+			command.write(lc);
+			command.write(data, 0, lc);
+		}
+
+		if (le != NO_LE) {
+			if (extended) command.write(le >> 8);
+			command.write(le);
+		}
+
+		return JCRE.transmit(command.toByteArray());
+	}
+
+	/**
+	 * Sends a command, checks the status word and returns the response data
+	 */
+	protected static byte[] send(int expectedSW, int cla, int ins, int p1, int p2, byte[] data, int le) {
+
+		byte[] response = transmit(cla, ins, p1, p2, data, le);
+		assertSW(expectedSW, response);
+		return getData(response);
+	}
+
+	/**
+	 * Sends a command that is expected to succeed (SW 9000) and returns the response data
+	 */
+	protected static byte[] send(int ins, int p1, int p2, byte[] data) {
+		return send(SW_OK, 0x00, ins, p1, p2, data, 0);
+	}
+
+	/**
+	 * Selects an applet, checking that it succeeds
+	 */
+	protected static void select(byte[] aid) {
+		assertSW(SW_OK, JCRE.select(aid));
+	}
+
+	/**
+	 * Installs the OpenPLAID card applet
+	 */
+	protected static void installCard() {
+		JCRE.install(OpenPLAID.class, AID_CARD, null);
+	}
+
+	/**
+	 * Installs the OpenPLAIDSAM applet (with the default key slot counts)
+	 */
+	protected static void installSam() {
+		JCRE.install(OpenPLAIDSAM.class, AID_SAM, null);
+	}
+
+	/**
+	 * Installs the OpenPLAIDSAM applet with the given number of PLAID, AES and TDEA key slots
+	 */
+	protected static void installSam(int plaid, int aes, int tdea) {
+		JCRE.install(OpenPLAIDSAM.class, AID_SAM, new byte[] { (byte)plaid, (byte)aes, (byte)tdea });
+	}
+
+	/**
+	 * Returns the example key file
+	 */
+	protected static KeyFile getKeyFile() throws Exception {
+		File base = new File(System.getProperty("basedir", "."));
+		return new KeyFile(new File(base, "src/example/OpenPLAIDExample/PLAID_KEYS.xml"));
+	}
+
+	/**
+	 * Personalises and activates the selected SAM with the given keys, leaving the PIN verified
+	 */
+	protected static void personaliseSam(KeyFile keys, int... ids) {
+
+		send(INS_SAM_SET_DATA, 1, 0, SAM_ESN);
+		send(INS_SAM_SET_DATA, 2, 0, SAM_PIN);
+		send(INS_SAM_SET_DATA, 3, 0, SAM_PROFILE);
+		send(INS_SAM_SET_DATA, 4, 0, keys.getSystemDiversifier());
+
+		for (int id : ids) {
+			send(INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, keys.getLoadKeyData(id));
+		}
+
+		send(INS_SAM_ACTIVATE, 0, 0, null);
+		send(INS_SAM_VERIFY_PIN, 0, 0, SAM_PIN);
+	}
+
+	/**
+	 * Returns the status word of a response
+	 */
+	protected static int getSW(byte[] response) {
+		int length = response.length;
+		return ((response[length - 2] & 0xFF) << 8) | (response[length - 1] & 0xFF);
+	}
+
+	/**
+	 * Returns the data of a response (without the status word)
+	 */
+	protected static byte[] getData(byte[] response) {
+		return Arrays.copyOf(response, response.length - 2);
+	}
+
+	/**
+	 * Returns the value of a private field, to check applet state that no command reports
+	 */
+	protected static Object getField(Object object, String name) throws Exception {
+		Field field = object.getClass().getDeclaredField(name);
+		field.setAccessible(true);
+		return field.get(object);
+	}
+
+	//
+	// Assertions
+	//
+
+	protected static void assertSW(int expected, byte[] response) {
+		int actual = getSW(response);
+		if (actual != expected) {
+			RuntimeException cause = JCRE.getLastException();
+			String message = "Expected SW " + toHex(expected) + " but was " + toHex(actual);
+			if (cause != null) message += " (" + cause + ")";
+			throw new AssertionError(message);
+		}
+	}
+
+	protected static void assertEquals(String message, long expected, long actual) {
+		if (expected != actual) throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+	}
+
+	protected static void assertArrayEquals(String message, byte[] expected, byte[] actual) {
+		if (!Arrays.equals(expected, actual)) {
+			throw new AssertionError(message + ": expected " + toHex(expected) + " but was " + toHex(actual));
+		}
+	}
+
+	protected static void assertTrue(String message, boolean condition) {
+		if (!condition) throw new AssertionError(message);
+	}
+
+	//
+	// Encoding helpers
+	//
+
+	public static byte[] fromHex(String value) {
+		byte[] result = new byte[value.length() / 2];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = (byte)Integer.parseInt(value.substring(i * 2, i * 2 + 2), 16);
+		}
+		return result;
+	}
+
+	public static String toHex(byte[] value) {
+		StringBuilder result = new StringBuilder();
+		for (byte b : value) result.append(String.format("%02X", b & 0xFF));
+		return result.toString();
+	}
+
+	public static String toHex(int sw) {
+		return String.format("%04X", sw & 0xFFFF);
+	}
+
+	/**
+	 * Returns the concatenation of the given byte arrays
+	 */
+	public static byte[] concat(byte[]... parts) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		for (byte[] part : parts) result.write(part, 0, part.length);
+		return result.toByteArray();
+	}
+
+	/**
+	 * Returns a 2 byte big-endian value
+	 */
+	public static byte[] toShort(int value) {
+		return new byte[] { (byte)(value >> 8), (byte)value };
+	}
+
+	/**
+	 * Returns a BER-TLV object with a single byte tag and a definite (short or long form) length
+	 */
+	public static byte[] tlv(int tag, byte[]... value) {
+
+		byte[] data = concat(value);
+		byte[] length;
+
+		if (data.length < 0x80) {
+			length = new byte[] { (byte)data.length };
+		} else if (data.length <= 0xFF) {
+			length = new byte[] { (byte)0x81, (byte)data.length };
+		} else {
+			length = new byte[] { (byte)0x82, (byte)(data.length >> 8), (byte)data.length };
+		}
+
+		return concat(new byte[] { (byte)tag }, length, data);
+	}
+}
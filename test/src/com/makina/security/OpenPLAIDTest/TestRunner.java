@@ -0,0 +1,79 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import javacard.framework.JCRE;
+
+/**
+ * Runs the applet tests against the JCRE stand-in (see test/api).
+ *
+ * Each test method is run on a freshly powered-up JCRE, so it must install the applets it needs.
+ * The process exits with a non-zero status if any test fails.
+ *
+ * The 'basedir' system property must point at the project root, so that the example key file
+ * can be found.
+ */
+public final class TestRunner {
+
+	private static final Class<?>[] TESTS = {
+		TlvReaderTest.class,
+		TlvWriterTest.class,
+		TlvSchemaTest.class,
+		AESCMAC128Test.class,
+		CardTest.class,
+		SamTest.class,
+		KeyImportTest.class,
+		TransactionTest.class,
+		ApduIOTest.class,
+		InitialAuthTest.class,
+		AuthenticationTest.class,
+		TelemetryTest.class
+	};
+
+	private TestRunner() {
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int run = 0;
+		int failed = 0;
+
+		for (Class<?> test : TESTS) {
+
+			Method[] methods = test.getMethods();
+			Arrays.sort(methods, new Comparator<Method>() {
+				public int compare(Method a, Method b) {
+					return a.getName().compareTo(b.getName());
+				}
+			});
+
+			for (Method method : methods) {
+				if (!method.getName().startsWith("test") || method.getParameterTypes().length != 0) continue;
+				if (Modifier.isStatic(method.getModifiers())) continue;
+
+				String name = test.getSimpleName() + "." + method.getName();
+				run++;
+
+				JCRE.powerUp();
+
+				try {
+					method.invoke(test.getDeclaredConstructor().newInstance());
+					System.out.println("PASS " + name);
+				} catch (InvocationTargetException ex) {
+					failed++;
+					System.out.println("FAIL " + name + ": " + ex.getCause());
+					ex.getCause().printStackTrace(System.out);
+				}
+			}
+		}
+
+		System.out.println();
+		System.out.println("Tests run: " + run + ", Failures: " + failed);
+
+		if (failed != 0) System.exit(1);
+	}
+}
@@ -0,0 +1,103 @@
+package com.makina.security.OpenPLAIDTest;
+
+import com.makina.security.OpenPLAIDCore.TlvException;
+import com.makina.security.OpenPLAIDCore.TlvReader;
+
+/**
+ * Tests the bounded TlvReader methods, in particular short and long form lengths
+ */
+public class TlvReaderTest extends TestCase {
+
+	private static final int TAG_SEQUENCE	= 0x30;
+	private static final int TAG_INTEGER	= 0x02;
+	private static final int TAG_OCTETS		= 0x04;
+
+	/**
+	 * Returns a SEQUENCE holding an INTEGER and an OCTET STRING of the given length
+	 */
+	private static byte[] sequence(int length) {
+		return tlv(TAG_SEQUENCE, tlv(TAG_INTEGER, new byte[] { 0x01 }), tlv(TAG_OCTETS, new byte[length]));
+	}
+
+	private static short find(byte[] data, int tag) {
+		return TlvReader.find(data, (short)0, (short)data.length, (byte)(tag & 0x1F));
+	}
+
+	/**
+	 * Checks that the OCTET STRING of the given length is found with the right header
+	 */
+	private static void checkLength(int length, int headerLength) {
+
+		byte[] data = sequence(length);
+
+		short offset = find(data, TAG_OCTETS);
+		assertEquals("Offset", data.length - length - headerLength, offset);
+		assertEquals("Length", length, TlvReader.getLength(data, offset));
+		assertEquals("Data offset", offset + headerLength, TlvReader.checkHeader(data, offset, (short)data.length));
+		assertEquals("Data offset", offset + headerLength, TlvReader.getDataOffset(data, offset));
+	}
+
+	public void testShortFormLength() {
+		checkLength(0x7F, 2);
+	}
+
+	public void testOneByteLongFormLength() {
+
+		checkLength(0x80, 3);
+		checkLength(0xFF, 3);
+
+		// The outer SEQUENCE uses the 82 form here, and find() descends into it
+		assertEquals("Sequence", 0, find(sequence(0xFF), TAG_SEQUENCE));
+	}
+
+	public void testTwoByteLongFormLength() {
+		checkLength(0x100, 4);
+		checkLength(0x3D0, 4);
+	}
+
+	public void testTruncatedLongFormLength() {
+
+		byte[] data = sequence(0x100);
+
+		// The OCTET STRING claims more data than there is before 'end'
+		short offset = find(data, TAG_OCTETS);
+		assertEquals("Header", TlvReader.TAG_INVALID, TlvReader.checkHeader(data, offset, (short)(data.length - 1)));
+		assertEquals("Find", TlvReader.TAG_INVALID, TlvReader.find(data, (short)0, (short)(data.length - 1), (byte)TAG_OCTETS));
+
+		// The length bytes themselves are cut off
+		assertEquals("Header", TlvReader.TAG_INVALID, TlvReader.checkHeader(data, offset, (short)(offset + 3)));
+	}
+
+	public void testUnsupportedLongFormLength() {
+
+		// 83 xx xx xx is valid BER, but longer than this implementation supports
+		byte[] data = { TAG_OCTETS, (byte)0x83, 0x00, 0x00, 0x01, 0x00 };
+		assertEquals("Header", TlvReader.TAG_INVALID, TlvReader.checkHeader(data, (short)0, (short)data.length));
+	}
+
+	public void testUncheckedGetters() {
+
+		// The unchecked getters report unsupported encodings with a TlvException
+		byte[] data = { TAG_OCTETS, (byte)0x83, 0x00, 0x00, 0x01, 0x00 };
+		try {
+			TlvReader.getLength(data, (short)0);
+			throw new AssertionError("getLength() should fail for an 83 form length");
+		} catch (TlvException ex) {
+			assertEquals("Reason", TlvException.TAG_LENGTH_EXCEEDS_MAX, ex.getReason());
+		}
+
+		data = new byte[] { (byte)0x1F, (byte)0x81, 0x01, 0x00 };
+		try {
+			TlvReader.getTagNumber(data, (short)0);
+			throw new AssertionError("getTagNumber() should fail for a tag above 127");
+		} catch (TlvException ex) {
+			assertEquals("Reason", TlvException.TAG_NUMBER_EXCEEDS_MAX, ex.getReason());
+		}
+	}
+
+	public void testTagNotFound() {
+
+		byte[] data = sequence(0x100);
+		assertEquals("Find", TlvReader.TAG_NOT_FOUND, find(data, 0x0A));
+	}
+}
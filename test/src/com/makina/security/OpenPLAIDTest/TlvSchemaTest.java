@@ -0,0 +1,98 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import com.makina.security.OpenPLAIDCore.TlvSchema;
+
+/**
+ * Tests TlvSchema.validate with a schema shaped like the PLAID KEY CREATE parameters, and with
+ * malformed input that it must refuse
+ */
+public class TlvSchemaTest extends TestCase {
+
+	private static final int TAG_ENUMERATED	= 0x0A;
+	private static final int TAG_ID			= 0x41;	// [APPLICATION 1]
+	private static final int TAG_KEY		= 0x62;	// [APPLICATION 2] constructed
+	private static final int TAG_RULES		= 0x43;	// [APPLICATION 3]
+	private static final int TAG_FAKEY		= 0x4D;	// [APPLICATION 13]
+	private static final int TAG_UNUSED		= 0x45;	// [APPLICATION 5], not in the schema
+
+	private static final byte REQUIRED		= (byte)(TlvSchema.CLASS_APPLICATION | TlvSchema.FLAG_REQUIRED);
+	private static final byte OPTIONAL		= TlvSchema.CLASS_APPLICATION;
+
+	private static final byte[] SCHEMA = {
+		0x01, REQUIRED, 0x00, 0x02, 0x00, 0x02,			// ID
+		0x02, REQUIRED, 0x00, 0x00, 0x7F, (byte)0xFF,	// KEY
+		0x0D, REQUIRED, 0x00, 0x10, 0x00, 0x10,			// FAKEY (within KEY)
+		0x03, OPTIONAL, 0x00, 0x01, 0x00, 0x10			// RULES
+	};
+	private static final int ENTRY_ID		= 0;
+	private static final int ENTRY_FAKEY	= 2;
+	private static final int ENTRY_RULES	= 3;
+
+	private static final byte[] OPERATION	= tlv(TAG_ENUMERATED, new byte[] { 0x05 });
+	private static final byte[] ID			= tlv(TAG_ID, toShort(0x1234));
+	private static final byte[] KEY			= tlv(TAG_KEY, tlv(TAG_FAKEY, new byte[16]));
+	private static final byte[] RULES		= tlv(TAG_RULES, toShort(0x0001));
+
+	private final short[] results = new short[SCHEMA.length / TlvSchema.LENGTH_ENTRY * TlvSchema.LENGTH_RESULT];
+
+	private boolean validate(byte[] data) {
+		return TlvSchema.validate(data, (short)0, (short)data.length, SCHEMA, results);
+	}
+
+	public void testValid() {
+
+		byte[] data = concat(OPERATION, ID, KEY, tlv(TAG_UNUSED, new byte[3]), RULES);
+		assertTrue("Valid", validate(data));
+		assertEquals("ID offset", OPERATION.length + 2, TlvSchema.getOffset(results, (short)ENTRY_ID));
+		assertEquals("FAKEY offset", OPERATION.length + ID.length + 4, TlvSchema.getOffset(results, (short)ENTRY_FAKEY));
+		assertEquals("FAKEY length", 16, TlvSchema.getLength(results, (short)ENTRY_FAKEY));
+		assertEquals("RULES length", 2, TlvSchema.getLength(results, (short)ENTRY_RULES));
+
+		// The optional entry may be left out
+		assertTrue("Valid", validate(concat(OPERATION, ID, KEY)));
+		assertEquals("RULES offset", TlvSchema.NOT_PRESENT, TlvSchema.getOffset(results, (short)ENTRY_RULES));
+	}
+
+	public void testChildBeyondParent() {
+
+		// KEY holds only the FAKEY header, and its value runs on past the end of KEY
+		byte[] key = tlv(TAG_KEY, new byte[] { TAG_FAKEY, 0x10 });
+		assertTrue("Child beyond parent", !validate(concat(OPERATION, ID, key, new byte[16])));
+	}
+
+	public void testTagClass() {
+
+		// [CONTEXT 1] and [CONTEXT 2] have the right numbers but the wrong class
+		assertTrue("Context ID", !validate(concat(OPERATION, tlv(0x81, toShort(0x1234)), KEY)));
+		assertTrue("Context KEY", !validate(concat(OPERATION, ID, tlv(0xA2, tlv(TAG_FAKEY, new byte[16])))));
+
+		// An optional entry with the wrong class is not matched
+		assertTrue("Context RULES", validate(concat(OPERATION, ID, KEY, tlv(0x83, toShort(0x0001)))));
+		assertEquals("RULES offset", TlvSchema.NOT_PRESENT, TlvSchema.getOffset(results, (short)ENTRY_RULES));
+	}
+
+	public void testOrder() {
+
+		assertTrue("KEY before ID", !validate(concat(OPERATION, KEY, ID)));
+		assertTrue("RULES before KEY", !validate(concat(OPERATION, ID, RULES, KEY)));
+		assertTrue("ID repeated", !validate(concat(OPERATION, ID, ID, KEY)));
+		assertTrue("RULES repeated", !validate(concat(OPERATION, ID, KEY, RULES, RULES)));
+	}
+
+	public void testMalformed() {
+
+		byte[] data = concat(OPERATION, ID, KEY);
+
+		// Truncated at every position
+		for (int length = 1; length < data.length; length++) {
+			assertTrue("Truncated to " + length, !validate(Arrays.copyOf(data, length)));
+		}
+
+		// Nesting beyond MAX_DEPTH
+		byte[] nested = KEY;
+		for (int i = 0; i < TlvSchema.MAX_DEPTH; i++) nested = tlv(0x30, nested);
+		assertTrue("Nesting", !validate(concat(OPERATION, ID, nested)));
+	}
+}
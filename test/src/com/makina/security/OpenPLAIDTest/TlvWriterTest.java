@@ -0,0 +1,76 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.ISOException;
+
+import com.makina.security.OpenPLAIDCore.TlvReader;
+import com.makina.security.OpenPLAIDCore.TlvWriter;
+
+/**
+ * Tests TlvWriter, in particular the back-patching of constructed lengths by end()
+ */
+public class TlvWriterTest extends TestCase {
+
+	private static final byte TAG_SEQUENCE	= (byte)0x30;
+	private static final byte TAG_OCTETS	= (byte)0x04;
+
+	/**
+	 * Writes a SEQUENCE holding one OCTET STRING of the given length and checks it against the
+	 * reference encoding
+	 */
+	private static void checkSequence(int length) {
+
+		byte[] value = new byte[length];
+		Arrays.fill(value, (byte)0x5A);
+		byte[] expected = tlv(TAG_SEQUENCE, tlv(TAG_OCTETS, value));
+
+		byte[] buffer = new byte[expected.length + 8];
+		short start = (short)4;
+
+		short offset = TlvWriter.begin(buffer, start, TAG_SEQUENCE);
+		offset = TlvWriter.write(buffer, offset, TAG_OCTETS, value, (short)0, (short)length);
+		offset = TlvWriter.end(buffer, (short)(start + 2), offset);
+
+		assertEquals("End offset", start + expected.length, offset);
+		assertArrayEquals("Encoding", expected, Arrays.copyOfRange(buffer, start, offset));
+
+		// The result can be read back
+		assertEquals("Length", length, TlvReader.getLength(buffer, TlvReader.find(buffer, start, offset, TlvReader.ASN1_OCTET_STRING)));
+	}
+
+	public void testShortFormLength() {
+		checkSequence(0x10);
+		checkSequence(0x7D);
+	}
+
+	public void testLongFormLength() {
+		checkSequence(0x7E);		// The SEQUENCE needs the 81 form
+		checkSequence(0xFF);		// Both need the 81 form, the SEQUENCE the 82 form
+		checkSequence(0x200);
+	}
+
+	public void testWriteShort() {
+
+		byte[] buffer = new byte[4];
+		assertEquals("End offset", 4, TlvWriter.writeShort(buffer, (short)0, (byte)0x80, (short)0x1234));
+		assertArrayEquals("Encoding", fromHex("80021234"), buffer);
+	}
+
+	public void testEndOverflow() {
+
+		// Room for the contents with a short form length, but not the long form
+		byte[] buffer = new byte[2 + 0x80];
+		short offset = TlvWriter.begin(buffer, (short)0, TAG_SEQUENCE);
+		byte[] before = buffer.clone();
+
+		try {
+			TlvWriter.end(buffer, offset, (short)buffer.length);
+			throw new AssertionError("end() should fail when the long form length does not fit");
+		} catch (ISOException ex) {
+			assertEquals("SW", 0x6A84, ex.getReason() & 0xFFFF);
+		}
+
+		assertArrayEquals("Buffer", before, buffer);
+	}
+}
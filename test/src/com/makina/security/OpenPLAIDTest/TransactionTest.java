@@ -0,0 +1,115 @@
+package com.makina.security.OpenPLAIDTest;
+
+import java.util.Arrays;
+
+import javacard.framework.JCRE;
+import javacard.framework.JCSystem;
+
+/**
+ * Tests that the SAM key table is updated all-or-nothing, using the rollback and commit capacity of
+ * the stand-in JCSystem
+ */
+public class TransactionTest extends TestCase {
+
+	private static final int INS_SAM_TERMINATE		= 0x15;
+	private static final int INS_SAM_IMPORT_KEYS	= 0x1A;
+
+	private static final int SW_FILE_FULL			= 0x6A84;
+
+	private static final int KEY_KEK				= 0x7001;
+	private static final byte[] KEK					= fromHex("000102030405060708090A0B0C0D0E0F");
+
+	// Another PLAID key in the test key file
+	private static final int KEY_PLAID_ADMIN		= 0x6000;
+
+	// Enough for a symmetric key record (header and key), but less than a PLAID key record
+	private static final short CAPACITY_SMALL		= (short)100;
+
+	// Less than a symmetric key record
+	private static final short CAPACITY_TINY		= (short)20;
+
+	private static byte[] aesRecord(int id, int fill) {
+		byte[] key = new byte[HostCrypto.LENGTH_BLOCK];
+		Arrays.fill(key, (byte)fill);
+		return KeyFile.getSymmetricKeyData(id, 0, key);
+	}
+
+	/**
+	 * Installs the SAM and loads the transport KEK, leaving the SAM in the SELECTABLE state
+	 */
+	private static void setUpImport() {
+
+		installSam();
+		select(AID_SAM);
+
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, KeyFile.getSymmetricKeyData(KEY_KEK, KeyFile.ATTR_IMPORT_KEK, KEK));
+	}
+
+	public void testImportRolledBack() throws Exception {
+
+		setUpImport();
+
+		// The second entry repeats the identifier of the first, so the whole blob is refused
+		byte[] duplicate = KeyImportTest.blob(	KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7101, 0x11)),
+												KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7101, 0x22)));
+		send(SW_DATA_INVALID, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, duplicate, 0);
+		assertEquals("Transaction depth", 0, JCSystem.getTransactionDepth());
+
+		// Nothing of the first entry was kept, so it can be imported on its own
+		byte[] data = KeyImportTest.blob(KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7101, 0x11)));
+		assertArrayEquals("Count", toShort(1), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+	}
+
+	public void testImportCommitCapacity() throws Exception {
+
+		setUpImport();
+
+		byte[] data = KeyImportTest.blob(	KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7101, 0x11)),
+											KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7102, 0x22)),
+											KeyImportTest.entry(KeyFile.TYPE_AES, aesRecord(0x7103, 0x33)));
+
+		// A key record does not fit in the commit buffer
+		JCRE.setCommitCapacity(CAPACITY_TINY);
+		send(SW_FILE_FULL, 0x00, INS_SAM_IMPORT_KEYS, 0, 0, data, 0);
+		assertEquals("Transaction depth", 0, JCSystem.getTransactionDepth());
+
+		// Each key is written in a transaction of its own, so the commit buffer need only hold one
+		// record rather than the whole blob. None of the keys were kept by the failed import.
+		JCRE.setCommitCapacity(CAPACITY_SMALL);
+		assertArrayEquals("Count", toShort(3), send(INS_SAM_IMPORT_KEYS, 0, 0, data));
+	}
+
+	public void testLoadKeyRolledBack() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		KeyFile keys = getKeyFile();
+
+		// The commit buffer runs out part way through the RSA elements
+		JCRE.setCommitCapacity((short)200);
+		byte[] response = transmit(0x00, INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, keys.getLoadKeyData(KEY_TRANSPORT), 0);
+		assertTrue("LOAD KEY should fail", getSW(response) != SW_OK);
+		assertEquals("Transaction depth", 0, JCSystem.getTransactionDepth());
+
+		// The header was not kept either, so the slot takes another key
+		JCRE.setCommitCapacity(Short.MAX_VALUE);
+		byte[] slot = send(INS_SAM_LOAD_KEY, KeyFile.TYPE_PLAID, 0xFF, keys.getLoadKeyData(KEY_PLAID_ADMIN));
+		assertArrayEquals("Slot", toShort(0), slot);
+	}
+
+	public void testTerminateSmallCommitCapacity() throws Exception {
+
+		installSam();
+		select(AID_SAM);
+
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, aesRecord(0x7101, 0x11));
+		send(INS_SAM_LOAD_KEY, KeyFile.TYPE_AES, 0xFF, aesRecord(0x7102, 0x22));
+		personaliseSam(getKeyFile(), KEY_TRANSPORT);
+
+		// The PLAID record can't be cleared in a transaction, but the AES records can
+		JCRE.setCommitCapacity(CAPACITY_SMALL);
+		send(SW_OK, 0x00, INS_SAM_TERMINATE, 0, 0, null, NO_LE);
+		assertEquals("Transaction depth", 0, JCSystem.getTransactionDepth());
+	}
+}